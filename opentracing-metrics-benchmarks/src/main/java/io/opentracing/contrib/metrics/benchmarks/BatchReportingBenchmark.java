@@ -0,0 +1,118 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.BatchMetricsReporter;
+import io.opentracing.contrib.metrics.MetricLabel;
+import io.opentracing.contrib.metrics.SpanBatch;
+import io.opentracing.contrib.metrics.micrometer.MicrometerMetricsReporter;
+import io.opentracing.contrib.metrics.prometheus.PrometheusMetricsReporter;
+import io.prometheus.client.CollectorRegistry;
+
+/**
+ * This benchmark compares reporting a batch of spans using
+ * {@link BatchMetricsReporter#reportSpans(SpanBatch)} with reporting the same spans one at a
+ * time using {@link BatchMetricsReporter#reportSpan(SpanData)}, as performed by the workers of
+ * an asynchronous reporter, for a varying label cardinality. The results are per span.
+ *
+ */
+@SuppressWarnings("deprecation")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchReportingBenchmark {
+
+    private static final int BATCH_SIZE = 256;
+    private static final int LABEL_COUNT = 2;
+
+    @Param({"micrometer", "prometheus"})
+    private String reporterType;
+
+    @Param({"1", "16", "256"})
+    private int cardinality;
+
+    private SpanBatch[] batches;
+    private BatchMetricsReporter reporter;
+    private int index;
+
+    @Setup
+    public void setup() {
+        SpanData[] spans = SpanDataFixture.createSpanData(LABEL_COUNT, cardinality);
+        batches = new SpanBatch[spans.length / BATCH_SIZE];
+        for (int i = 0; i < batches.length; i++) {
+            batches[i] = new SpanBatch(BATCH_SIZE);
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                batches[i].add(spans[i * BATCH_SIZE + j]);
+            }
+        }
+
+        if (reporterType.equals("micrometer")) {
+            MicrometerMetricsReporter.Builder builder = MicrometerMetricsReporter.newMetricsReporter()
+                    .withRegistry(new SimpleMeterRegistry());
+            for (MetricLabel label : SpanDataFixture.createLabels(LABEL_COUNT)) {
+                builder.withCustomLabel(label);
+            }
+            reporter = builder.build();
+        } else {
+            PrometheusMetricsReporter.Builder builder = PrometheusMetricsReporter.newMetricsReporter()
+                    .withCollectorRegistry(new CollectorRegistry());
+            for (MetricLabel label : SpanDataFixture.createLabels(LABEL_COUNT)) {
+                builder.withCustomLabel(label);
+            }
+            reporter = builder.build();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void reportSpans() {
+        reporter.reportSpans(nextBatch());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void reportSpan() {
+        SpanBatch batch = nextBatch();
+        for (int i = 0; i < batch.size(); i++) {
+            reporter.reportSpan(batch.getSpanData(i));
+        }
+    }
+
+    private SpanBatch nextBatch() {
+        SpanBatch batch = batches[index];
+        index = (index + 1) % batches.length;
+        return batch;
+    }
+
+}
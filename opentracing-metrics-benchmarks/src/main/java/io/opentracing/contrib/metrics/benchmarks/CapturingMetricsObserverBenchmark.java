@@ -0,0 +1,105 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.benchmarks;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.api.SpanObserver;
+import io.opentracing.contrib.api.TracerObserver;
+import io.opentracing.contrib.metrics.CapturingMetricsObserver;
+import io.opentracing.contrib.metrics.MetricsObserver;
+import io.opentracing.contrib.metrics.MetricsReporter;
+
+/**
+ * This benchmark compares the {@link MetricsObserver} with the {@link CapturingMetricsObserver},
+ * over the lifecycle of a span that has its filler tags set after it has started, reporting to a
+ * reporter that derives the label key.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CapturingMetricsObserverBenchmark {
+
+    @Param({"2", "5"})
+    private int labelCount;
+
+    @Param({"standard", "capturing"})
+    private String observerType;
+
+    private SpanData[] spans;
+    private String[] fillerKeys;
+    private TracerObserver observer;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        spans = SpanDataFixture.createSpanData(labelCount, 16);
+        fillerKeys = new String[SpanDataFixture.FILLER_TAG_COUNT];
+        for (int f = 0; f < fillerKeys.length; f++) {
+            fillerKeys[f] = "filler" + f;
+        }
+
+        MetricsReporter reporter = new LabelValuesBenchmark.LabelValuesReporter(labelCount) {
+            @Override
+            public void reportSpan(SpanData spanData) {
+                blackhole.consume(labelKey(spanData));
+            }
+        };
+        observer = "capturing".equals(observerType)
+                ? new CapturingMetricsObserver(Collections.singleton(reporter))
+                : new MetricsObserver(Collections.singleton(reporter));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void spanLifecycle(SpanCursor cursor) {
+        lifecycle(cursor.next(spans));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void spanLifecycleContended(SpanCursor cursor) {
+        lifecycle(cursor.next(spans));
+    }
+
+    private void lifecycle(SpanData spanData) {
+        SpanObserver spanObserver = observer.onStart(spanData);
+        Map<String, Object> tags = spanData.getTags();
+        for (String key : fillerKeys) {
+            spanObserver.onSetTag(spanData, key, tags.get(key));
+        }
+        spanObserver.onFinish(spanData, 0);
+    }
+
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.AbstractMetricsReporter;
+import io.opentracing.contrib.metrics.LabelKey;
+import io.opentracing.contrib.metrics.MetricLabel;
+
+/**
+ * This benchmark compares the derivation of the values of a mix of label types using the
+ * compiled label plan of {@link AbstractMetricsReporter#getLabelKey(SpanData)}, with invoking
+ * {@link MetricLabel#value(SpanData)} on each label in turn. The label count is in addition
+ * to the three standard labels.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabelPlanBenchmark {
+
+    @Param({"1", "3", "5"})
+    private int labelCount;
+
+    private SpanData[] spans;
+    private LabelValuesBenchmark.LabelValuesReporter reporter;
+    private MetricLabel[] labels;
+
+    @Setup
+    public void setup() {
+        spans = SpanDataFixture.createSpanData(labelCount, 16);
+        reporter = new LabelValuesBenchmark.LabelValuesReporter(SpanDataFixture.createMixedLabels(labelCount));
+        labels = reporter.metricLabels();
+    }
+
+    @Benchmark
+    public LabelKey compiled(SpanCursor cursor) {
+        return reporter.labelKey(cursor.next(spans));
+    }
+
+    @Benchmark
+    public int interpreted(SpanCursor cursor) {
+        SpanData spanData = cursor.next(spans);
+        int hash = 1;
+        for (MetricLabel label : labels) {
+            Object value = label.value(spanData);
+            if (value == null) {
+                return 0;
+            }
+            hash = 31 * hash + value.hashCode();
+        }
+        return hash;
+    }
+
+}
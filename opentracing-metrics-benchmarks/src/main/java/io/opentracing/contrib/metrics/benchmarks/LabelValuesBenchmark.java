@@ -0,0 +1,121 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.AbstractMetricsReporter;
+import io.opentracing.contrib.metrics.LabelKey;
+import io.opentracing.contrib.metrics.MetricLabel;
+
+/**
+ * This benchmark measures the derivation of label values performed by
+ * {@link AbstractMetricsReporter#getLabelValues(SpanData)} and
+ * {@link AbstractMetricsReporter#getLabelKey(SpanData)}.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LabelValuesBenchmark {
+
+    @Param({"0", "2", "5"})
+    private int labelCount;
+
+    @Param({"1", "16", "256"})
+    private int cardinality;
+
+    private SpanData[] spans;
+    private LabelValuesReporter reporter;
+
+    @Setup
+    public void setup() {
+        spans = SpanDataFixture.createSpanData(labelCount, cardinality);
+        reporter = new LabelValuesReporter(labelCount);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String[] getLabelValues(SpanCursor cursor) {
+        return reporter.labelValues(cursor.next(spans));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String[] getLabelValuesContended(SpanCursor cursor) {
+        return reporter.labelValues(cursor.next(spans));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public LabelKey getLabelKey(SpanCursor cursor) {
+        return reporter.labelKey(cursor.next(spans));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public LabelKey getLabelKeyContended(SpanCursor cursor) {
+        return reporter.labelKey(cursor.next(spans));
+    }
+
+    /**
+     * This reporter exposes the label values derived by the abstract reporter.
+     *
+     */
+    static class LabelValuesReporter extends AbstractMetricsReporter {
+
+        LabelValuesReporter(int labelCount) {
+            this(SpanDataFixture.createLabels(labelCount));
+        }
+
+        LabelValuesReporter(List<MetricLabel> labels) {
+            super(labels);
+        }
+
+        MetricLabel[] metricLabels() {
+            return metricLabels;
+        }
+
+        String[] labelValues(SpanData spanData) {
+            return getLabelValues(spanData);
+        }
+
+        LabelKey labelKey(SpanData spanData) {
+            return getLabelKey(spanData);
+        }
+
+        @Override
+        public void reportSpan(SpanData spanData) {
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.Metrics;
+import io.opentracing.contrib.metrics.MetricsReporter;
+import io.opentracing.noop.NoopTracerFactory;
+import io.opentracing.tag.Tags;
+
+/**
+ * This benchmark measures the overhead that {@link Metrics#decorate(Tracer, MetricsReporter)}
+ * adds to the lifecycle of a span, compared to the undecorated tracer.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsDecoratorBenchmark {
+
+    @Param({"0", "5", "20"})
+    private int tagCount;
+
+    private String[] tagNames;
+    private Tracer tracer;
+    private Tracer metricsTracer;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        tagNames = new String[tagCount];
+        for (int i = 0; i < tagCount; i++) {
+            tagNames[i] = "tag" + i;
+        }
+        tracer = NoopTracerFactory.create();
+        metricsTracer = Metrics.decorate(tracer, new MetricsReporter() {
+            @Override
+            public void reportSpan(SpanData spanData) {
+                blackhole.consume(spanData.getDuration());
+            }
+        });
+    }
+
+    @Benchmark
+    public void undecorated() {
+        finishSpan(tracer);
+    }
+
+    @Benchmark
+    public void decorated() {
+        finishSpan(metricsTracer);
+    }
+
+    private void finishSpan(Tracer tracer) {
+        Span span = tracer.buildSpan("operation")
+                .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER)
+                .start();
+        for (int i = 0; i < tagNames.length; i++) {
+            span.setTag(tagNames[i], "value");
+        }
+        span.finish();
+    }
+
+}
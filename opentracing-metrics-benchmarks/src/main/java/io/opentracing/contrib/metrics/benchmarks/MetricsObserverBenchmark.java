@@ -0,0 +1,87 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.benchmarks;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.MetricsObserver;
+import io.opentracing.contrib.metrics.MetricsReporter;
+
+/**
+ * This benchmark measures the {@link MetricsObserver} start and finish notifications, fanning
+ * out to a varying number of reporters that only consume the span duration.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsObserverBenchmark {
+
+    @Param({"1", "2", "4"})
+    private int reporterCount;
+
+    private SpanData[] spans;
+    private MetricsObserver observer;
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        spans = SpanDataFixture.createSpanData(0, 16);
+
+        Set<MetricsReporter> reporters = new HashSet<MetricsReporter>();
+        for (int i = 0; i < reporterCount; i++) {
+            reporters.add(new MetricsReporter() {
+                @Override
+                public void reportSpan(SpanData spanData) {
+                    blackhole.consume(spanData.getDuration());
+                }
+            });
+        }
+        observer = new MetricsObserver(reporters);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void onFinish(SpanCursor cursor) {
+        SpanData spanData = cursor.next(spans);
+        observer.onStart(spanData).onFinish(spanData, 0);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void onFinishContended(SpanCursor cursor) {
+        SpanData spanData = cursor.next(spans);
+        observer.onStart(spanData).onFinish(spanData, 0);
+    }
+
+}
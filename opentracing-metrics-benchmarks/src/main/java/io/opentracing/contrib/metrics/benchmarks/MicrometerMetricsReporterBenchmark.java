@@ -0,0 +1,94 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.MetricLabel;
+import io.opentracing.contrib.metrics.micrometer.MicrometerMetricsReporter;
+
+/**
+ * This benchmark measures {@link MicrometerMetricsReporter#reportSpan(SpanData)} for a varying
+ * number of labels and label cardinality, with and without pre-aggregation.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MicrometerMetricsReporterBenchmark {
+
+    @Param({"0", "2", "5"})
+    private int labelCount;
+
+    @Param({"1", "16", "256"})
+    private int cardinality;
+
+    @Param({"false", "true"})
+    private boolean preAggregation;
+
+    private SpanData[] spans;
+    private MicrometerMetricsReporter reporter;
+
+    @Setup
+    public void setup() {
+        spans = SpanDataFixture.createSpanData(labelCount, cardinality);
+
+        MicrometerMetricsReporter.Builder builder = MicrometerMetricsReporter.newMetricsReporter()
+                .withRegistry(new SimpleMeterRegistry());
+        for (MetricLabel label : SpanDataFixture.createLabels(labelCount)) {
+            builder.withCustomLabel(label);
+        }
+        if (preAggregation) {
+            builder.withPreAggregation();
+        }
+        reporter = builder.build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        reporter.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void reportSpan(SpanCursor cursor) {
+        reporter.reportSpan(cursor.next(spans));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void reportSpanContended(SpanCursor cursor) {
+        reporter.reportSpan(cursor.next(spans));
+    }
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import io.opentracing.contrib.metrics.LabelKey;
+import io.opentracing.contrib.metrics.OffHeapHistogramStore;
+import io.opentracing.contrib.metrics.ddsketch.DDSketch;
+
+/**
+ * This benchmark measures the heap retained per series (i.e. combination of label values)
+ * by the structures used to record span durations, once a typical latency distribution has
+ * been recorded, reported as the {@code bytesPerSeries} counter. The serialized size of the
+ * sketches is also reported, as {@code serializedBytesPerSeries}, and the memory allocated
+ * outside the heap by the off-heap store, as {@code offHeapBytesPerSeries}.
+ * <p>
+ * The structures are a {@link DDSketch} with 1% relative accuracy, an HdrHistogram with 2
+ * significant digits up to one hour (the HdrHistogram reporter's {@code Recorder} holds two
+ * of these), and a Prometheus histogram child and an {@link OffHeapHistogramStore}, both with
+ * the default buckets.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeriesFootprintBenchmark {
+
+    @Param({"ddsketch", "hdrhistogram", "prometheus", "offheap"})
+    private String type;
+
+    @Param({"1000"})
+    private int seriesCount;
+
+    @Param({"1000"})
+    private int valuesPerSeries;
+
+    private double[] values;
+    private int iterations;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Footprint {
+        public double bytesPerSeries;
+        public double serializedBytesPerSeries;
+        public double offHeapBytesPerSeries;
+
+        @Setup(Level.Iteration)
+        public void clean() {
+            bytesPerSeries = 0;
+            serializedBytesPerSeries = 0;
+            offHeapBytesPerSeries = 0;
+        }
+    }
+
+    @Setup
+    public void setup(BenchmarkParams params) {
+        // Event counters are summed over the measurement iterations, so each iteration
+        // contributes its share of the average
+        iterations = params.getMeasurement().getCount();
+
+        Random random = new Random(1);
+        values = new double[valuesPerSeries];
+        for (int i = 0; i < valuesPerSeries; i++) {
+            // microseconds, with a median of about 20ms
+            values[i] = Math.exp(10 + 1.5 * random.nextGaussian());
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    @Benchmark
+    public Object[] createSeries(Footprint footprint) {
+        Object[] series = new Object[seriesCount];
+        long before = usedHeap();
+        switch (type) {
+            case "ddsketch":
+                long serialized = 0;
+                for (int i = 0; i < seriesCount; i++) {
+                    DDSketch sketch = new DDSketch();
+                    for (double value : values) {
+                        sketch.accept(value);
+                    }
+                    serialized += sketch.serialize().length;
+                    series[i] = sketch;
+                }
+                footprint.serializedBytesPerSeries = (double) serialized / seriesCount / iterations;
+                break;
+            case "hdrhistogram":
+                for (int i = 0; i < seriesCount; i++) {
+                    Histogram histogram = new Histogram(1, TimeUnit.HOURS.toMicros(1), 2);
+                    for (double value : values) {
+                        histogram.recordValue((long) value);
+                    }
+                    series[i] = histogram;
+                }
+                break;
+            case "prometheus":
+                io.prometheus.client.Histogram histogram = io.prometheus.client.Histogram.build()
+                        .name("span").help("The span metrics").labelNames("id").create();
+                for (int i = 0; i < seriesCount; i++) {
+                    io.prometheus.client.Histogram.Child child = histogram.labels(Integer.toString(i));
+                    for (double value : values) {
+                        child.observe(value / 1000000);
+                    }
+                }
+                series[0] = histogram;
+                break;
+            case "offheap":
+                long[] bounds = {5000, 10000, 25000, 50000, 75000, 100000, 250000, 500000, 750000, 1000000,
+                    2500000, 5000000, 7500000, 10000000};
+                OffHeapHistogramStore store = new OffHeapHistogramStore(1, bounds, seriesCount);
+                for (int i = 0; i < seriesCount; i++) {
+                    LabelKey key = LabelKey.of(Integer.toString(i));
+                    for (double value : values) {
+                        store.record(key, (long) value, 1);
+                    }
+                }
+                footprint.offHeapBytesPerSeries = (double) store.getOffHeapBytes() / seriesCount / iterations;
+                series[0] = store;
+                break;
+            default:
+                throw new IllegalStateException("Unknown type: " + type);
+        }
+        footprint.bytesPerSeries = (double) (usedHeap() - before) / seriesCount / iterations;
+        return series;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+}
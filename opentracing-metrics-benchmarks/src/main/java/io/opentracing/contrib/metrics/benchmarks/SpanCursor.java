@@ -0,0 +1,43 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This class provides a per thread position within the benchmark span data, so that
+ * concurrent benchmark threads cycle through the label tuples independently.
+ *
+ */
+@State(Scope.Thread)
+public class SpanCursor {
+
+    private int index;
+
+    /**
+     * This method returns the next span data to be reported.
+     *
+     * @param spans The span data
+     * @return The next span data
+     */
+    public SpanData next(SpanData[] spans) {
+        SpanData spanData = spans[index];
+        index = (index + 1) % spans.length;
+        return spanData;
+    }
+
+}
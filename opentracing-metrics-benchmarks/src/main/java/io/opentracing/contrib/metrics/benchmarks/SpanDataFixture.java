@@ -0,0 +1,127 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.opentracing.Tracer;
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.MetricLabel;
+import io.opentracing.contrib.metrics.Metrics;
+import io.opentracing.contrib.metrics.MetricsReporter;
+import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
+import io.opentracing.contrib.metrics.label.ConstMetricLabel;
+import io.opentracing.contrib.metrics.label.TagMetricLabel;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.tag.Tags;
+
+/**
+ * This class creates the span data used by the benchmarks. The span data is captured from
+ * spans created through a decorated {@link MockTracer}, so that the benchmarks operate on the
+ * same {@link SpanData} implementation that is used at runtime.
+ *
+ */
+final class SpanDataFixture {
+
+    /**
+     * The number of distinct span data instances that a benchmark cycles through.
+     */
+    static final int SPAN_COUNT = 1024;
+
+    /**
+     * The number of additional tags, that are not used as labels, set on every span.
+     */
+    static final int FILLER_TAG_COUNT = 10;
+
+    private SpanDataFixture() {
+    }
+
+    /**
+     * This method creates the span data. Each span has the standard labels, the requested
+     * number of additional tag labels and a fixed number of filler tags. The operation name and
+     * additional tag label values repeat with the supplied cardinality.
+     *
+     * @param labelCount The number of additional tag labels
+     * @param cardinality The number of distinct values per label
+     * @return The span data
+     */
+    static SpanData[] createSpanData(int labelCount, int cardinality) {
+        final List<SpanData> captured = new ArrayList<SpanData>(SPAN_COUNT);
+        Tracer tracer = Metrics.decorate(new MockTracer(), new MetricsReporter() {
+            @Override
+            public void reportSpan(SpanData spanData) {
+                captured.add(spanData);
+            }
+        });
+
+        for (int i = 0; i < SPAN_COUNT; i++) {
+            int value = i % cardinality;
+            Tracer.SpanBuilder builder = tracer.buildSpan("operation-" + value)
+                    .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER);
+            for (int l = 0; l < labelCount; l++) {
+                builder.withTag(labelName(l), "value-" + value);
+            }
+            for (int f = 0; f < FILLER_TAG_COUNT; f++) {
+                builder.withTag("filler" + f, "filler-value-" + i);
+            }
+            builder.start().finish();
+        }
+        return captured.toArray(new SpanData[captured.size()]);
+    }
+
+    /**
+     * This method returns the additional tag labels used to derive the label values.
+     *
+     * @param labelCount The number of additional tag labels
+     * @return The labels
+     */
+    static List<MetricLabel> createLabels(int labelCount) {
+        List<MetricLabel> labels = new ArrayList<MetricLabel>(labelCount);
+        for (int l = 0; l < labelCount; l++) {
+            labels.add(new TagMetricLabel(labelName(l), "unknown"));
+        }
+        return labels;
+    }
+
+    /**
+     * This method returns a mix of constant, tag and baggage labels, with the tag labels
+     * deriving their values from the additional tags.
+     *
+     * @param labelCount The number of additional labels
+     * @return The labels
+     */
+    static List<MetricLabel> createMixedLabels(int labelCount) {
+        List<MetricLabel> labels = new ArrayList<MetricLabel>(labelCount);
+        for (int l = 0; l < labelCount; l++) {
+            switch (l % 3) {
+            case 0:
+                labels.add(new TagMetricLabel(labelName(l), "unknown"));
+                break;
+            case 1:
+                labels.add(new ConstMetricLabel("const" + l, "value"));
+                break;
+            default:
+                labels.add(new BaggageMetricLabel("baggage" + l, "unknown"));
+                break;
+            }
+        }
+        return labels;
+    }
+
+    private static String labelName(int index) {
+        return "label" + index;
+    }
+
+}
@@ -0,0 +1,397 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.ddsketch;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class provides a DDSketch, a quantile sketch with a relative error guarantee: the
+ * value returned for any quantile is within the relative accuracy of the exact value.
+ * <p>
+ * Non-negative values are mapped to logarithmically sized bins, where the bin with index
+ * {@code i} holds the values in the range {@code (gamma^(i-1), gamma^i]}, with
+ * {@code gamma = (1 + accuracy) / (1 - accuracy)}. As the mapping only depends upon the
+ * relative accuracy, sketches with the same accuracy can be merged without any loss, so a
+ * quantile over the merged sketches of many nodes has the same guarantee as if all values
+ * had been recorded in a single sketch.
+ * <p>
+ * The number of bins is bounded. If the values span more bins than the limit, the lowest
+ * bins are collapsed, so only the accuracy of the lowest quantiles is affected. With the
+ * default accuracy of 1%, 2048 bins cover a range of more than 17 orders of magnitude.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @see <a href="https://arxiv.org/abs/1908.10693">DDSketch: A Fast and Fully-Mergeable Quantile Sketch with Relative-Error Guarantees</a>
+ */
+public final class DDSketch {
+    public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+    public static final int DEFAULT_MAX_BINS = 2048;
+
+    private static final byte SERIAL_VERSION = 1;
+    private static final int MIN_BINS = 16;
+    private static final long[] EMPTY_BINS = new long[0];
+
+    private final double relativeAccuracy;
+    private final int maxBins;
+    private final double gamma;
+    private final double logGamma;
+    private final double minIndexableValue;
+
+    // The counts of the bins with indexes offset to offset + bins.length - 1, of which
+    // minIndex to maxIndex may be non-empty
+    private long[] bins = EMPTY_BINS;
+    private int offset;
+    private int minIndex = Integer.MAX_VALUE;
+    private int maxIndex = Integer.MIN_VALUE;
+
+    private long zeroCount;
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    public DDSketch() {
+        this(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_BINS);
+    }
+
+    public DDSketch(double relativeAccuracy) {
+        this(relativeAccuracy, DEFAULT_MAX_BINS);
+    }
+
+    /**
+     * This constructor creates an empty sketch.
+     *
+     * @param relativeAccuracy The relative accuracy, greater than 0 and less than 1
+     * @param maxBins The maximum number of bins
+     */
+    public DDSketch(double relativeAccuracy, int maxBins) {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1: " + relativeAccuracy);
+        }
+        if (maxBins < 1) {
+            throw new IllegalArgumentException("At least one bin is required: " + maxBins);
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.maxBins = maxBins;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+        this.minIndexableValue = Double.MIN_NORMAL * gamma;
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    public int getMaxBins() {
+        return maxBins;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * @return The minimum value, or NaN if the sketch is empty
+     */
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    /**
+     * @return The maximum value, or NaN if the sketch is empty
+     */
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * This method returns the number of bins between the lowest and highest non-empty bins.
+     *
+     * @return The number of bins in use
+     */
+    public int getBinCount() {
+        return maxIndex < minIndex ? 0 : maxIndex - minIndex + 1;
+    }
+
+    /**
+     * This method returns an estimate of the heap memory used by the sketch.
+     *
+     * @return The estimated size in bytes
+     */
+    public long getEstimatedFootprintInBytes() {
+        // Object header and fields, plus the bins array
+        return 96 + 16 + 8L * bins.length;
+    }
+
+    public void accept(double value) {
+        accept(value, 1);
+    }
+
+    /**
+     * This method records a value a number of times.
+     *
+     * @param value The non-negative value
+     * @param n The number of times the value is recorded
+     */
+    public void accept(double value, long n) {
+        if (!(value >= 0) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Value must be finite and non-negative: " + value);
+        }
+        if (n < 0) {
+            throw new IllegalArgumentException("Count must not be negative: " + n);
+        }
+        if (n == 0) {
+            return;
+        }
+        if (value < minIndexableValue) {
+            zeroCount += n;
+        } else {
+            add(index(value), n);
+        }
+        count += n;
+        sum += value * n;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * This method returns the approximate value at the supplied quantile, which is within
+     * the relative accuracy of the exact value (unless the lowest bins have been collapsed).
+     *
+     * @param quantile The quantile, between 0 and 1
+     * @return The value, or NaN if the sketch is empty
+     */
+    public double getValueAtQuantile(double quantile) {
+        if (!(quantile >= 0 && quantile <= 1)) {
+            throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        double rank = quantile * (count - 1);
+        long cumulative = zeroCount;
+        if (cumulative > rank) {
+            return min;
+        }
+        for (int index = minIndex; index <= maxIndex; index++) {
+            cumulative += bins[index - offset];
+            if (cumulative > rank) {
+                return Math.max(min, Math.min(max, value(index)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * This method merges the values recorded in the supplied sketch into this sketch.
+     *
+     * @param other The sketch, which must have the same relative accuracy
+     */
+    public void mergeWith(DDSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Cannot merge a sketch with relative accuracy "
+                    + other.relativeAccuracy + " into a sketch with relative accuracy " + relativeAccuracy);
+        }
+        if (other.count == 0) {
+            return;
+        }
+        // Add from the highest bin, so that any collapse happens once
+        for (int index = other.maxIndex; index >= other.minIndex; index--) {
+            long n = other.bins[index - other.offset];
+            if (n != 0) {
+                add(index, n);
+            }
+        }
+        zeroCount += other.zeroCount;
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public DDSketch copy() {
+        DDSketch copy = new DDSketch(relativeAccuracy, maxBins);
+        copy.mergeWith(this);
+        return copy;
+    }
+
+    /**
+     * This method serializes the sketch. Only the non-empty bins are written, with their
+     * indexes and counts encoded as variable length integers, so a sketch of latencies
+     * typically serializes to a few hundred bytes.
+     *
+     * @return The serialized sketch
+     */
+    public byte[] serialize() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 4 * getBinCount());
+        out.write(SERIAL_VERSION);
+        writeDouble(out, relativeAccuracy);
+        writeVarLong(out, maxBins);
+        writeVarLong(out, zeroCount);
+        writeDouble(out, sum);
+        writeDouble(out, min);
+        writeDouble(out, max);
+
+        int nonEmpty = 0;
+        for (int index = minIndex; index <= maxIndex; index++) {
+            if (bins[index - offset] != 0) {
+                nonEmpty++;
+            }
+        }
+        writeVarLong(out, nonEmpty);
+        long previous = 0;
+        for (int index = minIndex; index <= maxIndex; index++) {
+            long n = bins[index - offset];
+            if (n != 0) {
+                // zig-zag encode the delta, as the first index may be negative
+                long delta = index - previous;
+                writeVarLong(out, (delta << 1) ^ (delta >> 63));
+                writeVarLong(out, n);
+                previous = index;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * This method deserializes a sketch created by {@link #serialize()}.
+     *
+     * @param bytes The serialized sketch
+     * @return The sketch
+     */
+    public static DDSketch deserialize(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        try {
+            byte version = in.get();
+            if (version != SERIAL_VERSION) {
+                throw new IllegalArgumentException("Unsupported serialization version: " + version);
+            }
+            DDSketch sketch = new DDSketch(in.getDouble(), (int) readVarLong(in));
+            sketch.zeroCount = readVarLong(in);
+            sketch.sum = in.getDouble();
+            sketch.min = in.getDouble();
+            sketch.max = in.getDouble();
+            sketch.count = sketch.zeroCount;
+
+            long nonEmpty = readVarLong(in);
+            long index = 0;
+            for (long i = 0; i < nonEmpty; i++) {
+                long encoded = readVarLong(in);
+                index += (encoded >>> 1) ^ -(encoded & 1);
+                long n = readVarLong(in);
+                sketch.add((int) index, n);
+                sketch.count += n;
+            }
+            return sketch;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated sketch", e);
+        }
+    }
+
+    private int index(double value) {
+        return (int) Math.ceil(Math.log(value) / logGamma);
+    }
+
+    private double value(int index) {
+        // The value with equal relative error to both bounds of the bin
+        return 2 * Math.pow(gamma, index) / (gamma + 1);
+    }
+
+    private void add(int index, long n) {
+        int newMin = Math.min(minIndex, index);
+        int newMax = Math.max(maxIndex, index);
+        long collapsed = 0;
+        if ((long) newMax - newMin + 1 > maxBins) {
+            // Collapse the lowest bins, to preserve the accuracy of the higher quantiles
+            newMin = newMax - maxBins + 1;
+            for (int i = minIndex; i < newMin && i <= maxIndex; i++) {
+                collapsed += bins[i - offset];
+                bins[i - offset] = 0;
+            }
+            if (index < newMin) {
+                collapsed += n;
+                n = 0;
+            }
+        }
+        ensureCapacity(newMin, newMax);
+        minIndex = newMin;
+        maxIndex = newMax;
+        bins[newMin - offset] += collapsed;
+        if (n != 0) {
+            bins[index - offset] += n;
+        }
+    }
+
+    private void ensureCapacity(int low, int high) {
+        if (low >= offset && high < offset + bins.length) {
+            return;
+        }
+        int required = high - low + 1;
+        int length = (int) Math.min(maxBins, Math.max(MIN_BINS, required + (long) required / 2));
+        int newOffset = low - (length - required) / 2;
+        long[] newBins = new long[length];
+        // Copy the existing bins that remain in range, those below have already been collapsed
+        int from = Math.max(minIndex, low);
+        int to = Math.min(maxIndex, high);
+        if (from <= to) {
+            System.arraycopy(bins, from - offset, newBins, from - newOffset, to - from + 1);
+        }
+        bins = newBins;
+        offset = newOffset;
+    }
+
+    private static void writeDouble(ByteArrayOutputStream out, double value) {
+        long bits = Double.doubleToLongBits(value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (bits >>> shift));
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed variable length integer");
+    }
+
+    @Override
+    public String toString() {
+        return "DDSketch{relativeAccuracy=" + relativeAccuracy + ", count=" + count + ", sum=" + sum
+                + ", min=" + getMin() + ", max=" + getMax() + ", bins=" + getBinCount() + "}";
+    }
+
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.ddsketch;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.AbstractMetricsReporter;
+import io.opentracing.contrib.metrics.CardinalityLimiter;
+import io.opentracing.contrib.metrics.LabelKey;
+import io.opentracing.contrib.metrics.MetricLabel;
+import io.opentracing.contrib.metrics.MetricsReporter;
+import io.opentracing.contrib.metrics.SpanFilter;
+import io.opentracing.contrib.metrics.WeightedMetricsReporter;
+import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
+import io.opentracing.contrib.metrics.label.ConstMetricLabel;
+import io.opentracing.contrib.metrics.label.TagMetricLabel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class provides a {@link DDSketch} based implementation of the {@link MetricsReporter}.
+ * <p>
+ * The span durations, in microseconds, are recorded in a sketch per combination of label
+ * values. The sketches can be obtained using {@link #snapshot()}, or {@link #snapshotAndReset()}
+ * to obtain the values recorded since the previous call, and then serialized and shipped to
+ * be merged with the sketches of other nodes. As the merge is lossless, quantiles computed over
+ * the merged sketches are within the relative accuracy of the exact quantiles across all nodes.
+ *
+ */
+public class DDSketchMetricsReporter extends AbstractMetricsReporter implements WeightedMetricsReporter {
+    private final String name;
+    private final double relativeAccuracy;
+    private final int maxBins;
+    private final ConcurrentMap<LabelKey, Series> series = new ConcurrentHashMap<>();
+    private final CardinalityLimiter limiter;
+
+    protected DDSketchMetricsReporter(String name, List<MetricLabel> labels,
+                                      double relativeAccuracy, int maxBins,
+                                      int maxLabelCombinations, Map<String, Integer> maxLabelValues) {
+        super(labels);
+        this.name = name;
+        this.relativeAccuracy = relativeAccuracy;
+        this.maxBins = maxBins;
+
+        // Check the configuration up front, rather than when the first span is reported
+        new DDSketch(relativeAccuracy, maxBins);
+
+        if (maxLabelCombinations == Integer.MAX_VALUE && maxLabelValues.isEmpty()) {
+            this.limiter = null;
+        } else {
+            this.limiter = new CardinalityLimiter(getMetricLabels(), maxLabelCombinations, maxLabelValues);
+        }
+    }
+
+    @Override
+    public void reportSpan(SpanData spanData) {
+        reportSpan(spanData, 1);
+    }
+
+    @Override
+    public boolean isWeightSupported() {
+        return true;
+    }
+
+    @Override
+    public void reportSpan(SpanData spanData, long weight) {
+        LabelKey key = getLabelKey(spanData);
+        if (key == null) {
+            return;
+        }
+        if (limiter != null) {
+            key = limiter.admit(key);
+        }
+
+        getSeries(key).accept(Math.max(0, spanData.getDuration()), weight);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * This method returns the number of spans folded into the overflow series, if a
+     * cardinality limit has been configured.
+     *
+     * @return The number of spans folded into the overflow series
+     */
+    public long getOverflowCount() {
+        return limiter == null ? 0 : limiter.getOverflowCount();
+    }
+
+    /**
+     * This method returns a copy of the sketch of each combination of label values, holding
+     * the span durations recorded since the reporter was created.
+     *
+     * @return The sketches, keyed by the label names and values
+     */
+    public Map<Map<String, String>, DDSketch> snapshot() {
+        Map<Map<String, String>, DDSketch> snapshot = new LinkedHashMap<>();
+        for (Series entry : series.values()) {
+            snapshot.put(entry.labels, entry.copy());
+        }
+        return snapshot;
+    }
+
+    /**
+     * This method returns the sketch of each combination of label values, holding the span
+     * durations recorded since the previous call (or the creation of the reporter), and
+     * replaces them with empty sketches. Combinations of label values without any spans
+     * recorded during the interval are omitted.
+     *
+     * @return The sketches, keyed by the label names and values
+     */
+    public Map<Map<String, String>, DDSketch> snapshotAndReset() {
+        Map<Map<String, String>, DDSketch> snapshot = new LinkedHashMap<>();
+        for (Series entry : series.values()) {
+            DDSketch sketch = entry.reset();
+            if (!sketch.isEmpty()) {
+                snapshot.put(entry.labels, sketch);
+            }
+        }
+        return snapshot;
+    }
+
+    private Series getSeries(LabelKey key) {
+        Series entry = series.get(key);
+        if (entry == null) {
+            // first span for this combination of label values, so create (or find) the series
+            entry = series.computeIfAbsent(key.copy(), this::createSeries);
+        }
+        return entry;
+    }
+
+    private Series createSeries(LabelKey key) {
+        Map<String, String> labels = new LinkedHashMap<>();
+        for (int i = 0; i < key.size(); i++) {
+            labels.put(metricLabels[i].name(), key.stringValue(i));
+        }
+        return new Series(Collections.unmodifiableMap(labels));
+    }
+
+    /**
+     * This class holds the sketch for a combination of label values. As the sketch is not
+     * thread-safe, it is guarded by a lock, rather than a monitor, so a virtual thread waiting
+     * to update the sketch does not pin its carrier thread.
+     *
+     */
+    private class Series {
+        private final Map<String, String> labels;
+        private final Lock lock = new ReentrantLock();
+        private DDSketch sketch = new DDSketch(relativeAccuracy, maxBins);
+
+        Series(Map<String, String> labels) {
+            this.labels = labels;
+        }
+
+        void accept(double value, long n) {
+            lock.lock();
+            try {
+                sketch.accept(value, n);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        DDSketch copy() {
+            lock.lock();
+            try {
+                return sketch.copy();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        DDSketch reset() {
+            DDSketch replacement = new DDSketch(relativeAccuracy, maxBins);
+            lock.lock();
+            try {
+                DDSketch previous = sketch;
+                sketch = replacement;
+                return previous;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    public static Builder newMetricsReporter() {
+        return new Builder();
+    }
+
+    /**
+     * This builder class is responsible for creating an instance of the DDSketch
+     * metrics reporter.
+     *
+     */
+    public static class Builder {
+        private String name = "span";
+        private double relativeAccuracy = DDSketch.DEFAULT_RELATIVE_ACCURACY;
+        private int maxBins = DDSketch.DEFAULT_MAX_BINS;
+        private int maxLabelCombinations = Integer.MAX_VALUE;
+        private Map<String, Integer> maxLabelValues = new HashMap<>();
+        private SpanFilter spanFilter;
+
+        private List<MetricLabel> metricLabels = new ArrayList<>();
+
+        public Builder withName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder withCustomLabel(MetricLabel label) {
+            metricLabels.add(label);
+            return this;
+        }
+
+        public Builder withConstLabel(String name, Object value) {
+            metricLabels.add(new ConstMetricLabel(name, value));
+            return this;
+        }
+
+        public Builder withTagLabel(String name, Object defaultValue) {
+            metricLabels.add(new TagMetricLabel(name, defaultValue));
+            return this;
+        }
+
+        public Builder withBaggageLabel(String name, Object defaultValue) {
+            metricLabels.add(new BaggageMetricLabel(name, defaultValue));
+            return this;
+        }
+
+        /**
+         * This method sets the relative accuracy of the sketches, by default 1%. Sketches can
+         * only be merged with sketches of the same relative accuracy.
+         *
+         * @param relativeAccuracy The relative accuracy, greater than 0 and less than 1
+         * @return The builder
+         */
+        public Builder withRelativeAccuracy(double relativeAccuracy) {
+            this.relativeAccuracy = relativeAccuracy;
+            return this;
+        }
+
+        /**
+         * This method sets the maximum number of bins of each sketch, by default 2048, which
+         * bounds the memory used by each combination of label values.
+         *
+         * @param maxBins The maximum number of bins
+         * @return The builder
+         */
+        public Builder withMaxBins(int maxBins) {
+            this.maxBins = maxBins;
+            return this;
+        }
+
+        /**
+         * This method limits the number of distinct combinations of label values, and therefore
+         * sketches, created by the reporter. Spans with new label values beyond the limit are
+         * reported in a series with all label values set to {@link CardinalityLimiter#OVERFLOW_VALUE}.
+         *
+         * @param maxLabelCombinations The maximum number of distinct combinations of label values
+         * @return The builder
+         */
+        public Builder withCardinalityLimit(int maxLabelCombinations) {
+            this.maxLabelCombinations = maxLabelCombinations;
+            return this;
+        }
+
+        /**
+         * This method limits the number of distinct values of the named label. Spans with new
+         * values beyond the limit are reported with the label value {@link CardinalityLimiter#OVERFLOW_VALUE}.
+         *
+         * @param labelName The label name
+         * @param maxValues The maximum number of distinct values
+         * @return The builder
+         */
+        public Builder withLabelCardinalityLimit(String labelName, int maxValues) {
+            this.maxLabelValues.put(labelName, maxValues);
+            return this;
+        }
+
+        /**
+         * This method sets the {@link SpanFilter} selecting the spans to be reported.
+         *
+         * @param spanFilter The span filter
+         * @return The builder
+         */
+        public Builder withSpanFilter(SpanFilter spanFilter) {
+            this.spanFilter = spanFilter;
+            return this;
+        }
+
+        public DDSketchMetricsReporter build() {
+            DDSketchMetricsReporter reporter = new DDSketchMetricsReporter(name, metricLabels,
+                    relativeAccuracy, maxBins, maxLabelCombinations, maxLabelValues);
+            reporter.setSpanFilter(spanFilter);
+            return reporter;
+        }
+    }
+}
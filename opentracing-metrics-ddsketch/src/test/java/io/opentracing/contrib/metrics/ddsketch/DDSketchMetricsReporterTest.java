@@ -0,0 +1,158 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.ddsketch;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.CardinalityLimiter;
+import io.opentracing.tag.Tags;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DDSketchMetricsReporterTest {
+
+    @Test
+    public void testSnapshot() {
+        DDSketchMetricsReporter reporter = newReporterBuilder().build();
+
+        reporter.reportSpan(mockSpanData("op1", 1000));
+        reporter.reportSpan(mockSpanData("op1", 3000));
+        reporter.reportSpan(mockSpanData("op2", 100000));
+
+        Map<Map<String, String>, DDSketch> snapshot = reporter.snapshot();
+        assertEquals(2, snapshot.size());
+        DDSketch op1 = snapshot.get(defaultLabels("op1"));
+        assertEquals(2, op1.getCount());
+        assertEquals(4000, op1.getSum(), 0);
+        assertEquals(3000, op1.getValueAtQuantile(1), 3000 * DDSketch.DEFAULT_RELATIVE_ACCURACY);
+        assertEquals(1, snapshot.get(defaultLabels("op2")).getCount());
+
+        // The snapshot is a copy, so isn't affected by later spans
+        reporter.reportSpan(mockSpanData("op1", 1000));
+        assertEquals(2, op1.getCount());
+        assertEquals(3, reporter.snapshot().get(defaultLabels("op1")).getCount());
+    }
+
+    @Test
+    public void testSnapshotAndReset() {
+        DDSketchMetricsReporter reporter = newReporterBuilder().build();
+
+        reporter.reportSpan(mockSpanData("op1", 1000));
+        reporter.reportSpan(mockSpanData("op2", 1000));
+        assertEquals(2, reporter.snapshotAndReset().size());
+
+        reporter.reportSpan(mockSpanData("op1", 1000));
+        Map<Map<String, String>, DDSketch> snapshot = reporter.snapshotAndReset();
+        assertEquals(1, snapshot.size());
+        assertEquals(1, snapshot.get(defaultLabels("op1")).getCount());
+        assertTrue(reporter.snapshotAndReset().isEmpty());
+    }
+
+    @Test
+    public void testMergeAcrossReporters() {
+        DDSketchMetricsReporter node1 = newReporterBuilder().build();
+        DDSketchMetricsReporter node2 = newReporterBuilder().build();
+
+        for (int i = 1; i <= 99; i++) {
+            node1.reportSpan(mockSpanData("op1", i * 1000));
+        }
+        node2.reportSpan(mockSpanData("op1", 1000000));
+
+        DDSketch merged = DDSketch.deserialize(node1.snapshot().get(defaultLabels("op1")).serialize());
+        merged.mergeWith(DDSketch.deserialize(node2.snapshot().get(defaultLabels("op1")).serialize()));
+
+        assertEquals(100, merged.getCount());
+        assertEquals(50000, merged.getValueAtQuantile(0.5), 50000 * DDSketch.DEFAULT_RELATIVE_ACCURACY);
+        assertEquals(1000000, merged.getValueAtQuantile(1), 1000000 * DDSketch.DEFAULT_RELATIVE_ACCURACY);
+    }
+
+    @Test
+    public void testSpanWithoutSpanKindNotRecorded() {
+        DDSketchMetricsReporter reporter = DDSketchMetricsReporter.newMetricsReporter().build();
+
+        reporter.reportSpan(mockSpanData("op1", 1000));
+
+        assertTrue(reporter.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testWeightedSpan() {
+        DDSketchMetricsReporter reporter = newReporterBuilder().build();
+
+        reporter.reportSpan(mockSpanData("op1", 1000), 10);
+
+        assertEquals(10, reporter.snapshot().get(defaultLabels("op1")).getCount());
+    }
+
+    @Test
+    public void testRelativeAccuracy() {
+        DDSketchMetricsReporter reporter = newReporterBuilder().withRelativeAccuracy(0.05).build();
+
+        reporter.reportSpan(mockSpanData("op1", 1000));
+
+        assertEquals(0.05, reporter.snapshot().get(defaultLabels("op1")).getRelativeAccuracy(), 0);
+    }
+
+    @Test
+    public void testCardinalityLimit() {
+        DDSketchMetricsReporter reporter = newReporterBuilder().withCardinalityLimit(1).build();
+
+        reporter.reportSpan(mockSpanData("op1", 1000));
+        reporter.reportSpan(mockSpanData("op2", 1000));
+        reporter.reportSpan(mockSpanData("op3", 1000));
+
+        Map<Map<String, String>, DDSketch> snapshot = reporter.snapshot();
+        assertEquals(2, snapshot.size());
+        assertEquals(1, snapshot.get(defaultLabels("op1")).getCount());
+        assertEquals(2, reporter.getOverflowCount());
+        for (Map.Entry<Map<String, String>, DDSketch> entry : snapshot.entrySet()) {
+            if (entry.getKey().get("operation").equals(CardinalityLimiter.OVERFLOW_VALUE)) {
+                assertEquals(2, entry.getValue().getCount());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRelativeAccuracy() {
+        newReporterBuilder().withRelativeAccuracy(0).build();
+    }
+
+    private DDSketchMetricsReporter.Builder newReporterBuilder() {
+        return DDSketchMetricsReporter.newMetricsReporter()
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT);
+    }
+
+    private Map<String, String> defaultLabels(String operation) {
+        Map<String, String> labels = new HashMap<>();
+        labels.put("operation", operation);
+        labels.put("span.kind", Tags.SPAN_KIND_CLIENT);
+        labels.put("error", "false");
+        return labels;
+    }
+
+    private SpanData mockSpanData(String operation, long duration) {
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn(operation);
+        when(spanData.getTags()).thenReturn(Collections.<String, Object>emptyMap());
+        when(spanData.getDuration()).thenReturn(duration);
+        return spanData;
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.ddsketch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DDSketchTest {
+
+    private static final double ACCURACY = 0.01;
+
+    @Test
+    public void testQuantilesWithinRelativeAccuracy() {
+        double[] values = logNormalValues(new Random(1), 100000);
+        DDSketch sketch = new DDSketch(ACCURACY);
+        for (double value : values) {
+            sketch.accept(value);
+        }
+
+        assertEquals(values.length, sketch.getCount());
+        assertQuantiles(values, sketch);
+    }
+
+    @Test
+    public void testMergeIsLossless() {
+        Random random = new Random(2);
+        double[] all = new double[0];
+        DDSketch merged = new DDSketch(ACCURACY);
+        DDSketch single = new DDSketch(ACCURACY);
+        for (int node = 0; node < 10; node++) {
+            double[] values = logNormalValues(random, 1000 * (node + 1));
+            DDSketch sketch = new DDSketch(ACCURACY);
+            for (double value : values) {
+                sketch.accept(value);
+                single.accept(value);
+            }
+            merged.mergeWith(sketch);
+            all = concat(all, values);
+        }
+
+        assertEquals(single.getCount(), merged.getCount());
+        assertEquals(single.getSum(), merged.getSum(), single.getSum() * 1e-9);
+        assertEquals(single.getMin(), merged.getMin(), 0);
+        assertEquals(single.getMax(), merged.getMax(), 0);
+        for (double quantile = 0; quantile <= 1; quantile += 0.01) {
+            assertEquals(single.getValueAtQuantile(quantile), merged.getValueAtQuantile(quantile), 0);
+        }
+        assertQuantiles(all, merged);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeDifferentAccuracy() {
+        new DDSketch(0.01).mergeWith(new DDSketch(0.02));
+    }
+
+    @Test
+    public void testSerializeRoundTrip() {
+        DDSketch sketch = new DDSketch(ACCURACY);
+        for (double value : logNormalValues(new Random(3), 10000)) {
+            sketch.accept(value);
+        }
+        sketch.accept(0, 5);
+
+        byte[] bytes = sketch.serialize();
+        DDSketch copy = DDSketch.deserialize(bytes);
+
+        // Only the non-empty bins are written, a few bytes each
+        assertTrue(bytes.length < 64 + 4 * sketch.getBinCount());
+        assertEquals(sketch.getCount(), copy.getCount());
+        assertEquals(sketch.getSum(), copy.getSum(), 0);
+        assertEquals(sketch.getMin(), copy.getMin(), 0);
+        assertEquals(sketch.getMax(), copy.getMax(), 0);
+        assertEquals(sketch.getRelativeAccuracy(), copy.getRelativeAccuracy(), 0);
+        assertEquals(sketch.getMaxBins(), copy.getMaxBins());
+        for (double quantile = 0; quantile <= 1; quantile += 0.01) {
+            assertEquals(sketch.getValueAtQuantile(quantile), copy.getValueAtQuantile(quantile), 0);
+        }
+    }
+
+    @Test
+    public void testSerializeEmpty() {
+        DDSketch copy = DDSketch.deserialize(new DDSketch().serialize());
+        assertTrue(copy.isEmpty());
+        assertTrue(Double.isNaN(copy.getValueAtQuantile(0.5)));
+        assertTrue(Double.isNaN(copy.getMax()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDeserializeTruncated() {
+        byte[] bytes = new DDSketch().serialize();
+        DDSketch.deserialize(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test
+    public void testZeroValues() {
+        DDSketch sketch = new DDSketch(ACCURACY);
+        sketch.accept(0, 90);
+        sketch.accept(1000, 10);
+
+        assertEquals(0, sketch.getValueAtQuantile(0.5), 0);
+        assertEquals(1000, sketch.getValueAtQuantile(0.95), 1000 * ACCURACY);
+        assertEquals(100, sketch.getCount());
+        assertEquals(10000, sketch.getSum(), 0);
+    }
+
+    @Test
+    public void testCollapseLowestBins() {
+        DDSketch sketch = new DDSketch(ACCURACY, 100);
+        for (double value = 1; value < 1e6; value *= 1.01) {
+            sketch.accept(value);
+        }
+
+        assertEquals(100, sketch.getBinCount());
+        assertEquals(1, sketch.getMin(), 0);
+        // The highest quantiles keep their accuracy
+        assertEquals(1e6, sketch.getValueAtQuantile(1), 1e6 * ACCURACY);
+        assertEquals(0.99 * 1e6, sketch.getValueAtQuantile(0.9992), 1e6 * ACCURACY * 2);
+    }
+
+    @Test
+    public void testGrowDownwards() {
+        DDSketch sketch = new DDSketch(ACCURACY);
+        for (double value = 1e6; value > 1; value /= 1.5) {
+            sketch.accept(value);
+        }
+        DDSketch reversed = new DDSketch(ACCURACY);
+        for (double value = 1e6; value > 1; value /= 1.5) {
+            reversed.accept(1e6 / value);
+        }
+
+        assertEquals(1e6, sketch.getValueAtQuantile(1), 1e6 * ACCURACY);
+        assertEquals(sketch.getMin(), sketch.getValueAtQuantile(0), sketch.getMin() * ACCURACY);
+        assertEquals(reversed.getValueAtQuantile(1), 1e6 / sketch.getMin(), 1e6 * ACCURACY);
+    }
+
+    @Test
+    public void testWeightedValues() {
+        DDSketch sketch = new DDSketch(ACCURACY);
+        sketch.accept(10, 99);
+        sketch.accept(1000, 1);
+
+        assertEquals(100, sketch.getCount());
+        assertEquals(10, sketch.getValueAtQuantile(0.98), 10 * ACCURACY);
+        assertEquals(1000, sketch.getValueAtQuantile(1), 1000 * ACCURACY);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeValue() {
+        new DDSketch().accept(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidAccuracy() {
+        new DDSketch(1);
+    }
+
+    private static void assertQuantiles(double[] values, DDSketch sketch) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        for (double quantile : new double[] {0, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 1}) {
+            double expected = sorted[(int) Math.floor(quantile * (sorted.length - 1))];
+            double actual = sketch.getValueAtQuantile(quantile);
+            assertEquals("quantile " + quantile, expected, actual, expected * ACCURACY);
+        }
+    }
+
+    private static double[] logNormalValues(Random random, int count) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            // microseconds, with a median of about 20ms
+            values[i] = Math.exp(10 + 1.5 * random.nextGaussian());
+        }
+        return values;
+    }
+
+    private static double[] concat(double[] first, double[] second) {
+        double[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
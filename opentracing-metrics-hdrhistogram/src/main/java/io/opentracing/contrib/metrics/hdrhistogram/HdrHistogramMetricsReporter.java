@@ -0,0 +1,338 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.hdrhistogram;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.AbstractMetricsReporter;
+import io.opentracing.contrib.metrics.CardinalityLimiter;
+import io.opentracing.contrib.metrics.LabelKey;
+import io.opentracing.contrib.metrics.MetricLabel;
+import io.opentracing.contrib.metrics.MetricsReporter;
+import io.opentracing.contrib.metrics.SpanFilter;
+import io.opentracing.contrib.metrics.WeightedMetricsReporter;
+import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
+import io.opentracing.contrib.metrics.label.ConstMetricLabel;
+import io.opentracing.contrib.metrics.label.TagMetricLabel;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * This class provides an HdrHistogram based implementation of the {@link MetricsReporter}.
+ * <p>
+ * The span durations, in microseconds, are recorded in an HdrHistogram {@link Recorder}
+ * per combination of label values. Recording is wait-free, and the memory used by each
+ * recorder is fixed by the highest trackable value and the number of significant digits.
+ * On each interval, the recorders are swapped and the histograms of the values recorded
+ * during the interval are published to the configured {@link IntervalHistogramSink}s.
+ * <p>
+ * Durations above the highest trackable value are recorded as the highest trackable value.
+ *
+ */
+public class HdrHistogramMetricsReporter extends AbstractMetricsReporter implements WeightedMetricsReporter, Closeable {
+    private final String name;
+    private final long highestTrackableValue;
+    private final int significantDigits;
+    private final List<IntervalHistogramSink> sinks;
+    private final ConcurrentMap<LabelKey, Series> series = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService publishExecutor;
+    private final CardinalityLimiter limiter;
+
+    protected HdrHistogramMetricsReporter(String name, List<MetricLabel> labels,
+                                          List<IntervalHistogramSink> sinks,
+                                          long highestTrackableValue, int significantDigits,
+                                          Duration interval,
+                                          int maxLabelCombinations, Map<String, Integer> maxLabelValues) {
+        super(labels);
+        this.name = name;
+        this.sinks = new ArrayList<>(sinks);
+        this.highestTrackableValue = highestTrackableValue;
+        this.significantDigits = significantDigits;
+
+        // Check the configuration up front, rather than when the first span is reported
+        new Histogram(1, highestTrackableValue, significantDigits);
+
+        if (maxLabelCombinations == Integer.MAX_VALUE && maxLabelValues.isEmpty()) {
+            this.limiter = null;
+        } else {
+            this.limiter = new CardinalityLimiter(getMetricLabels(), maxLabelCombinations, maxLabelValues);
+        }
+
+        if (interval.isZero()) {
+            this.publishExecutor = null;
+        } else {
+            this.publishExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "opentracing-metrics-hdrhistogram-publish");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long intervalMillis = interval.toMillis();
+            this.publishExecutor.scheduleAtFixedRate(this::publish, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void reportSpan(SpanData spanData) {
+        reportSpan(spanData, 1);
+    }
+
+    @Override
+    public boolean isWeightSupported() {
+        return true;
+    }
+
+    @Override
+    public void reportSpan(SpanData spanData, long weight) {
+        LabelKey key = getLabelKey(spanData);
+        if (key == null) {
+            return;
+        }
+        if (limiter != null) {
+            key = limiter.admit(key);
+        }
+
+        long duration = Math.max(0, Math.min(spanData.getDuration(), highestTrackableValue));
+        getSeries(key).recorder.recordValueWithCount(duration, weight);
+    }
+
+    /**
+     * This method swaps the recorders, and publishes the histograms of the span durations
+     * recorded since the previous interval to the sinks. It is called on each interval, but
+     * may also be called explicitly (e.g. before the application is scraped).
+     */
+    public synchronized void publish() {
+        for (Series entry : series.values()) {
+            Histogram histogram = entry.recorder.getIntervalHistogram(entry.intervalHistogram);
+            entry.intervalHistogram = histogram;
+            for (IntervalHistogramSink sink : sinks) {
+                sink.onIntervalHistogram(name, entry.labels, histogram);
+            }
+        }
+    }
+
+    /**
+     * This method stops the periodic publication, and publishes the span durations recorded
+     * since the previous interval.
+     */
+    @Override
+    public void close() {
+        if (publishExecutor != null) {
+            publishExecutor.shutdown();
+        }
+        publish();
+    }
+
+    /**
+     * This method returns the number of spans folded into the overflow series, if a
+     * cardinality limit has been configured.
+     *
+     * @return The number of spans folded into the overflow series
+     */
+    public long getOverflowCount() {
+        return limiter == null ? 0 : limiter.getOverflowCount();
+    }
+
+    private Series getSeries(LabelKey key) {
+        Series entry = series.get(key);
+        if (entry == null) {
+            // first span for this combination of label values, so create (or find) the series
+            entry = series.computeIfAbsent(key.copy(), this::createSeries);
+        }
+        return entry;
+    }
+
+    private Series createSeries(LabelKey key) {
+        Map<String, String> labels = new LinkedHashMap<>();
+        for (int i = 0; i < key.size(); i++) {
+            labels.put(metricLabels[i].name(), key.stringValue(i));
+        }
+        return new Series(Collections.unmodifiableMap(labels),
+                new Recorder(1, highestTrackableValue, significantDigits));
+    }
+
+    /**
+     * This class holds the recorder for a combination of label values, and the histogram
+     * returned for the previous interval, which is recycled for the next interval.
+     *
+     */
+    private static class Series {
+        private final Map<String, String> labels;
+        private final Recorder recorder;
+        private Histogram intervalHistogram;
+
+        Series(Map<String, String> labels, Recorder recorder) {
+            this.labels = labels;
+            this.recorder = recorder;
+        }
+    }
+
+    public static Builder newMetricsReporter() {
+        return new Builder();
+    }
+
+    /**
+     * This builder class is responsible for creating an instance of the HdrHistogram
+     * metrics reporter.
+     *
+     */
+    public static class Builder {
+        private String name = "span";
+        private long highestTrackableValue = TimeUnit.HOURS.toMicros(1);
+        private int significantDigits = 2;
+        private Duration interval = Duration.ofMinutes(1);
+        private int maxLabelCombinations = Integer.MAX_VALUE;
+        private Map<String, Integer> maxLabelValues = new HashMap<>();
+        private List<IntervalHistogramSink> sinks = new ArrayList<>();
+        private SpanFilter spanFilter;
+
+        private List<MetricLabel> metricLabels = new ArrayList<>();
+
+        public Builder withName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder withCustomLabel(MetricLabel label) {
+            metricLabels.add(label);
+            return this;
+        }
+
+        public Builder withConstLabel(String name, Object value) {
+            metricLabels.add(new ConstMetricLabel(name, value));
+            return this;
+        }
+
+        public Builder withTagLabel(String name, Object defaultValue) {
+            metricLabels.add(new TagMetricLabel(name, defaultValue));
+            return this;
+        }
+
+        public Builder withBaggageLabel(String name, Object defaultValue) {
+            metricLabels.add(new BaggageMetricLabel(name, defaultValue));
+            return this;
+        }
+
+        /**
+         * This method adds a sink, to which the interval histograms are published.
+         *
+         * @param sink The sink
+         * @return The builder
+         */
+        public Builder withSink(IntervalHistogramSink sink) {
+            sinks.add(sink);
+            return this;
+        }
+
+        /**
+         * This method sets the highest span duration that can be distinguished, by default
+         * one hour. Together with the number of significant digits, this determines the
+         * memory used by each combination of label values.
+         *
+         * @param highestTrackableValue The highest duration
+         * @param unit The unit of the duration
+         * @return The builder
+         */
+        public Builder withHighestTrackableValue(long highestTrackableValue, TimeUnit unit) {
+            this.highestTrackableValue = unit.toMicros(highestTrackableValue);
+            return this;
+        }
+
+        /**
+         * This method sets the number of significant decimal digits to which the span
+         * durations are recorded, between 0 and 5, by default 2 (i.e. a 1% error).
+         *
+         * @param significantDigits The number of significant digits
+         * @return The builder
+         */
+        public Builder withSignificantDigits(int significantDigits) {
+            this.significantDigits = significantDigits;
+            return this;
+        }
+
+        /**
+         * This method sets the interval on which the histograms are published, by default
+         * one minute.
+         *
+         * @param interval The interval between publications, or zero if only published explicitly
+         * @return The builder
+         */
+        public Builder withInterval(Duration interval) {
+            if (interval.isNegative()) {
+                throw new IllegalArgumentException("Interval must not be negative: " + interval);
+            }
+            this.interval = interval;
+            return this;
+        }
+
+        /**
+         * This method limits the number of distinct combinations of label values, and therefore
+         * recorders, created by the reporter. Spans with new label values beyond the limit are
+         * reported in a series with all label values set to {@link CardinalityLimiter#OVERFLOW_VALUE}.
+         *
+         * @param maxLabelCombinations The maximum number of distinct combinations of label values
+         * @return The builder
+         */
+        public Builder withCardinalityLimit(int maxLabelCombinations) {
+            this.maxLabelCombinations = maxLabelCombinations;
+            return this;
+        }
+
+        /**
+         * This method limits the number of distinct values of the named label. Spans with new
+         * values beyond the limit are reported with the label value {@link CardinalityLimiter#OVERFLOW_VALUE}.
+         *
+         * @param labelName The label name
+         * @param maxValues The maximum number of distinct values
+         * @return The builder
+         */
+        public Builder withLabelCardinalityLimit(String labelName, int maxValues) {
+            this.maxLabelValues.put(labelName, maxValues);
+            return this;
+        }
+
+        /**
+         * This method sets the {@link SpanFilter} selecting the spans to be reported.
+         *
+         * @param spanFilter The span filter
+         * @return The builder
+         */
+        public Builder withSpanFilter(SpanFilter spanFilter) {
+            this.spanFilter = spanFilter;
+            return this;
+        }
+
+        public HdrHistogramMetricsReporter build() {
+            HdrHistogramMetricsReporter reporter = new HdrHistogramMetricsReporter(name, metricLabels, sinks,
+                    highestTrackableValue, significantDigits, interval,
+                    maxLabelCombinations, maxLabelValues);
+            reporter.setSpanFilter(spanFilter);
+            return reporter;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.hdrhistogram;
+
+import java.util.Map;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * This interface represents a destination for the interval histograms published by the
+ * {@link HdrHistogramMetricsReporter}, e.g. a log writer or an exporter to a metrics backend.
+ *
+ */
+public interface IntervalHistogramSink {
+
+    /**
+     * This method is called with the span durations, in microseconds, recorded for a
+     * combination of label values since the previous interval. The start and end of the
+     * interval are available from the histogram's start and end timestamps.
+     * <p>
+     * The histogram is reused by the reporter for a later interval, so it must be copied
+     * if it is required after this method returns.
+     *
+     * @param name The name of the reporter
+     * @param labels The label names and values
+     * @param histogram The interval histogram
+     */
+    void onIntervalHistogram(String name, Map<String, String> labels, Histogram histogram);
+
+}
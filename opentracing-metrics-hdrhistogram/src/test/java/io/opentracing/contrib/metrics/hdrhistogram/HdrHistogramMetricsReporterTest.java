@@ -0,0 +1,246 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.hdrhistogram;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.CardinalityLimiter;
+import io.opentracing.tag.Tags;
+import org.HdrHistogram.Histogram;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HdrHistogramMetricsReporterTest {
+
+    @Test
+    public void testPublishIntervalHistogram() {
+        CapturingSink sink = new CapturingSink();
+        HdrHistogramMetricsReporter reporter = newReporterBuilder(sink).build();
+
+        reporter.reportSpan(mockSpanData("testop", 1000));
+        reporter.reportSpan(mockSpanData("testop", 2000));
+        reporter.reportSpan(mockSpanData("testop", 100000));
+        reporter.publish();
+
+        assertEquals(1, sink.intervals.size());
+        Interval interval = sink.intervals.get(0);
+        assertEquals("span", interval.name);
+        assertEquals(defaultLabels("testop"), interval.labels);
+        assertEquals(3, interval.histogram.getTotalCount());
+        assertEquals(1000, interval.histogram.getMinValue(), 10);
+        assertEquals(100000, interval.histogram.getMaxValue(), 1000);
+        assertEquals(100000, interval.histogram.getValueAtPercentile(99.9), 1000);
+    }
+
+    @Test
+    public void testIntervalsAreIndependent() {
+        CapturingSink sink = new CapturingSink();
+        HdrHistogramMetricsReporter reporter = newReporterBuilder(sink).build();
+
+        reporter.reportSpan(mockSpanData("testop", 1000));
+        reporter.publish();
+        reporter.publish();
+        reporter.reportSpan(mockSpanData("testop", 1000));
+        reporter.reportSpan(mockSpanData("testop", 1000));
+        reporter.publish();
+
+        assertEquals(3, sink.intervals.size());
+        assertEquals(1, sink.intervals.get(0).histogram.getTotalCount());
+        assertEquals(0, sink.intervals.get(1).histogram.getTotalCount());
+        assertEquals(2, sink.intervals.get(2).histogram.getTotalCount());
+        assertTrue(sink.intervals.get(1).histogram.getEndTimeStamp() > 0);
+        assertTrue(sink.intervals.get(2).histogram.getStartTimeStamp()
+                >= sink.intervals.get(1).histogram.getEndTimeStamp());
+    }
+
+    @Test
+    public void testSeriesPerLabelValues() {
+        CapturingSink sink = new CapturingSink();
+        HdrHistogramMetricsReporter reporter = newReporterBuilder(sink).build();
+
+        reporter.reportSpan(mockSpanData("op1", 1000));
+        reporter.reportSpan(mockSpanData("op2", 1000));
+        reporter.reportSpan(mockSpanData("op1", 1000));
+        reporter.publish();
+
+        assertEquals(2, sink.intervals.size());
+        Map<Map<String, String>, Long> counts = new HashMap<>();
+        for (Interval interval : sink.intervals) {
+            counts.put(interval.labels, interval.histogram.getTotalCount());
+        }
+        assertEquals(Long.valueOf(2), counts.get(defaultLabels("op1")));
+        assertEquals(Long.valueOf(1), counts.get(defaultLabels("op2")));
+    }
+
+    @Test
+    public void testSpanWithoutSpanKindNotRecorded() {
+        CapturingSink sink = new CapturingSink();
+        HdrHistogramMetricsReporter reporter = HdrHistogramMetricsReporter.newMetricsReporter()
+                .withSink(sink)
+                .withInterval(Duration.ZERO)
+                .build();
+
+        reporter.reportSpan(mockSpanData("testop", 1000));
+        reporter.publish();
+
+        assertEquals(0, sink.intervals.size());
+    }
+
+    @Test
+    public void testWeightedSpan() {
+        CapturingSink sink = new CapturingSink();
+        HdrHistogramMetricsReporter reporter = newReporterBuilder(sink).build();
+
+        reporter.reportSpan(mockSpanData("testop", 1000), 10);
+        reporter.publish();
+
+        assertEquals(10, sink.intervals.get(0).histogram.getTotalCount());
+    }
+
+    @Test
+    public void testDurationAboveHighestTrackableValue() {
+        CapturingSink sink = new CapturingSink();
+        HdrHistogramMetricsReporter reporter = newReporterBuilder(sink)
+                .withHighestTrackableValue(1, TimeUnit.SECONDS)
+                .build();
+
+        reporter.reportSpan(mockSpanData("testop", TimeUnit.SECONDS.toMicros(10)));
+        reporter.publish();
+
+        Histogram histogram = sink.intervals.get(0).histogram;
+        assertEquals(1, histogram.getTotalCount());
+        assertEquals(TimeUnit.SECONDS.toMicros(1), histogram.getMaxValue(), 10000);
+    }
+
+    @Test
+    public void testCardinalityLimit() {
+        CapturingSink sink = new CapturingSink();
+        HdrHistogramMetricsReporter reporter = newReporterBuilder(sink)
+                .withCardinalityLimit(1)
+                .build();
+
+        reporter.reportSpan(mockSpanData("op1", 1000));
+        reporter.reportSpan(mockSpanData("op2", 1000));
+        reporter.reportSpan(mockSpanData("op3", 1000));
+        reporter.publish();
+
+        assertEquals(2, sink.intervals.size());
+        assertEquals(2, reporter.getOverflowCount());
+        for (Interval interval : sink.intervals) {
+            if (interval.labels.get("operation").equals(CardinalityLimiter.OVERFLOW_VALUE)) {
+                assertEquals(2, interval.histogram.getTotalCount());
+            } else {
+                assertEquals("op1", interval.labels.get("operation"));
+                assertEquals(1, interval.histogram.getTotalCount());
+            }
+        }
+    }
+
+    @Test
+    public void testPeriodicPublish() throws InterruptedException {
+        CapturingSink sink = new CapturingSink();
+        HdrHistogramMetricsReporter reporter = newReporterBuilder(sink)
+                .withInterval(Duration.ofMillis(10))
+                .build();
+
+        reporter.reportSpan(mockSpanData("testop", 1000));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.totalCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        reporter.close();
+        assertEquals(1, sink.totalCount());
+    }
+
+    @Test
+    public void testClosePublishesRemainingSpans() {
+        CapturingSink sink = new CapturingSink();
+        HdrHistogramMetricsReporter reporter = newReporterBuilder(sink)
+                .withInterval(Duration.ofHours(1))
+                .build();
+
+        reporter.reportSpan(mockSpanData("testop", 1000));
+        reporter.close();
+
+        assertEquals(1, sink.totalCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSignificantDigits() {
+        newReporterBuilder(new CapturingSink()).withSignificantDigits(6).build();
+    }
+
+    private HdrHistogramMetricsReporter.Builder newReporterBuilder(IntervalHistogramSink sink) {
+        return HdrHistogramMetricsReporter.newMetricsReporter()
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT)
+                .withSink(sink)
+                .withInterval(Duration.ZERO);
+    }
+
+    private Map<String, String> defaultLabels(String operation) {
+        Map<String, String> labels = new HashMap<>();
+        labels.put("operation", operation);
+        labels.put("span.kind", Tags.SPAN_KIND_CLIENT);
+        labels.put("error", "false");
+        return labels;
+    }
+
+    private SpanData mockSpanData(String operation, long duration) {
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn(operation);
+        when(spanData.getTags()).thenReturn(Collections.<String, Object>emptyMap());
+        when(spanData.getDuration()).thenReturn(duration);
+        return spanData;
+    }
+
+    private static class Interval {
+        private final String name;
+        private final Map<String, String> labels;
+        private final Histogram histogram;
+
+        Interval(String name, Map<String, String> labels, Histogram histogram) {
+            this.name = name;
+            this.labels = labels;
+            this.histogram = histogram;
+        }
+    }
+
+    private static class CapturingSink implements IntervalHistogramSink {
+        private final List<Interval> intervals = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void onIntervalHistogram(String name, Map<String, String> labels, Histogram histogram) {
+            // The histogram is recycled by the reporter, so copy it
+            intervals.add(new Interval(name, labels, histogram.copy()));
+        }
+
+        long totalCount() {
+            synchronized (intervals) {
+                return intervals.stream().mapToLong(interval -> interval.histogram.getTotalCount()).sum();
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.micrometer;
+
+import io.opentracing.contrib.metrics.VirtualThreads;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class registers meters on behalf of virtual threads. Registering a meter with a
+ * {@link io.micrometer.core.instrument.MeterRegistry} holds a monitor, so a virtual thread
+ * registering a meter (or waiting for another thread to do so) would pin its carrier thread.
+ * Instead the registration, and the recording of the value that required it, is performed
+ * by a shared platform thread, which is started when needed and stops once idle.
+ * <p>
+ * Tasks are performed in the order they are submitted, so {@link #await()} waits for all
+ * previously submitted tasks to complete.
+ * <p>
+ * Callers submit a single task for each combination of label values, holding the values recorded
+ * while the meter is being registered (e.g. in a {@link PendingTimer}), so the number of queued
+ * tasks is bounded by the number of new series. The queue is also bounded: if it is full, the
+ * task is performed by the submitting thread instead, which may then briefly pin its carrier.
+ *
+ */
+final class MeterRegistrar {
+    static final int MAX_QUEUED = 10000;
+
+    private static final ThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private MeterRegistrar() {
+    }
+
+    /**
+     * This method determines whether meters should be registered by the registrar, rather
+     * than by the current thread.
+     *
+     * @return Whether the current thread is virtual
+     */
+    static boolean isDeferred() {
+        return VirtualThreads.isVirtual();
+    }
+
+    /**
+     * This method submits a task to register a meter, and record the value that required it.
+     *
+     * @param task The task
+     */
+    static void execute(Runnable task) {
+        EXECUTOR.execute(task);
+    }
+
+    /**
+     * This method waits for the tasks submitted before it was invoked to complete.
+     */
+    static void await() {
+        Marker marker = new Marker();
+        EXECUTOR.execute(marker);
+        try {
+            marker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_QUEUED), runnable -> {
+                    Thread thread = new Thread(runnable, "opentracing-metrics-registrar");
+                    thread.setDaemon(true);
+                    return thread;
+                }, MeterRegistrar::rejected);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static void rejected(Runnable task, ThreadPoolExecutor executor) {
+        if (!(task instanceof Marker)) {
+            task.run();
+            return;
+        }
+        // The queue is full, so the registrar thread is running, and the marker must follow the queued tasks
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.run();
+        }
+    }
+
+    /**
+     * This class identifies the task used to wait for the previously submitted tasks.
+     */
+    private static final class Marker extends FutureTask<Void> {
+        Marker() {
+            super(() -> { }, null);
+        }
+    }
+}
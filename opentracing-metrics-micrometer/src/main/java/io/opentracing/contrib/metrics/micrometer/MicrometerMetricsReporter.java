@@ -13,6 +13,9 @@
  */
 package io.opentracing.contrib.metrics.micrometer;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.ImmutableTag;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Metrics;
@@ -20,35 +23,134 @@ import io.micrometer.core.instrument.Tag;
 import io.micrometer.core.instrument.Timer;
 import io.opentracing.contrib.api.SpanData;
 import io.opentracing.contrib.metrics.AbstractMetricsReporter;
+import io.opentracing.contrib.metrics.BatchMetricsReporter;
+import io.opentracing.contrib.metrics.CardinalityLimiter;
+import io.opentracing.contrib.metrics.InFlightMetricsReporter;
+import io.opentracing.contrib.metrics.LabelKey;
+import io.opentracing.contrib.metrics.LogEventCounters;
+import io.opentracing.contrib.metrics.LogEventMetricsReporter;
 import io.opentracing.contrib.metrics.MetricLabel;
 import io.opentracing.contrib.metrics.MetricsReporter;
+import io.opentracing.contrib.metrics.ReporterStatistics;
+import io.opentracing.contrib.metrics.SelfTimeMetricsReporter;
+import io.opentracing.contrib.metrics.SpanBatch;
+import io.opentracing.contrib.metrics.SpanFilter;
+import io.opentracing.contrib.metrics.VirtualThreads;
+import io.opentracing.contrib.metrics.WeightedMetricsReporter;
 import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
 import io.opentracing.contrib.metrics.label.ConstMetricLabel;
 import io.opentracing.contrib.metrics.label.TagMetricLabel;
 
+import java.io.Closeable;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This class provides a Micrometer based implementation of the {@link MetricsReporter}.
+ * <p>
+ * If pre-aggregation is enabled, the number and total duration of spans are accumulated in
+ * striped counters per combination of label values, and reported by function timers that merge
+ * the counters when the registry is published or scraped, rather than each span updating a
+ * shared timer.
+ * <p>
+ * If a cardinality limit is configured, spans with label values beyond the limit are folded
+ * into an overflow series, and the number of folded spans reported by a counter named after
+ * the reporter, with the suffix ".overflow".
+ * <p>
+ * If enabled, the number of spans in flight is reported by gauges named after the reporter,
+ * with the suffix ".in.flight".
+ * <p>
+ * If enabled, the self time of spans, i.e. their duration excluding their child spans, is
+ * reported by timers named after the reporter, with the suffix ".self".
+ * <p>
+ * If enabled, the events logged on spans are counted by counters named after the reporter,
+ * with the suffix ".log.events", and an additional tag identifying the event.
+ * <p>
+ * If enabled, the reporter instruments itself, with meters named after the reporter with the
+ * suffix ".reporter": the spans reported (".reporter.spans"), the spans not reported because a
+ * label had no value, by the name of the label (".reporter.suppressed"), the time taken to report
+ * spans (".reporter.latency"), and the number of series (".reporter.series") and series created
+ * (".reporter.series.created").
  *
  */
-public class MicrometerMetricsReporter extends AbstractMetricsReporter implements MetricsReporter {
+public class MicrometerMetricsReporter extends AbstractMetricsReporter
+        implements WeightedMetricsReporter, BatchMetricsReporter, InFlightMetricsReporter,
+        SelfTimeMetricsReporter, LogEventMetricsReporter, Closeable {
     private final String name;
     private final Duration sla, minimumExpectedValue, maximumExpectedValue;
     private final double[] percentiles;
     private final boolean publishPercentileHistogram;
     private final MeterRegistry registry;
+    private final ConcurrentMap<LabelKey, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<LabelKey, PendingTimer> pendingTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<LabelKey, TimerAggregate> aggregates;
+    private final CardinalityLimiter limiter;
+    private final ConcurrentMap<LabelKey, LongAdder> inFlight;
+    private final ConcurrentMap<LabelKey, Timer> selfTimers;
+    private final ConcurrentMap<LabelKey, PendingTimer> pendingSelfTimers;
+    private final LogEventCounters logEvents;
+    private volatile Timer latencyTimer;
+
+    private final SeriesRecorder<Timer> timerRecorder = new SeriesRecorder<Timer>() {
+        @Override
+        public Timer getSeries(LabelKey key) {
+            return getTimer(limiter == null ? key : limiter.admit(key));
+        }
+
+        @Override
+        public void record(Timer timer, SpanBatch batch, int index) {
+            timer.record(batch.getDuration(index), TimeUnit.MICROSECONDS);
+        }
+    };
+
+    private final SeriesRecorder<TimerAggregate> aggregateRecorder = new SeriesRecorder<TimerAggregate>() {
+        @Override
+        public TimerAggregate getSeries(LabelKey key) {
+            return getAggregate(limiter == null ? key : limiter.admit(key));
+        }
+
+        @Override
+        public void record(TimerAggregate aggregate, SpanBatch batch, int index) {
+            aggregate.record(batch.getDuration(index), 1);
+        }
+    };
 
     protected MicrometerMetricsReporter(String name, List<MetricLabel> labels,
                                         MeterRegistry registry,
                                         Duration sla, Duration minimumExpectedValue, Duration maximumExpectedValue,
                                         boolean publishPercentileHistogram,
                                         double... percentiles) {
+        this(name, labels, registry, sla, minimumExpectedValue, maximumExpectedValue, publishPercentileHistogram,
+                false, Integer.MAX_VALUE, new HashMap<String, Integer>(), percentiles);
+    }
+
+    protected MicrometerMetricsReporter(String name, List<MetricLabel> labels,
+                                        MeterRegistry registry,
+                                        Duration sla, Duration minimumExpectedValue, Duration maximumExpectedValue,
+                                        boolean publishPercentileHistogram,
+                                        boolean preAggregation,
+                                        int maxLabelCombinations, Map<String, Integer> maxLabelValues,
+                                        double... percentiles) {
+        this(name, labels, registry, sla, minimumExpectedValue, maximumExpectedValue, publishPercentileHistogram,
+                preAggregation, maxLabelCombinations, maxLabelValues, false, false, null, 0, percentiles);
+    }
+
+    protected MicrometerMetricsReporter(String name, List<MetricLabel> labels,
+                                        MeterRegistry registry,
+                                        Duration sla, Duration minimumExpectedValue, Duration maximumExpectedValue,
+                                        boolean publishPercentileHistogram,
+                                        boolean preAggregation,
+                                        int maxLabelCombinations, Map<String, Integer> maxLabelValues,
+                                        boolean inFlightGauge, boolean selfTime,
+                                        String logEventField, int maxLogEvents,
+                                        double... percentiles) {
         super(labels);
         this.name = name;
         this.registry = registry;
@@ -57,28 +159,422 @@ public class MicrometerMetricsReporter extends AbstractMetricsReporter implement
         this.maximumExpectedValue = maximumExpectedValue;
         this.publishPercentileHistogram = publishPercentileHistogram;
         this.percentiles = percentiles;
+
+        if (maxLabelCombinations == Integer.MAX_VALUE && maxLabelValues.isEmpty()) {
+            this.limiter = null;
+        } else {
+            this.limiter = new CardinalityLimiter(getMetricLabels(), maxLabelCombinations, maxLabelValues);
+            FunctionCounter.builder(name + ".overflow", limiter, CardinalityLimiter::getOverflowCount)
+                    .description("The number of spans folded into the overflow series")
+                    .register(registry);
+        }
+
+        this.inFlight = inFlightGauge ? new ConcurrentHashMap<>() : null;
+        this.selfTimers = selfTime ? new ConcurrentHashMap<>() : null;
+        this.pendingSelfTimers = selfTime ? new ConcurrentHashMap<>() : null;
+        this.logEvents = logEventField == null ? null : new LogEventCounters(logEventField, maxLogEvents,
+                (key, event, counter) -> {
+                    if (MeterRegistrar.isDeferred()) {
+                        MeterRegistrar.execute(() -> createLogEventCounter(logEventField, key, event, counter));
+                    } else {
+                        createLogEventCounter(logEventField, key, event, counter);
+                    }
+                });
+        this.aggregates = preAggregation ? new ConcurrentHashMap<>() : null;
+    }
+
+    @Override
+    public boolean isInFlightReported() {
+        return inFlight != null;
+    }
+
+    @Override
+    public LongAdder spanStarted(SpanData spanData) {
+        if (inFlight == null) {
+            return null;
+        }
+        LabelKey key = getLabelKey(spanData, false);
+        if (key == null) {
+            return null;
+        }
+        if (limiter != null) {
+            key = limiter.admit(key);
+        }
+
+        LongAdder counter = inFlight.get(key);
+        if (counter == null) {
+            if (MeterRegistrar.isDeferred()) {
+                // first span for this combination of label values, so register the gauge off the virtual thread
+                LabelKey retained = key.copy();
+                LongAdder created = new LongAdder();
+                counter = inFlight.putIfAbsent(retained, created);
+                if (counter == null) {
+                    counter = created;
+                    MeterRegistrar.execute(() -> registerInFlightGauge(retained, created));
+                }
+            } else {
+                // first span for this combination of label values, so register the gauge
+                counter = inFlight.computeIfAbsent(key.copy(), this::createInFlightGauge);
+            }
+        }
+        counter.increment();
+        return counter;
+    }
+
+    @Override
+    public boolean isSelfTimeReported() {
+        return selfTimers != null;
+    }
+
+    @Override
+    public void reportSelfTime(SpanData spanData, long selfTime) {
+        if (selfTimers == null) {
+            return;
+        }
+        LabelKey key = getLabelKey(spanData, true);
+        if (key == null) {
+            return;
+        }
+        if (limiter != null) {
+            key = limiter.admit(key);
+        }
+
+        recordTimer(selfTimers, pendingSelfTimers, name + ".self", key, selfTime);
+    }
+
+    @Override
+    public boolean isLogEventReported() {
+        return logEvents != null;
+    }
+
+    @Override
+    public void reportLogEvent(SpanData spanData, String event) {
+        if (logEvents != null) {
+            countLogEvent(spanData, logEvents.eventName(event));
+        }
+    }
+
+    @Override
+    public void reportLogEvent(SpanData spanData, Map<String, ?> fields) {
+        if (logEvents != null) {
+            countLogEvent(spanData, logEvents.eventName(fields));
+        }
+    }
+
+    private void countLogEvent(SpanData spanData, String event) {
+        if (event == null) {
+            return;
+        }
+        LabelKey key = getLabelKey(spanData, false);
+        if (key == null) {
+            return;
+        }
+        if (limiter != null) {
+            key = limiter.admit(key);
+        }
+        logEvents.increment(key, event);
     }
 
     @Override
     public void reportSpan(SpanData spanData) {
-        boolean skip = Arrays.stream(this.metricLabels).anyMatch(m -> m.value(spanData) == null);
-        if (skip) {
+        reportSpan(spanData, 1);
+    }
+
+    /**
+     * This method identifies whether weights other than one are supported, which requires
+     * pre-aggregation, as a {@link Timer} can only record one span at a time.
+     *
+     * @return Whether weights are supported
+     */
+    @Override
+    public boolean isWeightSupported() {
+        return aggregates != null;
+    }
+
+    @Override
+    public void reportSpan(SpanData spanData, long weight) {
+        if (weight != 1 && aggregates == null) {
+            throw new IllegalArgumentException("Weighted spans require pre-aggregation: " + weight);
+        }
+        Timer latency = latencyTimer;
+        if (latency == null) {
+            record(spanData, weight);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            record(spanData, weight);
+        } finally {
+            latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void record(SpanData spanData, long weight) {
+        LabelKey key = getLabelKey(spanData);
+        if (key == null) {
             return;
         }
+        if (limiter != null) {
+            key = limiter.admit(key);
+        }
 
-        List<Tag> tags = Arrays.stream(this.metricLabels)
-            .map(m -> new ImmutableTag(m.name(), m.value(spanData).toString()))
-            .collect(Collectors.toList());
+        long duration = spanData.getDuration();
+        if (aggregates != null) {
+            getAggregate(key).record(duration, weight);
+        } else {
+            recordTimer(timers, pendingTimers, name, key, duration);
+        }
+    }
 
-        Timer timer = this.registry.find(this.name).tags(tags).timer();
-        if (null != timer) {
-            // we have a metric registered already, just record the timing:
-            timer.record(spanData.getDuration(), TimeUnit.MICROSECONDS);
+    @Override
+    public void reportSpans(SpanBatch batch) {
+        Timer latency = latencyTimer;
+        if (latency == null) {
+            record(batch);
             return;
         }
+        long start = System.nanoTime();
+        try {
+            record(batch);
+        } finally {
+            latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void record(SpanBatch batch) {
+        if (aggregates != null) {
+            reportSpans(batch, aggregateRecorder);
+        } else if (MeterRegistrar.isDeferred()) {
+            // A virtual thread must not resolve the timers of the batch itself
+            for (int i = 0; i < batch.size(); i++) {
+                record(batch.getSpanData(i), 1);
+            }
+        } else {
+            reportSpans(batch, timerRecorder);
+        }
+    }
 
+    /**
+     * This method waits for the meters being registered on behalf of virtual threads to be
+     * registered.
+     */
+    public void flush() {
+        if (VirtualThreads.isSupported()) {
+            MeterRegistrar.await();
+        }
+    }
+
+    /**
+     * This method waits for the meters being registered on behalf of virtual threads to be
+     * registered.
+     */
+    @Override
+    public void close() {
+        flush();
+    }
+
+    private Timer getTimer(LabelKey key) {
+        return getTimer(timers, name, key);
+    }
+
+    private Timer getTimer(ConcurrentMap<LabelKey, Timer> timers, String timerName, LabelKey key) {
+        Timer timer = timers.get(key);
+        if (timer == null) {
+            // first span for this combination of label values, so register (or find) the timer
+            timer = timers.computeIfAbsent(key.copy(), k -> createSeries(timerName, k));
+        }
+        return timer;
+    }
+
+    private Timer createSeries(String timerName, LabelKey key) {
+        seriesCreated();
+        return createTimer(timerName, key);
+    }
+
+    private void seriesCreated() {
+        ReporterStatistics statistics = getStatistics();
+        if (statistics != null) {
+            statistics.seriesCreated();
+        }
+    }
+
+    /**
+     * This method returns the aggregate of the spans associated with the supplied label values.
+     * If the aggregate has not been created, then its function timer is registered, by the
+     * {@link MeterRegistrar} if the current thread is virtual. Spans are recorded in the
+     * aggregate without waiting for the timer to be registered.
+     *
+     * @param key The label values
+     * @return The aggregate
+     */
+    private TimerAggregate getAggregate(LabelKey key) {
+        TimerAggregate aggregate = aggregates.get(key);
+        if (aggregate == null) {
+            // first span for this combination of label values, so register the function timer
+            LabelKey retained = key.copy();
+            TimerAggregate created = new TimerAggregate();
+            aggregate = aggregates.putIfAbsent(retained, created);
+            if (aggregate == null) {
+                aggregate = created;
+                seriesCreated();
+                if (MeterRegistrar.isDeferred()) {
+                    MeterRegistrar.execute(() -> registerAggregate(retained, created));
+                } else {
+                    registerAggregate(retained, created);
+                }
+            }
+        }
+        return aggregate;
+    }
+
+    private void registerAggregate(LabelKey key, TimerAggregate aggregate) {
+        FunctionTimer.builder(name, aggregate, TimerAggregate::count, TimerAggregate::totalMicros,
+                TimeUnit.MICROSECONDS)
+                .tags(getTags(key))
+                .register(registry);
+    }
+
+    /**
+     * This method enables the reporter to instrument itself, registering the meters reporting
+     * its statistics with the reporter's registry.
+     */
+    private void instrument() {
+        ReporterStatistics statistics = new ReporterStatistics((labelName, counter) -> {
+            if (MeterRegistrar.isDeferred()) {
+                MeterRegistrar.execute(() -> createSuppressedCounter(labelName, counter));
+            } else {
+                createSuppressedCounter(labelName, counter);
+            }
+        });
+        FunctionCounter.builder(name + ".reporter.spans", statistics, ReporterStatistics::getReportedCount)
+                .description("The number of spans reported")
+                .register(registry);
+        Gauge.builder(name + ".reporter.series", this, MicrometerMetricsReporter::getSeriesCount)
+                .description("The number of series")
+                .register(registry);
+        FunctionCounter.builder(name + ".reporter.series.created", statistics,
+                ReporterStatistics::getSeriesCreatedCount)
+                .description("The number of series created")
+                .register(registry);
+        latencyTimer = Timer.builder(name + ".reporter.latency")
+                .description("The time taken to report spans")
+                .register(registry);
+        setStatistics(statistics);
+    }
+
+    private void createSuppressedCounter(String labelName, LongAdder counter) {
+        FunctionCounter.builder(name + ".reporter.suppressed", counter, LongAdder::sum)
+                .description("The number of spans not reported as a label had no value")
+                .tags("label", labelName)
+                .register(registry);
+    }
+
+    /**
+     * This method returns the number of series, i.e. combinations of label values, of the
+     * span and self time timers.
+     *
+     * @return The number of series
+     */
+    int getSeriesCount() {
+        return timers.size() + (aggregates == null ? 0 : aggregates.size())
+                + (selfTimers == null ? 0 : selfTimers.size());
+    }
+
+    /**
+     * This method records a value in the timer associated with the supplied label values. If
+     * the timer has not been registered, and the current thread is virtual, then the timer is
+     * registered by the {@link MeterRegistrar}, once for each combination of label values, and
+     * the value held in a {@link PendingTimer} until the timer has been registered.
+     *
+     * @param timers The timers
+     * @param pending The timers being registered by the registrar
+     * @param timerName The timer name
+     * @param key The label values
+     * @param micros The value in microseconds
+     */
+    private void recordTimer(ConcurrentMap<LabelKey, Timer> timers, ConcurrentMap<LabelKey, PendingTimer> pending,
+                             String timerName, LabelKey key, long micros) {
+        Timer timer = timers.get(key);
+        if (timer == null) {
+            if (MeterRegistrar.isDeferred()) {
+                PendingTimer pendingTimer = pending.get(key);
+                if (pendingTimer == null) {
+                    LabelKey retained = key.copy();
+                    PendingTimer created = new PendingTimer();
+                    pendingTimer = pending.putIfAbsent(retained, created);
+                    if (pendingTimer == null) {
+                        pendingTimer = created;
+                        MeterRegistrar.execute(() -> {
+                            created.registered(getTimer(timers, timerName, retained));
+                            pending.remove(retained, created);
+                        });
+                    }
+                }
+                pendingTimer.record(micros);
+                return;
+            }
+            timer = getTimer(timers, timerName, key);
+        }
+        timer.record(micros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * This method registers the gauge reporting the number of spans in flight associated with
+     * the supplied label values.
+     *
+     * @param key The label values
+     * @return The counter of spans in flight
+     */
+    private LongAdder createInFlightGauge(LabelKey key) {
+        LongAdder counter = new LongAdder();
+        registerInFlightGauge(key, counter);
+        return counter;
+    }
+
+    private void registerInFlightGauge(LabelKey key, LongAdder counter) {
+        Gauge.builder(name + ".in.flight", counter, LongAdder::sum)
+                .description("The number of spans in flight")
+                .tags(getTags(key))
+                .register(registry);
+    }
+
+    /**
+     * This method registers the counter of the events logged on spans associated with the
+     * supplied label values and event name.
+     *
+     * @param field The log field providing the event name, used as the tag name
+     * @param key The label values
+     * @param event The event name
+     * @param counter The counter
+     */
+    private void createLogEventCounter(String field, LabelKey key, String event, LongAdder counter) {
+        List<Tag> tags = getTags(key);
+        tags.add(new ImmutableTag(field, event));
+        FunctionCounter.builder(name + ".log.events", counter, LongAdder::sum)
+                .description("The number of events logged on spans")
+                .tags(tags)
+                .register(registry);
+    }
+
+    private List<Tag> getTags(LabelKey key) {
+        List<Tag> tags = new ArrayList<>(key.size() + 1);
+        for (int i = 0; i < key.size(); i++) {
+            tags.add(new ImmutableTag(metricLabels[i].name(), key.stringValue(i)));
+        }
+        return tags;
+    }
+
+    /**
+     * This method registers the timer associated with the supplied label values. If the timer
+     * has already been registered with the registry, then the existing timer is returned.
+     *
+     * @param name The timer name
+     * @param key The label values
+     * @return The timer
+     */
+    private Timer createTimer(String name, LabelKey key) {
         // would be awesome if we could reuse the builder, but looks like we can't, as we can't override the name
-        Timer.Builder builder = Timer.builder(this.name).tags(tags);
+        Timer.Builder builder = Timer.builder(name).tags(getTags(key));
         if (publishPercentileHistogram) {
             builder.publishPercentileHistogram();
         }
@@ -99,7 +595,7 @@ public class MicrometerMetricsReporter extends AbstractMetricsReporter implement
             builder.maximumExpectedValue(maximumExpectedValue);
         }
 
-        builder.register(this.registry).record(spanData.getDuration(), TimeUnit.MICROSECONDS);
+        return builder.register(this.registry);
     }
 
     public static Builder newMetricsReporter() {
@@ -116,7 +612,16 @@ public class MicrometerMetricsReporter extends AbstractMetricsReporter implement
         private Duration sla, minimumExpectedValue, maximumExpectedValue;
         private double[] percentiles;
         private boolean publishPercentileHistogram;
+        private boolean preAggregation;
+        private int maxLabelCombinations = Integer.MAX_VALUE;
+        private Map<String, Integer> maxLabelValues = new HashMap<>();
+        private boolean inFlightGauge;
+        private boolean selfTime;
+        private String logEventField;
+        private int maxLogEvents;
         private MeterRegistry registry = Metrics.globalRegistry;
+        private SpanFilter spanFilter;
+        private boolean selfInstrumentation;
 
         private List<MetricLabel> metricLabels = new ArrayList<>();
 
@@ -175,17 +680,147 @@ public class MicrometerMetricsReporter extends AbstractMetricsReporter implement
             return this;
         }
 
+        /**
+         * This method enables pre-aggregation, where the number and total duration of spans are
+         * accumulated in striped counters, and reported by function timers that merge the counters
+         * when read. This avoids contention on timers associated with frequently used label values,
+         * but only the count and total time are reported, so it can't be combined with percentiles,
+         * a percentile histogram or SLA buckets.
+         *
+         * @return The builder
+         */
+        public Builder withPreAggregation() {
+            this.preAggregation = true;
+            return this;
+        }
+
+        /**
+         * This method limits the number of distinct combinations of label values, and therefore
+         * timers, created by the reporter. Spans with new label values beyond the limit are
+         * reported in a series with all label values set to {@link CardinalityLimiter#OVERFLOW_VALUE}.
+         *
+         * @param maxLabelCombinations The maximum number of distinct combinations of label values
+         * @return The builder
+         */
+        public Builder withCardinalityLimit(int maxLabelCombinations) {
+            this.maxLabelCombinations = maxLabelCombinations;
+            return this;
+        }
+
+        /**
+         * This method limits the number of distinct values of the named label. Spans with new
+         * values beyond the limit are reported with the label value {@link CardinalityLimiter#OVERFLOW_VALUE}.
+         *
+         * @param labelName The label name
+         * @param maxValues The maximum number of distinct values
+         * @return The builder
+         */
+        public Builder withLabelCardinalityLimit(String labelName, int maxValues) {
+            this.maxLabelValues.put(labelName, maxValues);
+            return this;
+        }
+
+        /**
+         * This method enables gauges, named after the reporter with the suffix ".in.flight",
+         * reporting the number of spans started but not yet finished for each combination of
+         * label values. The label values are derived when the span starts.
+         *
+         * @return The builder
+         */
+        public Builder withInFlightGauge() {
+            this.inFlightGauge = true;
+            return this;
+        }
+
+        /**
+         * This method enables timers, named after the reporter with the suffix ".self", reporting
+         * the self time of spans, i.e. their duration excluding the durations of their finished
+         * child spans. The timers are configured in the same way as the span duration timers.
+         * The self time is only reported when the observer is supplied with a scope manager,
+         * e.g. when the tracer is decorated using {@link io.opentracing.contrib.metrics.Metrics}.
+         *
+         * @return The builder
+         */
+        public Builder withSelfTime() {
+            this.selfTime = true;
+            return this;
+        }
+
+        /**
+         * This method enables counters, named after the reporter with the suffix ".log.events",
+         * counting the events logged on spans by their name, i.e. the "event" log field.
+         *
+         * @return The builder
+         */
+        public Builder withLogEventCounter() {
+            return withLogEventCounter(LogEventCounters.DEFAULT_FIELD, LogEventCounters.DEFAULT_MAX_EVENTS);
+        }
+
+        /**
+         * This method enables counters, named after the reporter with the suffix ".log.events",
+         * counting the events logged on spans by the value of the supplied log field, which is
+         * also used as the name of the tag holding the value. Values beyond the supplied maximum
+         * number of distinct values are counted as {@link CardinalityLimiter#OVERFLOW_VALUE}.
+         *
+         * @param field The log field
+         * @param maxEvents The maximum number of distinct values of the log field
+         * @return The builder
+         */
+        public Builder withLogEventCounter(String field, int maxEvents) {
+            this.logEventField = field;
+            this.maxLogEvents = maxEvents;
+            return this;
+        }
+
         public Builder withRegistry(MeterRegistry registry) {
             this.registry = registry;
             return this;
         }
 
+        /**
+         * This method sets the {@link SpanFilter} selecting the spans to be reported.
+         *
+         * @param spanFilter The span filter
+         * @return The builder
+         */
+        public Builder withSpanFilter(SpanFilter spanFilter) {
+            this.spanFilter = spanFilter;
+            return this;
+        }
+
+        /**
+         * This method enables the reporter to instrument itself, with meters named after the
+         * reporter with the suffix ".reporter", reporting the spans reported and those not
+         * reported because a label had no value, the time taken to report spans, and the number
+         * of series. The meters are registered with the same registry.
+         *
+         * @return The builder
+         */
+        public Builder withSelfInstrumentation() {
+            this.selfInstrumentation = true;
+            return this;
+        }
+
         public MicrometerMetricsReporter build() {
-            return new MicrometerMetricsReporter(name, metricLabels,
+            if (preAggregation && (publishPercentileHistogram || sla != null
+                    || (percentiles != null && percentiles.length > 0))) {
+                throw new IllegalArgumentException(
+                        "Pre-aggregation can't be combined with percentiles, a percentile histogram or SLA buckets");
+            }
+            MicrometerMetricsReporter reporter = new MicrometerMetricsReporter(name, metricLabels,
                     registry,
                     sla, minimumExpectedValue, maximumExpectedValue,
                     publishPercentileHistogram,
+                    preAggregation,
+                    maxLabelCombinations, maxLabelValues,
+                    inFlightGauge, selfTime,
+                    logEventField, maxLogEvents,
                     percentiles);
+            reporter.setSpanFilter(spanFilter);
+            if (selfInstrumentation) {
+                reporter.instrument();
+            }
+            return reporter;
         }
     }
 }
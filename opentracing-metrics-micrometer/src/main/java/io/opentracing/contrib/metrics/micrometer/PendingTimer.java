@@ -0,0 +1,106 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.micrometer;
+
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class holds the durations recorded by virtual threads for a combination of label values
+ * whose timer is being registered by the {@link MeterRegistrar}, so that a single registration
+ * is submitted for each combination, rather than one for each span. Once the timer has been
+ * registered, the held durations are recorded in it, as are durations recorded subsequently.
+ * <p>
+ * The number of durations held is bounded: if it is reached, callers wait for the timer to be
+ * registered. A {@link ReentrantLock} is used, rather than a monitor, so that a virtual thread
+ * waiting for the lock, or for the timer, does not pin its carrier thread.
+ *
+ */
+final class PendingTimer {
+    static final int MAX_PENDING = 1024;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition registration = lock.newCondition();
+    private long[] values = new long[8];
+    private int size;
+    private Timer timer;
+
+    /**
+     * This method records a duration, in the timer if it has been registered, otherwise holding
+     * it until the timer is registered. If the maximum number of durations are held, then it
+     * waits for the timer to be registered.
+     *
+     * @param micros The duration in microseconds
+     */
+    void record(long micros) {
+        Timer registered;
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            while (timer == null && size == MAX_PENDING) {
+                try {
+                    registration.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            registered = timer;
+            if (registered == null) {
+                if (size == values.length) {
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                values[size++] = micros;
+                return;
+            }
+        } finally {
+            lock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        registered.record(micros, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * This method supplies the registered timer, recording the durations held. Subsequent
+     * invocations are ignored.
+     *
+     * @param registered The timer
+     */
+    void registered(Timer registered) {
+        long[] held;
+        int count;
+        lock.lock();
+        try {
+            if (timer != null) {
+                return;
+            }
+            timer = registered;
+            held = values;
+            count = size;
+            values = null;
+            size = 0;
+            registration.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (int i = 0; i < count; i++) {
+            registered.record(held[i], TimeUnit.MICROSECONDS);
+        }
+    }
+}
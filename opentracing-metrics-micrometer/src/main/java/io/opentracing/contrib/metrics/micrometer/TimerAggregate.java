@@ -0,0 +1,50 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.micrometer;
+
+import io.micrometer.core.instrument.FunctionTimer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class accumulates the number and total duration of the spans associated with a combination
+ * of label values, and is reported by a {@link FunctionTimer} that reads the totals when the
+ * registry is published or scraped. The totals are {@link LongAdder}s, so spans recorded
+ * concurrently update separate cells, which are only merged when read, rather than contending
+ * on a shared timer. A span representing a number of spans is recorded with a single update.
+ *
+ */
+final class TimerAggregate {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+
+    /**
+     * This method records a duration, as if it had been recorded the supplied number of times.
+     *
+     * @param micros The duration in microseconds
+     * @param weight The number of spans represented
+     */
+    void record(long micros, long weight) {
+        count.add(weight);
+        totalMicros.add(micros * weight);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    double totalMicros() {
+        return totalMicros.sum();
+    }
+}
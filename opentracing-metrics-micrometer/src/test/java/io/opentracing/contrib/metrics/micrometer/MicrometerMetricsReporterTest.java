@@ -13,13 +13,17 @@
  */
 package io.opentracing.contrib.metrics.micrometer;
 
+import io.micrometer.core.instrument.FunctionTimer;
 import io.micrometer.core.instrument.ImmutableTag;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Metrics;
 import io.micrometer.core.instrument.Tag;
 import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.CardinalityLimiter;
 import io.opentracing.contrib.metrics.MetricLabel;
+import io.opentracing.contrib.metrics.SpanBatch;
+import io.opentracing.contrib.metrics.SpanFilter;
 import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
 import io.opentracing.tag.Tags;
 import org.junit.Before;
@@ -28,14 +32,21 @@ import org.junit.Test;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -279,6 +290,481 @@ public class MicrometerMetricsReporterTest {
         assertNotNull(registry.find(metricName+".histogram").tag("le", "86400").gauge());
     }
 
+    @Test
+    public void testTimerReusedForSameLabelValues() {
+        String metricName = "testTimerReusedForSameLabelValues";
+
+        // prepare
+        SpanData spanData = defaultMockSpanData();
+        SpanData otherSpanData = defaultMockSpanData();
+        when(otherSpanData.getOperationName()).thenReturn("otherop");
+
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .build();
+
+        // test
+        reporter.reportSpan(spanData);
+        reporter.reportSpan(spanData);
+        reporter.reportSpan(otherSpanData);
+
+        // verify
+        assertEquals(2, registry.find(metricName).meters().size());
+        assertEquals(2, Metrics.timer(metricName, defaultTags()).count());
+        assertEquals(200, (long) Metrics.timer(metricName, defaultTags()).totalTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testLabelValueDerivedOncePerSpan() {
+        String metricName = "testLabelValueDerivedOncePerSpan";
+
+        // prepare
+        SpanData spanData = defaultMockSpanData();
+        final AtomicInteger invocations = new AtomicInteger();
+        MetricLabel countingLabel = new BaggageMetricLabel(METRIC_LABEL_NAME, METRIC_LABEL_VALUE) {
+            @Override
+            public Object value(SpanData spanData) {
+                invocations.incrementAndGet();
+                return super.value(spanData);
+            }
+        };
+
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withCustomLabel(countingLabel)
+                .build();
+
+        // test
+        reporter.reportSpan(spanData);
+        reporter.reportSpan(spanData);
+
+        // verify
+        assertEquals(2, invocations.get());
+        List<Tag> tags = defaultTags();
+        tags.add(new ImmutableTag(METRIC_LABEL_NAME, METRIC_LABEL_VALUE));
+        assertEquals(2, Metrics.timer(metricName, tags).count());
+    }
+
+    @Test
+    public void testReportWeightedSpan() {
+        String metricName = "testReportWeightedSpan";
+
+        // prepare
+        SpanData spanData = defaultMockSpanData();
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withPreAggregation()
+                .build();
+
+        // test
+        reporter.reportSpan(spanData, 10);
+
+        // verify
+        assertTrue(reporter.isWeightSupported());
+        FunctionTimer timer = Metrics.globalRegistry.find(metricName).tags(defaultTags()).functionTimer();
+        assertEquals(10, (long) timer.count());
+        assertEquals(1000, (long) timer.totalTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testWeightedSpanRejectedWithoutPreAggregation() {
+        String metricName = "testWeightedSpanRejectedWithoutPreAggregation";
+
+        // prepare
+        SpanData spanData = defaultMockSpanData();
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .build();
+
+        // test
+        assertFalse(reporter.isWeightSupported());
+        reporter.reportSpan(spanData, 1);
+        try {
+            reporter.reportSpan(spanData, 10);
+            fail("Expected weight to be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // verify
+        assertEquals(1, Metrics.timer(metricName, defaultTags()).count());
+    }
+
+    @Test
+    public void testCardinalityLimit() {
+        String metricName = "testCardinalityLimit";
+
+        // prepare
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withCardinalityLimit(2)
+                .build();
+
+        // test
+        for (int i = 0; i < 5; i++) {
+            SpanData spanData = defaultMockSpanData();
+            when(spanData.getOperationName()).thenReturn("testop" + i);
+            reporter.reportSpan(spanData);
+        }
+
+        // verify
+        assertEquals(3, registry.find(metricName).meters().size());
+        List<Tag> overflowTags = new ArrayList<>();
+        overflowTags.add(new ImmutableTag("error", CardinalityLimiter.OVERFLOW_VALUE));
+        overflowTags.add(new ImmutableTag("operation", CardinalityLimiter.OVERFLOW_VALUE));
+        overflowTags.add(new ImmutableTag("span.kind", CardinalityLimiter.OVERFLOW_VALUE));
+        assertEquals(3, Metrics.timer(metricName, overflowTags).count());
+        assertEquals(3, (long) registry.find(metricName + ".overflow").functionCounter().count());
+    }
+
+    @Test
+    public void testLabelCardinalityLimit() {
+        String metricName = "testLabelCardinalityLimit";
+
+        // prepare
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withLabelCardinalityLimit("operation", 1)
+                .build();
+
+        // test
+        for (int i = 0; i < 3; i++) {
+            SpanData spanData = defaultMockSpanData();
+            when(spanData.getOperationName()).thenReturn("testop" + i);
+            reporter.reportSpan(spanData);
+        }
+
+        // verify
+        List<Tag> overflowTags = defaultTags();
+        overflowTags.set(1, new ImmutableTag("operation", CardinalityLimiter.OVERFLOW_VALUE));
+        assertEquals(2, Metrics.timer(metricName, overflowTags).count());
+        assertEquals(2, registry.find(metricName).meters().size());
+    }
+
+    @Test
+    public void testPreAggregation() {
+        String metricName = "testPreAggregation";
+
+        // prepare
+        SpanData spanData = defaultMockSpanData();
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withPreAggregation()
+                .build();
+
+        // test
+        reporter.reportSpan(spanData);
+        reporter.reportSpan(spanData, 3);
+
+        // verify
+        FunctionTimer timer = Metrics.globalRegistry.find(metricName).tags(defaultTags()).functionTimer();
+        assertNotNull(timer);
+        assertNull(Metrics.globalRegistry.find(metricName).tags(defaultTags()).timer());
+        assertEquals(4, (long) timer.count());
+        assertEquals(400, (long) timer.totalTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testPreAggregationBatch() {
+        String metricName = "testPreAggregationBatch";
+
+        // prepare
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withPreAggregation()
+                .build();
+        SpanBatch batch = new SpanBatch(4);
+        for (int i = 0; i < 4; i++) {
+            SpanData spanData = defaultMockSpanData();
+            when(spanData.getOperationName()).thenReturn("testop" + (i % 2));
+            batch.add(spanData);
+        }
+
+        // test
+        reporter.reportSpans(batch);
+
+        // verify
+        List<Tag> tags = defaultTags();
+        tags.set(1, new ImmutableTag("operation", "testop1"));
+        FunctionTimer timer = Metrics.globalRegistry.find(metricName).tags(tags).functionTimer();
+        assertEquals(2, (long) timer.count());
+        assertEquals(2, reporter.getSeriesCount());
+    }
+
+    @Test
+    public void testPreAggregationFromMultipleThreads() throws InterruptedException {
+        String metricName = "testPreAggregationFromMultipleThreads";
+
+        // prepare
+        SpanData spanData = defaultMockSpanData();
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withPreAggregation()
+                .build();
+
+        // test
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 1000; j++) {
+                    reporter.reportSpan(spanData);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // verify
+        FunctionTimer timer = Metrics.globalRegistry.find(metricName).tags(defaultTags()).functionTimer();
+        assertEquals(4000, (long) timer.count());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPreAggregationWithPercentiles() {
+        MicrometerMetricsReporter.newMetricsReporter()
+                .withName("testPreAggregationWithPercentiles")
+                .withPreAggregation()
+                .withPercentiles(0.99)
+                .build();
+    }
+
+    @Test
+    public void testInFlightGauge() {
+        String metricName = "testInFlightGauge";
+
+        // prepare
+        SpanData spanData = defaultMockSpanData();
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withInFlightGauge()
+                .build();
+
+        // test
+        assertTrue(reporter.isInFlightReported());
+        LongAdder first = reporter.spanStarted(spanData);
+        LongAdder second = reporter.spanStarted(spanData);
+
+        // verify
+        assertSame(first, second);
+        assertEquals(2, registry.find(metricName + ".in.flight").tags(defaultTags()).gauge().value(), 0);
+        first.decrement();
+        assertEquals(1, registry.find(metricName + ".in.flight").tags(defaultTags()).gauge().value(), 0);
+    }
+
+    @Test
+    public void testInFlightGaugeNotEnabled() {
+        String metricName = "testInFlightGaugeNotEnabled";
+
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .build();
+
+        assertFalse(reporter.isInFlightReported());
+        assertNull(reporter.spanStarted(defaultMockSpanData()));
+        assertNull(registry.find(metricName + ".in.flight").gauge());
+    }
+
+    @Test
+    public void testSelfTime() {
+        String metricName = "testSelfTime";
+
+        // prepare
+        SpanData spanData = defaultMockSpanData();
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withSelfTime()
+                .build();
+
+        // test
+        reporter.reportSelfTime(spanData, 40_000L);
+        reporter.reportSpan(spanData);
+
+        // verify
+        assertTrue(reporter.isSelfTimeReported());
+        assertEquals(40, (long) registry.find(metricName + ".self").tags(defaultTags()).timer()
+                .totalTime(TimeUnit.MILLISECONDS));
+        assertEquals(100, (long) registry.find(metricName).tags(defaultTags()).timer()
+                .totalTime(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testSelfTimeNotEnabled() {
+        String metricName = "testSelfTimeNotEnabled";
+
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .build();
+        reporter.reportSelfTime(defaultMockSpanData(), 40_000L);
+
+        assertFalse(reporter.isSelfTimeReported());
+        assertNull(registry.find(metricName + ".self").timer());
+    }
+
+    @Test
+    public void testLogEventCounter() {
+        String metricName = "testLogEventCounter";
+
+        // prepare
+        SpanData spanData = defaultMockSpanData();
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withLogEventCounter()
+                .build();
+
+        // test
+        reporter.reportLogEvent(spanData, "retry");
+        reporter.reportLogEvent(spanData, Collections.singletonMap("event", "retry"));
+        reporter.reportLogEvent(spanData, Collections.singletonMap("message", "ignored"));
+
+        // verify
+        assertTrue(reporter.isLogEventReported());
+        List<Tag> tags = defaultTags();
+        tags.add(new ImmutableTag("event", "retry"));
+        assertEquals(2, registry.find(metricName + ".log.events").tags(tags).functionCounter().count(), 0);
+        assertEquals(1, registry.find(metricName + ".log.events").meters().size());
+    }
+
+    @Test
+    public void testLogEventCounterWithField() {
+        String metricName = "testLogEventCounterWithField";
+
+        // prepare
+        SpanData spanData = defaultMockSpanData();
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withLogEventCounter("error.kind", 1)
+                .build();
+
+        // test
+        reporter.reportLogEvent(spanData, "error");
+        reporter.reportLogEvent(spanData, Collections.singletonMap("error.kind", "Timeout"));
+        reporter.reportLogEvent(spanData, Collections.singletonMap("error.kind", "Refused"));
+
+        // verify
+        List<Tag> tags = defaultTags();
+        tags.add(new ImmutableTag("error.kind", "Timeout"));
+        assertEquals(1, registry.find(metricName + ".log.events").tags(tags).functionCounter().count(), 0);
+        tags = defaultTags();
+        tags.add(new ImmutableTag("error.kind", CardinalityLimiter.OVERFLOW_VALUE));
+        assertEquals(1, registry.find(metricName + ".log.events").tags(tags).functionCounter().count(), 0);
+    }
+
+    @Test
+    public void testLogEventCounterNotEnabled() {
+        String metricName = "testLogEventCounterNotEnabled";
+
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .build();
+        reporter.reportLogEvent(defaultMockSpanData(), "retry");
+
+        assertFalse(reporter.isLogEventReported());
+        assertNull(registry.find(metricName + ".log.events").functionCounter());
+    }
+
+    @Test
+    public void testReportSpans() {
+        String metricName = "testReportSpans";
+
+        // prepare
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withCardinalityLimit(1)
+                .withSpanFilter(SpanFilter.newSpanFilter().withMinDuration(1, TimeUnit.MILLISECONDS).build())
+                .build();
+        SpanData otherSpanData = defaultMockSpanData();
+        when(otherSpanData.getOperationName()).thenReturn("otherop");
+        SpanData shortSpanData = defaultMockSpanData();
+        when(shortSpanData.getDuration()).thenReturn(10L);
+        SpanBatch batch = new SpanBatch(4);
+        batch.add(defaultMockSpanData());
+        batch.add(otherSpanData);
+        batch.add(shortSpanData);
+        batch.add(defaultMockSpanData());
+
+        // test
+        reporter.reportSpans(batch);
+
+        // verify
+        assertEquals(2, registry.find(metricName).tags(defaultTags()).timer().count());
+        assertEquals(200, (long) registry.find(metricName).tags(defaultTags()).timer().totalTime(TimeUnit.MILLISECONDS));
+        assertEquals(1, registry.find(metricName).tags("operation", CardinalityLimiter.OVERFLOW_VALUE).timer().count());
+    }
+
+    @Test
+    public void testSelfInstrumentation() {
+        String metricName = "testSelfInstrumentation";
+
+        // prepare
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withTagLabel("tenant", null)
+                .withSelfTime()
+                .withSelfInstrumentation()
+                .build();
+        SpanData tenantSpanData = defaultMockSpanData();
+        Map<String, Object> tags = new HashMap<>(tenantSpanData.getTags());
+        tags.put("tenant", "acme");
+        when(tenantSpanData.getTags()).thenReturn(tags);
+
+        // test
+        reporter.reportSpan(tenantSpanData);
+        reporter.reportSpan(tenantSpanData);
+        reporter.reportSelfTime(tenantSpanData, 50_000L);
+        reporter.reportSpan(defaultMockSpanData());
+
+        // verify
+        assertEquals(2, registry.find(metricName + ".reporter.spans").functionCounter().count(), 0);
+        assertEquals(1, registry.find(metricName + ".reporter.suppressed").tags("label", "tenant")
+                .functionCounter().count(), 0);
+        assertEquals(3, registry.find(metricName + ".reporter.latency").timer().count());
+        assertEquals(2, registry.find(metricName + ".reporter.series").gauge().value(), 0);
+        assertEquals(2, registry.find(metricName + ".reporter.series.created").functionCounter().count(), 0);
+        assertEquals(2, reporter.getStatistics().getReportedCount());
+    }
+
+    @Test
+    public void testSelfInstrumentationRecordsLatencyOfFailedBatch() {
+        String metricName = "testSelfInstrumentationRecordsLatencyOfFailedBatch";
+
+        // prepare
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .withSelfInstrumentation()
+                .build();
+        SpanData spanData = defaultMockSpanData();
+        when(spanData.getTags()).thenThrow(new IllegalStateException("Failed to get tags"));
+        SpanBatch batch = new SpanBatch(1);
+        batch.add(spanData);
+
+        // test
+        try {
+            reporter.reportSpans(batch);
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // verify
+        assertEquals(1, registry.find(metricName + ".reporter.latency").timer().count());
+    }
+
+    @Test
+    public void testSelfInstrumentationNotEnabled() {
+        String metricName = "testSelfInstrumentationNotEnabled";
+
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withName(metricName)
+                .build();
+        reporter.reportSpan(defaultMockSpanData());
+
+        assertNull(reporter.getStatistics());
+        assertNull(registry.find(metricName + ".reporter.spans").functionCounter());
+        assertNull(registry.find(metricName + ".reporter.latency").timer());
+    }
+
     private List<Tag> defaultTags() {
         List<Tag> tags = new ArrayList<>();
         tags.add(new ImmutableTag("error", "false"));
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.prometheus.spring.autoconfigure;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class caches the UTF-8 encoding of strings written in the text exposition format,
+ * optionally escaped as label values, so the label names and values shared by many series
+ * and scrapes are only encoded once.
+ * <p>
+ * Lookups do not take a lock. Each entry records when it was last used, in terms of the number
+ * of strings added to the cache, and when the cache is full the least recently used entries are
+ * evicted under a lock, so values that are no longer used are discarded while those written by
+ * every scrape are retained.
+ *
+ */
+final class ByteStringCache {
+
+    private final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int maxSize;
+    private final int evictionBatch;
+    private final boolean escape;
+    private volatile long generation;
+
+    ByteStringCache(int maxSize, boolean escape) {
+        this.maxSize = maxSize;
+        // Evicting several entries at a time amortizes the scan of the cache
+        this.evictionBatch = Math.max(1, maxSize / 8);
+        this.escape = escape;
+    }
+
+    byte[] get(String value) {
+        Entry entry = cache.get(value);
+        if (entry != null) {
+            long current = generation;
+            if (entry.lastUsed != current) {
+                entry.lastUsed = current;
+            }
+            return entry.bytes;
+        }
+        byte[] bytes = (escape ? escapeLabelValue(value) : value).getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            if (cache.size() >= maxSize) {
+                evict();
+            }
+            long current = generation;
+            cache.put(value, new Entry(bytes, current));
+            generation = current + 1;
+        } finally {
+            lock.unlock();
+        }
+        return bytes;
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    /**
+     * This method evicts the least recently used entries, so that there is room for at least
+     * one new entry. It must be called while holding the lock.
+     */
+    private void evict() {
+        // Entries are only added while holding the lock, so the size does not change
+        int size = cache.size();
+        int count = Math.min(size, size - maxSize + evictionBatch);
+        long[] stamps = new long[size];
+        int i = 0;
+        for (Entry entry : cache.values()) {
+            stamps[i++] = entry.lastUsed;
+        }
+        Arrays.sort(stamps);
+        long cutoff = stamps[count - 1];
+
+        for (int pass = 0; pass < 2 && count > 0; pass++) {
+            Iterator<Entry> iter = cache.values().iterator();
+            while (count > 0 && iter.hasNext()) {
+                Entry entry = iter.next();
+                // Entries used since the scan are only evicted if too few others remain
+                if (pass == 1 || entry.lastUsed <= cutoff) {
+                    iter.remove();
+                    count--;
+                }
+            }
+        }
+    }
+
+    static String escapeLabelValue(String value) {
+        StringBuilder builder = null;
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            String replacement;
+            switch (ch) {
+                case '\\':
+                    replacement = "\\\\";
+                    break;
+                case '\"':
+                    replacement = "\\\"";
+                    break;
+                case '\n':
+                    replacement = "\\n";
+                    break;
+                default:
+                    if (builder != null) {
+                        builder.append(ch);
+                    }
+                    continue;
+            }
+            if (builder == null) {
+                builder = new StringBuilder(value.length() + 8).append(value, 0, i);
+            }
+            builder.append(replacement);
+        }
+        return builder == null ? value : builder.toString();
+    }
+
+    private static final class Entry {
+        private final byte[] bytes;
+        private volatile long lastUsed;
+
+        Entry(byte[] bytes, long lastUsed) {
+            this.bytes = bytes;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
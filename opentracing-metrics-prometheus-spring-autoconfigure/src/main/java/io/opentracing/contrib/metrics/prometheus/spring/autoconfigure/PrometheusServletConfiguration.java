@@ -14,7 +14,7 @@
 package io.opentracing.contrib.metrics.prometheus.spring.autoconfigure;
 
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.MetricsServlet;
+import javax.servlet.http.HttpServlet;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
@@ -24,7 +24,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 @Configuration
-@ConditionalOnClass(value = {MetricsServlet.class})
+@ConditionalOnClass(value = {HttpServlet.class})
 public class PrometheusServletConfiguration {
     @Autowired
     private CollectorRegistry collectorRegistry;
@@ -35,7 +35,7 @@ public class PrometheusServletConfiguration {
     @Bean
     @ConditionalOnProperty(name="OPENTRACING_METRICS_EXPORTER_HTTP_PATH")
     ServletRegistrationBean registerPrometheusExporterServlet() {
-        return new ServletRegistrationBean(new MetricsServlet(collectorRegistry), metricsPath);
+        return new ServletRegistrationBean(new StreamingMetricsServlet(collectorRegistry), metricsPath);
     }
 
 }
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.prometheus.spring.autoconfigure;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import io.prometheus.client.CollectorRegistry;
+
+/**
+ * This servlet exposes the metrics of a {@link CollectorRegistry} in the Prometheus text
+ * exposition format, as an alternative to simpleclient's {@code MetricsServlet}.
+ * <p>
+ * Rather than building the complete exposition in memory, the samples are encoded into a
+ * reusable buffer and streamed to the response. A bounded number of encoders, with their
+ * buffers, are retained between scrapes. The encoded label names and values are cached
+ * across series and scrapes, and the response is compressed with gzip when the scraper
+ * accepts it. As with the {@code MetricsServlet}, the metric families can be selected
+ * using the {@code name[]} request parameter.
+ *
+ */
+public class StreamingMetricsServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    static final String CONTENT_TYPE_004 = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+    private static final int MAX_CACHED_NAMES = 4096;
+    private static final int MAX_CACHED_LABEL_VALUES = 65536;
+    private static final int MAX_POOLED_ENCODERS = 4;
+
+    private final transient CollectorRegistry registry;
+    private final transient ByteStringCache names = new ByteStringCache(MAX_CACHED_NAMES, false);
+    private final transient ByteStringCache labelValues = new ByteStringCache(MAX_CACHED_LABEL_VALUES, true);
+    private final transient BlockingQueue<TextFormatEncoder> encoders =
+            new ArrayBlockingQueue<TextFormatEncoder>(MAX_POOLED_ENCODERS);
+
+    public StreamingMetricsServlet() {
+        this(CollectorRegistry.defaultRegistry);
+    }
+
+    public StreamingMetricsServlet(CollectorRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(CONTENT_TYPE_004);
+
+        OutputStream out = resp.getOutputStream();
+        GZIPOutputStream gzip = null;
+        if (acceptsGzip(req)) {
+            resp.setHeader("Content-Encoding", "gzip");
+            gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+            out = gzip;
+        }
+
+        TextFormatEncoder encoder = encoders.poll();
+        if (encoder == null) {
+            encoder = new TextFormatEncoder(BUFFER_SIZE, names, labelValues);
+        }
+        try {
+            encoder.write(out, registry.filteredMetricFamilySamples(parse(req)));
+        } finally {
+            // Discarded if the pool is full, after a burst of concurrent scrapes
+            encoders.offer(encoder);
+        }
+        if (gzip != null) {
+            gzip.finish();
+        }
+        out.flush();
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        doGet(req, resp);
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest req) {
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                // Not accepted if the quality is zero, e.g. "gzip;q=0"
+                return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> parse(HttpServletRequest req) {
+        String[] includedParam = req.getParameterValues("name[]");
+        if (includedParam == null) {
+            return Collections.emptySet();
+        }
+        return new HashSet<String>(Arrays.asList(includedParam));
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.prometheus.spring.autoconfigure;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.List;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+/**
+ * This class writes metric family samples in the Prometheus text exposition format (version
+ * 0.0.4), producing the same output as simpleclient's {@code TextFormat.write004}. The samples
+ * are encoded directly into a reusable buffer, which is written to the output stream each
+ * time it fills, rather than building the complete exposition in memory. The encoded label
+ * names and values are obtained from shared caches.
+ * <p>
+ * An encoder must only be used by one thread at a time.
+ *
+ */
+final class TextFormatEncoder {
+
+    private static final byte[] HELP = "# HELP ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TYPE = "# TYPE ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LABEL_VALUE_START = "=\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LABEL_VALUE_END = "\",".getBytes(StandardCharsets.US_ASCII);
+
+    // Double.toString() uses the plain decimal notation for magnitudes below 10^7
+    private static final double MAX_PLAIN_INTEGRAL = 1e7;
+
+    private final byte[] buffer;
+    private final ByteStringCache names;
+    private final ByteStringCache labelValues;
+    private int position;
+    private OutputStream out;
+
+    TextFormatEncoder(int bufferSize, ByteStringCache names, ByteStringCache labelValues) {
+        this.buffer = new byte[bufferSize];
+        this.names = names;
+        this.labelValues = labelValues;
+    }
+
+    /**
+     * This method writes the supplied metric families to the output stream, flushing the
+     * encoded bytes to the stream, but not flushing the stream itself.
+     *
+     * @param out The output stream
+     * @param families The metric families
+     * @throws IOException Failed to write to the output stream
+     */
+    void write(OutputStream out, Enumeration<MetricFamilySamples> families) throws IOException {
+        this.out = out;
+        try {
+            while (families.hasMoreElements()) {
+                writeFamily(families.nextElement());
+            }
+            flushBuffer();
+        } finally {
+            this.out = null;
+            this.position = 0;
+        }
+    }
+
+    private void writeFamily(MetricFamilySamples family) throws IOException {
+        write(HELP);
+        write(names.get(family.name));
+        write(' ');
+        writeHelp(family.help);
+        write('\n');
+
+        write(TYPE);
+        write(names.get(family.name));
+        write(' ');
+        writeAscii(typeString(family.type));
+        write('\n');
+
+        for (MetricFamilySamples.Sample sample : family.samples) {
+            write(names.get(sample.name));
+            List<String> labelNames = sample.labelNames;
+            if (!labelNames.isEmpty()) {
+                List<String> values = sample.labelValues;
+                write('{');
+                for (int i = 0; i < labelNames.size(); i++) {
+                    write(names.get(labelNames.get(i)));
+                    write(LABEL_VALUE_START);
+                    write(labelValues.get(values.get(i)));
+                    write(LABEL_VALUE_END);
+                }
+                write('}');
+            }
+            write(' ');
+            writeValue(sample.value);
+            write('\n');
+        }
+    }
+
+    private void writeHelp(String help) throws IOException {
+        StringBuilder builder = new StringBuilder(help.length());
+        for (int i = 0; i < help.length(); i++) {
+            char ch = help.charAt(i);
+            if (ch == '\\') {
+                builder.append("\\\\");
+            } else if (ch == '\n') {
+                builder.append("\\n");
+            } else {
+                builder.append(ch);
+            }
+        }
+        write(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * This method writes the value as formatted by {@link Collector#doubleToGoString(double)},
+     * without allocation for the common case of integral values, such as counts.
+     *
+     * @param value The value
+     * @throws IOException Failed to write to the output stream
+     */
+    void writeValue(double value) throws IOException {
+        long integral = (long) value;
+        if (integral == value && Math.abs(value) < MAX_PLAIN_INTEGRAL
+                && Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(-0.0)) {
+            writeLong(integral);
+            write('.');
+            write('0');
+        } else {
+            writeAscii(Collector.doubleToGoString(value));
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        ensureCapacity(20);
+        int digits = 1;
+        for (long remaining = value / 10; remaining != 0; remaining /= 10) {
+            digits++;
+        }
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    private void writeAscii(String value) throws IOException {
+        ensureCapacity(value.length());
+        if (value.length() > buffer.length) {
+            write(value.getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (bytes.length > buffer.length - position) {
+            flushBuffer();
+            if (bytes.length > buffer.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void write(char ch) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = (byte) ch;
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (length > buffer.length - position) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    private static String typeString(Collector.Type type) {
+        switch (type) {
+            case GAUGE:
+                return "gauge";
+            case COUNTER:
+                return "counter";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "untyped";
+        }
+    }
+}
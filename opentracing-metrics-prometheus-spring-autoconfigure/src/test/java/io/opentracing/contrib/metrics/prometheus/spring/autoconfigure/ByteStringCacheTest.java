@@ -0,0 +1,38 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.prometheus.spring.autoconfigure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ByteStringCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        ByteStringCache cache = new ByteStringCache(3, false);
+        byte[] retained = cache.get("retained");
+        byte[] evicted = cache.get("evicted");
+        for (int i = 0; i < 100; i++) {
+            // A value written by every scrape stays cached while others are evicted
+            assertSame(retained, cache.get("retained"));
+            cache.get("value" + i);
+        }
+
+        assertEquals(3, cache.size());
+        assertNotSame(evicted, cache.get("evicted"));
+    }
+}
@@ -0,0 +1,231 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.prometheus.spring.autoconfigure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+public class StreamingMetricsServletTest {
+
+    private CollectorRegistry registry;
+    private StreamingMetricsServlet servlet;
+
+    @Before
+    public void init() {
+        registry = new CollectorRegistry();
+        servlet = new StreamingMetricsServlet(registry);
+    }
+
+    @Test
+    public void testCounter() throws IOException {
+        Counter counter = Counter.build().name("requests").help("The requests\\with backslash and\nnewline")
+                .labelNames("path", "method").register(registry);
+        counter.labels("/orders", "GET").inc(12345);
+
+        MockHttpServletResponse response = scrape(new MockHttpServletRequest());
+
+        assertEquals(200, response.getStatus());
+        assertEquals(StreamingMetricsServlet.CONTENT_TYPE_004, response.getContentType());
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals("# HELP requests The requests\\\\with backslash and\\nnewline\n"
+                + "# TYPE requests counter\n"
+                + "requests{path=\"/orders\",method=\"GET\",} 12345.0\n", content(response));
+    }
+
+    @Test
+    public void testEscapedLabelValues() throws IOException {
+        Counter counter = Counter.build().name("requests").help("The requests")
+                .labelNames("path").register(registry);
+        counter.labels("/quoted\"value\\\n").inc();
+        counter.labels("/unicode/é中").inc();
+
+        assertLines(content(scrape(new MockHttpServletRequest())),
+                "# HELP requests The requests",
+                "# TYPE requests counter",
+                "requests{path=\"/quoted\\\"value\\\\\\n\",} 1.0",
+                "requests{path=\"/unicode/é中\",} 1.0");
+    }
+
+    @Test
+    public void testValues() throws IOException {
+        Gauge gauge = Gauge.build().name("values").help("Values").labelNames("kind").register(registry);
+        gauge.labels("zero").set(0);
+        gauge.labels("integral").set(9999999);
+        gauge.labels("large").set(12345678);
+        gauge.labels("negative").set(-42);
+        gauge.labels("fraction").set(0.5);
+        gauge.labels("small").set(0.000123);
+        gauge.labels("nan").set(Double.NaN);
+        gauge.labels("inf").set(Double.POSITIVE_INFINITY);
+        gauge.labels("negativeInf").set(Double.NEGATIVE_INFINITY);
+
+        assertLines(content(scrape(new MockHttpServletRequest())),
+                "# HELP values Values",
+                "# TYPE values gauge",
+                "values{kind=\"zero\",} 0.0",
+                "values{kind=\"integral\",} 9999999.0",
+                "values{kind=\"large\",} 1.2345678E7",
+                "values{kind=\"negative\",} -42.0",
+                "values{kind=\"fraction\",} 0.5",
+                "values{kind=\"small\",} 1.23E-4",
+                "values{kind=\"nan\",} NaN",
+                "values{kind=\"inf\",} +Inf",
+                "values{kind=\"negativeInf\",} -Inf");
+    }
+
+    @Test
+    public void testHistogram() throws IOException {
+        Histogram histogram = Histogram.build().name("span").help("The span metrics")
+                .labelNames("operation").buckets(0.1, 1).register(registry);
+        histogram.labels("op").observe(0.5);
+        Gauge.build().name("unlabelled").help("No labels").register(registry).set(3);
+
+        assertLines(content(scrape(new MockHttpServletRequest())),
+                "# HELP span The span metrics",
+                "# TYPE span histogram",
+                "span_bucket{operation=\"op\",le=\"0.1\",} 0.0",
+                "span_bucket{operation=\"op\",le=\"1.0\",} 1.0",
+                "span_bucket{operation=\"op\",le=\"+Inf\",} 1.0",
+                "span_count{operation=\"op\",} 1.0",
+                "span_sum{operation=\"op\",} 0.5",
+                "# HELP unlabelled No labels",
+                "# TYPE unlabelled gauge",
+                "unlabelled 3.0");
+    }
+
+    @Test
+    public void testGzip() throws IOException {
+        populate(1000);
+        String expected = content(scrape(new MockHttpServletRequest()));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("Accept-Encoding", "deflate, gzip");
+        MockHttpServletResponse response = scrape(request);
+
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertTrue(response.getContentAsByteArray().length < expected.length() / 4);
+        assertEquals(expected, gunzip(response.getContentAsByteArray()));
+    }
+
+    @Test
+    public void testGzipNotAccepted() throws IOException {
+        Gauge.build().name("unlabelled").help("No labels").register(registry).set(3);
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addHeader("Accept-Encoding", "gzip;q=0, identity");
+        MockHttpServletResponse response = scrape(request);
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertTrue(content(response).endsWith("unlabelled 3.0\n"));
+    }
+
+    @Test
+    public void testSelectedNames() throws IOException {
+        Gauge.build().name("first").help("First").register(registry).set(1);
+        Gauge.build().name("second").help("Second").register(registry).set(2);
+        Gauge.build().name("third").help("Third").register(registry).set(3);
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.addParameter("name[]", "first", "third");
+
+        assertLines(content(scrape(request)),
+                "# HELP first First",
+                "# TYPE first gauge",
+                "first 1.0",
+                "# HELP third Third",
+                "# TYPE third gauge",
+                "third 3.0");
+    }
+
+    @Test
+    public void testLargeExposition() throws IOException {
+        // Much larger than the encoder's buffer
+        populate(10000);
+
+        for (int scrape = 0; scrape < 2; scrape++) {
+            String content = content(scrape(new MockHttpServletRequest()));
+            List<String> lines = Arrays.asList(content.split("\n"));
+            assertEquals(10002, lines.size());
+            for (int i = 0; i < 10000; i++) {
+                assertTrue(lines.contains("many{id=\"series-" + i + "\",} " + i + ".0"));
+            }
+        }
+    }
+
+    private void populate(int count) {
+        Counter counter = Counter.build().name("many").help("Many series").labelNames("id").register(registry);
+        for (int i = 0; i < count; i++) {
+            counter.labels("series-" + i).inc(i);
+        }
+    }
+
+    private MockHttpServletResponse scrape(MockHttpServletRequest request) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        servlet.doGet(request, response);
+        return response;
+    }
+
+    private static String content(MockHttpServletResponse response) {
+        return new String(response.getContentAsByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * This method compares the lines of the exposition, ignoring the order of the metric
+     * families and of the samples within a family, as the registry doesn't define an order.
+     */
+    private static void assertLines(String content, String... expected) {
+        List<String> lines = Arrays.asList(content.split("\n"));
+        assertTrue(content.endsWith("\n"));
+        assertEquals(content, expected.length, lines.size());
+        for (String line : expected) {
+            assertTrue("Missing: " + line + " in " + content, lines.contains(line));
+        }
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).startsWith("# HELP ")) {
+                // The TYPE line follows the HELP line of the same family
+                String name = lines.get(i).split(" ")[2];
+                assertTrue(lines.get(i + 1).startsWith("# TYPE " + name + " "));
+            }
+        }
+    }
+
+    private static String gunzip(byte[] bytes) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
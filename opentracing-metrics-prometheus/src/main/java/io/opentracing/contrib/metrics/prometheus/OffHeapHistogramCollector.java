@@ -0,0 +1,94 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.prometheus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.opentracing.contrib.metrics.OffHeapHistogramStore;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+
+/**
+ * This class exports the histograms held in an {@link OffHeapHistogramStore}, where the span
+ * durations are recorded in microseconds, as a conventional histogram in seconds. The number
+ * of spans that could not be recorded, as the store was full, is exported as a counter with
+ * the suffix "_rejected".
+ *
+ */
+final class OffHeapHistogramCollector extends Collector {
+
+    private final String name;
+    private final String help;
+    private final List<String> labelNames;
+    private final List<String> bucketLabelNames;
+    private final String[] bucketLabels;
+    private final OffHeapHistogramStore store;
+
+    OffHeapHistogramCollector(String name, String help, String[] labelNames, double[] buckets,
+            OffHeapHistogramStore store) {
+        this.name = name;
+        this.help = help;
+        this.labelNames = Arrays.asList(labelNames);
+        this.bucketLabelNames = new ArrayList<String>(this.labelNames);
+        this.bucketLabelNames.add("le");
+        this.bucketLabels = new String[buckets.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            bucketLabels[i] = doubleToGoString(buckets[i]);
+        }
+        bucketLabels[buckets.length] = "+Inf";
+        this.store = store;
+    }
+
+    /**
+     * This method converts bucket bounds in seconds to the microseconds used by the store.
+     *
+     * @param buckets The bucket bounds in seconds
+     * @return The bucket bounds in microseconds
+     */
+    static long[] toMicros(double[] buckets) {
+        long[] bounds = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            bounds[i] = Math.round(buckets[i] * 1000000);
+        }
+        return bounds;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        final List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+        store.forEach(new OffHeapHistogramStore.Visitor() {
+            @Override
+            public void visit(String[] labelValues, long[] bucketCounts, long count, long sum) {
+                List<String> values = Arrays.asList(labelValues);
+                long cumulative = 0;
+                for (int i = 0; i < bucketCounts.length; i++) {
+                    cumulative += bucketCounts[i];
+                    List<String> bucketValues = new ArrayList<String>(values);
+                    bucketValues.add(bucketLabels[i]);
+                    samples.add(new MetricFamilySamples.Sample(name + "_bucket", bucketLabelNames, bucketValues,
+                            cumulative));
+                }
+                samples.add(new MetricFamilySamples.Sample(name + "_count", labelNames, values, count));
+                samples.add(new MetricFamilySamples.Sample(name + "_sum", labelNames, values, sum / 1000000.0));
+            }
+        });
+        List<MetricFamilySamples> ret = new ArrayList<MetricFamilySamples>();
+        ret.add(new MetricFamilySamples(name, Type.HISTOGRAM, help, samples));
+        ret.add(new CounterMetricFamily(name + "_rejected",
+                "The number of spans not recorded as the off-heap store was full", store.getRejectedCount()));
+        return ret;
+    }
+}
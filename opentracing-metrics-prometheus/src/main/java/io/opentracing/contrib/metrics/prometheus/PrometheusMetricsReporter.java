@@ -14,49 +14,411 @@
 package io.opentracing.contrib.metrics.prometheus;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import io.opentracing.contrib.api.SpanData;
 import io.opentracing.contrib.metrics.AbstractMetricsReporter;
+import io.opentracing.contrib.metrics.BatchMetricsReporter;
+import io.opentracing.contrib.metrics.CardinalityLimiter;
+import io.opentracing.contrib.metrics.InFlightMetricsReporter;
+import io.opentracing.contrib.metrics.LabelKey;
+import io.opentracing.contrib.metrics.LogEventCounters;
+import io.opentracing.contrib.metrics.LogEventMetricsReporter;
 import io.opentracing.contrib.metrics.MetricLabel;
 import io.opentracing.contrib.metrics.MetricsReporter;
+import io.opentracing.contrib.metrics.OffHeapHistogramStore;
+import io.opentracing.contrib.metrics.ReporterStatistics;
+import io.opentracing.contrib.metrics.SelfTimeMetricsReporter;
+import io.opentracing.contrib.metrics.SpanBatch;
+import io.opentracing.contrib.metrics.SpanFilter;
+import io.opentracing.contrib.metrics.WeightedMetricsReporter;
 import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
 import io.opentracing.contrib.metrics.label.ConstMetricLabel;
 import io.opentracing.contrib.metrics.label.TagMetricLabel;
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
 import io.prometheus.client.Histogram;
 
 /**
  * This class provides a Prometheus based implementation of the {@link MetricsReporter}.
+ * <p>
+ * The span durations are reported in a histogram, using the default simpleclient buckets
+ * unless explicit buckets are configured, or in a sparse exponential histogram, where only
+ * the buckets that have been observed are held in memory and exported. Alternatively, the
+ * histograms can be held outside the heap, in an {@link OffHeapHistogramStore}, so the heap
+ * used does not grow with the number of combinations of label values.
+ * <p>
+ * If enabled, the number of spans in flight is reported by a gauge named after the reporter,
+ * with the suffix "_in_flight". If enabled, the self time of spans, i.e. their duration
+ * excluding their child spans, is reported in a histogram named after the reporter, with the
+ * suffix "_self". If enabled, the events logged on spans are counted by a counter named after
+ * the reporter, with the suffix "_log_events", and an additional label identifying the event.
+ * <p>
+ * If enabled, the reporter instruments itself, with metrics named after the reporter with the
+ * suffix "_reporter": the spans reported ("_reporter_spans"), the spans not reported because a
+ * label had no value, by the name of the label ("_reporter_suppressed"), the time taken to report
+ * spans ("_reporter_latency"), and the number of series ("_reporter_series") and series created
+ * ("_reporter_series_created").
  * @deprecated use the Micrometer Metrics reporter, from the Micrometer module
  */
 @Deprecated
-public class PrometheusMetricsReporter extends AbstractMetricsReporter implements MetricsReporter {
+public class PrometheusMetricsReporter extends AbstractMetricsReporter
+        implements WeightedMetricsReporter, BatchMetricsReporter, InFlightMetricsReporter,
+        SelfTimeMetricsReporter, LogEventMetricsReporter {
+
+    // The default buckets of the simpleclient histogram
+    private static final double[] DEFAULT_BUCKETS = {
+        .005, .01, .025, .05, .075, .1, .25, .5, .75, 1, 2.5, 5, 7.5, 10
+    };
+
+    // The buckets of the reporter latency histogram, from 1 microsecond to 0.26 seconds
+    private static final double[] LATENCY_BUCKETS = {
+        .000001, .000004, .000016, .000064, .000256, .001024, .004096, .016384, .065536, .262144
+    };
 
     private final Histogram histogram;
+    private final SparseHistogram sparseHistogram;
+    private final OffHeapHistogramStore offHeapStore;
+    private final CardinalityLimiter limiter;
+    private final ConcurrentMap<LabelKey, Histogram.Child> children = new ConcurrentHashMap<LabelKey, Histogram.Child>();
+    private final ConcurrentMap<LabelKey, LongAdder> inFlight;
+    private final Histogram selfTimeHistogram;
+    private final ConcurrentMap<LabelKey, Histogram.Child> selfTimeChildren = new ConcurrentHashMap<LabelKey, Histogram.Child>();
+    private final LogEventCounters logEvents;
+    private final Histogram latencyHistogram;
+
+    private final SeriesRecorder<Histogram.Child> childRecorder = new SeriesRecorder<Histogram.Child>() {
+        @Override
+        public Histogram.Child getSeries(LabelKey key) {
+            return getChild(histogram, children, limiter == null ? key : limiter.admit(key), getStatistics());
+        }
+
+        @Override
+        public void record(Histogram.Child child, SpanBatch batch, int index) {
+            // Convert microseconds to seconds
+            child.observe(batch.getDuration(index) / (double)1000000);
+        }
+    };
 
     private PrometheusMetricsReporter(String name,
-            CollectorRegistry registry, List<MetricLabel> labels) {
+            CollectorRegistry registry, List<MetricLabel> labels,
+            int maxLabelCombinations, Map<String, Integer> maxLabelValues,
+            double[] buckets, Integer sparseScale, Integer offHeapMaxSeries, boolean inFlightGauge,
+            boolean selfTime, String logEventField, int maxLogEvents, boolean selfInstrumentation) {
         super(labels);
 
+        // The statistics are created first, so the series created are counted
+        ReporterStatistics statistics = selfInstrumentation ? new ReporterStatistics(null) : null;
+        setStatistics(statistics);
+
         String[] labelNames = getLabelNames();
-        this.histogram = Histogram.build().name(name).help("The span metrics")
-                .labelNames(labelNames).register(registry);
+        if (offHeapMaxSeries != null) {
+            this.histogram = null;
+            this.sparseHistogram = null;
+            double[] bounds = buckets == null ? DEFAULT_BUCKETS : buckets;
+            this.offHeapStore = new OffHeapHistogramStore(labelNames.length,
+                    OffHeapHistogramCollector.toMicros(bounds), offHeapMaxSeries);
+            new OffHeapHistogramCollector(name, "The span metrics", labelNames, bounds, offHeapStore)
+                    .register(registry);
+        } else if (sparseScale == null) {
+            Histogram.Builder builder = Histogram.build().name(name).help("The span metrics")
+                    .labelNames(labelNames);
+            if (buckets != null) {
+                builder.buckets(buckets);
+            }
+            this.histogram = builder.register(registry);
+            this.sparseHistogram = null;
+            this.offHeapStore = null;
+        } else {
+            this.histogram = null;
+            this.sparseHistogram = new SparseHistogram(name, "The span metrics", labelNames, sparseScale,
+                    statistics).register(registry);
+            this.offHeapStore = null;
+        }
+
+        if (maxLabelCombinations == Integer.MAX_VALUE && maxLabelValues.isEmpty()) {
+            this.limiter = null;
+        } else {
+            this.limiter = new CardinalityLimiter(getMetricLabels(), maxLabelCombinations, maxLabelValues);
+            new OverflowCollector(name + "_overflow", limiter).register(registry);
+        }
+
+        if (inFlightGauge) {
+            this.inFlight = new ConcurrentHashMap<LabelKey, LongAdder>();
+            new InFlightCollector(name + "_in_flight", labelNames, inFlight).register(registry);
+        } else {
+            this.inFlight = null;
+        }
+
+        if (selfTime) {
+            this.selfTimeHistogram = Histogram.build().name(name + "_self").help("The span self time metrics")
+                    .labelNames(labelNames).buckets(buckets == null ? DEFAULT_BUCKETS : buckets)
+                    .register(registry);
+        } else {
+            this.selfTimeHistogram = null;
+        }
+
+        if (logEventField != null) {
+            this.logEvents = new LogEventCounters(logEventField, maxLogEvents, null);
+            new LogEventCollector(name + "_log_events", labelNames, convertLabel(logEventField), logEvents)
+                    .register(registry);
+        } else {
+            this.logEvents = null;
+        }
+
+        if (statistics != null) {
+            this.latencyHistogram = Histogram.build().name(name + "_reporter_latency")
+                    .help("The time taken to report spans").buckets(LATENCY_BUCKETS).register(registry);
+            new StatisticsCollector(name + "_reporter", statistics, this).register(registry);
+        } else {
+            this.latencyHistogram = null;
+        }
+    }
+
+    @Override
+    public boolean isInFlightReported() {
+        return inFlight != null;
+    }
+
+    @Override
+    public LongAdder spanStarted(SpanData spanData) {
+        if (inFlight == null) {
+            return null;
+        }
+        LabelKey key = getLabelKey(spanData, false);
+        if (key == null) {
+            return null;
+        }
+        if (limiter != null) {
+            key = limiter.admit(key);
+        }
+
+        LongAdder counter = inFlight.get(key);
+        if (counter == null) {
+            // first span for this combination of label values
+            counter = new LongAdder();
+            LongAdder existing = inFlight.putIfAbsent(key.copy(), counter);
+            if (existing != null) {
+                counter = existing;
+            }
+        }
+        counter.increment();
+        return counter;
+    }
+
+    @Override
+    public boolean isSelfTimeReported() {
+        return selfTimeHistogram != null;
+    }
+
+    @Override
+    public void reportSelfTime(SpanData spanData, long selfTime) {
+        if (selfTimeHistogram == null) {
+            return;
+        }
+        LabelKey key = getLabelKey(spanData, true);
+        if (key == null) {
+            return;
+        }
+        if (limiter != null) {
+            key = limiter.admit(key);
+        }
+
+        // Convert microseconds to seconds
+        getChild(selfTimeHistogram, selfTimeChildren, key, getStatistics()).observe(selfTime / (double)1000000);
+    }
+
+    @Override
+    public boolean isLogEventReported() {
+        return logEvents != null;
+    }
+
+    @Override
+    public void reportLogEvent(SpanData spanData, String event) {
+        if (logEvents != null) {
+            countLogEvent(spanData, logEvents.eventName(event));
+        }
+    }
+
+    @Override
+    public void reportLogEvent(SpanData spanData, Map<String, ?> fields) {
+        if (logEvents != null) {
+            countLogEvent(spanData, logEvents.eventName(fields));
+        }
+    }
+
+    private void countLogEvent(SpanData spanData, String event) {
+        if (event == null) {
+            return;
+        }
+        LabelKey key = getLabelKey(spanData, false);
+        if (key == null) {
+            return;
+        }
+        if (limiter != null) {
+            key = limiter.admit(key);
+        }
+        logEvents.increment(key, event);
     }
 
     @Override
     public void reportSpan(SpanData spanData) {
-        String[] labelValues = getLabelValues(spanData);
-        if (labelValues != null) {
-            // Convert microseconds to seconds
-            this.histogram.labels(labelValues).observe(spanData.getDuration() / (double)1000000);
+        reportSpan(spanData, 1);
+    }
+
+    /**
+     * This method identifies whether weights other than one are supported, which requires
+     * sparse buckets or the off-heap store, as a {@link Histogram} can only observe one span
+     * at a time.
+     *
+     * @return Whether weights are supported
+     */
+    @Override
+    public boolean isWeightSupported() {
+        return sparseHistogram != null || offHeapStore != null;
+    }
+
+    @Override
+    public void reportSpan(SpanData spanData, long weight) {
+        if (weight != 1 && sparseHistogram == null && offHeapStore == null) {
+            throw new IllegalArgumentException("Weighted spans require sparse buckets or off-heap storage: "
+                    + weight);
+        }
+        if (latencyHistogram == null) {
+            record(spanData, weight);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            record(spanData, weight);
+        } finally {
+            // Convert nanoseconds to seconds
+            latencyHistogram.observe((System.nanoTime() - start) / (double)1000000000);
+        }
+    }
+
+    private void record(SpanData spanData, long weight) {
+        LabelKey key = getLabelKey(spanData);
+        if (key == null) {
+            return;
+        }
+        if (limiter != null) {
+            key = limiter.admit(key);
+        }
+
+        if (offHeapStore != null) {
+            offHeapStore.record(key, Math.max(0, spanData.getDuration()), weight);
+            return;
+        }
+
+        // Convert microseconds to seconds
+        double duration = spanData.getDuration() / (double)1000000;
+        if (sparseHistogram != null) {
+            sparseHistogram.child(key).observe(duration, weight);
+        } else {
+            getChild(histogram, children, key, getStatistics()).observe(duration);
+        }
+    }
+
+    @Override
+    public void reportSpans(SpanBatch batch) {
+        if (latencyHistogram == null) {
+            record(batch);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            record(batch);
+        } finally {
+            // Convert nanoseconds to seconds
+            latencyHistogram.observe((System.nanoTime() - start) / (double)1000000000);
+        }
+    }
+
+    private void record(SpanBatch batch) {
+        if (sparseHistogram != null || offHeapStore != null) {
+            // The sparse histogram and off-heap store resolve their own series
+            for (int i = 0; i < batch.size(); i++) {
+                record(batch.getSpanData(i), 1);
+            }
+        } else {
+            reportSpans(batch, childRecorder);
+        }
+    }
+
+    /**
+     * This method returns the histogram child associated with the supplied label values. The
+     * children are cached by the reporter, to avoid the allocation and conversion of the label
+     * values performed by {@link Histogram#labels(String...)} for each span.
+     *
+     * @param histogram The histogram
+     * @param children The cached children of the histogram
+     * @param key The label values
+     * @param statistics The optional statistics counting the children created
+     * @return The histogram child
+     */
+    private static Histogram.Child getChild(Histogram histogram, ConcurrentMap<LabelKey, Histogram.Child> children,
+            LabelKey key, ReporterStatistics statistics) {
+        Histogram.Child child = children.get(key);
+        if (child == null) {
+            // first span for this combination of label values, so create (or find) the child
+            child = histogram.labels(key.stringValues());
+            Histogram.Child existing = children.putIfAbsent(key.copy(), child);
+            if (existing != null) {
+                child = existing;
+            } else if (statistics != null) {
+                statistics.seriesCreated();
+            }
         }
+        return child;
+    }
+
+    /**
+     * This method returns the number of series, i.e. combinations of label values, of the
+     * span and self time histograms.
+     *
+     * @return The number of series
+     */
+    int getSeriesCount() {
+        int count = selfTimeChildren.size();
+        if (offHeapStore != null) {
+            count += offHeapStore.size();
+        } else if (sparseHistogram != null) {
+            count += sparseHistogram.size();
+        } else {
+            count += children.size();
+        }
+        return count;
+    }
+
+    Histogram getLatencyHistogram() {
+        return latencyHistogram;
     }
 
     Histogram getHistogram() {
         return histogram;
     }
 
+    Histogram getSelfTimeHistogram() {
+        return selfTimeHistogram;
+    }
+
+    SparseHistogram getSparseHistogram() {
+        return sparseHistogram;
+    }
+
+    OffHeapHistogramStore getOffHeapStore() {
+        return offHeapStore;
+    }
+
     /**
      * This method transforms the supplied label name to ensure it conforms to the required
      * Prometheus label format as defined by the regex "[a-zA-Z_:][a-zA-Z0-9_:]*".
@@ -83,6 +445,130 @@ public class PrometheusMetricsReporter extends AbstractMetricsReporter implement
         return labelNames;
     }
 
+    /**
+     * This collector reports the number of spans in flight for each combination of label values.
+     *
+     */
+    private static class InFlightCollector extends Collector {
+        private final String name;
+        private final List<String> labelNames;
+        private final Map<LabelKey, LongAdder> inFlight;
+
+        InFlightCollector(String name, String[] labelNames, Map<LabelKey, LongAdder> inFlight) {
+            this.name = name;
+            this.labelNames = Arrays.asList(labelNames);
+            this.inFlight = inFlight;
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            GaugeMetricFamily gauge = new GaugeMetricFamily(name, "The number of spans in flight", labelNames);
+            for (Map.Entry<LabelKey, LongAdder> entry : inFlight.entrySet()) {
+                gauge.addMetric(Arrays.asList(entry.getKey().stringValues()), entry.getValue().sum());
+            }
+            List<MetricFamilySamples> samples = new ArrayList<MetricFamilySamples>();
+            samples.add(gauge);
+            return samples;
+        }
+    }
+
+    /**
+     * This collector reports the number of events logged on spans for each combination of
+     * label values and event name.
+     *
+     */
+    private static class LogEventCollector extends Collector {
+        private final String name;
+        private final List<String> labelNames;
+        private final LogEventCounters logEvents;
+
+        LogEventCollector(String name, String[] labelNames, String eventLabelName, LogEventCounters logEvents) {
+            this.name = name;
+            this.labelNames = new ArrayList<String>(Arrays.asList(labelNames));
+            this.labelNames.add(eventLabelName);
+            this.logEvents = logEvents;
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            final CounterMetricFamily counter = new CounterMetricFamily(name, "The number of events logged on spans",
+                    labelNames);
+            logEvents.forEach(new LogEventCounters.Visitor() {
+                @Override
+                public void visit(LabelKey key, String event, long count) {
+                    List<String> labelValues = new ArrayList<String>(key.size() + 1);
+                    for (int i = 0; i < key.size(); i++) {
+                        labelValues.add(key.stringValue(i));
+                    }
+                    labelValues.add(event);
+                    counter.addMetric(labelValues, count);
+                }
+            });
+            List<MetricFamilySamples> samples = new ArrayList<MetricFamilySamples>();
+            samples.add(counter);
+            return samples;
+        }
+    }
+
+    /**
+     * This collector reports the statistics of the reporter.
+     *
+     */
+    private static class StatisticsCollector extends Collector {
+        private final String name;
+        private final ReporterStatistics statistics;
+        private final PrometheusMetricsReporter reporter;
+
+        StatisticsCollector(String name, ReporterStatistics statistics, PrometheusMetricsReporter reporter) {
+            this.name = name;
+            this.statistics = statistics;
+            this.reporter = reporter;
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            List<MetricFamilySamples> samples = new ArrayList<MetricFamilySamples>();
+            samples.add(new CounterMetricFamily(name + "_spans", "The number of spans reported",
+                    statistics.getReportedCount()));
+            final CounterMetricFamily suppressed = new CounterMetricFamily(name + "_suppressed",
+                    "The number of spans not reported as a label had no value", Arrays.asList("label"));
+            statistics.forEachSuppressed(new ReporterStatistics.Visitor() {
+                @Override
+                public void visit(String labelName, long count) {
+                    suppressed.addMetric(Arrays.asList(labelName), count);
+                }
+            });
+            samples.add(suppressed);
+            samples.add(new GaugeMetricFamily(name + "_series", "The number of series",
+                    reporter.getSeriesCount()));
+            samples.add(new CounterMetricFamily(name + "_series_created", "The number of series created",
+                    statistics.getSeriesCreatedCount()));
+            return samples;
+        }
+    }
+
+    /**
+     * This collector reports the number of spans folded into the overflow series.
+     *
+     */
+    private static class OverflowCollector extends Collector {
+        private final String name;
+        private final CardinalityLimiter limiter;
+
+        OverflowCollector(String name, CardinalityLimiter limiter) {
+            this.name = name;
+            this.limiter = limiter;
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            List<MetricFamilySamples> samples = new ArrayList<MetricFamilySamples>();
+            samples.add(new CounterMetricFamily(name, "The number of spans folded into the overflow series",
+                    limiter.getOverflowCount()));
+            return samples;
+        }
+    }
+
     public static Builder newMetricsReporter() {
         return new Builder();
     }
@@ -96,6 +582,17 @@ public class PrometheusMetricsReporter extends AbstractMetricsReporter implement
         private String name = "span";
         private CollectorRegistry collectorRegistry = CollectorRegistry.defaultRegistry;
         private List<MetricLabel> metricLabels = new ArrayList<MetricLabel>();
+        private int maxLabelCombinations = Integer.MAX_VALUE;
+        private Map<String, Integer> maxLabelValues = new HashMap<String, Integer>();
+        private double[] buckets;
+        private Integer sparseScale;
+        private Integer offHeapMaxSeries;
+        private boolean inFlightGauge;
+        private boolean selfTime;
+        private String logEventField;
+        private int maxLogEvents;
+        private SpanFilter spanFilter;
+        private boolean selfInstrumentation;
 
         public Builder withCollectorRegistry(CollectorRegistry collectorRegistry) {
             this.collectorRegistry = collectorRegistry;
@@ -127,8 +624,194 @@ public class PrometheusMetricsReporter extends AbstractMetricsReporter implement
             return this;
         }
 
+        /**
+         * This method limits the number of distinct combinations of label values reported.
+         * Spans with new label values beyond the limit are reported in a series with all label
+         * values set to {@link CardinalityLimiter#OVERFLOW_VALUE}.
+         *
+         * @param maxLabelCombinations The maximum number of distinct combinations of label values
+         * @return The builder
+         */
+        public Builder withCardinalityLimit(int maxLabelCombinations) {
+            this.maxLabelCombinations = maxLabelCombinations;
+            return this;
+        }
+
+        /**
+         * This method limits the number of distinct values of the named label. Spans with new
+         * values beyond the limit are reported with the label value {@link CardinalityLimiter#OVERFLOW_VALUE}.
+         *
+         * @param labelName The label name
+         * @param maxValues The maximum number of distinct values
+         * @return The builder
+         */
+        public Builder withLabelCardinalityLimit(String labelName, int maxValues) {
+            this.maxLabelValues.put(labelName, maxValues);
+            return this;
+        }
+
+        /**
+         * This method sets the upper bounds, in seconds, of the histogram buckets. A "+Inf"
+         * bucket is added automatically. The buckets also apply to the off-heap store.
+         *
+         * @param buckets The increasing upper bounds of the buckets
+         * @return The builder
+         */
+        public Builder withBuckets(double... buckets) {
+            this.buckets = buckets.clone();
+            this.sparseScale = null;
+            return this;
+        }
+
+        /**
+         * This method sets the histogram buckets to a number of buckets of equal width.
+         *
+         * @param start The upper bound of the first bucket, in seconds
+         * @param width The width of each bucket, in seconds
+         * @param count The number of buckets
+         * @return The builder
+         */
+        public Builder withLinearBuckets(double start, double width, int count) {
+            double[] ret = new double[count];
+            for (int i = 0; i < count; i++) {
+                ret[i] = start + i * width;
+            }
+            return withBuckets(ret);
+        }
+
+        /**
+         * This method sets the histogram buckets to a number of buckets, where the upper bound
+         * of each is a multiple of the previous.
+         *
+         * @param start The upper bound of the first bucket, in seconds
+         * @param factor The factor by which each bucket's upper bound exceeds the previous
+         * @param count The number of buckets
+         * @return The builder
+         */
+        public Builder withExponentialBuckets(double start, double factor, int count) {
+            double[] ret = new double[count];
+            for (int i = 0; i < count; i++) {
+                ret[i] = start * Math.pow(factor, i);
+            }
+            return withBuckets(ret);
+        }
+
+        /**
+         * This method selects a sparse exponential histogram, in the style of Prometheus native
+         * histograms. Each power of two is divided into {@code 2^scale} buckets, so a scale of 3
+         * results in the upper bound of each bucket being approximately 9% greater than the
+         * previous. Only the buckets that have been observed use memory and are exported.
+         *
+         * @param scale The scale, between 0 and 5
+         * @return The builder
+         */
+        public Builder withSparseExponentialBuckets(int scale) {
+            this.sparseScale = scale;
+            this.buckets = null;
+            this.offHeapMaxSeries = null;
+            return this;
+        }
+
+        /**
+         * This method selects a histogram held outside the heap, with fixed buckets (the
+         * default buckets, unless configured), so the heap used does not grow with the number
+         * of combinations of label values. The off-heap memory is allocated up front, for the
+         * supplied maximum number of combinations of label values. Spans with new label values
+         * beyond the maximum are not recorded, and counted by a counter named after the
+         * reporter, with the suffix "_rejected".
+         *
+         * @param maxSeries The maximum number of combinations of label values
+         * @return The builder
+         */
+        public Builder withOffHeapStore(int maxSeries) {
+            this.offHeapMaxSeries = maxSeries;
+            this.sparseScale = null;
+            return this;
+        }
+
+        /**
+         * This method enables a gauge, named after the reporter with the suffix "_in_flight",
+         * reporting the number of spans started but not yet finished for each combination of
+         * label values. The label values are derived when the span starts.
+         *
+         * @return The builder
+         */
+        public Builder withInFlightGauge() {
+            this.inFlightGauge = true;
+            return this;
+        }
+
+        /**
+         * This method enables a histogram, named after the reporter with the suffix "_self",
+         * reporting the self time of spans, i.e. their duration excluding the durations of their
+         * finished child spans. The histogram uses the configured buckets (or the default buckets
+         * if none are configured, or sparse buckets are selected). The self time is only reported
+         * when the observer is supplied with a scope manager, e.g. when the tracer is decorated
+         * using {@link io.opentracing.contrib.metrics.Metrics}.
+         *
+         * @return The builder
+         */
+        public Builder withSelfTime() {
+            this.selfTime = true;
+            return this;
+        }
+
+        /**
+         * This method enables a counter, named after the reporter with the suffix "_log_events",
+         * counting the events logged on spans by their name, i.e. the "event" log field.
+         *
+         * @return The builder
+         */
+        public Builder withLogEventCounter() {
+            return withLogEventCounter(LogEventCounters.DEFAULT_FIELD, LogEventCounters.DEFAULT_MAX_EVENTS);
+        }
+
+        /**
+         * This method enables a counter, named after the reporter with the suffix "_log_events",
+         * counting the events logged on spans by the value of the supplied log field, which is
+         * also used as the name of the label holding the value. Values beyond the supplied maximum
+         * number of distinct values are counted as {@link CardinalityLimiter#OVERFLOW_VALUE}.
+         *
+         * @param field The log field
+         * @param maxEvents The maximum number of distinct values of the log field
+         * @return The builder
+         */
+        public Builder withLogEventCounter(String field, int maxEvents) {
+            this.logEventField = field;
+            this.maxLogEvents = maxEvents;
+            return this;
+        }
+
+        /**
+         * This method sets the {@link SpanFilter} selecting the spans to be reported.
+         *
+         * @param spanFilter The span filter
+         * @return The builder
+         */
+        public Builder withSpanFilter(SpanFilter spanFilter) {
+            this.spanFilter = spanFilter;
+            return this;
+        }
+
+        /**
+         * This method enables the reporter to instrument itself, with metrics named after the
+         * reporter with the suffix "_reporter", reporting the spans reported and those not
+         * reported because a label had no value, the time taken to report spans, and the number
+         * of series. The metrics are registered with the same collector registry.
+         *
+         * @return The builder
+         */
+        public Builder withSelfInstrumentation() {
+            this.selfInstrumentation = true;
+            return this;
+        }
+
         public PrometheusMetricsReporter build() {
-            return new PrometheusMetricsReporter(name, collectorRegistry, metricLabels);
+            PrometheusMetricsReporter reporter = new PrometheusMetricsReporter(name, collectorRegistry,
+                    metricLabels, maxLabelCombinations, maxLabelValues, buckets, sparseScale, offHeapMaxSeries,
+                    inFlightGauge, selfTime, logEventField, maxLogEvents, selfInstrumentation);
+            reporter.setSpanFilter(spanFilter);
+            return reporter;
         }
     }
 }
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.prometheus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.opentracing.contrib.metrics.LabelKey;
+import io.opentracing.contrib.metrics.ReporterStatistics;
+import io.prometheus.client.Collector;
+
+/**
+ * This class provides a histogram with exponential buckets, in the style of Prometheus native
+ * histograms, where only the buckets that have been observed use memory and are exported.
+ * <p>
+ * The bucket boundaries are the powers of {@code 2^(2^-scale)}, so each power of two is divided
+ * into {@code 2^scale} buckets, covering values from 2^{@value #MIN_EXPONENT} (approximately one
+ * microsecond) to 2^{@value #MAX_EXPONENT} (approximately four and a half hours). Smaller values
+ * are counted in the lowest bucket, and larger values only in the "+Inf" bucket.
+ * <p>
+ * The buckets of each child are held in chunks, which are allocated when a value is first
+ * observed in one of their buckets. As the text exposition format does not support native
+ * histograms, each child is exported as a conventional histogram. The buckets exported are
+ * those in which a value has been observed by any child: once a bucket has been observed, it
+ * is exported by every child on each subsequent collection, even if the child has no values in
+ * it, so that the bucket series are continuous and can be aggregated across children.
+ *
+ */
+final class SparseHistogram extends Collector {
+
+    static final int MIN_EXPONENT = -20;
+    static final int MAX_EXPONENT = 14;
+    static final int MAX_SCALE = 5;
+
+    private static final int CHUNK_SHIFT = 4;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private final String name;
+    private final String help;
+    private final List<String> labelNames;
+    private final List<String> bucketLabelNames;
+    private final int scale;
+    private final double scaleFactor;
+    private final int minIndex;
+    private final int bucketCount;
+    private final ConcurrentMap<LabelKey, Child> children = new ConcurrentHashMap<LabelKey, Child>();
+    private final AtomicLongArray observedBuckets;
+    private final ReporterStatistics statistics;
+
+    /**
+     * The constructor for the histogram.
+     *
+     * @param name The metric name
+     * @param help The help text
+     * @param labelNames The label names
+     * @param scale The scale, between 0 and {@value #MAX_SCALE}
+     */
+    SparseHistogram(String name, String help, String[] labelNames, int scale) {
+        this(name, help, labelNames, scale, null);
+    }
+
+    /**
+     * The constructor for the histogram.
+     *
+     * @param name The metric name
+     * @param help The help text
+     * @param labelNames The label names
+     * @param scale The scale, between 0 and {@value #MAX_SCALE}
+     * @param statistics The optional statistics counting the children created
+     */
+    SparseHistogram(String name, String help, String[] labelNames, int scale, ReporterStatistics statistics) {
+        if (scale < 0 || scale > MAX_SCALE) {
+            throw new IllegalArgumentException("Scale must be between 0 and " + MAX_SCALE + ": " + scale);
+        }
+        this.name = name;
+        this.help = help;
+        this.labelNames = Collections.unmodifiableList(Arrays.asList(labelNames));
+        List<String> bucketLabels = new ArrayList<String>(this.labelNames);
+        bucketLabels.add("le");
+        this.bucketLabelNames = Collections.unmodifiableList(bucketLabels);
+        this.scale = scale;
+        this.scaleFactor = (1 << scale) / Math.log(2);
+        this.minIndex = MIN_EXPONENT << scale;
+        this.bucketCount = ((MAX_EXPONENT - MIN_EXPONENT) << scale) + 1;
+        this.observedBuckets = new AtomicLongArray((bucketCount + 63) >>> 6);
+        this.statistics = statistics;
+    }
+
+    /**
+     * This method returns the child associated with the supplied label values.
+     *
+     * @param key The label values
+     * @return The child
+     */
+    Child child(LabelKey key) {
+        Child child = children.get(key);
+        if (child == null) {
+            child = new Child();
+            Child existing = children.putIfAbsent(key.copy(), child);
+            if (existing != null) {
+                child = existing;
+            } else if (statistics != null) {
+                statistics.seriesCreated();
+            }
+        }
+        return child;
+    }
+
+    /**
+     * This method returns the number of children, i.e. combinations of label values.
+     *
+     * @return The number of children
+     */
+    int size() {
+        return children.size();
+    }
+
+    /**
+     * This method returns the index of the bucket for the supplied value, relative to the
+     * lowest bucket, or the number of buckets if the value exceeds the highest bucket.
+     *
+     * @param value The value
+     * @return The bucket index
+     */
+    int bucketIndex(double value) {
+        if (!(value > 0)) {
+            return 0;
+        }
+        // Split into exponent and mantissa, so that powers of two fall exactly on a boundary
+        int exponent = Math.getExponent(value);
+        double mantissa = value / Math.scalb(1.0, exponent);
+        int subIndex = mantissa == 1.0 ? 0 : (int) Math.ceil(Math.log(mantissa) * scaleFactor);
+        int index = (exponent << scale) + subIndex - minIndex;
+        return index < 0 ? 0 : Math.min(index, bucketCount);
+    }
+
+    /**
+     * This method returns the upper bound of the bucket with the supplied relative index.
+     *
+     * @param index The bucket index
+     * @return The upper bound
+     */
+    double upperBound(int index) {
+        return Math.pow(2, (index + minIndex) / (double) (1 << scale));
+    }
+
+    /**
+     * This method marks the bucket with the supplied relative index as observed, so that it is
+     * exported by all children from then on.
+     *
+     * @param index The bucket index
+     */
+    private void bucketObserved(int index) {
+        int word = index >>> 6;
+        long bit = 1L << index;
+        long bits = observedBuckets.get(word);
+        while ((bits & bit) == 0 && !observedBuckets.compareAndSet(word, bits, bits | bit)) {
+            bits = observedBuckets.get(word);
+        }
+    }
+
+    /**
+     * This method returns the relative indexes of the buckets that have been observed, in
+     * ascending order.
+     *
+     * @return The bucket indexes
+     */
+    int[] observedBuckets() {
+        int count = 0;
+        for (int i = 0; i < observedBuckets.length(); i++) {
+            count += Long.bitCount(observedBuckets.get(i));
+        }
+        int[] ret = new int[count];
+        int n = 0;
+        for (int i = 0; i < observedBuckets.length() && n < count; i++) {
+            long bits = observedBuckets.get(i);
+            while (bits != 0 && n < count) {
+                ret[n++] = (i << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        return n == count ? ret : Arrays.copyOf(ret, n);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<MetricFamilySamples.Sample>();
+        int[] buckets = observedBuckets();
+        String[] upperBounds = new String[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            upperBounds[i] = doubleToGoString(upperBound(buckets[i]));
+        }
+        for (Map.Entry<LabelKey, Child> entry : children.entrySet()) {
+            entry.getValue().collect(Arrays.asList(entry.getKey().stringValues()), buckets, upperBounds, samples);
+        }
+        List<MetricFamilySamples> ret = new ArrayList<MetricFamilySamples>();
+        ret.add(new MetricFamilySamples(name, Type.HISTOGRAM, help, samples));
+        return ret;
+    }
+
+    /**
+     * This class holds the observations for a particular combination of label values.
+     *
+     */
+    final class Child {
+        private final AtomicReferenceArray<AtomicLongArray> chunks =
+                new AtomicReferenceArray<AtomicLongArray>((bucketCount + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        /**
+         * This method records the supplied value the supplied number of times.
+         *
+         * @param value The value
+         * @param weight The number of times the value is recorded
+         */
+        void observe(double value, long weight) {
+            int index = bucketIndex(value);
+            if (index < bucketCount) {
+                if (chunk(index >>> CHUNK_SHIFT).addAndGet(index & (CHUNK_SIZE - 1), weight) == weight) {
+                    // First value in the child's bucket, which may not have been observed by other children
+                    bucketObserved(index);
+                }
+            }
+            count.add(weight);
+            sum.add(value * weight);
+        }
+
+        private AtomicLongArray chunk(int chunkIndex) {
+            AtomicLongArray chunk = chunks.get(chunkIndex);
+            if (chunk == null) {
+                chunks.compareAndSet(chunkIndex, null, new AtomicLongArray(CHUNK_SIZE));
+                chunk = chunks.get(chunkIndex);
+            }
+            return chunk;
+        }
+
+        /**
+         * This method returns the number of chunks of buckets that have been allocated.
+         *
+         * @return The number of allocated chunks
+         */
+        int allocatedChunks() {
+            int ret = 0;
+            for (int i = 0; i < chunks.length(); i++) {
+                if (chunks.get(i) != null) {
+                    ret++;
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * This method adds the samples of the child, with the cumulative counts of the supplied
+         * buckets, which include all of the child's non-empty buckets.
+         *
+         * @param labelValues The label values
+         * @param buckets The indexes of the buckets, in ascending order
+         * @param upperBounds The upper bounds of the buckets
+         * @param samples The samples
+         */
+        void collect(List<String> labelValues, int[] buckets, String[] upperBounds,
+                List<MetricFamilySamples.Sample> samples) {
+            // Values may be observed while collecting, so the total is adjusted to be at least
+            // the cumulative count of the buckets
+            long total = count.sum();
+            double totalSum = sum.sum();
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                AtomicLongArray chunk = chunks.get(buckets[i] >>> CHUNK_SHIFT);
+                if (chunk != null) {
+                    cumulative += chunk.get(buckets[i] & (CHUNK_SIZE - 1));
+                }
+                samples.add(bucketSample(labelValues, upperBounds[i], cumulative));
+            }
+            samples.add(bucketSample(labelValues, "+Inf", Math.max(total, cumulative)));
+            samples.add(new MetricFamilySamples.Sample(name + "_count", labelNames, labelValues,
+                    Math.max(total, cumulative)));
+            samples.add(new MetricFamilySamples.Sample(name + "_sum", labelNames, labelValues, totalSum));
+        }
+
+        private MetricFamilySamples.Sample bucketSample(List<String> labelValues, String upperBound, long value) {
+            List<String> bucketLabelValues = new ArrayList<String>(labelValues);
+            bucketLabelValues.add(upperBound);
+            return new MetricFamilySamples.Sample(name + "_bucket", bucketLabelNames, bucketLabelValues, value);
+        }
+    }
+}
@@ -14,7 +14,11 @@
 package io.opentracing.contrib.metrics.prometheus;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -24,13 +28,16 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.CardinalityLimiter;
 import io.opentracing.contrib.metrics.MetricLabel;
+import io.opentracing.contrib.metrics.SpanBatch;
 import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
 import io.opentracing.tag.Tags;
 import io.prometheus.client.Collector.MetricFamilySamples;
@@ -174,6 +181,235 @@ public class PrometheusMetricsReporterTest {
         }
     }
 
+    @Test
+    public void testReportWeightedSpan() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .withSparseExponentialBuckets(2)
+                .build();
+        assertTrue(reporter.isWeightSupported());
+
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(Collections.<String,Object>emptyMap());
+        when(spanData.getDuration()).thenReturn(100000L);
+
+        reporter.reportSpan(spanData, 10);
+
+        assertEquals(10, (int)(double)collectorRegistry.getSampleValue("span_count", reporter.getLabelNames(),
+                new String[] {"testop", "client", "false"}));
+        assertEquals(1.0, collectorRegistry.getSampleValue("span_sum", reporter.getLabelNames(),
+                new String[] {"testop", "client", "false"}), 0.000001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWeightedSpanRejectedForClassicHistogram() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(collectorRegistry)
+                .build();
+        assertFalse(reporter.isWeightSupported());
+
+        reporter.reportSpan(createSpanData(100), 10);
+    }
+
+    @Test
+    public void testChildReusedForSameLabelValues() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            SpanData spanData = mock(SpanData.class);
+            // Distinct, but equal, operation names
+            when(spanData.getOperationName()).thenReturn(new String("testop"));
+            when(spanData.getTags()).thenReturn(Collections.<String,Object>emptyMap());
+            when(spanData.getDuration()).thenReturn(100000L);
+            reporter.reportSpan(spanData);
+        }
+
+        assertEquals(3, (int)(double)collectorRegistry.getSampleValue("span_count", reporter.getLabelNames(),
+                new String[] {"testop", "client", "false"}));
+        assertEquals(17, reporter.getHistogram().collect().get(0).samples.size());
+    }
+
+    @Test
+    public void testCardinalityLimit() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .withLabelCardinalityLimit("operation", 2)
+                .build();
+
+        for (int i = 0; i < 5; i++) {
+            SpanData spanData = mock(SpanData.class);
+            when(spanData.getOperationName()).thenReturn("testop" + i);
+            when(spanData.getTags()).thenReturn(Collections.<String,Object>emptyMap());
+            when(spanData.getDuration()).thenReturn(100000L);
+            reporter.reportSpan(spanData);
+        }
+
+        assertEquals(1, (int)(double)collectorRegistry.getSampleValue("span_count", reporter.getLabelNames(),
+                new String[] {"testop1", "client", "false"}));
+        assertEquals(3, (int)(double)collectorRegistry.getSampleValue("span_count", reporter.getLabelNames(),
+                new String[] {CardinalityLimiter.OVERFLOW_VALUE, "client", "false"}));
+        assertEquals(3, (int)(double)collectorRegistry.getSampleValue("span_overflow"));
+    }
+
+    @Test
+    public void testExplicitBuckets() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .withBuckets(0.0001, 0.001, 0.1)
+                .build();
+
+        reporter.reportSpan(createSpanData(500));
+
+        String[] labelNames = {"operation", "span_kind", "error", "le"};
+        assertEquals(0, (int)(double)collectorRegistry.getSampleValue("span_bucket", labelNames,
+                new String[] {"testop", "client", "false", "1.0E-4"}));
+        assertEquals(1, (int)(double)collectorRegistry.getSampleValue("span_bucket", labelNames,
+                new String[] {"testop", "client", "false", "0.001"}));
+        // Three buckets plus "+Inf", count and sum
+        assertEquals(6, reporter.getHistogram().collect().get(0).samples.size());
+    }
+
+    @Test
+    public void testLinearBuckets() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .withLinearBuckets(0.1, 0.1, 4)
+                .build();
+
+        reporter.reportSpan(createSpanData(100000));
+
+        // Four buckets plus "+Inf", count and sum
+        assertEquals(7, reporter.getHistogram().collect().get(0).samples.size());
+    }
+
+    @Test
+    public void testExponentialBuckets() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .withExponentialBuckets(0.001, 10, 3)
+                .build();
+
+        reporter.reportSpan(createSpanData(5000));
+
+        String[] labelNames = {"operation", "span_kind", "error", "le"};
+        assertEquals(0, (int)(double)collectorRegistry.getSampleValue("span_bucket", labelNames,
+                new String[] {"testop", "client", "false", "0.001"}));
+        assertEquals(1, (int)(double)collectorRegistry.getSampleValue("span_bucket", labelNames,
+                new String[] {"testop", "client", "false", "0.01"}));
+    }
+
+    @Test
+    public void testSparseExponentialBuckets() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .withSparseExponentialBuckets(2)
+                .build();
+
+        reporter.reportSpan(createSpanData(500));
+        reporter.reportSpan(createSpanData(510), 2);
+
+        String[] values = {"testop", "client", "false"};
+        assertEquals(3, (int)(double)collectorRegistry.getSampleValue("span_count", reporter.getLabelNames(), values));
+        assertEquals(0.00152, collectorRegistry.getSampleValue("span_sum", reporter.getLabelNames(), values),
+                0.0000001);
+        // One non-empty bucket plus "+Inf", count and sum
+        assertEquals(4, reporter.getSparseHistogram().collect().get(0).samples.size());
+    }
+
+    @Test
+    public void testSparseBucketsErrorTagAsBoolean() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .withSparseExponentialBuckets(2)
+                .build();
+
+        SpanData tagged = createSpanData(500);
+        when(tagged.getTags()).thenReturn(Collections.<String,Object>singletonMap(Tags.ERROR.getKey(), Boolean.FALSE));
+        reporter.reportSpan(tagged);
+        // The default error label value is the string "false"
+        reporter.reportSpan(createSpanData(500));
+
+        String[] values = {"testop", "client", "false"};
+        assertEquals(2, (int)(double)collectorRegistry.getSampleValue("span_count", reporter.getLabelNames(), values));
+        // A single series: one non-empty bucket plus "+Inf", count and sum
+        assertEquals(4, reporter.getSparseHistogram().collect().get(0).samples.size());
+    }
+
+    @Test
+    public void testOffHeapStore() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .withBuckets(0.001, 0.01)
+                .withOffHeapStore(1)
+                .build();
+
+        reporter.reportSpan(createSpanData(500));
+        reporter.reportSpan(createSpanData(1000), 2);
+        reporter.reportSpan(createSpanData(5000));
+
+        String[] values = {"testop", "client", "false"};
+        assertEquals(4, (int)(double)collectorRegistry.getSampleValue("span_count", reporter.getLabelNames(), values));
+        assertEquals(0.0075, collectorRegistry.getSampleValue("span_sum", reporter.getLabelNames(), values),
+                0.0000001);
+        String[] labelNames = {"operation", "span_kind", "error", "le"};
+        assertEquals(3, (int)(double)collectorRegistry.getSampleValue("span_bucket", labelNames,
+                new String[] {"testop", "client", "false", "0.001"}));
+        assertEquals(4, (int)(double)collectorRegistry.getSampleValue("span_bucket", labelNames,
+                new String[] {"testop", "client", "false", "0.01"}));
+        assertEquals(4, (int)(double)collectorRegistry.getSampleValue("span_bucket", labelNames,
+                new String[] {"testop", "client", "false", "+Inf"}));
+
+        // Only one combination of label values can be held
+        SpanData other = createSpanData(500);
+        when(other.getOperationName()).thenReturn("otherop");
+        reporter.reportSpan(other);
+        assertEquals(1, (int)(double)collectorRegistry.getSampleValue("span_rejected"));
+        assertEquals(1, reporter.getOffHeapStore().size());
+    }
+
+    @Test
+    public void testReportSpans() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .build();
+        SpanData other = createSpanData(3000);
+        when(other.getOperationName()).thenReturn("otherop");
+        SpanBatch batch = new SpanBatch(4);
+        batch.add(createSpanData(1000));
+        batch.add(other);
+        batch.add(createSpanData(2000));
+
+        reporter.reportSpans(batch);
+
+        assertEquals(2, (int)(double)collectorRegistry.getSampleValue("span_count", reporter.getLabelNames(),
+                new String[] {"testop", "client", "false"}));
+        assertEquals(0.003, collectorRegistry.getSampleValue("span_sum", reporter.getLabelNames(),
+                new String[] {"testop", "client", "false"}), 0.0000001);
+        assertEquals(1, (int)(double)collectorRegistry.getSampleValue("span_count", reporter.getLabelNames(),
+                new String[] {"otherop", "client", "false"}));
+    }
+
+    private static SpanData createSpanData(long duration) {
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(Collections.<String,Object>emptyMap());
+        when(spanData.getDuration()).thenReturn(duration);
+        return spanData;
+    }
+
     @Test
     public void testConvertLabel() {
         assertEquals("Hello9", PrometheusMetricsReporter.convertLabel("Hello9"));
@@ -182,4 +418,188 @@ public class PrometheusMetricsReporterTest {
         assertEquals("tag_:_", PrometheusMetricsReporter.convertLabel("tag£:%"));  // Some characters invalid
     }
 
+    @Test
+    public void testInFlightGauge() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withName("MyName")
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .withInFlightGauge()
+                .build();
+
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(Collections.<String,Object>emptyMap());
+
+        assertTrue(reporter.isInFlightReported());
+        LongAdder first = reporter.spanStarted(spanData);
+        LongAdder second = reporter.spanStarted(spanData);
+        assertSame(first, second);
+
+        String[] labelNames = {"operation", "span_kind", "error"};
+        String[] labelValues = {"testop", "client", "false"};
+        assertEquals(2, collectorRegistry.getSampleValue("MyName_in_flight", labelNames, labelValues), 0);
+
+        first.decrement();
+        second.decrement();
+        assertEquals(0, collectorRegistry.getSampleValue("MyName_in_flight", labelNames, labelValues), 0);
+    }
+
+    @Test
+    public void testInFlightGaugeNotEnabled() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withName("MyName")
+                .withCollectorRegistry(collectorRegistry)
+                .build();
+
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(Collections.<String,Object>emptyMap());
+
+        assertFalse(reporter.isInFlightReported());
+        assertNull(reporter.spanStarted(spanData));
+    }
+
+    @Test
+    public void testSelfTime() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withName("MyName")
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .withBuckets(0.05, 0.5)
+                .withSelfTime()
+                .build();
+
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(Collections.<String,Object>emptyMap());
+        when(spanData.getDuration()).thenReturn(100000L);
+
+        reporter.reportSelfTime(spanData, 40000L);
+        reporter.reportSpan(spanData);
+
+        assertTrue(reporter.isSelfTimeReported());
+        String[] labelNames = {"operation", "span_kind", "error", "le"};
+        assertEquals(1, collectorRegistry.getSampleValue("MyName_self_bucket", labelNames,
+                new String[] {"testop", "client", "false", "0.05"}), 0);
+        assertEquals(0, collectorRegistry.getSampleValue("MyName_bucket", labelNames,
+                new String[] {"testop", "client", "false", "0.05"}), 0);
+        assertEquals(0.04, collectorRegistry.getSampleValue("MyName_self_sum", new String[] {"operation", "span_kind", "error"},
+                new String[] {"testop", "client", "false"}), 0.0001);
+    }
+
+    @Test
+    public void testSelfTimeNotEnabled() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withName("MyName")
+                .withCollectorRegistry(collectorRegistry)
+                .build();
+
+        assertFalse(reporter.isSelfTimeReported());
+        assertNull(reporter.getSelfTimeHistogram());
+    }
+
+    @Test
+    public void testSelfInstrumentation() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withName("MyName")
+                .withCollectorRegistry(collectorRegistry)
+                .withSelfInstrumentation()
+                .build();
+
+        SpanData clientSpanData = mock(SpanData.class);
+        when(clientSpanData.getOperationName()).thenReturn("testop");
+        when(clientSpanData.getTags()).thenReturn(Collections.<String,Object>singletonMap(
+                Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT));
+        when(clientSpanData.getDuration()).thenReturn(100000L);
+        // span.kind has no default value, so a span without the tag is not reported
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(Collections.<String,Object>emptyMap());
+
+        reporter.reportSpan(clientSpanData);
+        reporter.reportSpan(clientSpanData);
+        reporter.reportSpan(spanData);
+
+        assertEquals(2, collectorRegistry.getSampleValue("MyName_reporter_spans"), 0);
+        assertEquals(1, collectorRegistry.getSampleValue("MyName_reporter_suppressed", new String[] {"label"},
+                new String[] {"span.kind"}), 0);
+        assertEquals(3, collectorRegistry.getSampleValue("MyName_reporter_latency_count"), 0);
+        assertEquals(1, collectorRegistry.getSampleValue("MyName_reporter_series"), 0);
+        assertEquals(1, collectorRegistry.getSampleValue("MyName_reporter_series_created"), 0);
+    }
+
+    @Test
+    public void testSelfInstrumentationRecordsLatencyOfFailedBatch() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withName("MyName")
+                .withCollectorRegistry(collectorRegistry)
+                .withSelfInstrumentation()
+                .build();
+
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenThrow(new IllegalStateException("Failed to get tags"));
+        SpanBatch batch = new SpanBatch(1);
+        batch.add(spanData);
+
+        try {
+            reporter.reportSpans(batch);
+            fail("Expected exception");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        assertEquals(1, collectorRegistry.getSampleValue("MyName_reporter_latency_count"), 0);
+    }
+
+    @Test
+    public void testSelfInstrumentationNotEnabled() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withName("MyName")
+                .withCollectorRegistry(collectorRegistry)
+                .build();
+
+        assertNull(reporter.getStatistics());
+        assertNull(reporter.getLatencyHistogram());
+        assertNull(collectorRegistry.getSampleValue("MyName_reporter_spans"));
+    }
+
+    @Test
+    public void testLogEventCounter() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withName("MyName")
+                .withCollectorRegistry(collectorRegistry)
+                .withConstLabel("span.kind", Tags.SPAN_KIND_CLIENT) // Override the default, to make sure span metrics reported
+                .withLogEventCounter("error.kind", 1)
+                .build();
+
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(Collections.<String,Object>emptyMap());
+
+        reporter.reportLogEvent(spanData, "error");
+        reporter.reportLogEvent(spanData, Collections.singletonMap("error.kind", "Timeout"));
+        reporter.reportLogEvent(spanData, Collections.singletonMap("error.kind", "Timeout"));
+        reporter.reportLogEvent(spanData, Collections.singletonMap("error.kind", "Refused"));
+
+        assertTrue(reporter.isLogEventReported());
+        String[] labelNames = {"operation", "span_kind", "error", "error_kind"};
+        assertEquals(2, collectorRegistry.getSampleValue("MyName_log_events", labelNames,
+                new String[] {"testop", "client", "false", "Timeout"}), 0);
+        assertEquals(1, collectorRegistry.getSampleValue("MyName_log_events", labelNames,
+                new String[] {"testop", "client", "false", CardinalityLimiter.OVERFLOW_VALUE}), 0);
+    }
+
+    @Test
+    public void testLogEventCounterNotEnabled() {
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withName("MyName")
+                .withCollectorRegistry(collectorRegistry)
+                .build();
+
+        assertFalse(reporter.isLogEventReported());
+        assertNull(collectorRegistry.getSampleValue("MyName_log_events"));
+    }
+
 }
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.prometheus;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.opentracing.contrib.metrics.LabelKey;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import io.prometheus.client.CollectorRegistry;
+
+public class SparseHistogramTest {
+
+    @Test
+    public void testBucketIndex() {
+        SparseHistogram histogram = new SparseHistogram("test", "help", new String[0], 2);
+
+        // Powers of two fall on the boundaries
+        for (int exponent = SparseHistogram.MIN_EXPONENT; exponent <= SparseHistogram.MAX_EXPONENT; exponent++) {
+            double value = Math.pow(2, exponent);
+            int index = histogram.bucketIndex(value);
+            assertEquals(value, histogram.upperBound(index), 0);
+            assertEquals(index + 1, histogram.bucketIndex(Math.nextUp(value)));
+        }
+
+        // Each value is within its bucket
+        for (double value = 0.000001; value < 10000; value *= 1.37) {
+            int index = histogram.bucketIndex(value);
+            assertEquals(true, value <= histogram.upperBound(index));
+            assertEquals(true, index == 0 || value > histogram.upperBound(index - 1));
+        }
+
+        assertEquals(0, histogram.bucketIndex(0));
+        assertEquals(0, histogram.bucketIndex(0.0000000001));
+        assertEquals(histogram.bucketIndex(Math.pow(2, SparseHistogram.MAX_EXPONENT)) + 1,
+                histogram.bucketIndex(100000));
+    }
+
+    @Test
+    public void testOnlyObservedBucketsAllocatedAndExported() {
+        CollectorRegistry registry = new CollectorRegistry();
+        SparseHistogram histogram = new SparseHistogram("test", "help", new String[] {"op"}, 3).register(registry);
+
+        SparseHistogram.Child child = histogram.child(LabelKey.of("op1"));
+        child.observe(0.001, 1);
+        child.observe(0.001, 2);
+        child.observe(1.5, 1);
+        child.observe(100000, 1);
+
+        assertEquals(2, child.allocatedChunks());
+
+        List<MetricFamilySamples> families = histogram.collect();
+        assertEquals(1, families.size());
+        List<Sample> samples = families.get(0).samples;
+        // Two non-empty buckets, +Inf, count and sum
+        assertEquals(5, samples.size());
+        assertEquals(3, samples.get(0).value, 0);
+        assertEquals(Arrays.asList("op", "le"), samples.get(0).labelNames);
+        assertEquals(4, samples.get(1).value, 0);
+        assertEquals("+Inf", samples.get(2).labelValues.get(1));
+        assertEquals(5, samples.get(2).value, 0);
+
+        assertEquals(5, registry.getSampleValue("test_count", new String[] {"op"}, new String[] {"op1"}), 0);
+        assertEquals(100001.503, registry.getSampleValue("test_sum", new String[] {"op"}, new String[] {"op1"}),
+                0.000001);
+        assertNull(registry.getSampleValue("test_count", new String[] {"op"}, new String[] {"op2"}));
+    }
+
+    @Test
+    public void testObservedBucketsExportedByAllChildren() {
+        CollectorRegistry registry = new CollectorRegistry();
+        SparseHistogram histogram = new SparseHistogram("test", "help", new String[] {"op"}, 0).register(registry);
+        String[] labelNames = {"op", "le"};
+
+        histogram.child(LabelKey.of("op1")).observe(0.001, 1);
+        histogram.child(LabelKey.of("op2")).observe(1.5, 2);
+
+        // Each child exports both buckets, including the one it has not observed
+        String low = Collector.doubleToGoString(histogram.upperBound(histogram.bucketIndex(0.001)));
+        String high = Collector.doubleToGoString(histogram.upperBound(histogram.bucketIndex(1.5)));
+        assertEquals(1, registry.getSampleValue("test_bucket", labelNames, new String[] {"op1", low}), 0);
+        assertEquals(1, registry.getSampleValue("test_bucket", labelNames, new String[] {"op1", high}), 0);
+        assertEquals(0, registry.getSampleValue("test_bucket", labelNames, new String[] {"op2", low}), 0);
+        assertEquals(2, registry.getSampleValue("test_bucket", labelNames, new String[] {"op2", high}), 0);
+        // Two buckets, +Inf, count and sum for each child
+        assertEquals(10, histogram.collect().get(0).samples.size());
+        assertEquals(2, histogram.observedBuckets().length);
+    }
+
+    @Test
+    public void testChildReused() {
+        SparseHistogram histogram = new SparseHistogram("test", "help", new String[] {"op"}, 0);
+        assertEquals(histogram.child(LabelKey.of("op1")), histogram.child(LabelKey.of("op1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidScale() {
+        new SparseHistogram("test", "help", new String[0], SparseHistogram.MAX_SCALE + 1);
+    }
+
+}
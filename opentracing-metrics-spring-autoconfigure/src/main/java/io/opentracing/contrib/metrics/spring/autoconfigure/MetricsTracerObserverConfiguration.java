@@ -19,7 +19,6 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
-import io.opentracing.contrib.api.TracerObserver;
 import io.opentracing.contrib.metrics.MetricsObserver;
 import io.opentracing.contrib.metrics.MetricsReporter;
 
@@ -29,8 +28,14 @@ public class MetricsTracerObserverConfiguration {
     @Autowired(required=false)
     private Set<MetricsReporter> metricsReporters;
 
+    /**
+     * This method creates the observer of the spans, which can be injected to replace
+     * the reporters at runtime.
+     *
+     * @return The observer, or null if there are no reporters
+     */
     @Bean
-    public TracerObserver metricsTracerObserver() {
+    public MetricsObserver metricsTracerObserver() {
         if (metricsReporters != null && !metricsReporters.isEmpty()) {
             return new MetricsObserver(metricsReporters);
         }
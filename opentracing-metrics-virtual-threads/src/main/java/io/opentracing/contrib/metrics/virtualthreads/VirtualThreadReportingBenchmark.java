@@ -0,0 +1,126 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.virtualthreads;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.contrib.metrics.Metrics;
+import io.opentracing.contrib.metrics.MetricsReporter;
+import io.opentracing.contrib.metrics.micrometer.MicrometerMetricsReporter;
+import io.opentracing.contrib.metrics.prometheus.PrometheusMetricsReporter;
+import io.opentracing.noop.NoopTracerFactory;
+import io.opentracing.tag.Tags;
+import io.prometheus.client.CollectorRegistry;
+
+/**
+ * This benchmark measures the cost of reporting a span from each of many concurrent threads,
+ * comparing a virtual thread per span with a pool of platform threads.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VirtualThreadReportingBenchmark {
+
+    private static final int SPANS = 1000;
+    private static final int ROUTES = 16;
+
+    @Param({"micrometer", "micrometer-aggregated", "prometheus"})
+    private String reporterType;
+
+    @Param({"virtual", "platform"})
+    private String threadType;
+
+    private MetricsReporter reporter;
+    private Tracer tracer;
+    private ExecutorService executor;
+
+    @Setup
+    public void setup() {
+        switch (reporterType) {
+            case "micrometer":
+                reporter = MicrometerMetricsReporter.newMetricsReporter()
+                        .withRegistry(new SimpleMeterRegistry())
+                        .withTagLabel("route", "unknown")
+                        .build();
+                break;
+            case "micrometer-aggregated":
+                reporter = MicrometerMetricsReporter.newMetricsReporter()
+                        .withRegistry(new SimpleMeterRegistry())
+                        .withTagLabel("route", "unknown")
+                        .withPreAggregation()
+                        .build();
+                break;
+            default:
+                reporter = PrometheusMetricsReporter.newMetricsReporter()
+                        .withCollectorRegistry(new CollectorRegistry())
+                        .withTagLabel("route", "unknown")
+                        .build();
+                break;
+        }
+        tracer = Metrics.decorate(NoopTracerFactory.create(), reporter);
+        executor = "virtual".equals(threadType) ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+        if (reporter instanceof MicrometerMetricsReporter) {
+            ((MicrometerMetricsReporter) reporter).close();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SPANS)
+    public void finishSpans() throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(SPANS);
+        for (int i = 0; i < SPANS; i++) {
+            String route = "/route/" + (i % ROUTES);
+            executor.execute(() -> {
+                Span span = tracer.buildSpan("operation")
+                        .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER)
+                        .withTag("route", route)
+                        .start();
+                span.finish();
+                finished.countDown();
+            });
+        }
+        finished.await();
+    }
+
+}
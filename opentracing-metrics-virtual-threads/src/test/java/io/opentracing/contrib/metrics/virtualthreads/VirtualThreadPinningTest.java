@@ -0,0 +1,247 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.virtualthreads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.opentracing.Span;
+import io.opentracing.Tracer;
+import io.opentracing.contrib.metrics.Metrics;
+import io.opentracing.contrib.metrics.MetricsReporter;
+import io.opentracing.contrib.metrics.micrometer.MicrometerMetricsReporter;
+import io.opentracing.contrib.metrics.prometheus.PrometheusMetricsReporter;
+import io.opentracing.noop.NoopTracerFactory;
+import io.opentracing.tag.Tags;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * This test reports spans from a large number of concurrent virtual threads, and uses JFR
+ * to check that no virtual thread was pinned to its carrier thread while doing so, either
+ * by parking while holding a monitor, or by waiting to enter a monitor.
+ *
+ */
+public class VirtualThreadPinningTest {
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final String MONITOR_ENTER_EVENT = "jdk.JavaMonitorEnter";
+    private static final String LINKAGE_TYPE = "java.lang.invoke.MethodHandleNatives";
+    private static final int SPAN_COUNT = 100_000;
+    private static final int ROUTES = 200;
+
+    @Test
+    public void testDetectsPinning() throws Exception {
+        // Ensure the recording would detect a virtual thread parking while holding a monitor
+        Object monitor = new Object();
+        List<RecordedEvent> events = record(() -> {
+            Thread thread = Thread.ofVirtual().start(() -> {
+                synchronized (monitor) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            thread.join();
+        });
+        assertTrue(pinned(events) > 0);
+    }
+
+    @Test
+    public void testMicrometerReporterDoesNotPin() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withRegistry(registry)
+                .withTagLabel("route", "unknown")
+                .withCardinalityLimit(ROUTES / 2)
+                .withInFlightGauge()
+                .withSelfTime()
+                .withLogEventCounter()
+                .build();
+
+        List<RecordedEvent> events = record(() -> finishSpans(reporter));
+        reporter.flush();
+
+        assertEquals(events.toString(), 0, pinned(events));
+        assertEquals(SPAN_COUNT, count(registry));
+    }
+
+    @Test
+    public void testMicrometerReporterWithPreAggregationDoesNotPin() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        MicrometerMetricsReporter reporter = MicrometerMetricsReporter.newMetricsReporter()
+                .withRegistry(registry)
+                .withTagLabel("route", "unknown")
+                .withPreAggregation()
+                .build();
+
+        List<RecordedEvent> events = record(() -> finishSpans(reporter));
+        reporter.close();
+
+        assertEquals(events.toString(), 0, pinned(events));
+        assertEquals(SPAN_COUNT, count(registry));
+    }
+
+    @Test
+    public void testPrometheusReporterDoesNotPin() throws Exception {
+        CollectorRegistry registry = new CollectorRegistry();
+        PrometheusMetricsReporter reporter = PrometheusMetricsReporter.newMetricsReporter()
+                .withCollectorRegistry(registry)
+                .withTagLabel("route", "unknown")
+                .withCardinalityLimit(ROUTES / 2)
+                .withInFlightGauge()
+                .withSelfTime()
+                .withLogEventCounter()
+                .build();
+
+        List<RecordedEvent> events = record(() -> finishSpans(reporter));
+
+        assertEquals(events.toString(), 0, pinned(events));
+        double count = 0;
+        for (Collector.MetricFamilySamples family : Collections.list(registry.metricFamilySamples())) {
+            if ("span".equals(family.name)) {
+                for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                    if ("span_count".equals(sample.name)) {
+                        count += sample.value;
+                    }
+                }
+            }
+        }
+        assertEquals(SPAN_COUNT, count, 0);
+    }
+
+    /**
+     * This method starts a span on each of a large number of virtual threads, waits for all
+     * spans to be in flight, and then finishes them.
+     *
+     * @param reporter The metrics reporter
+     */
+    private static void finishSpans(MetricsReporter reporter) throws InterruptedException {
+        Tracer tracer = Metrics.decorate(NoopTracerFactory.create(), reporter);
+        CountDownLatch started = new CountDownLatch(SPAN_COUNT);
+        CountDownLatch finish = new CountDownLatch(1);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < SPAN_COUNT; i++) {
+                String route = "/route/" + (i % ROUTES);
+                executor.execute(() -> {
+                    Span span = tracer.buildSpan("operation")
+                            .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER)
+                            .withTag("route", route)
+                            .start();
+                    span.log("started");
+                    started.countDown();
+                    try {
+                        finish.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    span.finish();
+                });
+            }
+            started.await();
+            finish.countDown();
+        }
+    }
+
+    private static long count(SimpleMeterRegistry registry) {
+        long count = 0;
+        for (Meter meter : registry.getMeters()) {
+            if (meter instanceof Timer && "span".equals(meter.getId().getName())) {
+                count += ((Timer) meter).count();
+            } else if (meter instanceof FunctionTimer && "span".equals(meter.getId().getName())) {
+                count += (long) ((FunctionTimer) meter).count();
+            }
+        }
+        return count;
+    }
+
+    private static List<RecordedEvent> record(Task task) throws Exception {
+        Path file = Files.createTempFile("virtual-thread-pinning", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(PINNED_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+            recording.enable(MONITOR_ENTER_EVENT).withThreshold(Duration.ZERO).withStackTrace();
+            recording.start();
+            task.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * This method counts the virtual threads that were pinned, i.e. that parked while holding
+     * a monitor, or that blocked their carrier thread waiting to enter a monitor held by the
+     * metrics reporters. Contended monitors outside the metrics reporters (e.g. the secure
+     * random used for span ids), and the class loading and call site linkage locks contended
+     * once when the classes and lambdas are first used, are excluded.
+     *
+     * @param events The recorded events
+     * @return The number of pinned virtual threads
+     */
+    private static long pinned(List<RecordedEvent> events) {
+        long count = 0;
+        for (RecordedEvent event : events) {
+            String type = event.getEventType().getName();
+            if (PINNED_EVENT.equals(type) || (MONITOR_ENTER_EVENT.equals(type)
+                    && event.getThread() != null && event.getThread().isVirtual() && isReporting(event))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isReporting(RecordedEvent event) {
+        if (event.getStackTrace() == null) {
+            return false;
+        }
+        for (RecordedFrame frame : event.getStackTrace().getFrames()) {
+            String type = frame.getMethod().getType().getName();
+            if (ClassLoader.class.getName().equals(type) || LINKAGE_TYPE.equals(type)) {
+                return false;
+            }
+            if (type.startsWith("io.opentracing.contrib.metrics.")
+                    && !type.startsWith(VirtualThreadPinningTest.class.getPackage().getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+}
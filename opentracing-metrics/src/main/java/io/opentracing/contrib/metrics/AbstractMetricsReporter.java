@@ -14,6 +14,7 @@
 package io.opentracing.contrib.metrics;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,12 +26,38 @@ import io.opentracing.tag.Tags;
 
 /**
  * This class provides an abstract base class for the {@link MetricsReporter} interface.
+ * <p>
+ * The names of the metric labels are fixed when the reporter is created, as they define the
+ * metrics reported. However the labels can be replaced at runtime by other labels with the
+ * same names, using {@link #updateMetricLabels(List)}, e.g. to temporarily derive a label's
+ * value from a tag rather than use a constant value. The labels are held in an immutable state
+ * that is replaced as a whole, so deriving the label values does not require any synchronization.
+ * <p>
+ * An optional {@link SpanFilter} can be set to select the spans that are reported, which is
+ * applied before any label values are derived.
+ * <p>
+ * If the reporter instruments itself, the spans reported, and those not reported because a label
+ * had no value, are counted by its {@link ReporterStatistics}. Otherwise no statistics are kept.
  *
  */
 public abstract class AbstractMetricsReporter implements MetricsReporter {
 
+    /**
+     * The metric labels supplied when the reporter was created. As the labels may subsequently
+     * be replaced by labels with the same names, this should only be used for the label names.
+     */
     protected final MetricLabel[] metricLabels;
 
+    /**
+     * The number of distinct combinations of label values, and their series, retained while
+     * reporting a batch of spans using {@link #reportSpans(SpanBatch, SeriesRecorder)}.
+     */
+    private static final int RECENT_SERIES = 8;
+
+    private volatile LabelState labelState;
+    private volatile SpanFilter spanFilter;
+    private volatile ReporterStatistics statistics;
+
     protected static final List<MetricLabel> STANDARD_SPAN_LABELS = Arrays.asList(
             new OperationMetricLabel(),
             new TagMetricLabel(Tags.SPAN_KIND.getKey(), null),
@@ -38,6 +65,7 @@ public abstract class AbstractMetricsReporter implements MetricsReporter {
 
     protected AbstractMetricsReporter(List<MetricLabel> labels) {
         metricLabels = initLabels(labels);
+        labelState = new LabelState(metricLabels);
     }
 
     /**
@@ -64,23 +92,262 @@ public abstract class AbstractMetricsReporter implements MetricsReporter {
     }
 
     /**
-     * This method derives the values for the labels associated with the metrics reporter.
+     * This method returns the metric labels used by the reporter, in the order in which
+     * their values are derived.
+     *
+     * @return The metric labels
+     */
+    public List<MetricLabel> getMetricLabels() {
+        return Collections.unmodifiableList(Arrays.asList(labelState.labels));
+    }
+
+    /**
+     * This method returns the current metric labels. The array is replaced, rather than modified,
+     * when the labels are updated, so it can be compared by identity to detect an update.
+     *
+     * @return The metric labels, which must not be modified
+     */
+    MetricLabel[] currentMetricLabels() {
+        return labelState.labels;
+    }
+
+    /**
+     * This method atomically replaces metric labels with the supplied labels of the same
+     * names. The other labels are retained. Spans reported subsequently derive their label
+     * values using the new labels.
+     *
+     * @param labels The labels replacing the existing labels with the same names
+     * @throws IllegalArgumentException If a label does not have the name of an existing label
+     */
+    public synchronized void updateMetricLabels(List<MetricLabel> labels) {
+        MetricLabel[] updated = labelState.labels.clone();
+        for (MetricLabel label : labels) {
+            int index = -1;
+            for (int i = 0; i < updated.length; i++) {
+                if (updated[i].name().equals(label.name())) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index == -1) {
+                throw new IllegalArgumentException("Unknown metric label: " + label.name());
+            }
+            updated[index] = label;
+        }
+        labelState = new LabelState(updated);
+    }
+
+    /**
+     * This method returns the filter selecting the spans to be reported.
+     *
+     * @return The span filter, or null if all spans are reported
+     */
+    public SpanFilter getSpanFilter() {
+        return spanFilter;
+    }
+
+    /**
+     * This method sets the filter selecting the spans to be reported. It can be replaced
+     * at runtime, taking effect for spans reported subsequently.
+     *
+     * @param spanFilter The span filter, or null if all spans should be reported
+     */
+    public void setSpanFilter(SpanFilter spanFilter) {
+        this.spanFilter = spanFilter;
+    }
+
+    /**
+     * This method returns the statistics of the reporter, if it instruments itself.
+     *
+     * @return The statistics, or null if the reporter does not instrument itself
+     */
+    public ReporterStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * This method sets the statistics of the reporter, which are typically exposed through the
+     * registry used by the reporter, so should be set when the reporter is created.
+     *
+     * @param statistics The statistics, or null if the reporter should not instrument itself
+     */
+    protected void setStatistics(ReporterStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * This method derives the values for the labels associated with the metrics reporter, as
+     * strings. The span is counted by the reporter's {@link #getStatistics() statistics}, as for
+     * {@link #getLabelKey(SpanData)}. A new array is allocated for each invocation, and each value
+     * converted to a string, so the label key should be used instead on paths executed per span.
      *
      * @param spanData The span data
      * @return The label values, or null if sample should not be reported
      */
     protected String[] getLabelValues(SpanData spanData) {
-        String[] values = new String[metricLabels.length];
-        for (int i=0; i < values.length; i++) {
-            Object value = metricLabels[i].value(spanData);
-            if (value == null) {
-                // Don't report span as not all labels are specified
-                // TODO: May need to provide debug log to help if metrics unexpectedly not reported
-                return null;
+        LabelKey key = getLabelKey(spanData);
+        return key == null ? null : key.stringValues();
+    }
+
+    /**
+     * This method derives the key representing the values of the labels associated with the
+     * metrics reporter. On platform threads, the values are written into a key that is reused
+     * for subsequent invocations on the same thread, so no allocation is performed, and the key
+     * must be {@link LabelKey#copy() copied} if it needs to be retained beyond the reporting of
+     * the span. On virtual threads, which are typically short lived and may be numerous, a small
+     * key is allocated for each invocation instead, so that no state is retained per thread, and
+     * copying it does not allocate.
+     * <p>
+     * This method should be used once for each span reported, as the span is counted by the
+     * reporter's {@link #getStatistics() statistics}, whereas other uses of the span's label
+     * values (e.g. to report its self time) should use {@link #getLabelKey(SpanData, boolean)}.
+     *
+     * @param spanData The span data of a finished span
+     * @return The label key, or null if sample should not be reported
+     */
+    protected LabelKey getLabelKey(SpanData spanData) {
+        return getLabelKey(spanData, true, statistics);
+    }
+
+    /**
+     * This method derives the key representing the values of the labels associated with the
+     * metrics reporter, as {@link #getLabelKey(SpanData)}, for a span that may not have finished,
+     * e.g. when it starts or logs an event.
+     *
+     * @param spanData The span data
+     * @param finished Whether the span has finished
+     * @return The label key, or null if sample should not be reported
+     */
+    protected LabelKey getLabelKey(SpanData spanData, boolean finished) {
+        return getLabelKey(spanData, finished, null);
+    }
+
+    private LabelKey getLabelKey(SpanData spanData, boolean finished, ReporterStatistics statistics) {
+        SpanFilter filter = spanFilter;
+        if (filter != null && !filter.accept(spanData, finished)) {
+            return null;
+        }
+        LabelState state = labelState;
+        LabelKey key = VirtualThreads.isVirtual() ? state.plan.newKey(false) : state.keys.get();
+        int missing = state.plan.derive(spanData, key);
+        if (missing != LabelPlan.DERIVED) {
+            // Don't report span as not all labels are specified
+            if (statistics != null) {
+                statistics.spanSuppressed(state.labels[missing].name());
+            }
+            return null;
+        }
+        if (statistics != null) {
+            statistics.spanReported();
+        }
+        return key;
+    }
+
+    /**
+     * This method reports a batch of finished spans, grouping the spans by the values of their
+     * labels so that the series (e.g. timer or histogram) associated with the label values is
+     * resolved once for each group, rather than once for each span. The series of the most recent
+     * combinations of label values are retained while reporting the batch, so spans sharing the
+     * same label values don't need to be adjacent in the batch.
+     *
+     * @param batch The batch of spans
+     * @param recorder The recorder resolving the series and recording each span
+     * @param <T> The type of the series
+     */
+    protected <T> void reportSpans(SpanBatch batch, SeriesRecorder<T> recorder) {
+        LabelState state = labelState;
+        SpanFilter filter = spanFilter;
+        ReporterStatistics statistics = this.statistics;
+        LabelKey key = state.plan.newKey();
+        LabelKey[] recentKeys = new LabelKey[RECENT_SERIES];
+        Object[] recentSeries = new Object[RECENT_SERIES];
+        int next = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            SpanData spanData = batch.getSpanData(i);
+            if (filter != null && !filter.accept(spanData, true)) {
+                continue;
+            }
+            int missing = state.plan.derive(spanData, key);
+            if (statistics != null) {
+                if (missing == LabelPlan.DERIVED) {
+                    statistics.spanReported();
+                } else {
+                    statistics.spanSuppressed(state.labels[missing].name());
+                }
+            }
+            if (missing != LabelPlan.DERIVED) {
+                continue;
+            }
+            Object series = null;
+            for (int j = 0; j < RECENT_SERIES && recentKeys[j] != null; j++) {
+                if (recentKeys[j].equals(key)) {
+                    series = recentSeries[j];
+                    break;
+                }
+            }
+            if (series == null) {
+                series = recorder.getSeries(key);
+                // Retain the key with the series, and reuse the evicted key (if any) for the next span
+                LabelKey evicted = recentKeys[next];
+                recentKeys[next] = key;
+                recentSeries[next] = series;
+                next = (next + 1) % RECENT_SERIES;
+                key = evicted == null ? state.plan.newKey() : evicted;
+            }
+            @SuppressWarnings("unchecked")
+            T typedSeries = (T) series;
+            recorder.record(typedSeries, batch, i);
+        }
+    }
+
+    /**
+     * This interface is used by {@link AbstractMetricsReporter#reportSpans(SpanBatch, SeriesRecorder)}
+     * to resolve the series associated with a combination of label values, and record a span in it.
+     *
+     * @param <T> The type of the series
+     */
+    protected interface SeriesRecorder<T> {
+
+        /**
+         * This method returns the series associated with the supplied label values. The key is
+         * reused, so must be {@link LabelKey#copy() copied} if it needs to be retained.
+         *
+         * @param key The label values
+         * @return The series
+         */
+        T getSeries(LabelKey key);
+
+        /**
+         * This method records the span at the supplied index of the batch in the series.
+         *
+         * @param series The series
+         * @param batch The batch of spans
+         * @param index The index of the span
+         */
+        void record(T series, SpanBatch batch, int index);
+
+    }
+
+    /**
+     * This class holds the metric labels, the plan compiled from them, and the keys reused by
+     * each platform thread with the plan.
+     *
+     */
+    private static final class LabelState {
+
+        private final MetricLabel[] labels;
+        private final LabelPlan plan;
+        private final ThreadLocal<LabelKey> keys = new ThreadLocal<LabelKey>() {
+            @Override
+            protected LabelKey initialValue() {
+                return plan.newKey();
             }
-            values[i] = value.toString();
+        };
+
+        LabelState(MetricLabel[] labels) {
+            this.labels = labels;
+            this.plan = LabelPlan.compile(labels);
         }
-        return values;
     }
 
 }
@@ -0,0 +1,572 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
+import io.opentracing.contrib.metrics.label.TagMetricLabel;
+import io.opentracing.tag.Tags;
+
+/**
+ * This class provides a {@link MetricsReporter} that reports span metrics to a set of
+ * reporters asynchronously, so that the cost of reporting is not incurred by the thread
+ * that finishes the span.
+ * <p>
+ * The details of each finished span that are required to report its metrics (operation name,
+ * start time, duration, and the tags and baggage items used by the current {@link TagMetricLabel}s
+ * and {@link BaggageMetricLabel}s or explicitly requested via the builder) are copied into a
+ * bounded, lock-free ring buffer, without allocating. The span kind, component and error tags
+ * are always copied, as they are used by span filters and sampling. One or more background
+ * worker threads then report the spans to the configured reporters, as a {@link SpanBatch} to
+ * reporters that implement {@link BatchMetricsReporter}. If the ring buffer is full, the span is
+ * either dropped or the finishing thread waits for space to become available, depending upon
+ * the {@link OverflowPolicy}.
+ * <p>
+ * The {@link SpanData} supplied to the reporters is reused, so must not be retained after the
+ * call to {@link MetricsReporter#reportSpan(SpanData)}. The reporter should be closed when no
+ * longer required, to report any remaining spans and stop the worker threads.
+ * <p>
+ * The optional capabilities of the reporters ({@link InFlightMetricsReporter},
+ * {@link SelfTimeMetricsReporter} and {@link LogEventMetricsReporter}) are forwarded to the
+ * reporters that enable them. These calls are made on the calling thread, as they relate to spans
+ * in progress or precede the report of the finished span, so only the finished spans are reported
+ * asynchronously.
+ *
+ */
+public class AsyncMetricsReporter implements InFlightMetricsReporter, SelfTimeMetricsReporter,
+        LogEventMetricsReporter, Closeable {
+
+    private static final Logger log = Logger.getLogger(AsyncMetricsReporter.class.getName());
+
+    private static final int DRAIN_LIMIT = 256;
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /**
+     * This enum defines how a span is handled when the ring buffer is full.
+     *
+     */
+    public enum OverflowPolicy {
+        /**
+         * The span is dropped and counted in {@link AsyncMetricsReporter#getDroppedCount()}.
+         */
+        DROP,
+        /**
+         * The finishing thread waits until space is available in the ring buffer.
+         */
+        BLOCK
+    }
+
+    private final MetricsReporter[] reporters;
+    private final AbstractMetricsReporter[] labelledReporters;
+    private final InFlightMetricsReporter[] inFlightReporters;
+    private final SelfTimeMetricsReporter[] selfTimeReporters;
+    private final LogEventMetricsReporter[] logEventReporters;
+    private final String[] tagItems;
+    private final String[] baggageItems;
+    private final SpanRingBuffer ringBuffer;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread[] workers;
+    private final LongAdder droppedCount = new LongAdder();
+    private final LongAdder activeProducers = new LongAdder();
+    private volatile SpanKeys spanKeys;
+    private volatile boolean closed;
+
+    protected AsyncMetricsReporter(Set<MetricsReporter> reporters, int capacity, int workerCount,
+            OverflowPolicy overflowPolicy, Set<String> tagKeys, Set<String> baggageKeys) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("At least one worker is required: " + workerCount);
+        }
+        this.reporters = reporters.toArray(new MetricsReporter[reporters.size()]);
+        List<AbstractMetricsReporter> labelled = new ArrayList<AbstractMetricsReporter>();
+        List<InFlightMetricsReporter> inFlight = new ArrayList<InFlightMetricsReporter>();
+        List<SelfTimeMetricsReporter> selfTime = new ArrayList<SelfTimeMetricsReporter>();
+        List<LogEventMetricsReporter> logEvent = new ArrayList<LogEventMetricsReporter>();
+        for (MetricsReporter reporter : reporters) {
+            if (reporter instanceof AbstractMetricsReporter) {
+                labelled.add((AbstractMetricsReporter) reporter);
+            }
+            if (reporter instanceof InFlightMetricsReporter
+                    && ((InFlightMetricsReporter) reporter).isInFlightReported()) {
+                inFlight.add((InFlightMetricsReporter) reporter);
+            }
+            if (reporter instanceof SelfTimeMetricsReporter
+                    && ((SelfTimeMetricsReporter) reporter).isSelfTimeReported()) {
+                selfTime.add((SelfTimeMetricsReporter) reporter);
+            }
+            if (reporter instanceof LogEventMetricsReporter
+                    && ((LogEventMetricsReporter) reporter).isLogEventReported()) {
+                logEvent.add((LogEventMetricsReporter) reporter);
+            }
+        }
+        this.labelledReporters = labelled.toArray(new AbstractMetricsReporter[labelled.size()]);
+        this.inFlightReporters = inFlight.toArray(new InFlightMetricsReporter[inFlight.size()]);
+        this.selfTimeReporters = selfTime.toArray(new SelfTimeMetricsReporter[selfTime.size()]);
+        this.logEventReporters = logEvent.toArray(new LogEventMetricsReporter[logEvent.size()]);
+        this.tagItems = tagKeys.toArray(new String[tagKeys.size()]);
+        this.baggageItems = baggageKeys.toArray(new String[baggageKeys.size()]);
+        this.spanKeys = new SpanKeys(tagItems, baggageItems, labelledReporters);
+        this.ringBuffer = new SpanRingBuffer(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(new Worker(), "opentracing-metrics-reporter-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    @Override
+    public void reportSpan(SpanData spanData) {
+        // Counted while offering the span, so that close() can wait for it to be added before
+        // the workers report the remaining spans
+        activeProducers.increment();
+        try {
+            SpanKeys keys = getSpanKeys();
+            if (!closed && ringBuffer.offer(spanData, keys.tagKeys, keys.baggageKeys)) {
+                return;
+            }
+            if (overflowPolicy == OverflowPolicy.BLOCK) {
+                long parkNanos = MIN_PARK_NANOS;
+                while (!closed) {
+                    LockSupport.parkNanos(parkNanos);
+                    if (ringBuffer.offer(spanData, keys.tagKeys, keys.baggageKeys)) {
+                        return;
+                    }
+                    parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+                }
+            }
+            droppedCount.increment();
+        } finally {
+            activeProducers.decrement();
+        }
+    }
+
+    @Override
+    public boolean isInFlightReported() {
+        return inFlightReporters.length > 0;
+    }
+
+    @Override
+    public LongAdder spanStarted(SpanData metricSpanData) {
+        if (inFlightReporters.length == 1) {
+            return inFlightReporters[0].spanStarted(metricSpanData);
+        }
+        LongAdder[] counters = null;
+        for (int i = 0; i < inFlightReporters.length; i++) {
+            LongAdder counter = inFlightReporters[i].spanStarted(metricSpanData);
+            if (counter != null) {
+                if (counters == null) {
+                    counters = new LongAdder[inFlightReporters.length];
+                }
+                counters[i] = counter;
+            }
+        }
+        return counters == null ? null : new InFlightCounters(counters);
+    }
+
+    @Override
+    public boolean isSelfTimeReported() {
+        return selfTimeReporters.length > 0;
+    }
+
+    @Override
+    public void reportSelfTime(SpanData metricSpanData, long selfTime) {
+        for (SelfTimeMetricsReporter reporter : selfTimeReporters) {
+            reporter.reportSelfTime(metricSpanData, selfTime);
+        }
+    }
+
+    @Override
+    public boolean isLogEventReported() {
+        return logEventReporters.length > 0;
+    }
+
+    @Override
+    public void reportLogEvent(SpanData metricSpanData, String event) {
+        for (LogEventMetricsReporter reporter : logEventReporters) {
+            reporter.reportLogEvent(metricSpanData, event);
+        }
+    }
+
+    @Override
+    public void reportLogEvent(SpanData metricSpanData, Map<String, ?> fields) {
+        for (LogEventMetricsReporter reporter : logEventReporters) {
+            reporter.reportLogEvent(metricSpanData, fields);
+        }
+    }
+
+    /**
+     * This method returns the keys of the tags and baggage items to be copied from each span. The
+     * keys are derived again if the metric labels of a reporter have been replaced, e.g. by a
+     * {@link BaggageMetricLabel} using {@link AbstractMetricsReporter#updateMetricLabels(List)}.
+     *
+     * @return The tag and baggage item keys
+     */
+    private SpanKeys getSpanKeys() {
+        SpanKeys current = spanKeys;
+        for (int i = 0; i < labelledReporters.length; i++) {
+            if (labelledReporters[i].currentMetricLabels() != current.labels[i]) {
+                current = new SpanKeys(tagItems, baggageItems, labelledReporters);
+                spanKeys = current;
+                break;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * This method returns the number of spans that have been dropped, because the ring
+     * buffer was full or the reporter had been closed. A slot in the ring buffer remains
+     * occupied while its span is being reported.
+     *
+     * @return The number of dropped spans
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * This method returns the approximate number of spans waiting to be reported.
+     *
+     * @return The number of pending spans
+     */
+    public int getPendingCount() {
+        return ringBuffer.size();
+    }
+
+    /**
+     * This method returns the capacity of the ring buffer.
+     *
+     * @return The capacity
+     */
+    public int getCapacity() {
+        return ringBuffer.capacity();
+    }
+
+    /**
+     * This method stops accepting spans, reports the spans remaining in the ring buffer
+     * and stops the worker threads. Spans reported concurrently are either reported
+     * before the workers stop, or counted as dropped.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        // Spans being offered have either seen the reporter closed, so will be dropped, or
+        // will be in the ring buffer once they have been offered
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS);
+        long parkNanos = MIN_PARK_NANOS;
+        while (activeProducers.sum() > 0 && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+        }
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final SpanBatch batch = new SpanBatch(DRAIN_LIMIT);
+        private final long[] positions = new long[DRAIN_LIMIT];
+
+        @Override
+        public void run() {
+            long parkNanos = MIN_PARK_NANOS;
+            while (!closed) {
+                if (reportBatch() > 0) {
+                    parkNanos = MIN_PARK_NANOS;
+                } else {
+                    LockSupport.parkNanos(parkNanos);
+                    parkNanos = Math.min(parkNanos << 1, MAX_PARK_NANOS);
+                }
+            }
+            while (reportBatch() > 0) {
+                // Report spans remaining once closed
+            }
+        }
+
+        private int reportBatch() {
+            int count = ringBuffer.drain(batch, positions);
+            if (count > 0) {
+                try {
+                    report(batch);
+                } finally {
+                    batch.clear();
+                    ringBuffer.release(positions, count);
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * This method reports a batch of spans to each reporter, as a batch if the reporter
+     * implements {@link BatchMetricsReporter}, otherwise one span at a time. Any failure,
+     * including an {@link Error} thrown by a reporter, is logged so that the worker continues.
+     *
+     * @param batch The batch of spans
+     */
+    private void report(SpanBatch batch) {
+        for (MetricsReporter reporter : reporters) {
+            if (reporter instanceof BatchMetricsReporter) {
+                try {
+                    ((BatchMetricsReporter) reporter).reportSpans(batch);
+                } catch (Throwable t) {
+                    log.log(Level.WARNING, "Failed to report metrics for batch of "
+                            + batch.size() + " spans", t);
+                }
+            } else {
+                for (int i = 0; i < batch.size(); i++) {
+                    try {
+                        reporter.reportSpan(batch.getSpanData(i));
+                    } catch (Throwable t) {
+                        log.log(Level.WARNING, "Failed to report metrics for span '"
+                                + batch.getOperationName(i) + "'", t);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This class represents the counters of spans in flight of several reporters, incremented
+     * when a span started, so they can be decremented together when the span finishes. All
+     * updates are applied to each of the counters, and the sum is the total of the counters,
+     * so the adder's own (unused) cells never hold a value.
+     *
+     */
+    private static final class InFlightCounters extends LongAdder {
+        private static final long serialVersionUID = 1L;
+
+        private final LongAdder[] counters;
+
+        InFlightCounters(LongAdder[] counters) {
+            this.counters = counters;
+        }
+
+        @Override
+        public void add(long x) {
+            for (LongAdder counter : counters) {
+                if (counter != null) {
+                    counter.add(x);
+                }
+            }
+        }
+
+        @Override
+        public void increment() {
+            add(1L);
+        }
+
+        @Override
+        public void decrement() {
+            add(-1L);
+        }
+
+        @Override
+        public long sum() {
+            long sum = 0;
+            for (LongAdder counter : counters) {
+                if (counter != null) {
+                    sum += counter.sum();
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        public void reset() {
+            for (LongAdder counter : counters) {
+                if (counter != null) {
+                    counter.reset();
+                }
+            }
+        }
+
+        @Override
+        public long sumThenReset() {
+            long sum = 0;
+            for (LongAdder counter : counters) {
+                if (counter != null) {
+                    sum += counter.sumThenReset();
+                }
+            }
+            return sum;
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(sum());
+        }
+
+        @Override
+        public long longValue() {
+            return sum();
+        }
+
+        @Override
+        public int intValue() {
+            return (int) sum();
+        }
+
+        @Override
+        public float floatValue() {
+            return (float) sum();
+        }
+
+        @Override
+        public double doubleValue() {
+            return (double) sum();
+        }
+    }
+
+    /**
+     * This class holds the keys of the tags and baggage items to be copied from each span, and
+     * the metric labels of the reporters from which they were derived.
+     *
+     */
+    private static final class SpanKeys {
+        private final MetricLabel[][] labels;
+        private final String[] tagKeys;
+        private final String[] baggageKeys;
+
+        SpanKeys(String[] tagItems, String[] baggageItems, AbstractMetricsReporter[] reporters) {
+            Set<String> tagSet = new LinkedHashSet<String>();
+            tagSet.add(Tags.SPAN_KIND.getKey());
+            tagSet.add(Tags.COMPONENT.getKey());
+            tagSet.add(Tags.ERROR.getKey());
+            Collections.addAll(tagSet, tagItems);
+            Set<String> baggageSet = new LinkedHashSet<String>();
+            Collections.addAll(baggageSet, baggageItems);
+            labels = new MetricLabel[reporters.length][];
+            for (int i = 0; i < reporters.length; i++) {
+                labels[i] = reporters[i].currentMetricLabels();
+                for (MetricLabel label : labels[i]) {
+                    if (label instanceof TagMetricLabel) {
+                        tagSet.add(label.name());
+                    } else if (label instanceof BaggageMetricLabel) {
+                        baggageSet.add(label.name());
+                    }
+                }
+            }
+            tagKeys = tagSet.toArray(new String[tagSet.size()]);
+            baggageKeys = baggageSet.toArray(new String[baggageSet.size()]);
+        }
+    }
+
+    public static Builder newMetricsReporter() {
+        return new Builder();
+    }
+
+    /**
+     * This builder class is responsible for creating an instance of the asynchronous
+     * metrics reporter.
+     *
+     */
+    public static class Builder {
+        private Set<MetricsReporter> reporters = new LinkedHashSet<MetricsReporter>();
+        private Set<String> tagKeys = new LinkedHashSet<String>();
+        private Set<String> baggageKeys = new LinkedHashSet<String>();
+        private int capacity = 8192;
+        private int workers = 1;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+
+        public Builder withReporter(MetricsReporter reporter) {
+            reporters.add(reporter);
+            return this;
+        }
+
+        public Builder withReporters(Set<MetricsReporter> reporters) {
+            this.reporters.addAll(reporters);
+            return this;
+        }
+
+        /**
+         * This method sets the capacity of the ring buffer, which will be rounded up to
+         * a power of two.
+         *
+         * @param capacity The capacity
+         * @return The builder
+         */
+        public Builder withCapacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        public Builder withWorkers(int workers) {
+            this.workers = workers;
+            return this;
+        }
+
+        public Builder withOverflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * This method identifies a tag that must be copied from each span, as it is used by
+         * a custom {@link MetricLabel} or reporter. Other tags are not available to the
+         * reporters. Tags used by {@link TagMetricLabel}s of {@link AbstractMetricsReporter}s
+         * are copied automatically, including labels that replace the original labels after
+         * the reporter is built.
+         *
+         * @param key The tag key
+         * @return The builder
+         */
+        public Builder withTag(String key) {
+            tagKeys.add(key);
+            return this;
+        }
+
+        /**
+         * This method identifies a baggage item that must be copied from each span, as it
+         * is used by a custom {@link MetricLabel}. Baggage items used by {@link BaggageMetricLabel}s
+         * of {@link AbstractMetricsReporter}s are copied automatically, including labels that
+         * replace the original labels after the reporter is built.
+         *
+         * @param key The baggage item key
+         * @return The builder
+         */
+        public Builder withBaggageItem(String key) {
+            baggageKeys.add(key);
+            return this;
+        }
+
+        public AsyncMetricsReporter build() {
+            return new AsyncMetricsReporter(reporters, capacity, workers, overflowPolicy, tagKeys, baggageKeys);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+/**
+ * This interface is implemented by a {@link MetricsReporter} that is able to report a batch
+ * of finished spans in a single call, e.g. to resolve the metric associated with a combination
+ * of label values once for all of the spans in the batch that share it. Reporters that don't
+ * implement this interface can be supplied with a batch using {@link SpanBatch#report(MetricsReporter)}.
+ *
+ */
+public interface BatchMetricsReporter extends MetricsReporter {
+
+    /**
+     * This method reports metrics based on the spans in the supplied batch. The batch (and the
+     * span data it contains) must not be retained after the call.
+     *
+     * @param batch The batch of finished spans
+     */
+    void reportSpans(SpanBatch batch);
+
+}
@@ -0,0 +1,312 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.opentracing.ScopeManager;
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.api.SpanObserver;
+import io.opentracing.contrib.api.TracerObserver;
+import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
+import io.opentracing.contrib.metrics.label.TagMetricLabel;
+
+/**
+ * This class provides an alternative to the {@link MetricsObserver} that captures the values of
+ * the tags and baggage items used by the reporters' metric labels as they are set on the span,
+ * so that when the span finishes the label values are read from a small fixed set of slots
+ * rather than looked up in the span's full set of tags.
+ * <p>
+ * The tags and baggage items captured are identified from the {@link TagMetricLabel}s and
+ * {@link BaggageMetricLabel}s of reporters derived from {@link AbstractMetricsReporter}. Any
+ * other tags or baggage items requested by a reporter or label are obtained from the span,
+ * so all reporters and labels are supported, but only the identified ones benefit.
+ * <p>
+ * As with the {@link MetricsObserver}, reporters implementing {@link InFlightMetricsReporter}
+ * are notified when spans start, to count the spans in flight, and if a {@link ScopeManager} is
+ * supplied, reporters implementing {@link SelfTimeMetricsReporter} report the self time of spans.
+ * Events logged on spans are passed to reporters implementing {@link LogEventMetricsReporter}.
+ * <p>
+ * The reporters can be replaced at runtime using {@link #setMetricsReporters(Set)}. Spans use the
+ * tags and baggage items identified when they started, and are reported to the reporters current
+ * when they finish.
+ *
+ */
+public class CapturingMetricsObserver implements TracerObserver {
+
+    private final ScopeManager scopeManager;
+    private volatile Configuration configuration;
+
+    public CapturingMetricsObserver(MetricsReporter metricsReporter) {
+        this(Collections.singleton(metricsReporter));
+    }
+
+    public CapturingMetricsObserver(Set<MetricsReporter> metricsReporters) {
+        this(metricsReporters, null);
+    }
+
+    /**
+     * The constructor for the observer.
+     *
+     * @param metricsReporters The reporters
+     * @param scopeManager The scope manager used to identify the parent of each span, or null
+     *          if the self time of spans should not be reported
+     */
+    public CapturingMetricsObserver(Set<MetricsReporter> metricsReporters, ScopeManager scopeManager) {
+        this.scopeManager = scopeManager;
+        this.configuration = new Configuration(new ReporterSet(metricsReporters, scopeManager, null));
+    }
+
+    /**
+     * This method returns the current reporters.
+     *
+     * @return The unmodifiable set of reporters
+     */
+    public Set<MetricsReporter> getMetricsReporters() {
+        return configuration.reporters.getMetricsReporters();
+    }
+
+    /**
+     * This method atomically replaces the reporters, and the tags and baggage items captured
+     * for spans that start subsequently.
+     *
+     * @param metricsReporters The new reporters
+     */
+    public synchronized void setMetricsReporters(Set<MetricsReporter> metricsReporters) {
+        configuration = new Configuration(new ReporterSet(metricsReporters, scopeManager, configuration.reporters));
+    }
+
+    @Override
+    public SpanObserver onStart(SpanData spanData) {
+        return new CapturingSpanObserver(spanData, configuration);
+    }
+
+    /**
+     * This method returns a mask with a bit set for the hash code of each of the supplied keys,
+     * so that most keys that are not captured can be rejected without comparing them to the
+     * captured keys.
+     *
+     * @param keys The captured keys
+     * @return The mask
+     */
+    private static long keyMask(String[] keys) {
+        long mask = 0;
+        for (String key : keys) {
+            mask |= 1L << key.hashCode();
+        }
+        return mask;
+    }
+
+    /**
+     * This method returns the index of the supplied key within the captured keys. The
+     * number of keys is expected to be small, so a linear search is used.
+     *
+     * @param keys The captured keys
+     * @param key The key
+     * @return The index, or -1 if not captured
+     */
+    private static int indexOf(String[] keys, Object key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * This class holds the reporters and the tags and baggage items captured for them.
+     *
+     */
+    private static final class Configuration {
+
+        private final ReporterSet reporters;
+        private final String[] tagKeys;
+        private final String[] baggageKeys;
+        private final long tagKeyMask;
+
+        Configuration(ReporterSet reporters) {
+            Set<String> tags = new LinkedHashSet<String>();
+            Set<String> baggage = new LinkedHashSet<String>();
+            for (MetricsReporter reporter : reporters.getReporters()) {
+                if (reporter instanceof AbstractMetricsReporter) {
+                    for (MetricLabel label : ((AbstractMetricsReporter) reporter).getMetricLabels()) {
+                        if (label instanceof TagMetricLabel) {
+                            tags.add(label.name());
+                        } else if (label instanceof BaggageMetricLabel) {
+                            baggage.add(label.name());
+                        }
+                    }
+                }
+            }
+            this.reporters = reporters;
+            this.tagKeys = tags.toArray(new String[tags.size()]);
+            this.baggageKeys = baggage.toArray(new String[baggage.size()]);
+            this.tagKeyMask = keyMask(tagKeys);
+        }
+    }
+
+    /**
+     * This class observes a single span, capturing the values of the identified tags and
+     * baggage items, and presents the captured values to the reporters when the span finishes.
+     *
+     */
+    private class CapturingSpanObserver implements SpanObserver, SpanData {
+
+        private final SpanData spanData;
+        private final String[] tagKeys;
+        private final String[] baggageKeys;
+        private final long tagKeyMask;
+        private final Object[] tagValues;
+        private final String[] baggageValues;
+        private final Map<String, Object> tags = new CapturedTags();
+        private final LongAdder[] inFlight;
+        private final LongAdder parentChildDurations;
+        private String operationName;
+
+        CapturingSpanObserver(SpanData spanData, Configuration configuration) {
+            this.spanData = spanData;
+            this.tagKeys = configuration.tagKeys;
+            this.baggageKeys = configuration.baggageKeys;
+            this.tagKeyMask = configuration.tagKeyMask;
+            this.tagValues = new Object[tagKeys.length];
+            this.baggageValues = new String[baggageKeys.length];
+            this.operationName = spanData.getOperationName();
+
+            // Capture the tags supplied when the span was built
+            Map<String, Object> initialTags = spanData.getTags();
+            if (!initialTags.isEmpty()) {
+                for (int i = 0; i < tagKeys.length; i++) {
+                    tagValues[i] = initialTags.get(tagKeys[i]);
+                }
+            }
+            this.inFlight = configuration.reporters.spanStarted(this);
+            this.parentChildDurations = configuration.reporters.childStarted();
+        }
+
+        @Override
+        public void onSetOperationName(SpanData spanData, String operationName) {
+            this.operationName = operationName;
+        }
+
+        @Override
+        public void onSetTag(SpanData spanData, String key, Object value) {
+            if ((tagKeyMask & (1L << key.hashCode())) == 0) {
+                return;
+            }
+            int index = indexOf(tagKeys, key);
+            if (index != -1) {
+                tagValues[index] = value;
+            }
+        }
+
+        @Override
+        public void onSetBaggageItem(SpanData spanData, String key, String value) {
+            int index = indexOf(baggageKeys, key);
+            if (index != -1) {
+                baggageValues[index] = value;
+            }
+        }
+
+        @Override
+        public void onLog(SpanData spanData, long timestampMicroseconds, Map<String, ?> fields) {
+            configuration.reporters.reportLogEvent(this, fields);
+        }
+
+        @Override
+        public void onLog(SpanData spanData, long timestampMicroseconds, String event) {
+            configuration.reporters.reportLogEvent(this, event);
+        }
+
+        @Override
+        public void onFinish(SpanData spanData, long finishMicros) {
+            ReporterSet.spanFinished(inFlight);
+            if (parentChildDurations != null) {
+                parentChildDurations.add(spanData.getDuration());
+            }
+            // Reported to the reporters current when the span finishes
+            configuration.reporters.reportSpan(spanData, this);
+        }
+
+        @Override
+        public Object getCorrelationId() {
+            return spanData.getCorrelationId();
+        }
+
+        @Override
+        public long getStartTime() {
+            return spanData.getStartTime();
+        }
+
+        @Override
+        public long getDuration() {
+            return spanData.getDuration();
+        }
+
+        @Override
+        public String getOperationName() {
+            return operationName;
+        }
+
+        @Override
+        public Map<String, Object> getTags() {
+            return tags;
+        }
+
+        @Override
+        public String getBaggageItem(String key) {
+            int index = indexOf(baggageKeys, key);
+            if (index != -1 && baggageValues[index] != null) {
+                return baggageValues[index];
+            }
+            // Not captured, or inherited from the parent span
+            return spanData.getBaggageItem(key);
+        }
+
+        /**
+         * This class presents the span's tags, returning captured values from their slots
+         * and obtaining any others from the span.
+         *
+         */
+        private class CapturedTags extends AbstractMap<String, Object> {
+
+            @Override
+            public Object get(Object key) {
+                int index = indexOf(tagKeys, key);
+                return index == -1 ? spanData.getTags().get(key) : tagValues[index];
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                int index = indexOf(tagKeys, key);
+                return index == -1 ? spanData.getTags().containsKey(key) : tagValues[index] != null;
+            }
+
+            @Override
+            public Set<Map.Entry<String, Object>> entrySet() {
+                return spanData.getTags().entrySet();
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class limits the number of distinct combinations of label values reported by a
+ * metrics reporter, to bound the number of metrics created when a label is derived from
+ * an unbounded value (e.g. a URL). Optionally the number of distinct values of individual
+ * labels can also be limited.
+ * <p>
+ * Once a limit is reached, spans with new label values are folded into an overflow series:
+ * a label whose own limit has been reached has its value replaced with {@link #OVERFLOW_VALUE},
+ * and if the combined limit has been reached all label values are replaced. The number of
+ * folded spans is available from {@link #getOverflowCount()}.
+ * <p>
+ * Checking a combination of label values that has already been admitted requires a single hash
+ * lookup, so the limiter can be used on the reporting path. Admitting new label values is guarded
+ * by a {@link Lock} rather than a monitor, so a virtual thread waiting to admit values does not
+ * pin its carrier thread, and no state is held per thread.
+ *
+ */
+public class CardinalityLimiter {
+
+    /**
+     * The label value used to represent values that have been folded into the overflow series.
+     */
+    public static final String OVERFLOW_VALUE = "__overflow__";
+
+    private final int maxCombinations;
+    private final int[] maxLabelValues;
+    private final Set<Object>[] labelValues;
+    private final Set<LabelKey> admitted = Collections.newSetFromMap(new ConcurrentHashMap<LabelKey, Boolean>());
+    private final LabelKey overflowKey;
+    private final LongAdder overflowCount = new LongAdder();
+    private final Lock admitLock = new ReentrantLock();
+    private volatile int admittedCount;
+
+    /**
+     * The constructor for the limiter.
+     *
+     * @param labels The metric labels of the reporter, in order
+     * @param maxCombinations The maximum number of distinct combinations of label values
+     * @param maxLabelValues The optional maximum number of distinct values for individual labels, by name
+     */
+    @SuppressWarnings("unchecked")
+    public CardinalityLimiter(List<MetricLabel> labels, int maxCombinations, Map<String, Integer> maxLabelValues) {
+        if (maxCombinations < 1) {
+            throw new IllegalArgumentException("Maximum combinations must be positive: " + maxCombinations);
+        }
+        this.maxCombinations = maxCombinations;
+        this.maxLabelValues = new int[labels.size()];
+        this.labelValues = new Set[labels.size()];
+        Object[] overflowValues = new Object[labels.size()];
+        for (int i = 0; i < labels.size(); i++) {
+            Integer max = maxLabelValues.get(labels.get(i).name());
+            if (max != null) {
+                this.maxLabelValues[i] = max;
+                this.labelValues[i] = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+            }
+            overflowValues[i] = OVERFLOW_VALUE;
+        }
+        this.overflowKey = LabelKey.of(overflowValues);
+    }
+
+    /**
+     * This method checks whether the supplied label values can be reported. If they
+     * exceed a limit, then the key of the overflow series they have been folded into
+     * is returned. The returned key must be {@link LabelKey#copy() copied} if it needs
+     * to be retained.
+     *
+     * @param key The label values
+     * @return The supplied key if admitted, otherwise the overflow key
+     */
+    public LabelKey admit(LabelKey key) {
+        if (admitted.contains(key)) {
+            return key;
+        }
+        LabelKey candidate = fold(key);
+        if (candidate != key && admitted.contains(candidate)) {
+            overflowCount.increment();
+            return candidate;
+        }
+        if (admittedCount >= maxCombinations) {
+            overflowCount.increment();
+            return overflowKey;
+        }
+        return admitNew(candidate, candidate != key);
+    }
+
+    /**
+     * This method returns the number of spans that have been folded into an overflow series.
+     *
+     * @return The number of folded spans
+     */
+    public long getOverflowCount() {
+        return overflowCount.sum();
+    }
+
+    /**
+     * This method returns the number of distinct combinations of label values admitted.
+     *
+     * @return The number of admitted combinations
+     */
+    public int getAdmittedCount() {
+        return admittedCount;
+    }
+
+    private LabelKey admitNew(LabelKey candidate, boolean folded) {
+        admitLock.lock();
+        try {
+            if (!admitted.contains(candidate)) {
+                if (admittedCount >= maxCombinations || exceedsLabelLimit(candidate)) {
+                    // Limit reached by another thread since checked
+                    overflowCount.increment();
+                    return overflowKey;
+                }
+                LabelKey retained = candidate.copy();
+                for (int i = 0; i < labelValues.length; i++) {
+                    if (labelValues[i] != null) {
+                        labelValues[i].add(retained.value(i));
+                    }
+                }
+                admitted.add(retained);
+                admittedCount++;
+            }
+        } finally {
+            admitLock.unlock();
+        }
+        if (folded) {
+            overflowCount.increment();
+        }
+        return candidate;
+    }
+
+    private LabelKey fold(LabelKey key) {
+        LabelKey folded = null;
+        for (int i = 0; i < labelValues.length; i++) {
+            Set<Object> values = labelValues[i];
+            if (values != null && values.size() >= maxLabelValues[i] && !values.contains(key.value(i))) {
+                if (folded == null) {
+                    // Only allocated when folding, as the folded key is not reused
+                    folded = new LabelKey(labelValues.length, false);
+                    for (int j = 0; j < labelValues.length; j++) {
+                        folded.set(j, key.value(j));
+                    }
+                }
+                folded.set(i, OVERFLOW_VALUE);
+            }
+        }
+        if (folded == null) {
+            return key;
+        }
+        folded.rehash();
+        return folded;
+    }
+
+    private boolean exceedsLabelLimit(LabelKey key) {
+        for (int i = 0; i < labelValues.length; i++) {
+            Set<Object> values = labelValues[i];
+            Object value = key.value(i);
+            if (values != null && values.size() >= maxLabelValues[i] && !values.contains(value)
+                    && !OVERFLOW_VALUE.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This interface is implemented by a {@link MetricsReporter} that reports the number of spans
+ * in flight, i.e. started but not yet finished, per combination of label values.
+ * <p>
+ * When a span starts, the reporter increments the counter associated with the span's label values
+ * and returns it, and the observer decrements the same counter when the span finishes. The label
+ * values are therefore derived from the span when it starts, so labels based on tags set later
+ * (e.g. the error tag) will have their values as at the start of the span. The counters are
+ * striped, so spans starting and finishing concurrently for the same label values do not
+ * contend on a single atomic value.
+ *
+ */
+public interface InFlightMetricsReporter extends MetricsReporter {
+
+    /**
+     * This method identifies whether the reporter counts spans in flight. It is checked when the
+     * reporter is registered with an observer, so that the reporter is only notified when spans
+     * start if required.
+     *
+     * @return Whether spans in flight are counted
+     */
+    boolean isInFlightReported();
+
+    /**
+     * This method reports that the span associated with the supplied {@link SpanData} has started.
+     *
+     * @param metricSpanData Span data including operation, tags and baggage
+     * @return The incremented counter, to be decremented when the span finishes, or null if the
+     *          span is not counted
+     */
+    LongAdder spanStarted(SpanData metricSpanData);
+
+}
@@ -0,0 +1,505 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This class provides a {@link MetricsReporter} that isolates the observer, and any other
+ * reporters, from faults and stalls in a single reporter.
+ * <p>
+ * Exceptions thrown by the reporter are logged and counted rather than propagated. Errors are
+ * also counted as failures, with those indicating the JVM cannot continue (such as
+ * {@link OutOfMemoryError}) propagated once the failure is recorded. The duration
+ * of each call is measured against a time budget, and a call that exceeds the budget is treated
+ * as a (slow) failure. As the call is made on the thread finishing the span, it cannot be
+ * interrupted when the budget is exceeded - to also remove a stalled reporter from the request
+ * path, wrap the isolated reporter in an {@link AsyncMetricsReporter}.
+ * <p>
+ * After a number of consecutive failed or slow calls, a circuit breaker opens and calls to the
+ * reporter are shed (and counted) for a cool down period. The next call after the cool down is
+ * a trial: if it succeeds the breaker closes, otherwise it opens again for another period.
+ * <p>
+ * The optional capabilities of the wrapped reporter ({@link WeightedMetricsReporter},
+ * {@link BatchMetricsReporter}, {@link InFlightMetricsReporter}, {@link SelfTimeMetricsReporter} and
+ * {@link LogEventMetricsReporter}) are retained, with the calls subject to the same isolation.
+ *
+ */
+public class IsolatedMetricsReporter implements WeightedMetricsReporter, BatchMetricsReporter,
+        InFlightMetricsReporter, SelfTimeMetricsReporter, LogEventMetricsReporter {
+
+    private static final Logger log = Logger.getLogger(IsolatedMetricsReporter.class.getName());
+
+    public static final long DEFAULT_TIME_BUDGET_MILLIS = 10;
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // Upper bounds of the latency distribution buckets, in decades from 1us to 1s
+    private static final long[] LATENCY_BUCKET_BOUNDS_NANOS = {
+        TimeUnit.MICROSECONDS.toNanos(1), TimeUnit.MICROSECONDS.toNanos(10), TimeUnit.MICROSECONDS.toNanos(100),
+        TimeUnit.MILLISECONDS.toNanos(1), TimeUnit.MILLISECONDS.toNanos(10), TimeUnit.MILLISECONDS.toNanos(100),
+        TimeUnit.SECONDS.toNanos(1)
+    };
+
+    /**
+     * This enum defines the states of the circuit breaker.
+     *
+     */
+    public enum State {
+        /**
+         * Calls are passed to the reporter.
+         */
+        CLOSED,
+        /**
+         * Calls are shed until the cool down period has elapsed.
+         */
+        OPEN,
+        /**
+         * A single trial call has been passed to the reporter, other calls are shed until
+         * its outcome is known.
+         */
+        HALF_OPEN
+    }
+
+    private final MetricsReporter reporter;
+    private final long timeBudgetNanos;
+    private final int failureThreshold;
+    private final long openDurationNanos;
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt;
+
+    private final LongAdder callCount = new LongAdder();
+    private final LongAdder failureCount = new LongAdder();
+    private final LongAdder slowCallCount = new LongAdder();
+    private final LongAdder shedCount = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final AtomicLong maxLatency = new AtomicLong();
+    private final LongAdder[] latencyCounts = new LongAdder[LATENCY_BUCKET_BOUNDS_NANOS.length + 1];
+
+    protected IsolatedMetricsReporter(MetricsReporter reporter, long timeBudgetNanos, int failureThreshold,
+            long openDurationNanos) {
+        if (reporter == null) {
+            throw new IllegalArgumentException("A reporter is required");
+        }
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Failure threshold must be at least one: " + failureThreshold);
+        }
+        this.reporter = reporter;
+        this.timeBudgetNanos = timeBudgetNanos;
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = openDurationNanos;
+        for (int i = 0; i < latencyCounts.length; i++) {
+            latencyCounts[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public void reportSpan(SpanData spanData) {
+        if (!isCallPermitted()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            reporter.reportSpan(spanData);
+        } catch (Throwable e) {
+            callFailed(start, "report metrics for span '" + spanData.getOperationName() + "'", e);
+            return;
+        }
+        callCompleted(start);
+    }
+
+    @Override
+    public boolean isWeightSupported() {
+        return reporter instanceof WeightedMetricsReporter
+                && ((WeightedMetricsReporter) reporter).isWeightSupported();
+    }
+
+    @Override
+    public void reportSpan(SpanData spanData, long weight) {
+        if (!(reporter instanceof WeightedMetricsReporter)) {
+            if (weight != 1) {
+                throw new IllegalArgumentException("Reporter does not support weights: " + reporter);
+            }
+            reportSpan(spanData);
+            return;
+        }
+        if (!isCallPermitted()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            ((WeightedMetricsReporter) reporter).reportSpan(spanData, weight);
+        } catch (Throwable e) {
+            callFailed(start, "report metrics for span '" + spanData.getOperationName() + "'", e);
+            return;
+        }
+        callCompleted(start);
+    }
+
+    @Override
+    public void reportSpans(SpanBatch batch) {
+        if (!isCallPermitted()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            batch.report(reporter);
+        } catch (Throwable e) {
+            callFailed(start, "report metrics for batch of " + batch.size() + " spans", e);
+            return;
+        }
+        callCompleted(start);
+    }
+
+    @Override
+    public boolean isInFlightReported() {
+        return reporter instanceof InFlightMetricsReporter
+                && ((InFlightMetricsReporter) reporter).isInFlightReported();
+    }
+
+    @Override
+    public LongAdder spanStarted(SpanData metricSpanData) {
+        if (!isInFlightReported() || !isCallPermitted()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        LongAdder counter;
+        try {
+            counter = ((InFlightMetricsReporter) reporter).spanStarted(metricSpanData);
+        } catch (Throwable e) {
+            callFailed(start, "report start of span '" + metricSpanData.getOperationName() + "'", e);
+            return null;
+        }
+        callCompleted(start);
+        return counter;
+    }
+
+    @Override
+    public boolean isSelfTimeReported() {
+        return reporter instanceof SelfTimeMetricsReporter
+                && ((SelfTimeMetricsReporter) reporter).isSelfTimeReported();
+    }
+
+    @Override
+    public void reportSelfTime(SpanData metricSpanData, long selfTime) {
+        if (!isSelfTimeReported() || !isCallPermitted()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            ((SelfTimeMetricsReporter) reporter).reportSelfTime(metricSpanData, selfTime);
+        } catch (Throwable e) {
+            callFailed(start, "report self time of span '" + metricSpanData.getOperationName() + "'", e);
+            return;
+        }
+        callCompleted(start);
+    }
+
+    @Override
+    public boolean isLogEventReported() {
+        return reporter instanceof LogEventMetricsReporter
+                && ((LogEventMetricsReporter) reporter).isLogEventReported();
+    }
+
+    @Override
+    public void reportLogEvent(SpanData metricSpanData, String event) {
+        if (!isLogEventReported() || !isCallPermitted()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            ((LogEventMetricsReporter) reporter).reportLogEvent(metricSpanData, event);
+        } catch (Throwable e) {
+            callFailed(start, "report log event of span '" + metricSpanData.getOperationName() + "'", e);
+            return;
+        }
+        callCompleted(start);
+    }
+
+    @Override
+    public void reportLogEvent(SpanData metricSpanData, Map<String, ?> fields) {
+        if (!isLogEventReported() || !isCallPermitted()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            ((LogEventMetricsReporter) reporter).reportLogEvent(metricSpanData, fields);
+        } catch (Throwable e) {
+            callFailed(start, "report log event of span '" + metricSpanData.getOperationName() + "'", e);
+            return;
+        }
+        callCompleted(start);
+    }
+
+    /**
+     * This method returns the wrapped reporter.
+     *
+     * @return The reporter
+     */
+    public MetricsReporter getReporter() {
+        return reporter;
+    }
+
+    /**
+     * This method returns the current state of the circuit breaker.
+     *
+     * @return The state
+     */
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * This method returns the number of calls made to the reporter, including those that failed.
+     *
+     * @return The number of calls
+     */
+    public long getCallCount() {
+        return callCount.sum();
+    }
+
+    /**
+     * This method returns the number of calls to the reporter that threw an exception.
+     *
+     * @return The number of failed calls
+     */
+    public long getFailureCount() {
+        return failureCount.sum();
+    }
+
+    /**
+     * This method returns the number of calls to the reporter that exceeded the time budget.
+     *
+     * @return The number of slow calls
+     */
+    public long getSlowCallCount() {
+        return slowCallCount.sum();
+    }
+
+    /**
+     * This method returns the number of calls that were not made to the reporter because the
+     * circuit breaker was open.
+     *
+     * @return The number of shed calls
+     */
+    public long getShedCount() {
+        return shedCount.sum();
+    }
+
+    /**
+     * This method returns the total time spent in calls to the reporter.
+     *
+     * @param unit The required unit
+     * @return The total latency
+     */
+    public long getTotalLatency(TimeUnit unit) {
+        return unit.convert(totalLatency.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * This method returns the longest time spent in a single call to the reporter.
+     *
+     * @param unit The required unit
+     * @return The maximum latency
+     */
+    public long getMaxLatency(TimeUnit unit) {
+        return unit.convert(maxLatency.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * This method returns the upper bounds of the latency distribution buckets, in decades
+     * from 1 microsecond to 1 second. The distribution has a further bucket for calls taking
+     * longer than the last bound.
+     *
+     * @param unit The required unit
+     * @return The bucket bounds
+     */
+    public static long[] getLatencyBucketBounds(TimeUnit unit) {
+        long[] bounds = new long[LATENCY_BUCKET_BOUNDS_NANOS.length];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = unit.convert(LATENCY_BUCKET_BOUNDS_NANOS[i], TimeUnit.NANOSECONDS);
+        }
+        return bounds;
+    }
+
+    /**
+     * This method returns the number of calls to the reporter in each latency bucket. The
+     * count at an index is the number of calls taking less than the bound at the same index
+     * of {@link #getLatencyBucketBounds(TimeUnit)}, and at least the previous bound, with the
+     * last count being the number of calls taking at least the last bound.
+     *
+     * @return The number of calls per latency bucket
+     */
+    public long[] getLatencyCounts() {
+        long[] counts = new long[latencyCounts.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencyCounts[i].sum();
+        }
+        return counts;
+    }
+
+    private boolean isCallPermitted() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN && System.nanoTime() - openedAt >= openDurationNanos
+                && state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+            return true;
+        }
+        shedCount.increment();
+        return false;
+    }
+
+    private void callCompleted(long start) {
+        long latency = record(start);
+        if (latency > timeBudgetNanos) {
+            slowCallCount.increment();
+            failure(null, latency);
+        } else {
+            if (consecutiveFailures.get() != 0) {
+                consecutiveFailures.set(0);
+            }
+            if (state.get() == State.HALF_OPEN) {
+                state.compareAndSet(State.HALF_OPEN, State.CLOSED);
+            }
+        }
+    }
+
+    private void callFailed(long start, String action, Throwable e) {
+        long latency = record(start);
+        failureCount.increment();
+        if (state.get() == State.CLOSED && consecutiveFailures.get() == 0) {
+            // Only the first of a sequence of failures is logged with the exception
+            log.log(Level.WARNING, "Failed to " + action + " with reporter " + reporter, e);
+        }
+        failure(e, latency);
+        if (e instanceof VirtualMachineError) {
+            // The breaker has left the trial state, but the JVM may be unable to continue
+            throw (VirtualMachineError) e;
+        }
+    }
+
+    private long record(long start) {
+        long latency = System.nanoTime() - start;
+        callCount.increment();
+        totalLatency.add(latency);
+        latencyCounts[bucketIndex(latency)].increment();
+        long max = maxLatency.get();
+        while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+            max = maxLatency.get();
+        }
+        return latency;
+    }
+
+    private static int bucketIndex(long latency) {
+        int index = 0;
+        while (index < LATENCY_BUCKET_BOUNDS_NANOS.length && latency >= LATENCY_BUCKET_BOUNDS_NANOS[index]) {
+            index++;
+        }
+        return index;
+    }
+
+    private void failure(Throwable e, long latency) {
+        State current = state.get();
+        if (current == State.HALF_OPEN) {
+            open(State.HALF_OPEN, e, latency);
+        } else if (current == State.CLOSED && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(State.CLOSED, e, latency);
+        }
+    }
+
+    private void open(State expected, Throwable e, long latency) {
+        // The opening time is published by the state transition
+        openedAt = System.nanoTime();
+        if (state.compareAndSet(expected, State.OPEN)) {
+            consecutiveFailures.set(0);
+            log.log(Level.WARNING, "Shedding calls to reporter " + reporter + " for "
+                    + TimeUnit.NANOSECONDS.toMillis(openDurationNanos) + "ms after "
+                    + (e == null ? "a call taking " + TimeUnit.NANOSECONDS.toMicros(latency) + "us" : "failure: " + e));
+        }
+    }
+
+    public static Builder newMetricsReporter() {
+        return new Builder();
+    }
+
+    /**
+     * This builder class is responsible for creating an instance of the isolated
+     * metrics reporter.
+     *
+     */
+    public static class Builder {
+        private MetricsReporter reporter;
+        private long timeBudget = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TIME_BUDGET_MILLIS);
+        private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+        private long openDuration = TimeUnit.MILLISECONDS.toNanos(DEFAULT_OPEN_DURATION_MILLIS);
+
+        public Builder withReporter(MetricsReporter reporter) {
+            this.reporter = reporter;
+            return this;
+        }
+
+        /**
+         * This method sets the duration above which a call to the reporter is treated as a failure.
+         *
+         * @param timeBudget The time budget
+         * @param unit The unit of the time budget
+         * @return The builder
+         */
+        public Builder withTimeBudget(long timeBudget, TimeUnit unit) {
+            this.timeBudget = unit.toNanos(timeBudget);
+            return this;
+        }
+
+        /**
+         * This method sets the number of consecutive failed or slow calls that open the
+         * circuit breaker.
+         *
+         * @param failureThreshold The failure threshold, at least one
+         * @return The builder
+         */
+        public Builder withFailureThreshold(int failureThreshold) {
+            this.failureThreshold = failureThreshold;
+            return this;
+        }
+
+        /**
+         * This method sets the duration for which calls are shed once the circuit breaker opens.
+         *
+         * @param openDuration The cool down period
+         * @param unit The unit of the cool down period
+         * @return The builder
+         */
+        public Builder withOpenDuration(long openDuration, TimeUnit unit) {
+            this.openDuration = unit.toNanos(openDuration);
+            return this;
+        }
+
+        public IsolatedMetricsReporter build() {
+            return new IsolatedMetricsReporter(reporter, timeBudget, failureThreshold, openDuration);
+        }
+    }
+}
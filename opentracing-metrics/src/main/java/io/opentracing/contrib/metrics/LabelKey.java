@@ -0,0 +1,262 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.Arrays;
+
+/**
+ * This class represents the combination of label values derived for a span, in the order
+ * of the reporter's metric labels. It can be used as a hash key to identify the metric
+ * associated with the span, without converting the label values to strings.
+ * <p>
+ * Label values of the common immutable value types (strings, booleans, characters, integral
+ * primitive wrappers and enums) are held as returned by the {@link MetricLabel}, so custom
+ * labels returning such values take part without allocation. Values of any other type,
+ * including floating point values, are converted to a string.
+ * <p>
+ * As reporters export the label values as strings, keys are equal when the string
+ * representations of their values are equal, e.g. {@code Boolean.FALSE} and {@code "false"},
+ * or {@code 200} and {@code "200"}, identify the same series. The hash code and equality are
+ * computed from the string representations without creating them.
+ * <p>
+ * A key supplied to a reporter may be reused for subsequent spans (e.g. when reporting a
+ * {@link SpanBatch}, or on the same platform thread), so must be {@link #copy() copied} if it
+ * needs to be retained, e.g. when stored in a map. Copying a key that is not reused does not
+ * allocate.
+ *
+ */
+public final class LabelKey {
+
+    private final Object[] values;
+    private final boolean reusable;
+    private int hash;
+
+    LabelKey(int size) {
+        this(size, true);
+    }
+
+    /**
+     * The constructor for a key whose values are set using {@link #set(int, Object)}.
+     *
+     * @param size The number of label values
+     * @param reusable Whether the key is reused once set, otherwise it is safe to retain
+     */
+    LabelKey(int size, boolean reusable) {
+        this.values = new Object[size];
+        this.reusable = reusable;
+    }
+
+    private LabelKey(Object[] values, int hash) {
+        this.values = values;
+        this.reusable = false;
+        this.hash = hash;
+    }
+
+    /**
+     * This method creates a key from the supplied label values.
+     *
+     * @param values The label values
+     * @return The key
+     */
+    public static LabelKey of(Object... values) {
+        LabelKey key = new LabelKey(values.length);
+        for (int i = 0; i < values.length; i++) {
+            key.set(i, values[i]);
+        }
+        key.rehash();
+        return key.copy();
+    }
+
+    /**
+     * This method sets the value of the label at the supplied index. Once all values
+     * have been set, {@link #rehash()} must be called.
+     *
+     * @param index The label index
+     * @param value The non-null label value
+     */
+    void set(int index, Object value) {
+        values[index] = isValueType(value) ? value : value.toString();
+    }
+
+    /**
+     * This method recomputes the hash code after the values have been set.
+     */
+    void rehash() {
+        int h = 1;
+        for (Object value : values) {
+            h = 31 * h + stringHash(value);
+        }
+        hash = h;
+    }
+
+    /**
+     * This method returns the number of label values.
+     *
+     * @return The number of label values
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * This method returns the label value at the supplied index.
+     *
+     * @param index The label index
+     * @return The label value
+     */
+    public Object value(int index) {
+        return values[index];
+    }
+
+    /**
+     * This method returns the string representation of the label value at the supplied index.
+     *
+     * @param index The label index
+     * @return The label value as a string
+     */
+    public String stringValue(int index) {
+        return values[index].toString();
+    }
+
+    /**
+     * This method returns the string representations of the label values.
+     *
+     * @return The label values as strings
+     */
+    public String[] stringValues() {
+        String[] ret = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ret[i] = values[i].toString();
+        }
+        return ret;
+    }
+
+    /**
+     * This method returns a key that can be retained, e.g. stored in a map. If this key
+     * is already safe to retain, then it will be returned.
+     *
+     * @return The key that can be retained
+     */
+    public LabelKey copy() {
+        if (!reusable) {
+            return this;
+        }
+        return new LabelKey(values.clone(), hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof LabelKey)) {
+            return false;
+        }
+        LabelKey other = (LabelKey) obj;
+        if (hash != other.hash || values.length != other.values.length) {
+            return false;
+        }
+        for (int i = 0; i < values.length; i++) {
+            if (!stringEquals(values[i], other.values[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(values);
+    }
+
+    private static boolean isValueType(Object value) {
+        return value instanceof String || value instanceof Boolean || value instanceof Enum
+                || value instanceof Character || isIntegral(value);
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short
+                || value instanceof Byte;
+    }
+
+    /**
+     * This method returns the hash code of the string representation of the supplied value,
+     * i.e. {@code value.toString().hashCode()}, without creating the string for integral values
+     * and characters. Strings cache their hash code, and booleans and enums return existing
+     * strings.
+     */
+    private static int stringHash(Object value) {
+        if (isIntegral(value)) {
+            long number = ((Number) value).longValue();
+            // The digits are hashed from the least significant, using the negative magnitude
+            // so that Long.MIN_VALUE is handled
+            long remaining = number < 0 ? number : -number;
+            int h = 0;
+            int multiplier = 1;
+            do {
+                h += ('0' - (int) (remaining % 10)) * multiplier;
+                multiplier *= 31;
+                remaining /= 10;
+            } while (remaining != 0);
+            return number < 0 ? h + '-' * multiplier : h;
+        } else if (value instanceof Character) {
+            return ((Character) value).charValue();
+        }
+        return value.toString().hashCode();
+    }
+
+    /**
+     * This method determines whether the string representations of the supplied values are
+     * equal, without creating the strings for integral values and characters.
+     */
+    private static boolean stringEquals(Object value1, Object value2) {
+        if (value1.getClass() == value2.getClass() && !(value1 instanceof Enum)) {
+            return value1.equals(value2);
+        } else if (isIntegral(value1) && isIntegral(value2)) {
+            return ((Number) value1).longValue() == ((Number) value2).longValue();
+        } else if (value2 instanceof String) {
+            return stringEquals((String) value2, value1);
+        } else if (value1 instanceof String) {
+            return stringEquals((String) value1, value2);
+        }
+        return value1.toString().equals(value2.toString());
+    }
+
+    private static boolean stringEquals(String string, Object value) {
+        if (isIntegral(value)) {
+            long number = ((Number) value).longValue();
+            long remaining = number < 0 ? number : -number;
+            int end = string.length();
+            do {
+                if (--end < 0 || string.charAt(end) != (char) ('0' - remaining % 10)) {
+                    return false;
+                }
+                remaining /= 10;
+            } while (remaining != 0);
+            if (number < 0 && (--end < 0 || string.charAt(end) != '-')) {
+                return false;
+            }
+            return end == 0;
+        } else if (value instanceof Character) {
+            return string.length() == 1 && string.charAt(0) == ((Character) value).charValue();
+        }
+        return string.equals(value.toString());
+    }
+
+}
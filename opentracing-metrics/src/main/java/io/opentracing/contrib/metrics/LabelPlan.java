@@ -0,0 +1,171 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.Map;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
+import io.opentracing.contrib.metrics.label.ConstMetricLabel;
+import io.opentracing.contrib.metrics.label.OperationMetricLabel;
+import io.opentracing.contrib.metrics.label.TagMetricLabel;
+
+/**
+ * This class represents a reporter's metric labels compiled into a plan for deriving their
+ * values from a span. Each of the standard label types is translated into an operation that is
+ * performed directly by the plan, rather than through a call to {@link MetricLabel#value(SpanData)},
+ * which is megamorphic when the labels are of mixed types and therefore cannot be inlined.
+ * <p>
+ * Constant label values are set once when a key is created, the span's tags are obtained once
+ * for all tag labels, and labels of any other type (including subclasses of the standard label
+ * types) are evaluated through their {@link MetricLabel#value(SpanData)} method.
+ *
+ */
+final class LabelPlan {
+
+    /**
+     * The value returned by {@link #derive(SpanData, LabelKey)} when all label values are derived.
+     */
+    static final int DERIVED = -1;
+
+    private static final int CONST = 0;
+    private static final int OPERATION = 1;
+    private static final int TAG = 2;
+    private static final int BAGGAGE = 3;
+    private static final int CUSTOM = 4;
+
+    private final MetricLabel[] labels;
+    private final int[] operations;
+    private final String[] names;
+    private final Object[] defaultValues;
+    private final boolean usesTags;
+    private final int nullConst;
+
+    private LabelPlan(MetricLabel[] labels) {
+        this.labels = labels;
+        this.operations = new int[labels.length];
+        this.names = new String[labels.length];
+        this.defaultValues = new Object[labels.length];
+        boolean tags = false;
+        int nullConst = DERIVED;
+        for (int i = 0; i < labels.length; i++) {
+            MetricLabel label = labels[i];
+            Class<?> type = label.getClass();
+            names[i] = label.name();
+            defaultValues[i] = label.defaultValue();
+            if (type == ConstMetricLabel.class) {
+                operations[i] = CONST;
+                if (defaultValues[i] == null && nullConst == DERIVED) {
+                    nullConst = i;
+                }
+            } else if (type == OperationMetricLabel.class) {
+                operations[i] = OPERATION;
+            } else if (type == TagMetricLabel.class) {
+                operations[i] = TAG;
+                tags = true;
+            } else if (type == BaggageMetricLabel.class) {
+                operations[i] = BAGGAGE;
+            } else {
+                operations[i] = CUSTOM;
+            }
+        }
+        this.usesTags = tags;
+        this.nullConst = nullConst;
+    }
+
+    /**
+     * This method compiles the supplied metric labels into a plan.
+     *
+     * @param labels The metric labels
+     * @return The plan
+     */
+    static LabelPlan compile(MetricLabel[] labels) {
+        return new LabelPlan(labels);
+    }
+
+    /**
+     * This method creates a reusable key for use with {@link #derive(SpanData, LabelKey)},
+     * with the constant label values already set.
+     *
+     * @return The key
+     */
+    LabelKey newKey() {
+        return newKey(true);
+    }
+
+    /**
+     * This method creates a key for use with {@link #derive(SpanData, LabelKey)}, with the
+     * constant label values already set.
+     *
+     * @param reusable Whether the key will be reused, otherwise it can be retained once derived
+     * @return The key
+     */
+    LabelKey newKey(boolean reusable) {
+        LabelKey key = new LabelKey(labels.length, reusable);
+        if (nullConst == DERIVED) {
+            for (int i = 0; i < labels.length; i++) {
+                if (operations[i] == CONST) {
+                    key.set(i, defaultValues[i]);
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * This method derives the label values for the supplied span into the supplied key,
+     * which must have been created by {@link #newKey()}.
+     *
+     * @param spanData The span data
+     * @param key The key
+     * @return {@link #DERIVED} if all of the label values were derived, otherwise the index of the
+     *          label without a value, and the span should not be reported
+     */
+    int derive(SpanData spanData, LabelKey key) {
+        if (nullConst != DERIVED) {
+            // A constant label has a null value
+            return nullConst;
+        }
+        Map<String, Object> tags = usesTags ? spanData.getTags() : null;
+        for (int i = 0; i < operations.length; i++) {
+            Object value;
+            switch (operations[i]) {
+            case CONST:
+                continue;
+            case OPERATION:
+                value = spanData.getOperationName();
+                break;
+            case TAG:
+                value = tags.get(names[i]);
+                break;
+            case BAGGAGE:
+                value = spanData.getBaggageItem(names[i]);
+                break;
+            default:
+                value = labels[i].value(spanData);
+                break;
+            }
+            if (value == null) {
+                if (operations[i] == CUSTOM || defaultValues[i] == null) {
+                    return i;
+                }
+                value = defaultValues[i];
+            }
+            key.set(i, value);
+        }
+        key.rehash();
+        return DERIVED;
+    }
+
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class counts the events logged on spans, per combination of label values and event
+ * name. The event name is the value of a configured log field, by default "event", so events
+ * logged using {@link io.opentracing.Span#log(String)} are counted by their name.
+ * <p>
+ * The event names are held in a bounded dictionary, so an unbounded number of names (e.g. if
+ * the field holds a message) cannot create an unbounded number of counters. Once the dictionary
+ * is full, events with new names are counted under the name {@link CardinalityLimiter#OVERFLOW_VALUE}.
+ * Each combination of label values has an array of counters indexed by the position of the event
+ * name in the dictionary, and the counters are striped, so counting an event that has been seen
+ * before does not allocate, and concurrent events for the same label values do not contend on a
+ * single atomic value.
+ *
+ */
+public final class LogEventCounters {
+
+    /**
+     * The default log field providing the event name.
+     */
+    public static final String DEFAULT_FIELD = "event";
+
+    /**
+     * The default maximum number of distinct event names.
+     */
+    public static final int DEFAULT_MAX_EVENTS = 64;
+
+    /**
+     * This interface is notified when a counter is created, e.g. to register it with a
+     * metrics registry.
+     *
+     */
+    public interface Listener {
+
+        /**
+         * This method is invoked when the counter associated with a combination of label
+         * values and an event name is created.
+         *
+         * @param key The label values
+         * @param event The event name
+         * @param counter The counter
+         */
+        void counterCreated(LabelKey key, String event, LongAdder counter);
+    }
+
+    /**
+     * This interface is used to visit the counters.
+     *
+     */
+    public interface Visitor {
+
+        /**
+         * This method is invoked for each counter.
+         *
+         * @param key The label values
+         * @param event The event name
+         * @param count The number of events
+         */
+        void visit(LabelKey key, String event, long count);
+    }
+
+    private final String field;
+    private final int maxEvents;
+    private final Listener listener;
+    private final ConcurrentMap<String, Integer> eventIndexes = new ConcurrentHashMap<String, Integer>();
+    private final String[] eventNames;
+    private final Lock eventLock = new ReentrantLock();
+    private final ConcurrentMap<LabelKey, AtomicReferenceArray<LongAdder>> counters =
+            new ConcurrentHashMap<LabelKey, AtomicReferenceArray<LongAdder>>();
+
+    /**
+     * The constructor for the counters.
+     *
+     * @param field The log field providing the event name
+     * @param maxEvents The maximum number of distinct event names
+     * @param listener The optional listener notified when counters are created
+     */
+    public LogEventCounters(String field, int maxEvents, Listener listener) {
+        if (maxEvents < 1) {
+            throw new IllegalArgumentException("Maximum events must be positive: " + maxEvents);
+        }
+        this.field = field;
+        this.maxEvents = maxEvents;
+        this.listener = listener;
+        // The last slot is used for the overflow
+        this.eventNames = new String[maxEvents + 1];
+        this.eventNames[maxEvents] = CardinalityLimiter.OVERFLOW_VALUE;
+    }
+
+    /**
+     * This method returns the log field providing the event name.
+     *
+     * @return The log field
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * This method returns the name of the event logged using {@link io.opentracing.Span#log(String)}.
+     *
+     * @param event The event
+     * @return The event name, or null if the event is not counted
+     */
+    public String eventName(String event) {
+        return DEFAULT_FIELD.equals(field) ? event : null;
+    }
+
+    /**
+     * This method returns the name of the event logged using {@link io.opentracing.Span#log(Map)}.
+     *
+     * @param fields The logged fields
+     * @return The event name, or null if the event is not counted
+     */
+    public String eventName(Map<String, ?> fields) {
+        Object value = fields.get(field);
+        if (value instanceof String) {
+            return (String) value;
+        }
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * This method counts an event.
+     *
+     * @param key The label values
+     * @param event The event name
+     */
+    public void increment(LabelKey key, String event) {
+        AtomicReferenceArray<LongAdder> series = counters.get(key);
+        if (series == null) {
+            // first event for this combination of label values
+            key = key.copy();
+            AtomicReferenceArray<LongAdder> created = new AtomicReferenceArray<LongAdder>(maxEvents + 1);
+            series = counters.putIfAbsent(key, created);
+            if (series == null) {
+                series = created;
+            }
+        }
+        int index = indexOf(event);
+        LongAdder counter = series.get(index);
+        if (counter == null) {
+            counter = createCounter(key, series, index);
+        }
+        counter.increment();
+    }
+
+    /**
+     * This method visits the counters.
+     *
+     * @param visitor The visitor
+     */
+    public void forEach(Visitor visitor) {
+        for (Map.Entry<LabelKey, AtomicReferenceArray<LongAdder>> entry : counters.entrySet()) {
+            AtomicReferenceArray<LongAdder> series = entry.getValue();
+            for (int i = 0; i < series.length(); i++) {
+                LongAdder counter = series.get(i);
+                if (counter != null) {
+                    visitor.visit(entry.getKey(), eventNames[i], counter.sum());
+                }
+            }
+        }
+    }
+
+    /**
+     * This method returns the number of distinct event names in the dictionary.
+     *
+     * @return The number of event names
+     */
+    public int getEventCount() {
+        return eventIndexes.size();
+    }
+
+    private int indexOf(String event) {
+        Integer index = eventIndexes.get(event);
+        if (index != null) {
+            return index;
+        }
+        return addEvent(event);
+    }
+
+    private int addEvent(String event) {
+        if (eventIndexes.size() >= maxEvents) {
+            // Once all event names are taken, new names overflow without contending on the lock
+            return maxEvents;
+        }
+        // Lock rather than monitor, so a virtual thread waiting to add an event doesn't pin its carrier
+        eventLock.lock();
+        try {
+            Integer index = eventIndexes.get(event);
+            if (index != null) {
+                return index;
+            }
+            int size = eventIndexes.size();
+            if (size >= maxEvents) {
+                return maxEvents;
+            }
+            // Name must be set before the index is published
+            eventNames[size] = event;
+            eventIndexes.put(event, size);
+            return size;
+        } finally {
+            eventLock.unlock();
+        }
+    }
+
+    private LongAdder createCounter(LabelKey key, AtomicReferenceArray<LongAdder> series, int index) {
+        LongAdder counter = new LongAdder();
+        if (!series.compareAndSet(index, null, counter)) {
+            return series.get(index);
+        }
+        if (listener != null) {
+            listener.counterCreated(key.copy(), eventNames[index], counter);
+        }
+        return counter;
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.Map;
+
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This interface is implemented by a {@link MetricsReporter} that is able to count the events
+ * logged on spans, e.g. using {@link LogEventCounters}.
+ *
+ */
+public interface LogEventMetricsReporter extends MetricsReporter {
+
+    /**
+     * This method identifies whether the reporter counts log events. It is checked when the
+     * reporter is registered with an observer, so that log events are only passed to the
+     * reporter if required.
+     *
+     * @return Whether log events are counted
+     */
+    boolean isLogEventReported();
+
+    /**
+     * This method reports an event logged on the span associated with the supplied {@link SpanData}.
+     *
+     * @param metricSpanData Span data including operation, tags and baggage
+     * @param event The event
+     */
+    void reportLogEvent(SpanData metricSpanData, String event);
+
+    /**
+     * This method reports the fields logged on the span associated with the supplied {@link SpanData}.
+     *
+     * @param metricSpanData Span data including operation, tags and baggage
+     * @param fields The logged fields
+     */
+    void reportLogEvent(SpanData metricSpanData, Map<String, ?> fields);
+
+}
@@ -40,7 +40,9 @@ public class Metrics {
 
     /**
      * This method decorates a supplied tracer with the ability to report span
-     * based metrics to the supplied set of {@link MetricsReporter}.
+     * based metrics to the supplied set of {@link MetricsReporter}. The tracer's
+     * {@link io.opentracing.ScopeManager} is used to identify the parent of each span,
+     * for reporters that report the self time of spans.
      *
      * @param tracer The tracer
      * @param reporters The set of metric reporters
@@ -48,7 +50,7 @@ public class Metrics {
      */
     public static Tracer decorate(Tracer tracer, Set<MetricsReporter> reporters) {
         APIExtensionsTracer ret = new APIExtensionsTracer(tracer);
-        ret.addTracerObserver(new MetricsObserver(reporters));
+        ret.addTracerObserver(new MetricsObserver(reporters, tracer.scopeManager()));
         return ret;
     }
 }
@@ -14,42 +14,138 @@
 package io.opentracing.contrib.metrics;
 
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
+import io.opentracing.ScopeManager;
 import io.opentracing.contrib.api.SpanData;
 import io.opentracing.contrib.api.SpanObserver;
 import io.opentracing.contrib.api.TracerObserver;
 
 /**
  * This class implements the {@link TracerObserver} API to observer when spans finish, to
- * enable their metrics to be reported.
+ * enable their metrics to be reported. Reporters implementing {@link InFlightMetricsReporter}
+ * are also notified when spans start, to count the spans in flight.
+ * <p>
+ * If a {@link ScopeManager} is supplied, then the durations of finished child spans are tracked
+ * against their parent span, i.e. the span active when they started, so that reporters
+ * implementing {@link SelfTimeMetricsReporter} can report the self time of each span.
+ * <p>
+ * Events logged on spans are only passed to reporters implementing {@link LogEventMetricsReporter},
+ * that count log events.
+ * <p>
+ * The reporters can be replaced at runtime, using {@link #setMetricsReporters(Set)}, e.g. to
+ * temporarily add a reporter with more detailed labels or histograms. The reporters are held
+ * in an immutable set that is replaced as a whole, so observing spans does not require any
+ * synchronization. Spans that finish after the reporters have been replaced are reported to
+ * the new reporters.
  *
  */
 public class MetricsObserver implements TracerObserver {
 
-    private final MetricsSpanObserver spanObserver;
+    private final MetricsSpanObserver spanObserver = new MetricsSpanObserver();
+    private final ScopeManager scopeManager;
+    private volatile ReporterSet reporters;
 
     public MetricsObserver(MetricsReporter metricsReporter) {
         this(Collections.singleton(metricsReporter));
     }
 
     public MetricsObserver(Set<MetricsReporter> metricsReporters) {
-        spanObserver = new MetricsSpanObserver(metricsReporters);
+        this(metricsReporters, null);
+    }
+
+    /**
+     * The constructor for the observer.
+     *
+     * @param metricsReporters The reporters
+     * @param scopeManager The scope manager used to identify the parent of each span, or null
+     *          if the self time of spans should not be reported
+     */
+    public MetricsObserver(Set<MetricsReporter> metricsReporters, ScopeManager scopeManager) {
+        this.scopeManager = scopeManager;
+        this.reporters = new ReporterSet(metricsReporters, scopeManager, null);
+    }
+
+    /**
+     * This method returns the current reporters.
+     *
+     * @return The unmodifiable set of reporters
+     */
+    public Set<MetricsReporter> getMetricsReporters() {
+        return reporters.getMetricsReporters();
+    }
+
+    /**
+     * This method atomically replaces the reporters.
+     *
+     * @param metricsReporters The new reporters
+     */
+    public synchronized void setMetricsReporters(Set<MetricsReporter> metricsReporters) {
+        reporters = new ReporterSet(metricsReporters, scopeManager, reporters);
     }
 
     @Override
     public SpanObserver onStart(SpanData spanData) {
-        return spanObserver;
+        ReporterSet current = reporters;
+        if (!current.isStartObserved()) {
+            return spanObserver;
+        }
+        LongAdder[] inFlight = current.spanStarted(spanData);
+        LongAdder parentChildDurations = current.childStarted();
+        if (inFlight == null && parentChildDurations == null) {
+            return spanObserver;
+        }
+        return new TrackedSpanObserver(spanObserver, inFlight, parentChildDurations);
     }
 
     private class MetricsSpanObserver implements SpanObserver {
 
-        private final Set<MetricsReporter> metricsReporters;
+        @Override
+        public void onSetOperationName(SpanData spanData, String operationName) {
+        }
+
+        @Override
+        public void onSetTag(SpanData spanData, String key, Object value) {
+        }
+
+        @Override
+        public void onSetBaggageItem(SpanData spanData, String key, String value) {
+        }
+
+        @Override
+        public void onLog(SpanData spanData, long timestampMicroseconds, Map<String, ?> fields) {
+            reporters.reportLogEvent(spanData, fields);
+        }
+
+        @Override
+        public void onLog(SpanData spanData, long timestampMicroseconds, String event) {
+            reporters.reportLogEvent(spanData, event);
+        }
+
+        @Override
+        public void onFinish(SpanData spanData, long finishMicros) {
+            reporters.reportSpan(spanData, spanData);
+        }
+    }
 
-        public MetricsSpanObserver(final Set<MetricsReporter> metricsReporters) {
-            this.metricsReporters = new HashSet<MetricsReporter>(metricsReporters);
+    /**
+     * This class observes a single span that has been counted as in flight, or whose parent
+     * span is tracked, decrementing the in flight counters and adding its duration to those of
+     * its parent's children when the span finishes, before its metrics are reported.
+     *
+     */
+    private static class TrackedSpanObserver implements SpanObserver {
+
+        private final SpanObserver spanObserver;
+        private final LongAdder[] inFlight;
+        private final LongAdder parentChildDurations;
+
+        TrackedSpanObserver(SpanObserver spanObserver, LongAdder[] inFlight, LongAdder parentChildDurations) {
+            this.spanObserver = spanObserver;
+            this.inFlight = inFlight;
+            this.parentChildDurations = parentChildDurations;
         }
 
         @Override
@@ -66,17 +162,21 @@ public class MetricsObserver implements TracerObserver {
 
         @Override
         public void onLog(SpanData spanData, long timestampMicroseconds, Map<String, ?> fields) {
+            spanObserver.onLog(spanData, timestampMicroseconds, fields);
         }
 
         @Override
         public void onLog(SpanData spanData, long timestampMicroseconds, String event) {
+            spanObserver.onLog(spanData, timestampMicroseconds, event);
         }
 
         @Override
         public void onFinish(SpanData spanData, long finishMicros) {
-            for (MetricsReporter reporter : metricsReporters) {
-                reporter.reportSpan(spanData);
+            ReporterSet.spanFinished(inFlight);
+            if (parentChildDurations != null) {
+                parentChildDurations.add(spanData.getDuration());
             }
+            spanObserver.onFinish(spanData, finishMicros);
         }
     }
 }
@@ -0,0 +1,409 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * This class provides a store of histograms, one per combination of label values, held in
+ * direct byte buffers outside the Java heap. The heap used by a reporter using the store
+ * therefore does not grow with the number of combinations of label values.
+ * <p>
+ * Each histogram has a fixed number of buckets, with the supplied inclusive upper bounds and
+ * an additional "+Inf" bucket, together with the count and sum of the recorded values. The
+ * store holds an open addressing index, the histograms, and an arena with the label values
+ * (as UTF-16 characters) of each combination of label values.
+ * <p>
+ * Looking up the histogram of existing label values does not take a lock, as the index is
+ * read optimistically and only changes when new label values are inserted. The histograms
+ * are updated under striped locks, so values for different combinations of label values
+ * rarely contend.
+ * <p>
+ * The capacity of the store is fixed when it is created. Values for new combinations of label
+ * values are rejected once the maximum number of combinations has been reached, or the label
+ * values do not fit in the arena.
+ *
+ */
+public final class OffHeapHistogramStore {
+
+    /**
+     * The default average number of characters of the label values of each combination,
+     * used to size the arena holding the label values.
+     */
+    public static final int DEFAULT_KEY_CHARS = 64;
+
+    private static final int MAX_STRIPES = 64;
+    private static final int INDEX_ENTRY_BYTES = 8;
+    private static final int HEADER_LONGS = 2;
+
+    private final long[] bounds;
+    private final int labelCount;
+    private final int maxSeries;
+    private final int indexMask;
+    private final int stride;
+    private final ByteBuffer index;
+    private final ByteBuffer histograms;
+    private final ByteBuffer keyOffsets;
+    private final ByteBuffer keys;
+    private final StampedLock structure = new StampedLock();
+    private final ReentrantLock[] stripes;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private volatile int slots;
+    private int keyEnd;
+
+    public OffHeapHistogramStore(int labelCount, long[] bounds, int maxSeries) {
+        this(labelCount, bounds, maxSeries, DEFAULT_KEY_CHARS);
+    }
+
+    /**
+     * This constructor allocates the store.
+     *
+     * @param labelCount The number of label values of each combination
+     * @param bounds The increasing inclusive upper bounds of the buckets
+     * @param maxSeries The maximum number of combinations of label values
+     * @param averageKeyChars The average number of characters of the label values of each combination
+     */
+    public OffHeapHistogramStore(int labelCount, long[] bounds, int maxSeries, int averageKeyChars) {
+        if (maxSeries < 1) {
+            throw new IllegalArgumentException("Maximum number of series must be positive: " + maxSeries);
+        }
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Bucket bounds must be in increasing order: "
+                        + Arrays.toString(bounds));
+            }
+        }
+        this.bounds = bounds.clone();
+        this.labelCount = labelCount;
+        this.maxSeries = maxSeries;
+
+        // The index is at most half full, so a probe always ends at an empty entry
+        int indexSize = Integer.highestOneBit(Math.max(1, maxSeries * 2 - 1)) << 1;
+        this.indexMask = indexSize - 1;
+        this.stride = 8 * (HEADER_LONGS + bounds.length + 1);
+        this.index = allocate((long) indexSize * INDEX_ENTRY_BYTES);
+        this.histograms = allocate((long) maxSeries * stride);
+        this.keyOffsets = allocate(maxSeries * 4L);
+        this.keys = allocate(maxSeries * (labelCount * 4L + averageKeyChars * 2L));
+
+        this.stripes = new ReentrantLock[Math.min(MAX_STRIPES, Integer.highestOneBit(maxSeries))];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    private static ByteBuffer allocate(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Buffer too large: " + bytes + " bytes");
+        }
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * This method records a value in the histogram associated with the supplied label values.
+     *
+     * @param key The label values
+     * @param value The non-negative value
+     * @param n The number of times the value is recorded
+     * @return Whether the value was recorded, false if the store is full
+     */
+    public boolean record(LabelKey key, long value, long n) {
+        int hash = spread(key.hashCode());
+        int bucket = Arrays.binarySearch(bounds, value);
+        if (bucket < 0) {
+            bucket = -bucket - 1;
+        }
+        int slot = find(key, hash);
+        if (slot < 0) {
+            slot = insert(key, hash);
+            if (slot < 0) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+        }
+
+        ReentrantLock lock = stripes[slot & (stripes.length - 1)];
+        lock.lock();
+        try {
+            int base = slot * stride;
+            histograms.putLong(base, histograms.getLong(base) + n);
+            histograms.putLong(base + 8, histograms.getLong(base + 8) + value * n);
+            int bucketOffset = base + 8 * (HEADER_LONGS + bucket);
+            histograms.putLong(bucketOffset, histograms.getLong(bucketOffset) + n);
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * This method returns the number of combinations of label values held in the store.
+     *
+     * @return The number of combinations of label values
+     */
+    public int size() {
+        return slots;
+    }
+
+    /**
+     * This method returns the number of times values were not recorded, as the store was full.
+     *
+     * @return The number of rejected values
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * This method returns the number of bytes allocated outside the heap.
+     *
+     * @return The number of bytes
+     */
+    public long getOffHeapBytes() {
+        return (long) index.capacity() + histograms.capacity() + keyOffsets.capacity() + keys.capacity();
+    }
+
+    /**
+     * This method returns the inclusive upper bounds of the buckets, excluding the "+Inf" bucket.
+     *
+     * @return The bucket bounds
+     */
+    public long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * This method supplies a copy of each histogram to the visitor. Each histogram is copied
+     * while the lock of its stripe is held, but the visitor is called without holding any lock.
+     *
+     * @param visitor The visitor
+     */
+    public void forEach(Visitor visitor) {
+        // Reading the volatile count publishes the label values of the slots inserted before it
+        int count = slots;
+        for (int slot = 0; slot < count; slot++) {
+            String[] labelValues = labelValues(slot);
+            long[] bucketCounts = new long[bounds.length + 1];
+            long total;
+            long sum;
+            ReentrantLock lock = stripes[slot & (stripes.length - 1)];
+            lock.lock();
+            try {
+                int base = slot * stride;
+                for (int i = 0; i < bucketCounts.length; i++) {
+                    bucketCounts[i] = histograms.getLong(base + 8 * (HEADER_LONGS + i));
+                }
+                total = histograms.getLong(base);
+                sum = histograms.getLong(base + 8);
+            } finally {
+                lock.unlock();
+            }
+            visitor.visit(labelValues, bucketCounts, total, sum);
+        }
+    }
+
+    /**
+     * This method finds the slot holding the supplied label values, first without taking
+     * the lock, and again under the read lock if an insert overlapped the lookup.
+     *
+     * @return The slot, or a negative value if not found
+     */
+    private int find(LabelKey key, int hash) {
+        long stamp = structure.tryOptimisticRead();
+        if (stamp != 0) {
+            int slot = probe(key, hash);
+            if (structure.validate(stamp)) {
+                return slot;
+            }
+        }
+        stamp = structure.readLock();
+        try {
+            return probe(key, hash);
+        } finally {
+            structure.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * This method probes the index for the supplied label values. The index entries are
+     * never removed, so a lookup overlapping an insert can at worst observe an incomplete
+     * entry, and therefore checks the offsets it reads are in bounds.
+     *
+     * @return The slot, or if not found, minus one minus the empty index entry at which
+     *          the label values should be inserted
+     */
+    private int probe(LabelKey key, int hash) {
+        int entry = hash & indexMask;
+        while (true) {
+            int offset = entry * INDEX_ENTRY_BYTES;
+            int slot = index.getInt(offset + 4) - 1;
+            if (slot < 0) {
+                return -entry - 1;
+            }
+            if (index.getInt(offset) == hash && slot < maxSeries && matches(slot, key)) {
+                return slot;
+            }
+            entry = (entry + 1) & indexMask;
+        }
+    }
+
+    private boolean matches(int slot, LabelKey key) {
+        int offset = keyOffsets.getInt(slot * 4);
+        for (int i = 0; i < labelCount; i++) {
+            if (offset < 0 || offset > keys.capacity() - 4) {
+                return false;
+            }
+            int length = keys.getInt(offset);
+            offset += 4;
+            if (length < 0 || length > (keys.capacity() - offset) / 2
+                    || !matches(offset, length, key.value(i))) {
+                return false;
+            }
+            offset += 2 * length;
+        }
+        return true;
+    }
+
+    /**
+     * This method compares the characters held in the arena with the string representation
+     * of the supplied label value, without creating the string.
+     */
+    private boolean matches(int offset, int length, Object value) {
+        if (value instanceof String) {
+            return matches(offset, length, (String) value);
+        } else if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            return matches(offset, length, ((Number) value).longValue());
+        } else if (value instanceof Character) {
+            return length == 1 && keys.getChar(offset) == ((Character) value).charValue();
+        }
+        // Boolean and enum constants return existing strings
+        return matches(offset, length, value.toString());
+    }
+
+    private boolean matches(int offset, int length, String value) {
+        if (length != value.length()) {
+            return false;
+        }
+        for (int j = 0; j < length; j++, offset += 2) {
+            if (keys.getChar(offset) != value.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(int offset, int length, long value) {
+        // The digits are compared from the least significant, using the negative magnitude
+        // so that Long.MIN_VALUE is handled
+        int end = offset + 2 * length;
+        long remaining = value < 0 ? value : -value;
+        do {
+            end -= 2;
+            if (end < offset || keys.getChar(end) != (char) ('0' - remaining % 10)) {
+                return false;
+            }
+            remaining /= 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            end -= 2;
+            if (end < offset || keys.getChar(end) != '-') {
+                return false;
+            }
+        }
+        return end == offset;
+    }
+
+    private int insert(LabelKey key, int hash) {
+        String[] values = key.stringValues();
+        int required = 0;
+        for (String value : values) {
+            required += 4 + 2 * value.length();
+        }
+
+        long stamp = structure.writeLock();
+        try {
+            int slot = probe(key, hash);
+            if (slot >= 0) {
+                return slot;
+            }
+            int entry = -slot - 1;
+            if (slots == maxSeries || keyEnd + required > keys.capacity()) {
+                return -1;
+            }
+
+            slot = slots;
+            keyOffsets.putInt(slot * 4, keyEnd);
+            for (String value : values) {
+                keys.putInt(keyEnd, value.length());
+                keyEnd += 4;
+                for (int j = 0; j < value.length(); j++, keyEnd += 2) {
+                    keys.putChar(keyEnd, value.charAt(j));
+                }
+            }
+            index.putInt(entry * INDEX_ENTRY_BYTES, hash);
+            index.putInt(entry * INDEX_ENTRY_BYTES + 4, slot + 1);
+            slots = slot + 1;
+            return slot;
+        } finally {
+            structure.unlockWrite(stamp);
+        }
+    }
+
+    private String[] labelValues(int slot) {
+        String[] values = new String[labelCount];
+        int offset = keyOffsets.getInt(slot * 4);
+        for (int i = 0; i < labelCount; i++) {
+            char[] chars = new char[keys.getInt(offset)];
+            offset += 4;
+            for (int j = 0; j < chars.length; j++, offset += 2) {
+                chars[j] = keys.getChar(offset);
+            }
+            values[i] = new String(chars);
+        }
+        return values;
+    }
+
+    private static int spread(int h) {
+        // murmur3 fmix32, as the index is addressed using the low bits
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * This interface is used to visit the histograms held in the store.
+     *
+     */
+    public interface Visitor {
+
+        /**
+         * This method is called with a copy of the histogram for a combination of label values.
+         *
+         * @param labelValues The label values
+         * @param bucketCounts The (non-cumulative) number of values in each bucket, the last being "+Inf"
+         * @param count The number of values
+         * @param sum The sum of the values
+         */
+        void visit(String[] labelValues, long[] bucketCounts, long count, long sum);
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * This class matches operation names against a set of included and excluded patterns, compiled
+ * into a single trie so that the cost of matching depends on the length of the operation name
+ * rather than the number of patterns. The patterns are described by {@link SpanFilter}.
+ * <p>
+ * The trie is immutable once compiled, so it can be used concurrently without synchronization.
+ *
+ */
+final class OperationMatcher {
+
+    static final int INCLUDED = 1;
+    static final int EXCLUDED = 2;
+
+    private static final char WILDCARD = '*';
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private final Node root = new Node();
+
+    private OperationMatcher() {
+    }
+
+    /**
+     * This method compiles the supplied patterns into a matcher.
+     *
+     * @param includes The patterns of the operations to include
+     * @param excludes The patterns of the operations to exclude
+     * @return The matcher
+     * @throws IllegalArgumentException If a pattern contains a wildcard other than at the end
+     */
+    static OperationMatcher compile(Collection<String> includes, Collection<String> excludes) {
+        OperationMatcher matcher = new OperationMatcher();
+        for (String pattern : includes) {
+            matcher.add(pattern, INCLUDED);
+        }
+        for (String pattern : excludes) {
+            matcher.add(pattern, EXCLUDED);
+        }
+        return matcher;
+    }
+
+    private void add(String pattern, int flag) {
+        int wildcard = pattern.indexOf(WILDCARD);
+        if (wildcard != -1 && wildcard != pattern.length() - 1) {
+            throw new IllegalArgumentException("Wildcard only supported at the end of operation pattern: " + pattern);
+        }
+        int length = wildcard == -1 ? pattern.length() : wildcard;
+        Node node = root;
+        for (int i = 0; i < length; i++) {
+            node = node.getOrAddChild(pattern.charAt(i));
+        }
+        if (wildcard == -1) {
+            node.exactFlags |= flag;
+        } else {
+            node.prefixFlags |= flag;
+        }
+    }
+
+    /**
+     * This method matches the supplied operation name against the patterns.
+     *
+     * @param operationName The operation name
+     * @return The combination of {@link #INCLUDED} and {@link #EXCLUDED} flags of the
+     *          matching patterns, or 0 if no pattern matches
+     */
+    int match(String operationName) {
+        Node node = root;
+        int flags = node.prefixFlags;
+        for (int i = 0, length = operationName.length(); i < length; i++) {
+            node = node.getChild(operationName.charAt(i));
+            if (node == null) {
+                return flags;
+            }
+            flags |= node.prefixFlags;
+        }
+        return flags | node.exactFlags;
+    }
+
+    /**
+     * This class represents a node in the trie, with its children held in parallel arrays
+     * ordered by character.
+     *
+     */
+    private static final class Node {
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private int exactFlags;
+        private int prefixFlags;
+
+        Node getChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index < 0 ? null : children[index];
+        }
+
+        Node getOrAddChild(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insert = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insert);
+            System.arraycopy(children, 0, newChildren, 0, insert);
+            System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+            System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+            Node child = new Node();
+            newKeys[insert] = c;
+            newChildren[insert] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.opentracing.ScopeManager;
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This class represents an immutable set of {@link MetricsReporter}s used by an observer,
+ * with the reporters classified by the optional capabilities they implement. An observer
+ * replaces its reporters by replacing the set, so the reporters can be used without
+ * synchronization.
+ *
+ */
+final class ReporterSet {
+
+    private final Set<MetricsReporter> metricsReporters;
+    private final MetricsReporter[] reporters;
+    private final InFlightMetricsReporter[] inFlightReporters;
+    private final SelfTimeMetricsReporter[] selfTimeReporters;
+    private final LogEventMetricsReporter[] logEventReporters;
+    private final SelfTimeTracker selfTimeTracker;
+
+    /**
+     * The constructor for the reporter set.
+     *
+     * @param metricsReporters The reporters
+     * @param scopeManager The scope manager used to identify the parent of each span, or null
+     *          if the self time of spans should not be reported
+     * @param previous The set being replaced, or null
+     */
+    ReporterSet(Set<MetricsReporter> metricsReporters, ScopeManager scopeManager, ReporterSet previous) {
+        Set<MetricsReporter> all = new LinkedHashSet<MetricsReporter>(metricsReporters);
+        Set<InFlightMetricsReporter> inFlight = new LinkedHashSet<InFlightMetricsReporter>();
+        Set<SelfTimeMetricsReporter> selfTime = new LinkedHashSet<SelfTimeMetricsReporter>();
+        Set<LogEventMetricsReporter> logEvent = new LinkedHashSet<LogEventMetricsReporter>();
+        for (MetricsReporter reporter : all) {
+            if (reporter instanceof InFlightMetricsReporter
+                    && ((InFlightMetricsReporter) reporter).isInFlightReported()) {
+                inFlight.add((InFlightMetricsReporter) reporter);
+            }
+            if (reporter instanceof SelfTimeMetricsReporter
+                    && ((SelfTimeMetricsReporter) reporter).isSelfTimeReported()) {
+                selfTime.add((SelfTimeMetricsReporter) reporter);
+            }
+            if (reporter instanceof LogEventMetricsReporter
+                    && ((LogEventMetricsReporter) reporter).isLogEventReported()) {
+                logEvent.add((LogEventMetricsReporter) reporter);
+            }
+        }
+        this.metricsReporters = Collections.unmodifiableSet(all);
+        this.reporters = all.toArray(new MetricsReporter[all.size()]);
+        this.inFlightReporters = inFlight.toArray(new InFlightMetricsReporter[inFlight.size()]);
+        this.selfTimeReporters = selfTime.toArray(new SelfTimeMetricsReporter[selfTime.size()]);
+        this.logEventReporters = logEvent.toArray(new LogEventMetricsReporter[logEvent.size()]);
+
+        if (scopeManager == null || selfTimeReporters.length == 0) {
+            this.selfTimeTracker = null;
+        } else if (previous != null && previous.selfTimeTracker != null) {
+            // Retain the children of spans started before the set was replaced
+            this.selfTimeTracker = previous.selfTimeTracker;
+        } else {
+            this.selfTimeTracker = new SelfTimeTracker(scopeManager, SelfTimeTracker.DEFAULT_MAX_PARENTS);
+        }
+    }
+
+    /**
+     * This method returns the reporters.
+     *
+     * @return The unmodifiable set of reporters
+     */
+    Set<MetricsReporter> getMetricsReporters() {
+        return metricsReporters;
+    }
+
+    /**
+     * This method returns the reporters.
+     *
+     * @return The reporters
+     */
+    MetricsReporter[] getReporters() {
+        return reporters;
+    }
+
+    /**
+     * This method returns whether the reporters need to be notified when spans start.
+     *
+     * @return Whether the reporters need to be notified when spans start
+     */
+    boolean isStartObserved() {
+        return inFlightReporters.length > 0 || selfTimeTracker != null;
+    }
+
+    /**
+     * This method notifies the reporters that count spans in flight that a span has started.
+     *
+     * @param metricSpanData The span data
+     * @return The counters to decrement when the span finishes, or null if none
+     */
+    LongAdder[] spanStarted(SpanData metricSpanData) {
+        LongAdder[] ret = null;
+        for (int i = 0; i < inFlightReporters.length; i++) {
+            LongAdder counter = inFlightReporters[i].spanStarted(metricSpanData);
+            if (counter != null) {
+                if (ret == null) {
+                    ret = new LongAdder[inFlightReporters.length];
+                }
+                ret[i] = counter;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * This method obtains the accumulator of the durations of the children of the parent of
+     * a span that has started.
+     *
+     * @return The accumulator, or null if the span has no tracked parent
+     */
+    LongAdder childStarted() {
+        return selfTimeTracker == null ? null : selfTimeTracker.spanStarted();
+    }
+
+    /**
+     * This method decrements the counters of spans in flight incremented when the span started.
+     *
+     * @param inFlight The counters, or null if none
+     */
+    static void spanFinished(LongAdder[] inFlight) {
+        if (inFlight != null) {
+            for (LongAdder counter : inFlight) {
+                if (counter != null) {
+                    counter.decrement();
+                }
+            }
+        }
+    }
+
+    /**
+     * This method passes an event logged on a span to the reporters that count log events.
+     *
+     * @param metricSpanData The span data
+     * @param event The event
+     */
+    void reportLogEvent(SpanData metricSpanData, String event) {
+        for (LogEventMetricsReporter reporter : logEventReporters) {
+            reporter.reportLogEvent(metricSpanData, event);
+        }
+    }
+
+    /**
+     * This method passes the fields logged on a span to the reporters that count log events.
+     *
+     * @param metricSpanData The span data
+     * @param fields The logged fields
+     */
+    void reportLogEvent(SpanData metricSpanData, Map<String, ?> fields) {
+        for (LogEventMetricsReporter reporter : logEventReporters) {
+            reporter.reportLogEvent(metricSpanData, fields);
+        }
+    }
+
+    /**
+     * This method reports a finished span, including its self time if required.
+     *
+     * @param spanData The span data of the finished span
+     * @param metricSpanData The span data to be reported
+     */
+    void reportSpan(SpanData spanData, SpanData metricSpanData) {
+        if (selfTimeTracker != null) {
+            long selfTime = selfTimeTracker.spanFinished(spanData);
+            for (SelfTimeMetricsReporter reporter : selfTimeReporters) {
+                reporter.reportSelfTime(metricSpanData, selfTime);
+            }
+        }
+        for (MetricsReporter reporter : reporters) {
+            reporter.reportSpan(metricSpanData);
+        }
+    }
+}
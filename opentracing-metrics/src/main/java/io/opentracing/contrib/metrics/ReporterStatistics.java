@@ -0,0 +1,152 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts the spans reported to a metrics reporter, the spans that were not reported
+ * because a label had no value (by the name of the label), and the series (combinations of
+ * label values) created by the reporter. It is used by a metrics reporter to instrument itself,
+ * with the counters exposed through the same registry as the span metrics.
+ * <p>
+ * The counters are striped, so counting does not contend on a single atomic value, and the
+ * counter for a label name is only created when a span is first suppressed by the label.
+ *
+ */
+public final class ReporterStatistics {
+
+    /**
+     * This interface is notified when the counter of spans suppressed by a label is created,
+     * e.g. to register it with a metrics registry.
+     *
+     */
+    public interface Listener {
+
+        /**
+         * This method is invoked when the counter of spans suppressed by a label is created.
+         *
+         * @param labelName The name of the label
+         * @param counter The counter
+         */
+        void suppressedCounterCreated(String labelName, LongAdder counter);
+    }
+
+    /**
+     * This interface is used to visit the counters of suppressed spans.
+     *
+     */
+    public interface Visitor {
+
+        /**
+         * This method is invoked for each label that has suppressed spans.
+         *
+         * @param labelName The name of the label
+         * @param count The number of spans suppressed
+         */
+        void visit(String labelName, long count);
+    }
+
+    private final Listener listener;
+    private final LongAdder reported = new LongAdder();
+    private final LongAdder seriesCreated = new LongAdder();
+    private final ConcurrentMap<String, LongAdder> suppressed = new ConcurrentHashMap<String, LongAdder>();
+
+    /**
+     * The constructor for the statistics.
+     *
+     * @param listener The optional listener notified when the counters of suppressed spans are created
+     */
+    public ReporterStatistics(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * This method counts a span whose label values were derived, so that it is reported.
+     */
+    public void spanReported() {
+        reported.increment();
+    }
+
+    /**
+     * This method counts a span that is not reported because the supplied label has no value.
+     *
+     * @param labelName The name of the label
+     */
+    public void spanSuppressed(String labelName) {
+        LongAdder counter = suppressed.get(labelName);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = suppressed.putIfAbsent(labelName, created);
+            if (counter == null) {
+                counter = created;
+                if (listener != null) {
+                    listener.suppressedCounterCreated(labelName, created);
+                }
+            }
+        }
+        counter.increment();
+    }
+
+    /**
+     * This method counts a series created by the reporter.
+     */
+    public void seriesCreated() {
+        seriesCreated.increment();
+    }
+
+    /**
+     * This method returns the number of spans reported.
+     *
+     * @return The number of spans reported
+     */
+    public long getReportedCount() {
+        return reported.sum();
+    }
+
+    /**
+     * This method returns the number of spans not reported because the supplied label had
+     * no value.
+     *
+     * @param labelName The name of the label
+     * @return The number of spans suppressed
+     */
+    public long getSuppressedCount(String labelName) {
+        LongAdder counter = suppressed.get(labelName);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * This method returns the number of series created by the reporter.
+     *
+     * @return The number of series created
+     */
+    public long getSeriesCreatedCount() {
+        return seriesCreated.sum();
+    }
+
+    /**
+     * This method visits the counters of suppressed spans.
+     *
+     * @param visitor The visitor
+     */
+    public void forEachSuppressed(Visitor visitor) {
+        for (Map.Entry<String, LongAdder> entry : suppressed.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue().sum());
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.tag.Tags;
+
+/**
+ * This class provides a {@link MetricsReporter} that only reports a sample of the spans to a
+ * set of reporters, to reduce the cost of reporting for high volume operations.
+ * <p>
+ * The decision whether to report a span is derived from a hash of its trace id, so that all of
+ * the spans associated with a trace are either reported or not. As the {@link SpanData} does not
+ * identify the trace, a {@link TraceIdResolver} must be supplied when the sample rate is below
+ * one. Each reported span is weighted by
+ * the inverse of the sample rate, so that counts and sums remain unbiased estimates of the actual
+ * values, although the recorded distributions are only approximate. Spans with an error, or a
+ * duration at or above an optional latency threshold, are always reported with a weight of one.
+ * <p>
+ * Unless the sample rate is one, the reporters must implement {@link WeightedMetricsReporter} and
+ * {@link WeightedMetricsReporter#isWeightSupported() support} weights, so that a sampled span is
+ * recorded with a single update of the metrics, rather than once for each span it represents.
+ *
+ */
+public class SamplingMetricsReporter implements MetricsReporter {
+
+    /**
+     * This interface is used to obtain the id of the trace associated with a span.
+     *
+     */
+    public interface TraceIdResolver {
+
+        /**
+         * This method returns the trace id associated with the supplied span.
+         *
+         * @param spanData The span data
+         * @return The trace id, or null if not known
+         */
+        Object getTraceId(SpanData spanData);
+
+    }
+
+    /**
+     * This resolver uses the correlation id of the span as the trace id, which requires the
+     * tracer to supply a correlation id that is common to all spans within a trace. The tracer
+     * provided by the API extensions assigns a distinct correlation id to each span, so with
+     * that tracer the decision would be made per span rather than per trace.
+     */
+    public static final TraceIdResolver CORRELATION_ID = new TraceIdResolver() {
+        @Override
+        public Object getTraceId(SpanData spanData) {
+            return spanData.getCorrelationId();
+        }
+    };
+
+    private final MetricsReporter[] reporters;
+    private final TraceIdResolver traceIdResolver;
+    private final long weight;
+    private final long threshold;
+    private final long latencyThreshold;
+
+    protected SamplingMetricsReporter(Set<MetricsReporter> reporters, TraceIdResolver traceIdResolver,
+            double sampleRate, long latencyThreshold) {
+        if (!(sampleRate > 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("Sample rate must be greater than 0 and at most 1: " + sampleRate);
+        }
+        this.reporters = reporters.toArray(new MetricsReporter[reporters.size()]);
+        this.traceIdResolver = traceIdResolver;
+        // Sample rate is adjusted to the inverse of an integral weight, to keep the estimates unbiased
+        this.weight = Math.round(1 / sampleRate);
+        if (weight != 1) {
+            if (traceIdResolver == null) {
+                throw new IllegalArgumentException("Trace id resolver is required when sampling");
+            }
+            for (MetricsReporter reporter : reporters) {
+                if (!(reporter instanceof WeightedMetricsReporter)
+                        || !((WeightedMetricsReporter) reporter).isWeightSupported()) {
+                    throw new IllegalArgumentException("Reporter does not support weights: " + reporter);
+                }
+            }
+        }
+        this.threshold = (long) (Long.MAX_VALUE / (double) weight);
+        this.latencyThreshold = latencyThreshold;
+    }
+
+    @Override
+    public void reportSpan(SpanData spanData) {
+        if (weight == 1 || isAlwaysReported(spanData)) {
+            report(spanData, 1);
+        } else if (isSampled(traceIdResolver.getTraceId(spanData))) {
+            report(spanData, weight);
+        }
+    }
+
+    /**
+     * This method returns the number of spans represented by each sampled span.
+     *
+     * @return The weight
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     * This method determines whether the span must be reported regardless of whether it
+     * has been sampled.
+     *
+     * @param spanData The span data
+     * @return Whether the span must be reported
+     */
+    protected boolean isAlwaysReported(SpanData spanData) {
+        if (spanData.getDuration() >= latencyThreshold) {
+            return true;
+        }
+        Object error = spanData.getTags().get(Tags.ERROR.getKey());
+        return Boolean.TRUE.equals(error) || "true".equals(error);
+    }
+
+    /**
+     * This method determines whether spans associated with the supplied trace id are sampled.
+     * If the trace id is not known, the decision is made randomly.
+     *
+     * @param traceId The trace id
+     * @return Whether the spans are sampled
+     */
+    boolean isSampled(Object traceId) {
+        long hash = traceId == null ? ThreadLocalRandom.current().nextLong() : hash(traceId);
+        return (hash >>> 1) < threshold;
+    }
+
+    /**
+     * This method returns a 64 bit hash of the supplied trace id. String ids (e.g. hexadecimal
+     * ids) are hashed in full, and UUIDs using both of their halves, rather than reducing them
+     * to their 32 bit hash codes.
+     *
+     * @param traceId The trace id
+     * @return The hash
+     */
+    static long hash(Object traceId) {
+        if (traceId instanceof CharSequence) {
+            // FNV-1a over the characters
+            CharSequence chars = (CharSequence) traceId;
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < chars.length(); i++) {
+                hash = (hash ^ chars.charAt(i)) * 0x100000001b3L;
+            }
+            return mix(hash);
+        } else if (traceId instanceof UUID) {
+            UUID uuid = (UUID) traceId;
+            return mix(uuid.getMostSignificantBits() ^ mix(uuid.getLeastSignificantBits()));
+        } else if (traceId instanceof Long || traceId instanceof Integer) {
+            return mix(((Number) traceId).longValue());
+        }
+        return mix(traceId.hashCode());
+    }
+
+    private void report(SpanData spanData, long spanWeight) {
+        for (MetricsReporter reporter : reporters) {
+            if (reporter instanceof WeightedMetricsReporter) {
+                ((WeightedMetricsReporter) reporter).reportSpan(spanData, spanWeight);
+            } else {
+                // Only reporters supporting weights are accepted, unless the weight is always one
+                reporter.reportSpan(spanData);
+            }
+        }
+    }
+
+    /**
+     * This method spreads the bits of the supplied hash, so that trace ids differing
+     * in only a few bits result in independent sampling decisions.
+     *
+     * @param value The hash
+     * @return The mixed hash
+     */
+    private static long mix(long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public static Builder newMetricsReporter() {
+        return new Builder();
+    }
+
+    /**
+     * This builder class is responsible for creating an instance of the sampling
+     * metrics reporter.
+     *
+     */
+    public static class Builder {
+        private Set<MetricsReporter> reporters = new LinkedHashSet<MetricsReporter>();
+        private TraceIdResolver traceIdResolver;
+        private double sampleRate = 1;
+        private long latencyThreshold = Long.MAX_VALUE;
+
+        public Builder withReporter(MetricsReporter reporter) {
+            reporters.add(reporter);
+            return this;
+        }
+
+        public Builder withReporters(Set<MetricsReporter> reporters) {
+            this.reporters.addAll(reporters);
+            return this;
+        }
+
+        /**
+         * This method sets the fraction of traces to be reported. The rate is rounded to the
+         * nearest inverse of a whole number (e.g. 0.3 becomes 1/3).
+         *
+         * @param sampleRate The sample rate, greater than 0 and at most 1
+         * @return The builder
+         */
+        public Builder withSampleRate(double sampleRate) {
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * This method sets the duration at or above which spans are always reported.
+         *
+         * @param latencyThreshold The latency threshold
+         * @param unit The unit of the latency threshold
+         * @return The builder
+         */
+        public Builder withLatencyThreshold(long latencyThreshold, TimeUnit unit) {
+            this.latencyThreshold = unit.toMicros(latencyThreshold);
+            return this;
+        }
+
+        /**
+         * This method sets the resolver obtaining the trace id of each span, which is required
+         * when the sample rate is below one, e.g. {@link SamplingMetricsReporter#CORRELATION_ID}
+         * if the tracer's correlation id is common to all spans within a trace.
+         *
+         * @param traceIdResolver The trace id resolver
+         * @return The builder
+         */
+        public Builder withTraceIdResolver(TraceIdResolver traceIdResolver) {
+            this.traceIdResolver = traceIdResolver;
+            return this;
+        }
+
+        public SamplingMetricsReporter build() {
+            return new SamplingMetricsReporter(reporters, traceIdResolver, sampleRate, latencyThreshold);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This interface is implemented by a {@link MetricsReporter} that is able to report the self
+ * time of a span, i.e. its duration excluding the durations of its finished child spans.
+ * <p>
+ * Child spans are attributed to the span that is active, in the tracer's {@link io.opentracing.ScopeManager},
+ * when they start, so only in-process child spans parented via the active span are subtracted.
+ * If child spans overlap (e.g. when executed concurrently), the self time is clamped to zero.
+ *
+ */
+public interface SelfTimeMetricsReporter extends MetricsReporter {
+
+    /**
+     * This method identifies whether the reporter reports the self time of spans. It is
+     * checked when the reporter is registered with an observer, so that the child spans
+     * are only tracked if required.
+     *
+     * @return Whether the self time is reported
+     */
+    boolean isSelfTimeReported();
+
+    /**
+     * This method reports the self time of the span associated with the supplied {@link SpanData}.
+     * It is invoked before {@link #reportSpan(SpanData)} for the same span.
+     *
+     * @param metricSpanData Span data including operation, tags, baggage and duration
+     * @param selfTime The duration of the span, excluding its finished child spans, in microseconds
+     */
+    void reportSelfTime(SpanData metricSpanData, long selfTime);
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.opentracing.Scope;
+import io.opentracing.ScopeManager;
+import io.opentracing.Span;
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This class tracks the summed durations of the finished child spans of each in-process
+ * parent span, to derive the self time of the parent when it finishes.
+ * <p>
+ * The parent of a span is the span active in the {@link ScopeManager} when it starts. An
+ * entry is only created for a parent when its first child starts, and is removed when the
+ * parent finishes, so spans without children have no entry. Parents are held by weak identity
+ * references, so the entry of a parent that is discarded without finishing is removed once it
+ * has been garbage collected, and counted in {@link #getAbandonedCount()}.
+ * <p>
+ * The number of entries is also bounded: if the maximum is reached, then new parents are not
+ * tracked, and their self time is reported as their full duration, until entries are removed.
+ * The number of child spans that were not subtracted from their parent as a result is available
+ * from {@link #getUntrackedCount()}, and a warning is logged the first time it happens.
+ *
+ */
+final class SelfTimeTracker {
+
+    private static final Logger log = Logger.getLogger(SelfTimeTracker.class.getName());
+
+    /**
+     * The default maximum number of parent spans tracked at the same time.
+     */
+    static final int DEFAULT_MAX_PARENTS = 10000;
+
+    private final ScopeManager scopeManager;
+    private final int maxParents;
+    private final ConcurrentMap<ParentKey, LongAdder> childDurations = new ConcurrentHashMap<ParentKey, LongAdder>();
+    private final ReferenceQueue<SpanData> collected = new ReferenceQueue<SpanData>();
+    private final LongAdder untrackedCount = new LongAdder();
+    private final LongAdder abandonedCount = new LongAdder();
+    private volatile boolean untrackedLogged;
+
+    SelfTimeTracker(ScopeManager scopeManager, int maxParents) {
+        if (maxParents < 1) {
+            throw new IllegalArgumentException("Maximum parents must be positive: " + maxParents);
+        }
+        this.scopeManager = scopeManager;
+        this.maxParents = maxParents;
+    }
+
+    /**
+     * This method is invoked when a span starts, to obtain the accumulator of the durations
+     * of the children of its parent. The span's duration must be added to the accumulator
+     * when it finishes.
+     *
+     * @return The accumulator, or null if the span has no tracked parent
+     */
+    LongAdder spanStarted() {
+        Scope scope = scopeManager.active();
+        if (scope == null) {
+            return null;
+        }
+        Span parent = scope.span();
+        if (!(parent instanceof SpanData)) {
+            // Not a span created via the API extensions tracer, so will not be observed finishing
+            return null;
+        }
+        LongAdder durations = childDurations.get(new ParentKey((SpanData) parent, null));
+        if (durations == null) {
+            expungeCollected();
+            if (childDurations.size() >= maxParents) {
+                untracked();
+                return null;
+            }
+            LongAdder created = new LongAdder();
+            durations = childDurations.putIfAbsent(new ParentKey((SpanData) parent, collected), created);
+            if (durations == null) {
+                durations = created;
+            }
+        }
+        return durations;
+    }
+
+    /**
+     * This method is invoked when a span finishes, to derive its self time and stop tracking
+     * its children. Children that finish after the span are not subtracted.
+     *
+     * @param spanData The span data
+     * @return The duration of the span, excluding its finished child spans, in microseconds
+     */
+    long spanFinished(SpanData spanData) {
+        long duration = spanData.getDuration();
+        if (childDurations.isEmpty()) {
+            return duration;
+        }
+        LongAdder durations = childDurations.remove(new ParentKey(spanData, null));
+        return durations == null ? duration : Math.max(0, duration - durations.sum());
+    }
+
+    private void untracked() {
+        untrackedCount.increment();
+        if (!untrackedLogged) {
+            untrackedLogged = true;
+            log.log(Level.WARNING, "Maximum of " + maxParents + " parent spans tracked, so the durations of"
+                    + " some child spans will not be subtracted from the self time of their parent");
+        }
+    }
+
+    private void expungeCollected() {
+        Reference<? extends SpanData> ref;
+        while ((ref = collected.poll()) != null) {
+            if (childDurations.remove(ref) != null) {
+                abandonedCount.increment();
+            }
+        }
+    }
+
+    /**
+     * This method returns the number of parent spans currently tracked.
+     *
+     * @return The number of parent spans
+     */
+    int getTrackedCount() {
+        expungeCollected();
+        return childDurations.size();
+    }
+
+    /**
+     * This method returns the number of child spans that were not tracked against their parent,
+     * as the maximum number of parent spans were being tracked when they started.
+     *
+     * @return The number of untracked child spans
+     */
+    long getUntrackedCount() {
+        return untrackedCount.sum();
+    }
+
+    /**
+     * This method returns the number of tracked parent spans that were garbage collected
+     * without finishing.
+     *
+     * @return The number of abandoned parent spans
+     */
+    long getAbandonedCount() {
+        expungeCollected();
+        return abandonedCount.sum();
+    }
+
+    /**
+     * This class is a weak reference to a parent span, that compares the referenced spans by
+     * identity. The key retains the identity hash code, so that it can be removed once the
+     * span has been garbage collected.
+     */
+    private static final class ParentKey extends WeakReference<SpanData> {
+        private final int hash;
+
+        ParentKey(SpanData spanData, ReferenceQueue<SpanData> queue) {
+            super(spanData, queue);
+            this.hash = System.identityHashCode(spanData);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ParentKey)) {
+                return false;
+            }
+            SpanData spanData = get();
+            return spanData != null && spanData == ((ParentKey) obj).get();
+        }
+    }
+}
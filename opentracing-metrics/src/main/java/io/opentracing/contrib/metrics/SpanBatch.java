@@ -0,0 +1,143 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This class represents a batch of finished spans to be reported by a {@link BatchMetricsReporter}.
+ * The operation names and durations of the spans are held in columns, so that they can be scanned
+ * without dereferencing the span data, which remains available for the tags and baggage items.
+ * <p>
+ * A batch has a fixed capacity and is intended to be reused, by {@link #clear() clearing} it once
+ * the spans have been reported. It is not thread safe.
+ *
+ */
+public final class SpanBatch {
+
+    private final SpanData[] spans;
+    private final String[] operationNames;
+    private final long[] durations;
+    private int size;
+
+    public SpanBatch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.spans = new SpanData[capacity];
+        this.operationNames = new String[capacity];
+        this.durations = new long[capacity];
+    }
+
+    /**
+     * This method adds a finished span to the batch, if there is space available.
+     *
+     * @param spanData The span data
+     * @return Whether the span was added
+     */
+    public boolean add(SpanData spanData) {
+        if (size == spans.length) {
+            return false;
+        }
+        spans[size] = spanData;
+        operationNames[size] = spanData.getOperationName();
+        durations[size] = spanData.getDuration();
+        size++;
+        return true;
+    }
+
+    /**
+     * This method removes the spans from the batch.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            spans[i] = null;
+            operationNames[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * This method returns the number of spans in the batch.
+     *
+     * @return The number of spans
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * This method returns the maximum number of spans in the batch.
+     *
+     * @return The capacity
+     */
+    public int capacity() {
+        return spans.length;
+    }
+
+    /**
+     * This method returns whether there is no space available in the batch.
+     *
+     * @return Whether the batch is full
+     */
+    public boolean isFull() {
+        return size == spans.length;
+    }
+
+    /**
+     * This method returns the span data of the span at the supplied index.
+     *
+     * @param index The index, less than {@link #size()}
+     * @return The span data
+     */
+    public SpanData getSpanData(int index) {
+        return spans[index];
+    }
+
+    /**
+     * This method returns the operation name of the span at the supplied index.
+     *
+     * @param index The index, less than {@link #size()}
+     * @return The operation name
+     */
+    public String getOperationName(int index) {
+        return operationNames[index];
+    }
+
+    /**
+     * This method returns the duration of the span at the supplied index.
+     *
+     * @param index The index, less than {@link #size()}
+     * @return The duration, in microseconds
+     */
+    public long getDuration(int index) {
+        return durations[index];
+    }
+
+    /**
+     * This method reports the spans in the batch to the supplied reporter, in a single call if
+     * it implements {@link BatchMetricsReporter}, otherwise by reporting each span in turn.
+     *
+     * @param reporter The reporter
+     */
+    public void report(MetricsReporter reporter) {
+        if (reporter instanceof BatchMetricsReporter) {
+            ((BatchMetricsReporter) reporter).reportSpans(this);
+        } else {
+            for (int i = 0; i < size; i++) {
+                reporter.reportSpan(spans[i]);
+            }
+        }
+    }
+}
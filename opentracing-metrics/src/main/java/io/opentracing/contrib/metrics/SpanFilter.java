@@ -0,0 +1,184 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.tag.Tags;
+
+/**
+ * This class determines which spans are reported by a metrics reporter, based on rules that
+ * are evaluated before any metric label values are derived, so that the cost of deriving the
+ * label values is only incurred for spans that are reported. A filter is supplied to a
+ * reporter using the {@code withSpanFilter} method of the reporter's builder.
+ * <p>
+ * A span is reported if:
+ * <ul>
+ * <li>its operation name matches one of the included operation patterns (if any), and none of
+ * the excluded operation patterns</li>
+ * <li>its span kind is one of the accepted span kinds (if any)</li>
+ * <li>its component is one of the accepted components (if any)</li>
+ * <li>for finished spans, its duration is at least the minimum duration</li>
+ * </ul>
+ * The minimum duration does not apply to spans that have not finished, i.e. when counting
+ * spans in flight or the events logged on spans.
+ * <p>
+ * An operation pattern is either an exact operation name, or a prefix followed by a trailing
+ * '*' matching any (possibly empty) remainder. No other wildcards are supported, and a pattern
+ * with a '*' elsewhere is rejected when the filter is built. The patterns are compiled into a
+ * single trie, so the cost of matching depends on the length of the operation name rather
+ * than the number of patterns.
+ *
+ */
+public final class SpanFilter {
+
+    private final OperationMatcher operationMatcher;
+    private final boolean operationIncludes;
+    private final Set<String> spanKinds;
+    private final Set<String> components;
+    private final long minDuration;
+
+    private SpanFilter(Set<String> includes, Set<String> excludes, Set<String> spanKinds,
+            Set<String> components, long minDuration) {
+        this.operationMatcher = includes.isEmpty() && excludes.isEmpty() ? null
+                : OperationMatcher.compile(includes, excludes);
+        this.operationIncludes = !includes.isEmpty();
+        this.spanKinds = spanKinds.isEmpty() ? null : Collections.unmodifiableSet(new HashSet<String>(spanKinds));
+        this.components = components.isEmpty() ? null : Collections.unmodifiableSet(new HashSet<String>(components));
+        this.minDuration = minDuration;
+    }
+
+    /**
+     * This method determines whether the span associated with the supplied {@link SpanData}
+     * should be reported.
+     *
+     * @param spanData The span data
+     * @param finished Whether the span has finished, so the duration is known
+     * @return Whether the span should be reported
+     */
+    public boolean accept(SpanData spanData, boolean finished) {
+        if (finished && spanData.getDuration() < minDuration) {
+            return false;
+        }
+        if (operationMatcher != null) {
+            String operationName = spanData.getOperationName();
+            int flags = operationName == null ? 0 : operationMatcher.match(operationName);
+            if ((flags & OperationMatcher.EXCLUDED) != 0
+                    || (operationIncludes && (flags & OperationMatcher.INCLUDED) == 0)) {
+                return false;
+            }
+        }
+        if (spanKinds != null && !isTagIn(spanData, Tags.SPAN_KIND.getKey(), spanKinds)) {
+            return false;
+        }
+        return components == null || isTagIn(spanData, Tags.COMPONENT.getKey(), components);
+    }
+
+    private static boolean isTagIn(SpanData spanData, String key, Set<String> values) {
+        Object value = spanData.getTags().get(key);
+        return value != null && values.contains(value.toString());
+    }
+
+    public static Builder newSpanFilter() {
+        return new Builder();
+    }
+
+    /**
+     * This builder class is responsible for creating an instance of the span filter.
+     *
+     */
+    public static class Builder {
+        private Set<String> includes = new LinkedHashSet<String>();
+        private Set<String> excludes = new LinkedHashSet<String>();
+        private Set<String> spanKinds = new LinkedHashSet<String>();
+        private Set<String> components = new LinkedHashSet<String>();
+        private long minDuration = 0;
+
+        /**
+         * This method adds {@link SpanFilter operation patterns} identifying the operations
+         * to be reported. If no patterns are included, all operations not excluded are reported.
+         *
+         * @param patterns The operation patterns
+         * @return The builder
+         */
+        public Builder includeOperations(String... patterns) {
+            includes.addAll(Arrays.asList(patterns));
+            return this;
+        }
+
+        /**
+         * This method adds {@link SpanFilter operation patterns} identifying the operations
+         * not to be reported, taking precedence over the included patterns.
+         *
+         * @param patterns The operation patterns
+         * @return The builder
+         */
+        public Builder excludeOperations(String... patterns) {
+            excludes.addAll(Arrays.asList(patterns));
+            return this;
+        }
+
+        /**
+         * This method adds span kinds (i.e. values of the "span.kind" tag) to be reported.
+         * If no span kinds are added, spans are reported regardless of their span kind.
+         *
+         * @param kinds The span kinds
+         * @return The builder
+         */
+        public Builder withSpanKinds(String... kinds) {
+            spanKinds.addAll(Arrays.asList(kinds));
+            return this;
+        }
+
+        /**
+         * This method adds components (i.e. values of the "component" tag) to be reported.
+         * If no components are added, spans are reported regardless of their component.
+         *
+         * @param components The components
+         * @return The builder
+         */
+        public Builder withComponents(String... components) {
+            this.components.addAll(Arrays.asList(components));
+            return this;
+        }
+
+        /**
+         * This method sets the minimum duration of the finished spans to be reported.
+         *
+         * @param minDuration The minimum duration
+         * @param unit The unit of the minimum duration
+         * @return The builder
+         */
+        public Builder withMinDuration(long minDuration, TimeUnit unit) {
+            this.minDuration = unit.toMicros(minDuration);
+            return this;
+        }
+
+        /**
+         * This method builds the span filter.
+         *
+         * @return The span filter
+         * @throws IllegalArgumentException If an operation pattern has a '*' other than at the end
+         */
+        public SpanFilter build() {
+            return new SpanFilter(includes, excludes, spanKinds, components, minDuration);
+        }
+    }
+}
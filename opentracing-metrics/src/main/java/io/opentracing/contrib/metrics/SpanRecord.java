@@ -0,0 +1,165 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This class holds a copy of the details of a finished span that are required to report
+ * its metrics, so that they can be reported on a thread other than the one that finished
+ * the span. Instances are reused, so reporters must not retain them beyond the call to
+ * {@link MetricsReporter#reportSpan(SpanData)}.
+ *
+ */
+final class SpanRecord implements SpanData {
+
+    private static final String[] NO_KEYS = new String[0];
+
+    private final Map<String, Object> tags = new CopiedTags();
+    private String[] tagKeys = NO_KEYS;
+    private Object[] tagValues = NO_KEYS;
+    private String[] baggageKeys = NO_KEYS;
+    private String[] baggageValues = NO_KEYS;
+
+    private Object correlationId;
+    private String operationName;
+    private long startTime;
+    private long duration;
+
+    /**
+     * This method copies the details of the supplied finished span. Only the values of the
+     * supplied tag keys are copied, into slots held by the record, as the span's map may still
+     * be modified (e.g. by a tracer that reuses it) once the span has been handed over to
+     * another thread.
+     *
+     * @param spanData The span data
+     * @param tagKeys The keys of the tags to be copied from the span
+     * @param baggageKeys The keys of the baggage items to be copied from the span
+     */
+    void copyFrom(SpanData spanData, String[] tagKeys, String[] baggageKeys) {
+        correlationId = spanData.getCorrelationId();
+        operationName = spanData.getOperationName();
+        startTime = spanData.getStartTime();
+        duration = spanData.getDuration();
+        if (tagValues.length < tagKeys.length) {
+            tagValues = new Object[tagKeys.length];
+        }
+        this.tagKeys = tagKeys;
+        Map<String, Object> spanTags = spanData.getTags();
+        if (spanTags != null && !spanTags.isEmpty()) {
+            for (int i = 0; i < tagKeys.length; i++) {
+                tagValues[i] = spanTags.get(tagKeys[i]);
+            }
+        }
+        if (baggageValues.length < baggageKeys.length) {
+            baggageValues = new String[baggageKeys.length];
+        }
+        this.baggageKeys = baggageKeys;
+        for (int i = 0; i < baggageKeys.length; i++) {
+            baggageValues[i] = spanData.getBaggageItem(baggageKeys[i]);
+        }
+    }
+
+    /**
+     * This method clears the record, so that it does not retain references to the
+     * span details once reported.
+     */
+    void clear() {
+        correlationId = null;
+        operationName = null;
+        tagKeys = NO_KEYS;
+        for (int i = 0; i < tagValues.length; i++) {
+            tagValues[i] = null;
+        }
+        baggageKeys = NO_KEYS;
+        for (int i = 0; i < baggageValues.length; i++) {
+            baggageValues[i] = null;
+        }
+    }
+
+    @Override
+    public Object getCorrelationId() {
+        return correlationId;
+    }
+
+    @Override
+    public String getOperationName() {
+        return operationName;
+    }
+
+    @Override
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public Map<String, Object> getTags() {
+        return tags;
+    }
+
+    @Override
+    public String getBaggageItem(String key) {
+        int index = indexOf(baggageKeys, key);
+        return index == -1 ? null : baggageValues[index];
+    }
+
+    private static int indexOf(String[] keys, Object key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * This class presents the copied tags as a map, without allocating for lookups.
+     *
+     */
+    private class CopiedTags extends AbstractMap<String, Object> {
+
+        @Override
+        public Object get(Object key) {
+            int index = indexOf(tagKeys, key);
+            return index == -1 ? null : tagValues[index];
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            Map<String, Object> copy = new HashMap<String, Object>();
+            for (int i = 0; i < tagKeys.length; i++) {
+                if (tagValues[i] != null) {
+                    copy.put(tagKeys[i], tagValues[i]);
+                }
+            }
+            return copy.entrySet();
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This class provides a bounded, lock-free, multi-producer multi-consumer ring buffer
+ * of {@link SpanRecord}s. The records are allocated up front and the span details are
+ * copied into them, so offering a span does not allocate.
+ * <p>
+ * Each slot has a sequence number that identifies whether it is available to be written
+ * by a producer, or read by a consumer, for a particular position in the buffer. A
+ * position is claimed by advancing the relevant position counter, and the slot handed
+ * over by updating its sequence number once the record has been written or reported.
+ *
+ */
+final class SpanRingBuffer {
+
+    private final SpanRecord[] records;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private final AtomicLong dequeuePosition = new AtomicLong();
+
+    /**
+     * The constructor for the ring buffer.
+     *
+     * @param capacity The minimum capacity, rounded up to a power of two
+     */
+    SpanRingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = capacity == 1 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        if (size <= 0) {
+            throw new IllegalArgumentException("Capacity is too large: " + capacity);
+        }
+        records = new SpanRecord[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            records[i] = new SpanRecord();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * This method returns the capacity of the ring buffer.
+     *
+     * @return The capacity
+     */
+    int capacity() {
+        return records.length;
+    }
+
+    /**
+     * This method returns the approximate number of spans waiting to be reported.
+     *
+     * @return The number of spans
+     */
+    int size() {
+        long size = enqueuePosition.get() - dequeuePosition.get();
+        return (int) Math.max(0, Math.min(size, records.length));
+    }
+
+    /**
+     * This method copies the details of the supplied span into the ring buffer, if
+     * there is space available.
+     *
+     * @param spanData The span data
+     * @param tagKeys The keys of the tags to be copied from the span
+     * @param baggageKeys The keys of the baggage items to be copied from the span
+     * @return Whether the span was added
+     */
+    boolean offer(SpanData spanData, String[] tagKeys, String[] baggageKeys) {
+        long position = enqueuePosition.get();
+        for (;;) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (enqueuePosition.compareAndSet(position, position + 1)) {
+                    records[index].copyFrom(spanData, tagKeys, baggageKeys);
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+                position = enqueuePosition.get();
+            } else if (difference < 0) {
+                // Slot has not yet been reported since the previous lap, so buffer is full
+                return false;
+            } else {
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    /**
+     * This method adds the spans available in the ring buffer to the supplied batch, up to its
+     * capacity. The slots of the spans remain occupied, so their records can be reported from
+     * the batch, until they are {@link #release(long[], int) released}.
+     *
+     * @param batch The batch
+     * @param positions The array receiving the positions of the spans added to the batch
+     * @return The number of spans added to the batch
+     */
+    int drain(SpanBatch batch, long[] positions) {
+        int count = 0;
+        long position = dequeuePosition.get();
+        while (count < positions.length && !batch.isFull()) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (dequeuePosition.compareAndSet(position, position + 1)) {
+                    batch.add(records[index]);
+                    positions[count++] = position;
+                }
+                position = dequeuePosition.get();
+            } else if (difference < 0) {
+                // Slot has not been written, so buffer is empty
+                break;
+            } else {
+                position = dequeuePosition.get();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * This method releases the slots of spans added to a batch, once the batch has been reported.
+     *
+     * @param positions The positions of the spans
+     * @param count The number of spans
+     */
+    void release(long[] positions, int count) {
+        for (int i = 0; i < count; i++) {
+            int index = (int) positions[i] & mask;
+            records[index].clear();
+            sequences.lazySet(index, positions[i] + records.length);
+        }
+    }
+
+}
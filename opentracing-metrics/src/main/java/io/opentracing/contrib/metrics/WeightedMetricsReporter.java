@@ -0,0 +1,46 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This interface is implemented by a {@link MetricsReporter} that is able to report a single
+ * span as representing a number of spans, e.g. when only a sample of the spans is being reported.
+ *
+ */
+public interface WeightedMetricsReporter extends MetricsReporter {
+
+    /**
+     * This method identifies whether the reporter is able to record a weight other than one in
+     * its current configuration, as some types of metric can only record one span at a time.
+     * It is checked when the reporter is supplied to a {@link SamplingMetricsReporter}.
+     *
+     * @return Whether weights are supported
+     */
+    boolean isWeightSupported();
+
+    /**
+     * This method reports metrics based on the details associated with the supplied {@link SpanData},
+     * as if it had been reported the supplied number of times. The weight is recorded with a single
+     * update of the metrics, rather than by recording the span repeatedly.
+     *
+     * @param metricSpanData Span data including operation, tags, baggage and duration
+     * @param weight The number of spans represented by the span data
+     * @throws IllegalArgumentException If the weight is not one and weights are not
+     *          {@link #isWeightSupported() supported}
+     */
+    void reportSpan(SpanData metricSpanData, long weight);
+
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.label;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.opentracing.contrib.api.SpanData;
+
+/**
+ * This implementation obtains the metric label value from the span's operation, normalized
+ * by a list of rules that replace the variable parts of the operation name (e.g. ids in a
+ * URL path) with a placeholder, to bound the number of distinct label values.
+ * <p>
+ * The normalized names are held in a bounded cache, keyed by the operation name, so that the
+ * rules are only applied when an operation name is first encountered, and the same normalized
+ * string instance is returned for all operation names that normalize to the same value. Cache
+ * hits do not take a lock. Each entry records when it was last used, in terms of the number of
+ * operation names added to the cache, and when the cache is full the least recently used
+ * entries are evicted under a lock. A normalized name is only released once no cached operation
+ * name normalizes to it.
+ *
+ */
+public class NormalizingOperationMetricLabel extends OperationMetricLabel {
+
+    /**
+     * This rule replaces path segments that are UUIDs with "{uuid}".
+     */
+    public static final Rule UUID_SEGMENTS = new Rule(Pattern.compile(
+            "(?<=/)[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}(?=[/?#;]|$)"),
+            "{uuid}");
+
+    /**
+     * This rule replaces path segments that are numeric with "{id}".
+     */
+    public static final Rule NUMERIC_SEGMENTS = new Rule(Pattern.compile("(?<=/)[0-9]+(?=[/?#;]|$)"), "{id}");
+
+    /**
+     * The default maximum number of operation names held in the cache.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 1024;
+
+    private final Rule[] rules;
+    private final int maxCacheSize;
+    private final int evictionBatch;
+    private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, CanonicalName> canonicalNames = new HashMap<String, CanonicalName>();
+    private volatile long generation;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * This constructor uses the default cache size and the UUID and numeric segment rules.
+     */
+    public NormalizingOperationMetricLabel() {
+        this(DEFAULT_CACHE_SIZE, UUID_SEGMENTS, NUMERIC_SEGMENTS);
+    }
+
+    /**
+     * This constructor uses the supplied cache size and rules, which are applied in order.
+     *
+     * @param maxCacheSize The maximum number of operation names held in the cache
+     * @param rules The rules
+     */
+    public NormalizingOperationMetricLabel(int maxCacheSize, Rule... rules) {
+        this(maxCacheSize, Arrays.asList(rules));
+    }
+
+    /**
+     * This constructor uses the supplied cache size and rules, which are applied in order.
+     *
+     * @param maxCacheSize The maximum number of operation names held in the cache
+     * @param rules The rules
+     */
+    public NormalizingOperationMetricLabel(int maxCacheSize, List<Rule> rules) {
+        if (maxCacheSize < 1) {
+            throw new IllegalArgumentException("Cache size must be positive: " + maxCacheSize);
+        }
+        this.maxCacheSize = maxCacheSize;
+        // Evicting several entries at a time amortizes the scan of the cache
+        this.evictionBatch = Math.max(1, maxCacheSize / 8);
+        this.rules = rules.toArray(new Rule[rules.size()]);
+    }
+
+    @Override
+    public Object value(SpanData spanData) {
+        String operationName = spanData.getOperationName();
+        return operationName == null ? null : normalize(operationName);
+    }
+
+    /**
+     * This method returns the normalized form of the supplied operation name.
+     *
+     * @param operationName The operation name
+     * @return The normalized operation name
+     */
+    public String normalize(String operationName) {
+        CacheEntry entry = cache.get(operationName);
+        if (entry != null) {
+            hits.increment();
+            long current = generation;
+            if (entry.lastUsed != current) {
+                entry.lastUsed = current;
+            }
+            return entry.normalized;
+        }
+        misses.increment();
+        // The rules are applied without holding the lock
+        String normalized = applyRules(operationName);
+        lock.lock();
+        try {
+            entry = cache.get(operationName);
+            if (entry != null) {
+                return entry.normalized;
+            }
+            // Acquired before evicting, so a normalized name shared with an evicted entry is retained
+            normalized = acquire(normalized);
+            if (cache.size() >= maxCacheSize) {
+                evict();
+            }
+            long current = generation;
+            cache.put(operationName, new CacheEntry(normalized, current));
+            generation = current + 1;
+            return normalized;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method returns the number of operation names found in the cache.
+     *
+     * @return The number of cache hits
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * This method returns the number of operation names that had to be normalized.
+     *
+     * @return The number of cache misses
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * This method returns the number of operation names evicted from the cache.
+     *
+     * @return The number of evictions
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * This method returns the number of operation names currently held in the cache.
+     *
+     * @return The cache size
+     */
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    private String applyRules(String operationName) {
+        String ret = operationName;
+        for (Rule rule : rules) {
+            ret = rule.apply(ret);
+        }
+        return ret;
+    }
+
+    /**
+     * This method returns a single instance for each distinct normalized name, counting the
+     * cached operation names that refer to it. It must be called while holding the lock.
+     *
+     * @param normalized The normalized name
+     * @return The canonical instance
+     */
+    private String acquire(String normalized) {
+        CanonicalName canonical = canonicalNames.get(normalized);
+        if (canonical == null) {
+            canonical = new CanonicalName(normalized);
+            canonicalNames.put(normalized, canonical);
+        }
+        canonical.references++;
+        return canonical.name;
+    }
+
+    /**
+     * This method releases a normalized name referred to by an evicted operation name, removing
+     * it once no cached operation name refers to it. It must be called while holding the lock.
+     *
+     * @param normalized The normalized name
+     */
+    private void release(String normalized) {
+        CanonicalName canonical = canonicalNames.get(normalized);
+        if (canonical != null && --canonical.references == 0) {
+            canonicalNames.remove(normalized);
+        }
+    }
+
+    /**
+     * This method evicts the least recently used entries, so that there is room for at least
+     * one new entry. It must be called while holding the lock.
+     */
+    private void evict() {
+        // Entries are only added while holding the lock, so the size does not change
+        int size = cache.size();
+        int count = Math.min(size, size - maxCacheSize + evictionBatch);
+        long[] stamps = new long[size];
+        int i = 0;
+        for (CacheEntry entry : cache.values()) {
+            stamps[i++] = entry.lastUsed;
+        }
+        Arrays.sort(stamps);
+        long cutoff = stamps[count - 1];
+
+        for (int pass = 0; pass < 2 && count > 0; pass++) {
+            Iterator<CacheEntry> iter = cache.values().iterator();
+            while (count > 0 && iter.hasNext()) {
+                CacheEntry entry = iter.next();
+                // Entries used since the scan are only evicted if too few others remain
+                if (pass == 1 || entry.lastUsed <= cutoff) {
+                    iter.remove();
+                    release(entry.normalized);
+                    evictions.increment();
+                    count--;
+                }
+            }
+        }
+    }
+
+    private static final class CacheEntry {
+        private final String normalized;
+        private volatile long lastUsed;
+
+        CacheEntry(String normalized, long lastUsed) {
+            this.normalized = normalized;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private static final class CanonicalName {
+        private final String name;
+        private int references;
+
+        CanonicalName(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * This class represents a rule that replaces all matches of a pattern in the operation
+     * name with a replacement string.
+     *
+     */
+    public static class Rule {
+        private final Pattern pattern;
+        private final String replacement;
+
+        /**
+         * The constructor for the rule.
+         *
+         * @param pattern The pattern to be matched
+         * @param replacement The literal replacement for each match
+         */
+        public Rule(Pattern pattern, String replacement) {
+            this.pattern = pattern;
+            this.replacement = Matcher.quoteReplacement(replacement);
+        }
+
+        /**
+         * This method applies the rule to the supplied name.
+         *
+         * @param name The name
+         * @return The name with any matches replaced
+         */
+        public String apply(String name) {
+            Matcher matcher = pattern.matcher(name);
+            return matcher.find() ? matcher.replaceAll(replacement) : name;
+        }
+    }
+
+}
@@ -13,19 +13,30 @@
  */
 package io.opentracing.contrib.metrics;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
 import io.opentracing.contrib.api.SpanData;
 import io.opentracing.contrib.metrics.label.ConstMetricLabel;
+import io.opentracing.contrib.metrics.label.TagMetricLabel;
 import io.opentracing.tag.Tags;
 
 public class AbstractMetricsReporterTest {
@@ -139,4 +150,166 @@ public class AbstractMetricsReporterTest {
         assertEquals("4xx", labelValues[3]);
     }
 
+    @Test
+    public void testLabelKey() {
+        AbstractMetricsReporter reporter = new AbstractMetricsReporter(
+                Collections.<MetricLabel>singletonList(new ConstMetricLabel("service", "TestService"))) {
+            @Override
+            public void reportSpan(SpanData spanData) {
+            }
+        };
+
+        Map<String,Object> spanTags = new HashMap<String,Object>();
+        spanTags.put(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER);
+        spanTags.put(Tags.ERROR.getKey(), true);
+
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(spanTags);
+
+        LabelKey key = reporter.getLabelKey(spanData);
+
+        assertEquals(4, key.size());
+        assertEquals("TestService", key.value(0));
+        assertEquals("testop", key.value(1));
+        assertEquals(Tags.SPAN_KIND_SERVER, key.value(2));
+        assertEquals(Boolean.TRUE, key.value(3));
+        assertArrayEquals(reporter.getLabelValues(spanData), key.stringValues());
+        assertEquals(LabelKey.of("TestService", "testop", Tags.SPAN_KIND_SERVER, true), key);
+
+        // Key is reused on the same (platform) thread, so must be copied to be retained
+        assertSame(key, reporter.getLabelKey(spanData));
+        LabelKey copy = key.copy();
+        assertNotSame(key, copy);
+        assertEquals(key, copy);
+    }
+
+    @Test
+    public void testLabelKeyWithNullValue() {
+        AbstractMetricsReporter reporter = new AbstractMetricsReporter(
+                Collections.<MetricLabel>emptyList()) {
+            @Override
+            public void reportSpan(SpanData spanData) {
+            }
+        };
+
+        // span.kind is not defined, so span should not be reported
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(Collections.<String,Object>emptyMap());
+
+        assertNull(reporter.getLabelKey(spanData));
+    }
+
+    @Test
+    public void testUpdateMetricLabels() {
+        AbstractMetricsReporter reporter = new AbstractMetricsReporter(
+                Collections.<MetricLabel>singletonList(new ConstMetricLabel("http.url", "n/a"))) {
+            @Override
+            public void reportSpan(SpanData spanData) {
+            }
+        };
+
+        Map<String,Object> spanTags = new HashMap<String,Object>();
+        spanTags.put("http.url", "/orders/1");
+        spanTags.put(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER);
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(spanTags);
+
+        assertArrayEquals(new String[] {"n/a", "testop", Tags.SPAN_KIND_SERVER, "false"},
+                reporter.getLabelValues(spanData));
+
+        reporter.updateMetricLabels(Collections.<MetricLabel>singletonList(new TagMetricLabel("http.url", "n/a")));
+        assertArrayEquals(new String[] {"/orders/1", "testop", Tags.SPAN_KIND_SERVER, "false"},
+                reporter.getLabelValues(spanData));
+        assertTrue(reporter.getMetricLabels().get(0) instanceof TagMetricLabel);
+
+        reporter.updateMetricLabels(Collections.<MetricLabel>singletonList(new ConstMetricLabel("http.url", "n/a")));
+        assertArrayEquals(new String[] {"n/a", "testop", Tags.SPAN_KIND_SERVER, "false"},
+                reporter.getLabelValues(spanData));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUpdateUnknownMetricLabel() {
+        AbstractMetricsReporter reporter = new AbstractMetricsReporter(
+                Collections.<MetricLabel>emptyList()) {
+            @Override
+            public void reportSpan(SpanData spanData) {
+            }
+        };
+        reporter.updateMetricLabels(Collections.<MetricLabel>singletonList(new ConstMetricLabel("unknown", "value")));
+    }
+
+    @Test
+    public void testSpanFilter() {
+        AbstractMetricsReporter reporter = new AbstractMetricsReporter(
+                Collections.<MetricLabel>emptyList()) {
+            @Override
+            public void reportSpan(SpanData spanData) {
+            }
+        };
+        MetricLabel label = mock(MetricLabel.class);
+        when(label.name()).thenReturn(Tags.ERROR.getKey());
+        when(label.value(any(SpanData.class))).thenReturn("false");
+        reporter.updateMetricLabels(Collections.singletonList(label));
+
+        Map<String,Object> spanTags = new HashMap<String,Object>();
+        spanTags.put(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER);
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("internal.cache");
+        when(spanData.getTags()).thenReturn(spanTags);
+        when(spanData.getDuration()).thenReturn(10L);
+
+        reporter.setSpanFilter(SpanFilter.newSpanFilter().excludeOperations("internal.*").build());
+        assertNull(reporter.getLabelKey(spanData));
+        // Labels are not evaluated for filtered spans
+        verify(label, never()).value(any(SpanData.class));
+
+        reporter.setSpanFilter(SpanFilter.newSpanFilter().withMinDuration(100, TimeUnit.MICROSECONDS).build());
+        assertNull(reporter.getLabelKey(spanData));
+        // Duration is only checked for finished spans
+        assertNotNull(reporter.getLabelKey(spanData, false));
+
+        reporter.setSpanFilter(null);
+        assertNotNull(reporter.getLabelKey(spanData));
+    }
+
+    @Test
+    public void testStatistics() {
+        AbstractMetricsReporter reporter = new AbstractMetricsReporter(
+                Collections.<MetricLabel>emptyList()) {
+            @Override
+            public void reportSpan(SpanData spanData) {
+            }
+        };
+
+        SpanData clientSpanData = mock(SpanData.class);
+        when(clientSpanData.getOperationName()).thenReturn("testop");
+        when(clientSpanData.getTags()).thenReturn(Collections.<String,Object>singletonMap(
+                Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT));
+        // span.kind is not defined, so span should not be reported
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(Collections.<String,Object>emptyMap());
+
+        // Not counted when the reporter does not instrument itself
+        assertNull(reporter.getStatistics());
+        assertNull(reporter.getLabelKey(spanData));
+
+        ReporterStatistics statistics = new ReporterStatistics(null);
+        reporter.setStatistics(statistics);
+        assertNotNull(reporter.getLabelKey(clientSpanData));
+        assertNull(reporter.getLabelKey(spanData));
+        assertNull(reporter.getLabelKey(spanData));
+        // Only the key used to report the span is counted
+        assertNotNull(reporter.getLabelKey(clientSpanData, true));
+        assertNull(reporter.getLabelKey(spanData, false));
+
+        assertSame(statistics, reporter.getStatistics());
+        assertEquals(1, statistics.getReportedCount());
+        assertEquals(2, statistics.getSuppressedCount(Tags.SPAN_KIND.getKey()));
+        assertEquals(0, statistics.getSuppressedCount(Tags.ERROR.getKey()));
+    }
+
 }
@@ -0,0 +1,396 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
+import io.opentracing.contrib.metrics.label.ConstMetricLabel;
+import io.opentracing.contrib.metrics.label.TagMetricLabel;
+import io.opentracing.tag.Tags;
+
+public class AsyncMetricsReporterTest {
+
+    @Test
+    public void testReportsToAllReporters() {
+        RecordingReporter reporter1 = new RecordingReporter();
+        RecordingReporter reporter2 = new RecordingReporter();
+        AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(reporter1)
+                .withReporter(reporter2)
+                .withWorkers(2)
+                .build();
+
+        for (int i = 0; i < 100; i++) {
+            asyncReporter.reportSpan(createSpanData("op" + i));
+        }
+        asyncReporter.close();
+
+        assertEquals(100, reporter1.operations.size());
+        assertEquals(100, reporter2.operations.size());
+        assertTrue(reporter1.operations.contains("op99"));
+        assertEquals(0, asyncReporter.getDroppedCount());
+        assertEquals(0, asyncReporter.getPendingCount());
+    }
+
+    @Test
+    public void testReportsBatchesToBatchReporter() {
+        final List<String> operations = new CopyOnWriteArrayList<String>();
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<Integer>();
+        BatchMetricsReporter reporter = new BatchMetricsReporter() {
+            @Override
+            public void reportSpan(SpanData spanData) {
+                throw new AssertionError("Spans should be reported in batches");
+            }
+
+            @Override
+            public void reportSpans(SpanBatch batch) {
+                batchSizes.add(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    operations.add(batch.getOperationName(i));
+                }
+            }
+        };
+        AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .build();
+
+        for (int i = 0; i < 1000; i++) {
+            asyncReporter.reportSpan(createSpanData("op" + i));
+        }
+        asyncReporter.close();
+
+        assertEquals(1000, operations.size());
+        assertEquals("op0", operations.get(0));
+        assertEquals("op999", operations.get(999));
+        for (int size : batchSizes) {
+            assertTrue(size > 0 && size <= 256);
+        }
+    }
+
+    @Test
+    public void testBaggageItemsCopied() {
+        final List<String> values = new CopyOnWriteArrayList<String>();
+        AbstractMetricsReporter reporter = new AbstractMetricsReporter(
+                Collections.<MetricLabel>singletonList(new BaggageMetricLabel("labelBaggage", "default"))) {
+            @Override
+            public void reportSpan(SpanData spanData) {
+                values.add(spanData.getBaggageItem("labelBaggage"));
+                values.add(spanData.getBaggageItem("customBaggage"));
+                values.add(spanData.getBaggageItem("otherBaggage"));
+            }
+        };
+        AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withBaggageItem("customBaggage")
+                .build();
+
+        SpanData spanData = createSpanData("op");
+        when(spanData.getBaggageItem("labelBaggage")).thenReturn("value1");
+        when(spanData.getBaggageItem("customBaggage")).thenReturn("value2");
+        when(spanData.getBaggageItem("otherBaggage")).thenReturn("value3");
+        asyncReporter.reportSpan(spanData);
+        asyncReporter.close();
+
+        assertEquals(3, values.size());
+        assertEquals("value1", values.get(0));
+        assertEquals("value2", values.get(1));
+        assertEquals(null, values.get(2));
+    }
+
+    @Test
+    public void testTagsCopied() {
+        final List<Object> values = new CopyOnWriteArrayList<Object>();
+        AbstractMetricsReporter reporter = new AbstractMetricsReporter(
+                Collections.<MetricLabel>singletonList(new TagMetricLabel("labelTag", "default"))) {
+            @Override
+            public void reportSpan(SpanData spanData) {
+                values.add(spanData.getTags().get("labelTag"));
+                values.add(spanData.getTags().get("customTag"));
+                values.add(spanData.getTags().get("otherTag"));
+                values.add(spanData.getTags().get(Tags.ERROR.getKey()));
+            }
+        };
+        AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withTag("customTag")
+                .build();
+
+        Map<String, Object> tags = new HashMap<String, Object>();
+        tags.put("labelTag", "value1");
+        tags.put("customTag", "value2");
+        tags.put("otherTag", "value3");
+        tags.put(Tags.ERROR.getKey(), true);
+        SpanData spanData = createSpanData("op");
+        when(spanData.getTags()).thenReturn(tags);
+        asyncReporter.reportSpan(spanData);
+        asyncReporter.close();
+
+        assertEquals(Arrays.<Object>asList("value1", "value2", null, true), values);
+    }
+
+    @Test
+    public void testBaggageLabelReplacedAfterBuild() {
+        final List<Object> values = new CopyOnWriteArrayList<Object>();
+        AbstractMetricsReporter reporter = new AbstractMetricsReporter(
+                Collections.<MetricLabel>singletonList(new ConstMetricLabel("tenant", "none"))) {
+            @Override
+            public void reportSpan(SpanData spanData) {
+                values.add(getMetricLabels().get(0).value(spanData));
+            }
+        };
+        AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .build();
+
+        SpanData spanData = createSpanData("op");
+        when(spanData.getBaggageItem("tenant")).thenReturn("tenant1");
+        reporter.updateMetricLabels(Collections.<MetricLabel>singletonList(
+                new BaggageMetricLabel("tenant", "default")));
+        asyncReporter.reportSpan(spanData);
+        asyncReporter.close();
+
+        assertEquals(Collections.<Object>singletonList("tenant1"), values);
+    }
+
+    @Test
+    public void testDropWhenFull() throws InterruptedException {
+        BlockingReporter reporter = new BlockingReporter();
+        AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withCapacity(2)
+                .build();
+
+        asyncReporter.reportSpan(createSpanData("op1"));
+        assertTrue(reporter.entered.await(5, TimeUnit.SECONDS));
+
+        // Worker is blocked reporting the first span, which holds its slot until reported
+        asyncReporter.reportSpan(createSpanData("op2"));
+        asyncReporter.reportSpan(createSpanData("op3"));
+        asyncReporter.reportSpan(createSpanData("op4"));
+        assertEquals(2, asyncReporter.getDroppedCount());
+
+        reporter.release.countDown();
+        asyncReporter.close();
+
+        assertEquals(2, reporter.operations.size());
+        assertFalse(reporter.operations.contains("op3"));
+        assertFalse(reporter.operations.contains("op4"));
+    }
+
+    @Test
+    public void testBlockWhenFull() throws InterruptedException {
+        BlockingReporter reporter = new BlockingReporter();
+        final AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withCapacity(2)
+                .withOverflowPolicy(AsyncMetricsReporter.OverflowPolicy.BLOCK)
+                .build();
+
+        asyncReporter.reportSpan(createSpanData("op1"));
+        assertTrue(reporter.entered.await(5, TimeUnit.SECONDS));
+        asyncReporter.reportSpan(createSpanData("op2"));
+
+        final CountDownLatch reported = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                asyncReporter.reportSpan(createSpanData("op3"));
+                reported.countDown();
+            }
+        });
+        producer.start();
+        assertFalse(reported.await(100, TimeUnit.MILLISECONDS));
+
+        reporter.release.countDown();
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        asyncReporter.close();
+
+        assertEquals(3, reporter.operations.size());
+        assertTrue(reporter.operations.contains("op3"));
+        assertEquals(0, asyncReporter.getDroppedCount());
+    }
+
+    @Test
+    public void testReporterFailureDoesNotStopReporting() {
+        MetricsReporter failing = new MetricsReporter() {
+            @Override
+            public void reportSpan(SpanData spanData) {
+                throw new IllegalStateException("Failed");
+            }
+        };
+        RecordingReporter reporter = new RecordingReporter();
+        AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(failing)
+                .withReporter(reporter)
+                .build();
+
+        asyncReporter.reportSpan(createSpanData("op1"));
+        asyncReporter.reportSpan(createSpanData("op2"));
+        asyncReporter.close();
+
+        assertEquals(2, reporter.operations.size());
+    }
+
+    @Test
+    public void testReporterErrorDoesNotStopWorker() {
+        MetricsReporter failing = new MetricsReporter() {
+            @Override
+            public void reportSpan(SpanData spanData) {
+                throw new NoClassDefFoundError("Failed");
+            }
+        };
+        RecordingReporter reporter = new RecordingReporter();
+        AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(failing)
+                .withReporter(reporter)
+                .build();
+
+        asyncReporter.reportSpan(createSpanData("op1"));
+        asyncReporter.reportSpan(createSpanData("op2"));
+        asyncReporter.close();
+
+        assertEquals(2, reporter.operations.size());
+        assertEquals(0, asyncReporter.getPendingCount());
+    }
+
+    @Test
+    public void testDroppedWhenClosed() {
+        RecordingReporter reporter = new RecordingReporter();
+        AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withOverflowPolicy(AsyncMetricsReporter.OverflowPolicy.BLOCK)
+                .build();
+        asyncReporter.close();
+
+        asyncReporter.reportSpan(createSpanData("op"));
+
+        assertEquals(1, asyncReporter.getDroppedCount());
+        assertTrue(reporter.operations.isEmpty());
+    }
+
+    @Test
+    public void testCapabilitiesForwarded() {
+        AllCapabilitiesReporter reporter1 = mock(AllCapabilitiesReporter.class);
+        AllCapabilitiesReporter reporter2 = mock(AllCapabilitiesReporter.class);
+        SpanData spanData = createSpanData("op");
+        LongAdder counter1 = new LongAdder();
+        counter1.increment();
+        LongAdder counter2 = new LongAdder();
+        counter2.increment();
+        when(reporter1.isInFlightReported()).thenReturn(true);
+        when(reporter1.isSelfTimeReported()).thenReturn(true);
+        when(reporter1.isLogEventReported()).thenReturn(true);
+        when(reporter1.spanStarted(spanData)).thenReturn(counter1);
+        when(reporter2.isInFlightReported()).thenReturn(true);
+        when(reporter2.spanStarted(spanData)).thenReturn(counter2);
+        AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(reporter1)
+                .withReporter(reporter2)
+                .build();
+
+        assertTrue(asyncReporter.isInFlightReported());
+        assertTrue(asyncReporter.isSelfTimeReported());
+        assertTrue(asyncReporter.isLogEventReported());
+        LongAdder counter = asyncReporter.spanStarted(spanData);
+        // The returned adder aggregates the reporters' counters
+        assertEquals(2, counter.sum());
+        counter.decrement();
+        assertEquals(0, counter.sum());
+        counter.increment();
+        assertEquals(1, counter1.sum());
+        counter.decrement();
+        asyncReporter.reportSelfTime(spanData, 100);
+        asyncReporter.reportLogEvent(spanData, "event");
+        asyncReporter.close();
+
+        assertEquals(0, counter1.sum());
+        assertEquals(0, counter2.sum());
+        verify(reporter1).reportSelfTime(spanData, 100);
+        verify(reporter1).reportLogEvent(eq(spanData), eq("event"));
+        verify(reporter2, never()).reportSelfTime(spanData, 100);
+        verify(reporter2, never()).reportLogEvent(eq(spanData), eq("event"));
+    }
+
+    @Test
+    public void testCapabilitiesNotEnabled() {
+        AsyncMetricsReporter asyncReporter = AsyncMetricsReporter.newMetricsReporter()
+                .withReporter(mock(AllCapabilitiesReporter.class))
+                .withReporter(new RecordingReporter())
+                .build();
+        asyncReporter.close();
+
+        assertFalse(asyncReporter.isInFlightReported());
+        assertFalse(asyncReporter.isSelfTimeReported());
+        assertFalse(asyncReporter.isLogEventReported());
+        assertNull(asyncReporter.spanStarted(createSpanData("op")));
+    }
+
+    private static SpanData createSpanData(String operation) {
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn(operation);
+        return spanData;
+    }
+
+    private static class RecordingReporter implements MetricsReporter {
+        protected final List<String> operations = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public void reportSpan(SpanData spanData) {
+            operations.add(spanData.getOperationName());
+        }
+    }
+
+    private interface AllCapabilitiesReporter extends InFlightMetricsReporter, SelfTimeMetricsReporter,
+            LogEventMetricsReporter {
+    }
+
+    private static class BlockingReporter extends RecordingReporter {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void reportSpan(SpanData spanData) {
+            entered.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.reportSpan(spanData);
+        }
+    }
+
+}
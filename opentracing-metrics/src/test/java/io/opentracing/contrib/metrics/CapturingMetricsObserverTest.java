@@ -0,0 +1,225 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+import io.opentracing.Scope;
+import io.opentracing.Span;
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.api.tracer.APIExtensionsTracer;
+import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
+import io.opentracing.contrib.metrics.label.TagMetricLabel;
+import io.opentracing.mock.MockTracer;
+import io.opentracing.tag.Tags;
+
+public class CapturingMetricsObserverTest {
+
+    @Test
+    public void testCapturedLabelValues() {
+        RecordingReporter reporter = new RecordingReporter(Arrays.<MetricLabel>asList(
+                new TagMetricLabel("tagLabel", "tagDefault"),
+                new BaggageMetricLabel("baggageLabel", "baggageDefault")));
+        APIExtensionsTracer tracer = new APIExtensionsTracer(new MockTracer());
+        tracer.addTracerObserver(new CapturingMetricsObserver(reporter));
+
+        Span span = tracer.buildSpan("initial")
+                .withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER)
+                .withTag("filler", "value")
+                .start();
+        span.setTag("tagLabel", "tagValue");
+        span.setTag("other", "otherValue");
+        span.setBaggageItem("baggageLabel", "baggageValue");
+        span.setOperationName("renamed");
+        span.finish();
+
+        assertEquals(1, reporter.labelValues.size());
+        assertEquals(Arrays.asList("tagValue", "baggageValue", "renamed", Tags.SPAN_KIND_SERVER, "false"),
+                Arrays.asList(reporter.labelValues.get(0)));
+    }
+
+    @Test
+    public void testDefaultLabelValues() {
+        RecordingReporter reporter = new RecordingReporter(Arrays.<MetricLabel>asList(
+                new TagMetricLabel("tagLabel", "tagDefault"),
+                new BaggageMetricLabel("baggageLabel", "baggageDefault")));
+        APIExtensionsTracer tracer = new APIExtensionsTracer(new MockTracer());
+        tracer.addTracerObserver(new CapturingMetricsObserver(reporter));
+
+        tracer.buildSpan("op").withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT).start().finish();
+
+        assertEquals(Arrays.asList("tagDefault", "baggageDefault", "op", Tags.SPAN_KIND_CLIENT, "false"),
+                Arrays.asList(reporter.labelValues.get(0)));
+    }
+
+    @Test
+    public void testUncapturedTagsObtainedFromSpan() {
+        final List<Object> values = new ArrayList<Object>();
+        MetricsReporter reporter = new MetricsReporter() {
+            @Override
+            public void reportSpan(SpanData spanData) {
+                values.add(spanData.getTags().get("other"));
+                values.add(spanData.getTags().size());
+                values.add(spanData.getBaggageItem("unknown"));
+            }
+        };
+        APIExtensionsTracer tracer = new APIExtensionsTracer(new MockTracer());
+        tracer.addTracerObserver(new CapturingMetricsObserver(Collections.singleton(reporter)));
+
+        Span span = tracer.buildSpan("op").start();
+        span.setTag("other", "otherValue");
+        span.finish();
+
+        assertEquals("otherValue", values.get(0));
+        assertEquals(1, values.get(1));
+        assertNull(values.get(2));
+    }
+
+    @Test
+    public void testInFlightSpans() {
+        InFlightReporter reporter = new InFlightReporter(Collections.<MetricLabel>emptyList());
+        APIExtensionsTracer tracer = new APIExtensionsTracer(new MockTracer());
+        tracer.addTracerObserver(new CapturingMetricsObserver(reporter));
+
+        Span first = tracer.buildSpan("op").withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT).start();
+        Span second = tracer.buildSpan("op").withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT).start();
+        assertEquals(2, reporter.counters.get(LabelKey.of("op", Tags.SPAN_KIND_CLIENT, "false")).sum());
+
+        // Error tag set after the span started, so the label values are those at the start
+        first.setTag(Tags.ERROR.getKey(), true);
+        first.finish();
+        assertEquals(1, reporter.counters.get(LabelKey.of("op", Tags.SPAN_KIND_CLIENT, "false")).sum());
+
+        second.finish();
+        assertEquals(0, reporter.counters.get(LabelKey.of("op", Tags.SPAN_KIND_CLIENT, "false")).sum());
+        assertEquals(1, reporter.counters.size());
+    }
+
+    @Test
+    public void testSelfTime() {
+        MetricsTest.SelfTimeReporter reporter = new MetricsTest.SelfTimeReporter();
+        MockTracer mockTracer = new MockTracer();
+        APIExtensionsTracer tracer = new APIExtensionsTracer(mockTracer);
+        tracer.addTracerObserver(new CapturingMetricsObserver(Collections.<MetricsReporter>singleton(reporter),
+                mockTracer.scopeManager()));
+
+        Scope parent = tracer.buildSpan("parent").withStartTimestamp(1000).startActive(false);
+        tracer.buildSpan("child").withStartTimestamp(1100).start().finish(1400);
+        parent.close();
+        parent.span().setOperationName("renamed");
+        parent.span().finish(2000);
+
+        assertEquals(Arrays.asList("child", "renamed"), reporter.operations);
+        assertEquals(Arrays.asList(300L, 700L), reporter.selfTimes);
+    }
+
+    @Test
+    public void testLogEvents() {
+        MetricsTest.LogEventReporter reporter = new MetricsTest.LogEventReporter();
+        APIExtensionsTracer tracer = new APIExtensionsTracer(new MockTracer());
+        tracer.addTracerObserver(new CapturingMetricsObserver(reporter));
+
+        Span span = tracer.buildSpan("op").start();
+        span.setOperationName("renamed");
+        span.log("retry");
+        span.log(Collections.singletonMap("event", "cache.miss"));
+        span.finish();
+
+        assertEquals(Arrays.asList("renamed:retry", "renamed:{event=cache.miss}"), reporter.events);
+    }
+
+    @Test
+    public void testReplaceReporters() {
+        RecordingReporter first = new RecordingReporter(Arrays.<MetricLabel>asList(
+                new TagMetricLabel("first", "firstDefault")));
+        RecordingReporter second = new RecordingReporter(Arrays.<MetricLabel>asList(
+                new TagMetricLabel("second", "secondDefault")));
+        CapturingMetricsObserver observer = new CapturingMetricsObserver(first);
+        APIExtensionsTracer tracer = new APIExtensionsTracer(new MockTracer());
+        tracer.addTracerObserver(observer);
+
+        Span started = tracer.buildSpan("started").withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT).start();
+        observer.setMetricsReporters(Collections.<MetricsReporter>singleton(second));
+        assertEquals(Collections.<MetricsReporter>singleton(second), observer.getMetricsReporters());
+        started.setTag("second", "startedValue");
+        started.finish();
+
+        Span after = tracer.buildSpan("after").withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_CLIENT).start();
+        after.setTag("second", "afterValue");
+        after.finish();
+
+        // Tag not captured for the span started before the replacement, so obtained from the span
+        assertEquals(0, first.labelValues.size());
+        assertEquals(2, second.labelValues.size());
+        assertEquals("startedValue", second.labelValues.get(0)[0]);
+        assertEquals("afterValue", second.labelValues.get(1)[0]);
+    }
+
+    static class InFlightReporter extends AbstractMetricsReporter implements InFlightMetricsReporter {
+        final Map<LabelKey, LongAdder> counters = new HashMap<LabelKey, LongAdder>();
+
+        InFlightReporter(List<MetricLabel> labels) {
+            super(labels);
+        }
+
+        @Override
+        public boolean isInFlightReported() {
+            return true;
+        }
+
+        @Override
+        public LongAdder spanStarted(SpanData spanData) {
+            LabelKey key = getLabelKey(spanData).copy();
+            LongAdder counter = counters.get(key);
+            if (counter == null) {
+                counter = new LongAdder();
+                counters.put(key, counter);
+            }
+            counter.increment();
+            return counter;
+        }
+
+        @Override
+        public void reportSpan(SpanData spanData) {
+        }
+    }
+
+    private static class RecordingReporter extends AbstractMetricsReporter {
+        private final List<String[]> labelValues = new ArrayList<String[]>();
+
+        RecordingReporter(List<MetricLabel> labels) {
+            super(labels);
+        }
+
+        @Override
+        public void reportSpan(SpanData spanData) {
+            String[] values = getLabelValues(spanData);
+            if (values != null) {
+                labelValues.add(values);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.opentracing.contrib.metrics.label.ConstMetricLabel;
+import io.opentracing.contrib.metrics.label.TagMetricLabel;
+
+public class CardinalityLimiterTest {
+
+    private static final List<MetricLabel> LABELS = Arrays.<MetricLabel>asList(
+            new ConstMetricLabel("service", "TestService"),
+            new TagMetricLabel("url", null));
+
+    @Test
+    public void testAdmittedWithinLimit() {
+        CardinalityLimiter limiter = new CardinalityLimiter(LABELS, 2, Collections.<String, Integer>emptyMap());
+
+        LabelKey key1 = LabelKey.of("TestService", "/a");
+        LabelKey key2 = LabelKey.of("TestService", "/b");
+        assertSame(key1, limiter.admit(key1));
+        assertSame(key2, limiter.admit(key2));
+        assertEquals(key1, limiter.admit(LabelKey.of("TestService", "/a")));
+
+        assertEquals(2, limiter.getAdmittedCount());
+        assertEquals(0, limiter.getOverflowCount());
+    }
+
+    @Test
+    public void testFoldedWhenLimitReached() {
+        CardinalityLimiter limiter = new CardinalityLimiter(LABELS, 2, Collections.<String, Integer>emptyMap());
+        limiter.admit(LabelKey.of("TestService", "/a"));
+        limiter.admit(LabelKey.of("TestService", "/b"));
+
+        LabelKey overflow = LabelKey.of(CardinalityLimiter.OVERFLOW_VALUE, CardinalityLimiter.OVERFLOW_VALUE);
+        assertEquals(overflow, limiter.admit(LabelKey.of("TestService", "/c")));
+        assertEquals(overflow, limiter.admit(LabelKey.of("TestService", "/d")));
+        assertEquals(LabelKey.of("TestService", "/a"), limiter.admit(LabelKey.of("TestService", "/a")));
+
+        assertEquals(2, limiter.getAdmittedCount());
+        assertEquals(2, limiter.getOverflowCount());
+    }
+
+    @Test
+    public void testLabelValuesFoldedWhenLabelLimitReached() {
+        Map<String, Integer> maxLabelValues = new HashMap<String, Integer>();
+        maxLabelValues.put("url", 2);
+        CardinalityLimiter limiter = new CardinalityLimiter(LABELS, 100, maxLabelValues);
+        limiter.admit(LabelKey.of("TestService", "/a"));
+        limiter.admit(LabelKey.of("TestService", "/b"));
+
+        LabelKey folded = LabelKey.of("TestService", CardinalityLimiter.OVERFLOW_VALUE);
+        assertEquals(folded, limiter.admit(LabelKey.of("TestService", "/c")));
+        assertEquals(folded, limiter.admit(LabelKey.of("TestService", "/d")));
+        assertEquals(LabelKey.of("OtherService", CardinalityLimiter.OVERFLOW_VALUE),
+                limiter.admit(LabelKey.of("OtherService", "/e")));
+        assertEquals(LabelKey.of("OtherService", "/a"), limiter.admit(LabelKey.of("OtherService", "/a")));
+
+        assertEquals(5, limiter.getAdmittedCount());
+        assertEquals(3, limiter.getOverflowCount());
+    }
+
+    @Test
+    public void testFoldedKeyNotRetained() {
+        Map<String, Integer> maxLabelValues = new HashMap<String, Integer>();
+        maxLabelValues.put("url", 1);
+        CardinalityLimiter limiter = new CardinalityLimiter(LABELS, 100, maxLabelValues);
+        limiter.admit(LabelKey.of("TestService", "/a"));
+
+        LabelKey folded = limiter.admit(LabelKey.of("TestService", "/b"));
+        LabelKey retained = folded.copy();
+        limiter.admit(LabelKey.of("OtherService", "/c"));
+
+        assertEquals(LabelKey.of("TestService", CardinalityLimiter.OVERFLOW_VALUE), retained);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLimit() {
+        new CardinalityLimiter(LABELS, 0, Collections.<String, Integer>emptyMap());
+    }
+
+}
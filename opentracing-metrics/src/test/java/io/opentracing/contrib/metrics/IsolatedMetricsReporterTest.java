@@ -0,0 +1,338 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import io.opentracing.contrib.api.SpanData;
+
+public class IsolatedMetricsReporterTest {
+
+    @Test
+    public void testReportSpan() {
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .build();
+        SpanData spanData = createSpanData();
+
+        isolated.reportSpan(spanData);
+
+        verify(reporter).reportSpan(spanData);
+        assertEquals(1, isolated.getCallCount());
+        assertEquals(0, isolated.getFailureCount());
+        assertEquals(IsolatedMetricsReporter.State.CLOSED, isolated.getState());
+    }
+
+    @Test
+    public void testExceptionContained() {
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        doThrow(new IllegalStateException("test")).when(reporter).reportSpan(any(SpanData.class));
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .build();
+
+        isolated.reportSpan(createSpanData());
+
+        assertEquals(1, isolated.getCallCount());
+        assertEquals(1, isolated.getFailureCount());
+        assertEquals(IsolatedMetricsReporter.State.CLOSED, isolated.getState());
+    }
+
+    @Test
+    public void testOpenAfterConsecutiveFailures() {
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        doThrow(new IllegalStateException("test")).when(reporter).reportSpan(any(SpanData.class));
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withFailureThreshold(3)
+                .withOpenDuration(1, TimeUnit.HOURS)
+                .build();
+
+        for (int i = 0; i < 5; i++) {
+            isolated.reportSpan(createSpanData());
+        }
+
+        verify(reporter, times(3)).reportSpan(any(SpanData.class));
+        assertEquals(IsolatedMetricsReporter.State.OPEN, isolated.getState());
+        assertEquals(3, isolated.getFailureCount());
+        assertEquals(2, isolated.getShedCount());
+    }
+
+    @Test
+    public void testSuccessResetsConsecutiveFailures() {
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        doThrow(new IllegalStateException("test")).doThrow(new IllegalStateException("test"))
+                .doNothing().doThrow(new IllegalStateException("test"))
+                .when(reporter).reportSpan(any(SpanData.class));
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withFailureThreshold(3)
+                .build();
+
+        for (int i = 0; i < 4; i++) {
+            isolated.reportSpan(createSpanData());
+        }
+
+        assertEquals(3, isolated.getFailureCount());
+        assertEquals(IsolatedMetricsReporter.State.CLOSED, isolated.getState());
+    }
+
+    @Test
+    public void testOpenAfterSlowCalls() {
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(5);
+                return null;
+            }
+        }).when(reporter).reportSpan(any(SpanData.class));
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withTimeBudget(1, TimeUnit.MILLISECONDS)
+                .withFailureThreshold(2)
+                .withOpenDuration(1, TimeUnit.HOURS)
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            isolated.reportSpan(createSpanData());
+        }
+
+        verify(reporter, times(2)).reportSpan(any(SpanData.class));
+        assertEquals(2, isolated.getSlowCallCount());
+        assertEquals(0, isolated.getFailureCount());
+        assertEquals(1, isolated.getShedCount());
+        assertEquals(IsolatedMetricsReporter.State.OPEN, isolated.getState());
+        assertTrue(isolated.getTotalLatency(TimeUnit.MILLISECONDS) >= 10);
+    }
+
+    @Test
+    public void testTrialCallAfterOpenDuration() throws InterruptedException {
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        doThrow(new IllegalStateException("test")).doThrow(new IllegalStateException("test"))
+                .doNothing().when(reporter).reportSpan(any(SpanData.class));
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withFailureThreshold(1)
+                .withOpenDuration(10, TimeUnit.MILLISECONDS)
+                .build();
+
+        isolated.reportSpan(createSpanData());
+        assertEquals(IsolatedMetricsReporter.State.OPEN, isolated.getState());
+
+        // Failed trial call re-opens the breaker
+        Thread.sleep(20);
+        isolated.reportSpan(createSpanData());
+        assertEquals(IsolatedMetricsReporter.State.OPEN, isolated.getState());
+        isolated.reportSpan(createSpanData());
+        assertEquals(1, isolated.getShedCount());
+
+        // Successful trial call closes the breaker
+        Thread.sleep(20);
+        isolated.reportSpan(createSpanData());
+        assertEquals(IsolatedMetricsReporter.State.CLOSED, isolated.getState());
+        isolated.reportSpan(createSpanData());
+
+        verify(reporter, times(4)).reportSpan(any(SpanData.class));
+    }
+
+    @Test
+    public void testErrorInTrialCallReopensBreaker() throws InterruptedException {
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        doThrow(new IllegalStateException("test")).doThrow(new NoClassDefFoundError("test"))
+                .doNothing().when(reporter).reportSpan(any(SpanData.class));
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withFailureThreshold(1)
+                .withOpenDuration(10, TimeUnit.MILLISECONDS)
+                .build();
+
+        isolated.reportSpan(createSpanData());
+        assertEquals(IsolatedMetricsReporter.State.OPEN, isolated.getState());
+
+        // Error thrown by the trial call is contained and re-opens the breaker
+        Thread.sleep(20);
+        isolated.reportSpan(createSpanData());
+        assertEquals(IsolatedMetricsReporter.State.OPEN, isolated.getState());
+        assertEquals(2, isolated.getFailureCount());
+
+        Thread.sleep(20);
+        isolated.reportSpan(createSpanData());
+        assertEquals(IsolatedMetricsReporter.State.CLOSED, isolated.getState());
+    }
+
+    @Test
+    public void testVirtualMachineErrorPropagatedAfterFailureRecorded() throws InterruptedException {
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        doThrow(new IllegalStateException("test")).doThrow(new StackOverflowError())
+                .when(reporter).reportSpan(any(SpanData.class));
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withFailureThreshold(1)
+                .withOpenDuration(10, TimeUnit.MILLISECONDS)
+                .build();
+
+        isolated.reportSpan(createSpanData());
+        Thread.sleep(20);
+        try {
+            isolated.reportSpan(createSpanData());
+            fail("Expected StackOverflowError");
+        } catch (StackOverflowError e) {
+            // Expected
+        }
+
+        assertEquals(IsolatedMetricsReporter.State.OPEN, isolated.getState());
+        assertEquals(2, isolated.getFailureCount());
+    }
+
+    @Test
+    public void testLatencyDistribution() {
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(15);
+                return null;
+            }
+        }).doNothing().when(reporter).reportSpan(any(SpanData.class));
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .withTimeBudget(1, TimeUnit.SECONDS)
+                .build();
+
+        isolated.reportSpan(createSpanData());
+        isolated.reportSpan(createSpanData());
+
+        assertTrue(isolated.getMaxLatency(TimeUnit.MILLISECONDS) >= 15);
+        assertTrue(isolated.getMaxLatency(TimeUnit.NANOSECONDS) <= isolated.getTotalLatency(TimeUnit.NANOSECONDS));
+
+        long[] bounds = IsolatedMetricsReporter.getLatencyBucketBounds(TimeUnit.MILLISECONDS);
+        long[] counts = isolated.getLatencyCounts();
+        assertEquals(bounds.length + 1, counts.length);
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        assertEquals(2, total);
+        // The slow call is in the 10ms to 100ms bucket
+        assertEquals(10, bounds[4]);
+        assertEquals(100, bounds[5]);
+        assertEquals(1, counts[5]);
+    }
+
+    @Test
+    public void testWeightedReporter() {
+        WeightedMetricsReporter weighted = mock(WeightedMetricsReporter.class);
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        SpanData spanData = createSpanData();
+
+        when(weighted.isWeightSupported()).thenReturn(true);
+        IsolatedMetricsReporter isolatedWeighted = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(weighted)
+                .build();
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .build();
+
+        assertTrue(isolatedWeighted.isWeightSupported());
+        assertFalse(isolated.isWeightSupported());
+        isolatedWeighted.reportSpan(spanData, 3);
+        isolated.reportSpan(spanData, 1);
+
+        verify(weighted).reportSpan(spanData, 3);
+        verify(reporter).reportSpan(spanData);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnweightedReporterRejectsWeight() {
+        IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(mock(MetricsReporter.class))
+                .build()
+                .reportSpan(createSpanData(), 3);
+    }
+
+    @Test
+    public void testCapabilitiesForwarded() {
+        AllCapabilitiesReporter reporter = mock(AllCapabilitiesReporter.class);
+        LongAdder counter = new LongAdder();
+        SpanData spanData = createSpanData();
+        when(reporter.spanStarted(spanData)).thenReturn(counter);
+        when(reporter.isInFlightReported()).thenReturn(true);
+        when(reporter.isSelfTimeReported()).thenReturn(true);
+        when(reporter.isLogEventReported()).thenReturn(true);
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .build();
+
+        assertTrue(isolated.isInFlightReported());
+        assertTrue(isolated.isSelfTimeReported());
+        assertTrue(isolated.isLogEventReported());
+        assertSame(counter, isolated.spanStarted(spanData));
+        isolated.reportSelfTime(spanData, 100);
+        isolated.reportLogEvent(spanData, "event");
+
+        verify(reporter).reportSelfTime(spanData, 100);
+        verify(reporter).reportLogEvent(eq(spanData), eq("event"));
+        assertEquals(3, isolated.getCallCount());
+    }
+
+    @Test
+    public void testCapabilitiesNotImplemented() {
+        IsolatedMetricsReporter isolated = IsolatedMetricsReporter.newMetricsReporter()
+                .withReporter(mock(MetricsReporter.class))
+                .build();
+
+        assertFalse(isolated.isInFlightReported());
+        assertFalse(isolated.isSelfTimeReported());
+        assertFalse(isolated.isLogEventReported());
+        assertNull(isolated.spanStarted(createSpanData()));
+        assertEquals(0, isolated.getCallCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReporterRequired() {
+        IsolatedMetricsReporter.newMetricsReporter().build();
+    }
+
+    private static SpanData createSpanData() {
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        return spanData;
+    }
+
+    private interface AllCapabilitiesReporter extends InFlightMetricsReporter, SelfTimeMetricsReporter,
+            LogEventMetricsReporter {
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LabelKeyTest {
+
+    @Test
+    public void testEqualsAndHashCode() {
+        LabelKey key1 = LabelKey.of("op", "server", Boolean.FALSE);
+        LabelKey key2 = LabelKey.of("op", "server", Boolean.FALSE);
+        LabelKey key3 = LabelKey.of("op", "client", Boolean.FALSE);
+
+        assertEquals(key1, key2);
+        assertEquals(key1.hashCode(), key2.hashCode());
+        assertNotEquals(key1, key3);
+        assertNotEquals(key1, LabelKey.of("op", "server"));
+    }
+
+    @Test
+    public void testEqualStringRepresentations() {
+        assertSameSeries(LabelKey.of("op", "false"), LabelKey.of("op", Boolean.FALSE));
+        assertSameSeries(LabelKey.of("200", true), LabelKey.of(200, "true"));
+        assertSameSeries(LabelKey.of(200L, 'x'), LabelKey.of((short) 200, "x"));
+        assertSameSeries(LabelKey.of("-42"), LabelKey.of(-42));
+        assertSameSeries(LabelKey.of(String.valueOf(Long.MIN_VALUE)), LabelKey.of(Long.MIN_VALUE));
+        assertSameSeries(LabelKey.of("SECONDS"), LabelKey.of(TimeUnit.SECONDS));
+        assertSameSeries(LabelKey.of("1.5"), LabelKey.of(1.5d));
+
+        assertNotEquals(LabelKey.of("200"), LabelKey.of(20));
+        assertNotEquals(LabelKey.of("0200"), LabelKey.of(200));
+        assertNotEquals(LabelKey.of("-"), LabelKey.of(0));
+        assertNotEquals(LabelKey.of("xy"), LabelKey.of('x'));
+        assertNotEquals(LabelKey.of("False"), LabelKey.of(false));
+    }
+
+    @Test
+    public void testValueTypesRetained() {
+        LabelKey key = LabelKey.of("op", Boolean.TRUE, 200, TimeUnit.SECONDS);
+
+        assertSame(Boolean.TRUE, key.value(1));
+        assertEquals(200, key.value(2));
+        assertSame(TimeUnit.SECONDS, key.value(3));
+        assertArrayEquals(new String[] {"op", "true", "200", "SECONDS"}, key.stringValues());
+    }
+
+    @Test
+    public void testOtherTypesConvertedToString() {
+        StringBuilder value = new StringBuilder("mutable");
+        LabelKey key = LabelKey.of(value);
+
+        value.append("-changed");
+
+        assertEquals("mutable", key.value(0));
+        assertEquals(LabelKey.of("mutable"), key);
+    }
+
+    @Test
+    public void testCopyOfReusableKey() {
+        LabelKey reusable = new LabelKey(2);
+        reusable.set(0, "op");
+        reusable.set(1, "server");
+        reusable.rehash();
+
+        LabelKey copy = reusable.copy();
+        assertNotSame(reusable, copy);
+        assertEquals(reusable, copy);
+        assertSame(copy, copy.copy());
+
+        reusable.set(1, "client");
+        reusable.rehash();
+        assertNotEquals(reusable, copy);
+        assertEquals("server", copy.value(1));
+    }
+
+    private static void assertSameSeries(LabelKey key1, LabelKey key2) {
+        assertArrayEquals(key1.stringValues(), key2.stringValues());
+        assertEquals(key1, key2);
+        assertEquals(key2, key1);
+        assertEquals(key1.hashCode(), key2.hashCode());
+        assertEquals(Arrays.hashCode(key1.stringValues()), key1.hashCode());
+    }
+
+}
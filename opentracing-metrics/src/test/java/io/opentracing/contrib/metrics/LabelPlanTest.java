@@ -0,0 +1,110 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.label.BaggageMetricLabel;
+import io.opentracing.contrib.metrics.label.ConstMetricLabel;
+import io.opentracing.contrib.metrics.label.OperationMetricLabel;
+import io.opentracing.contrib.metrics.label.TagMetricLabel;
+
+public class LabelPlanTest {
+
+    @Test
+    public void testDeriveStandardLabels() {
+        LabelPlan plan = LabelPlan.compile(new MetricLabel[] {
+            new ConstMetricLabel("service", "TestService"),
+            new OperationMetricLabel(),
+            new TagMetricLabel("tag", "tagDefault"),
+            new TagMetricLabel("missingTag", "tagDefault"),
+            new BaggageMetricLabel("baggage", "baggageDefault"),
+            new BaggageMetricLabel("missingBaggage", "baggageDefault")
+        });
+
+        Map<String, Object> tags = new HashMap<String, Object>();
+        tags.put("tag", 5);
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(tags);
+        when(spanData.getBaggageItem("baggage")).thenReturn("baggageValue");
+
+        LabelKey key = plan.newKey();
+        assertEquals(LabelPlan.DERIVED, plan.derive(spanData, key));
+        assertEquals(LabelKey.of("TestService", "testop", 5, "tagDefault", "baggageValue", "baggageDefault"), key);
+        verify(spanData, times(1)).getTags();
+    }
+
+    @Test
+    public void testNotReportedWhenNoValue() {
+        LabelPlan plan = LabelPlan.compile(new MetricLabel[] {
+            new OperationMetricLabel(),
+            new TagMetricLabel("tag", null)
+        });
+
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+        when(spanData.getTags()).thenReturn(Collections.<String, Object>emptyMap());
+
+        // Index of the label without a value
+        assertEquals(1, plan.derive(spanData, plan.newKey()));
+    }
+
+    @Test
+    public void testNotReportedWhenConstNull() {
+        LabelPlan plan = LabelPlan.compile(new MetricLabel[] {
+            new ConstMetricLabel("service", null),
+            new OperationMetricLabel()
+        });
+
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("testop");
+
+        assertEquals(0, plan.derive(spanData, plan.newKey()));
+        verify(spanData, never()).getOperationName();
+    }
+
+    @Test
+    public void testCustomLabelEvaluated() {
+        MetricLabel custom = new TagMetricLabel("tag", "tagDefault") {
+            @Override
+            public Object value(SpanData spanData) {
+                return "custom";
+            }
+        };
+        MetricLabel nullCustom = mock(MetricLabel.class);
+        LabelPlan plan = LabelPlan.compile(new MetricLabel[] { custom });
+        LabelPlan nullPlan = LabelPlan.compile(new MetricLabel[] { custom, nullCustom });
+
+        SpanData spanData = mock(SpanData.class);
+        LabelKey key = plan.newKey();
+        assertEquals(LabelPlan.DERIVED, plan.derive(spanData, key));
+        assertEquals(LabelKey.of("custom"), key);
+        assertEquals(1, nullPlan.derive(spanData, nullPlan.newKey()));
+        verify(spanData, never()).getTags();
+    }
+
+}
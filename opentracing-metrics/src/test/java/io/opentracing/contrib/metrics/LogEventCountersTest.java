@@ -0,0 +1,144 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+public class LogEventCountersTest {
+
+    @Test
+    public void testEventNames() {
+        LogEventCounters counters = new LogEventCounters(LogEventCounters.DEFAULT_FIELD, 10, null);
+        assertEquals("retry", counters.eventName("retry"));
+        assertEquals("retry", counters.eventName(Collections.singletonMap("event", "retry")));
+        assertNull(counters.eventName(Collections.singletonMap("message", "retry")));
+    }
+
+    @Test
+    public void testEventNameFieldValues() {
+        LogEventCounters counters = new LogEventCounters(LogEventCounters.DEFAULT_FIELD, 10, null);
+        String event = new String("retry");
+        assertSame(event, counters.eventName(Collections.singletonMap("event", event)));
+        assertEquals("404", counters.eventName(Collections.singletonMap("event", 404)));
+    }
+
+    @Test
+    public void testConfiguredField() {
+        LogEventCounters counters = new LogEventCounters("error.kind", 10, null);
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put("event", "error");
+        fields.put("error.kind", "Timeout");
+
+        assertNull(counters.eventName("error"));
+        assertEquals("Timeout", counters.eventName(fields));
+    }
+
+    @Test
+    public void testIncrement() {
+        LogEventCounters counters = new LogEventCounters(LogEventCounters.DEFAULT_FIELD, 10, null);
+        counters.increment(LabelKey.of("op1"), "retry");
+        counters.increment(LabelKey.of("op1"), "retry");
+        counters.increment(LabelKey.of("op1"), "cache.miss");
+        counters.increment(LabelKey.of("op2"), "retry");
+
+        Map<String, Long> counts = counts(counters);
+        assertEquals(3, counts.size());
+        assertEquals(Long.valueOf(2), counts.get("[op1]retry"));
+        assertEquals(Long.valueOf(1), counts.get("[op1]cache.miss"));
+        assertEquals(Long.valueOf(1), counts.get("[op2]retry"));
+        assertEquals(2, counters.getEventCount());
+    }
+
+    @Test
+    public void testMaxEvents() {
+        LogEventCounters counters = new LogEventCounters(LogEventCounters.DEFAULT_FIELD, 2, null);
+        counters.increment(LabelKey.of("op"), "first");
+        counters.increment(LabelKey.of("op"), "second");
+        counters.increment(LabelKey.of("op"), "third");
+        counters.increment(LabelKey.of("op"), "fourth");
+        counters.increment(LabelKey.of("op"), "first");
+
+        Map<String, Long> counts = counts(counters);
+        assertEquals(3, counts.size());
+        assertEquals(Long.valueOf(2), counts.get("[op]first"));
+        assertEquals(Long.valueOf(1), counts.get("[op]second"));
+        assertEquals(Long.valueOf(2), counts.get("[op]" + CardinalityLimiter.OVERFLOW_VALUE));
+        assertEquals(2, counters.getEventCount());
+    }
+
+    @Test
+    public void testListener() {
+        final List<Object> created = new ArrayList<Object>();
+        LogEventCounters counters = new LogEventCounters(LogEventCounters.DEFAULT_FIELD, 10,
+                new LogEventCounters.Listener() {
+            @Override
+            public void counterCreated(LabelKey key, String event, LongAdder counter) {
+                created.add(key);
+                created.add(event);
+                created.add(counter);
+            }
+        });
+        counters.increment(LabelKey.of("op"), "retry");
+        counters.increment(LabelKey.of("op"), "retry");
+
+        assertEquals(3, created.size());
+        assertEquals(LabelKey.of("op"), created.get(0));
+        assertEquals("retry", created.get(1));
+        assertEquals(2, ((LongAdder) created.get(2)).sum());
+    }
+
+    @Test
+    public void testReusedKeyRetainedCopy() {
+        // Reusable key, as obtained by a reporter
+        LabelKey key = new LabelKey(1);
+        key.set(0, "first");
+        key.rehash();
+        LogEventCounters counters = new LogEventCounters(LogEventCounters.DEFAULT_FIELD, 10, null);
+        counters.increment(key, "retry");
+        key.set(0, "second");
+        key.rehash();
+        counters.increment(key, "retry");
+
+        Map<String, Long> counts = counts(counters);
+        assertEquals(Long.valueOf(1), counts.get("[first]retry"));
+        assertEquals(Long.valueOf(1), counts.get("[second]retry"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxEvents() {
+        new LogEventCounters(LogEventCounters.DEFAULT_FIELD, 0, null);
+    }
+
+    private static Map<String, Long> counts(LogEventCounters counters) {
+        final Map<String, Long> ret = new HashMap<String, Long>();
+        counters.forEach(new LogEventCounters.Visitor() {
+            @Override
+            public void visit(LabelKey key, String event, long count) {
+                assertNull(ret.put(key + event, count));
+            }
+        });
+        return ret;
+    }
+}
@@ -17,7 +17,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -29,10 +33,13 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
 import io.opentracing.Scope;
+import io.opentracing.Span;
 import io.opentracing.Tracer;
 import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.api.tracer.APIExtensionsTracer;
 import io.opentracing.mock.MockSpan;
 import io.opentracing.mock.MockTracer;
+import io.opentracing.tag.Tags;
 
 public class MetricsTest {
 
@@ -176,4 +183,149 @@ public class MetricsTest {
         assertEquals(0, parent.parentId());
     }
 
+    @Test
+    public void testInFlightSpans() {
+        CapturingMetricsObserverTest.InFlightReporter reporter =
+                new CapturingMetricsObserverTest.InFlightReporter(Collections.<MetricLabel>emptyList());
+        MockTracer tracer = new MockTracer();
+        Tracer metricsTracer = Metrics.decorate(tracer, reporter);
+        LabelKey key = LabelKey.of("op", Tags.SPAN_KIND_SERVER, "false");
+
+        Span first = metricsTracer.buildSpan("op").withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER).start();
+        Span second = metricsTracer.buildSpan("op").withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER).start();
+        assertEquals(2, reporter.counters.get(key).sum());
+
+        first.finish();
+        assertEquals(1, reporter.counters.get(key).sum());
+
+        second.finish();
+        assertEquals(0, reporter.counters.get(key).sum());
+    }
+
+    @Test
+    public void testSelfTime() {
+        SelfTimeReporter reporter = new SelfTimeReporter();
+        MockTracer tracer = new MockTracer();
+        Tracer metricsTracer = Metrics.decorate(tracer, reporter);
+
+        Scope parent = metricsTracer.buildSpan("parent").withStartTimestamp(1000).startActive(false);
+        metricsTracer.buildSpan("child1").withStartTimestamp(1100).start().finish(1300);
+        Scope child2 = metricsTracer.buildSpan("child2").withStartTimestamp(1400).startActive(false);
+        metricsTracer.buildSpan("grandchild").withStartTimestamp(1410).start().finish(1450);
+        child2.close();
+        child2.span().finish(1500);
+        parent.close();
+        parent.span().finish(2000);
+
+        assertEquals(Arrays.asList("child1", "grandchild", "child2", "parent"), reporter.operations);
+        assertEquals(Arrays.asList(200L, 40L, 60L, 700L), reporter.selfTimes);
+    }
+
+    @Test
+    public void testLogEvents() {
+        LogEventReporter reporter = new LogEventReporter();
+        Tracer metricsTracer = Metrics.decorate(new MockTracer(), reporter);
+
+        Span span = metricsTracer.buildSpan("op").start();
+        span.log("retry");
+        span.log(Collections.singletonMap("event", "cache.miss"));
+        span.finish();
+
+        assertEquals(Arrays.asList("op:retry", "op:{event=cache.miss}"), reporter.events);
+    }
+
+    @Test
+    public void testLogEventsNotReported() {
+        LogEventReporter reporter = new LogEventReporter();
+        reporter.reported = false;
+        Tracer metricsTracer = Metrics.decorate(new MockTracer(), reporter);
+
+        metricsTracer.buildSpan("op").start().log("retry").finish();
+
+        assertTrue(reporter.events.isEmpty());
+    }
+
+    static class LogEventReporter implements LogEventMetricsReporter {
+        final List<String> events = new ArrayList<String>();
+        boolean reported = true;
+
+        @Override
+        public boolean isLogEventReported() {
+            return reported;
+        }
+
+        @Override
+        public void reportLogEvent(SpanData spanData, String event) {
+            events.add(spanData.getOperationName() + ":" + event);
+        }
+
+        @Override
+        public void reportLogEvent(SpanData spanData, Map<String, ?> fields) {
+            events.add(spanData.getOperationName() + ":" + fields);
+        }
+
+        @Override
+        public void reportSpan(SpanData spanData) {
+        }
+    }
+
+    @Test
+    public void testReplaceReporters() {
+        MetricsReporter first = Mockito.mock(MetricsReporter.class);
+        MetricsReporter second = Mockito.mock(MetricsReporter.class);
+        MetricsObserver observer = new MetricsObserver(first);
+        APIExtensionsTracer tracer = new APIExtensionsTracer(new MockTracer());
+        tracer.addTracerObserver(observer);
+
+        Span started = tracer.buildSpan("started").start();
+        observer.setMetricsReporters(new HashSet<MetricsReporter>(Arrays.asList(first, second)));
+        assertEquals(new HashSet<MetricsReporter>(Arrays.asList(first, second)), observer.getMetricsReporters());
+        started.finish();
+
+        observer.setMetricsReporters(Collections.singleton(second));
+        tracer.buildSpan("after").start().finish();
+
+        // Spans are reported to the reporters current when they finish
+        Mockito.verify(first, Mockito.times(1)).reportSpan(Mockito.any(SpanData.class));
+        Mockito.verify(second, Mockito.times(2)).reportSpan(Mockito.any(SpanData.class));
+    }
+
+    @Test
+    public void testReplaceReportersRetainsInFlight() {
+        CapturingMetricsObserverTest.InFlightReporter reporter =
+                new CapturingMetricsObserverTest.InFlightReporter(Collections.<MetricLabel>emptyList());
+        MetricsObserver observer = new MetricsObserver(reporter);
+        APIExtensionsTracer tracer = new APIExtensionsTracer(new MockTracer());
+        tracer.addTracerObserver(observer);
+        LabelKey key = LabelKey.of("op", Tags.SPAN_KIND_SERVER, "false");
+
+        Span span = tracer.buildSpan("op").withTag(Tags.SPAN_KIND.getKey(), Tags.SPAN_KIND_SERVER).start();
+        assertEquals(1, reporter.counters.get(key).sum());
+
+        // Counter incremented before the reporter was removed is still decremented
+        observer.setMetricsReporters(Collections.<MetricsReporter>emptySet());
+        span.finish();
+        assertEquals(0, reporter.counters.get(key).sum());
+    }
+
+    static class SelfTimeReporter implements SelfTimeMetricsReporter {
+        final List<String> operations = new ArrayList<String>();
+        final List<Long> selfTimes = new ArrayList<Long>();
+
+        @Override
+        public boolean isSelfTimeReported() {
+            return true;
+        }
+
+        @Override
+        public void reportSelfTime(SpanData spanData, long selfTime) {
+            operations.add(spanData.getOperationName());
+            selfTimes.add(selfTime);
+        }
+
+        @Override
+        public void reportSpan(SpanData spanData) {
+        }
+    }
+
 }
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class OffHeapHistogramStoreTest {
+
+    private static final long[] BOUNDS = {10, 100, 1000};
+
+    @Test
+    public void testRecord() {
+        OffHeapHistogramStore store = new OffHeapHistogramStore(2, BOUNDS, 10);
+
+        assertTrue(store.record(LabelKey.of("op1", true), 5, 1));
+        assertTrue(store.record(LabelKey.of("op1", true), 10, 1));
+        assertTrue(store.record(LabelKey.of("op1", true), 11, 2));
+        assertTrue(store.record(LabelKey.of("op1", true), 5000, 1));
+        assertTrue(store.record(LabelKey.of("op2", false), 500, 1));
+
+        Map<List<String>, Histogram> histograms = collect(store);
+        assertEquals(2, store.size());
+        assertEquals(2, histograms.size());
+
+        Histogram op1 = histograms.get(Arrays.asList("op1", "true"));
+        // The bounds are inclusive, the last bucket is "+Inf"
+        assertArrayEquals(new long[] {2, 2, 0, 1}, op1.bucketCounts);
+        assertEquals(5, op1.count);
+        assertEquals(5 + 10 + 22 + 5000, op1.sum);
+
+        Histogram op2 = histograms.get(Arrays.asList("op2", "false"));
+        assertArrayEquals(new long[] {0, 0, 1, 0}, op2.bucketCounts);
+        assertEquals(1, op2.count);
+    }
+
+    @Test
+    public void testHashCollision() {
+        // "Aa" and "BB" have the same hash code
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        OffHeapHistogramStore store = new OffHeapHistogramStore(1, BOUNDS, 10);
+
+        store.record(LabelKey.of("Aa"), 1, 1);
+        store.record(LabelKey.of("BB"), 1, 2);
+        store.record(LabelKey.of("Aa"), 1, 1);
+
+        Map<List<String>, Histogram> histograms = collect(store);
+        assertEquals(2, histograms.size());
+        assertEquals(2, histograms.get(Arrays.asList("Aa")).count);
+        assertEquals(2, histograms.get(Arrays.asList("BB")).count);
+    }
+
+    @Test
+    public void testTypedLabelValues() {
+        OffHeapHistogramStore store = new OffHeapHistogramStore(4, BOUNDS, 10);
+
+        store.record(LabelKey.of("op", 42L, 'x', true), 1, 1);
+        store.record(LabelKey.of("op", 42, 'x', true), 1, 1);
+        store.record(LabelKey.of("op", -42L, 'x', true), 1, 1);
+        store.record(LabelKey.of("op", Long.MIN_VALUE, 'x', true), 1, 1);
+        store.record(LabelKey.of("op", 420L, 'y', false), 1, 1);
+        store.record(LabelKey.of("op", 4L, 'x', true), 1, 1);
+
+        Map<List<String>, Histogram> histograms = collect(store);
+        assertEquals(5, histograms.size());
+        // Label values with the same string representation are the same series
+        assertEquals(2, histograms.get(Arrays.asList("op", "42", "x", "true")).count);
+        assertEquals(1, histograms.get(Arrays.asList("op", "-42", "x", "true")).count);
+        assertEquals(1, histograms.get(Arrays.asList("op", String.valueOf(Long.MIN_VALUE), "x", "true")).count);
+        assertEquals(1, histograms.get(Arrays.asList("op", "420", "y", "false")).count);
+        assertEquals(1, histograms.get(Arrays.asList("op", "4", "x", "true")).count);
+    }
+
+    @Test
+    public void testMixedValueTypesSameSeries() {
+        OffHeapHistogramStore store = new OffHeapHistogramStore(1, BOUNDS, 10);
+
+        store.record(LabelKey.of("false"), 1, 1);
+        store.record(LabelKey.of(Boolean.FALSE), 1, 1);
+        store.record(LabelKey.of("200"), 1, 1);
+        store.record(LabelKey.of(200), 1, 1);
+
+        Map<List<String>, Histogram> histograms = collect(store);
+        assertEquals(2, store.size());
+        assertEquals(2, histograms.get(Arrays.asList("false")).count);
+        assertEquals(2, histograms.get(Arrays.asList("200")).count);
+    }
+
+    @Test
+    public void testMaxSeriesWithSameHash() {
+        // Strings made of "Aa" and "BB" all have the same hash code
+        OffHeapHistogramStore store = new OffHeapHistogramStore(1, BOUNDS, 64);
+
+        for (int i = 0; i < 64; i++) {
+            StringBuilder builder = new StringBuilder();
+            for (int bit = 0; bit < 6; bit++) {
+                builder.append((i & (1 << bit)) == 0 ? "Aa" : "BB");
+            }
+            assertTrue(store.record(LabelKey.of(builder.toString()), 1, 1));
+        }
+
+        assertEquals(64, store.size());
+        assertEquals(0, store.getRejectedCount());
+        assertFalse(store.record(LabelKey.of("op"), 1, 1));
+    }
+
+    @Test
+    public void testManySeries() {
+        OffHeapHistogramStore store = new OffHeapHistogramStore(2, BOUNDS, 10000);
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(store.record(LabelKey.of("op" + i, "value" + (i % 7)), i, 1));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(store.record(LabelKey.of("op" + i, "value" + (i % 7)), i, 1));
+        }
+
+        Map<List<String>, Histogram> histograms = collect(store);
+        assertEquals(10000, store.size());
+        assertEquals(10000, histograms.size());
+        for (int i = 0; i < 10000; i++) {
+            Histogram histogram = histograms.get(Arrays.asList("op" + i, "value" + (i % 7)));
+            assertEquals(2, histogram.count);
+            assertEquals(2L * i, histogram.sum);
+        }
+        assertEquals(0, store.getRejectedCount());
+    }
+
+    @Test
+    public void testRejectWhenFull() {
+        OffHeapHistogramStore store = new OffHeapHistogramStore(1, BOUNDS, 100);
+
+        int recorded = 0;
+        for (int i = 0; i < 200; i++) {
+            if (store.record(LabelKey.of("op" + i), 1, 1)) {
+                recorded++;
+            }
+        }
+
+        assertEquals(100, recorded);
+        assertEquals(100, store.size());
+        assertEquals(100, store.getRejectedCount());
+        // Existing series can still be recorded
+        assertEquals(100, collect(store).size());
+    }
+
+    @Test
+    public void testRejectWhenKeyArenaFull() {
+        OffHeapHistogramStore store = new OffHeapHistogramStore(1, BOUNDS, 1, 4);
+
+        char[] chars = new char[100];
+        Arrays.fill(chars, 'x');
+        assertFalse(store.record(LabelKey.of(new String(chars)), 1, 1));
+        assertTrue(store.record(LabelKey.of("op"), 1, 1));
+        assertEquals(1, store.getRejectedCount());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        final OffHeapHistogramStore store = new OffHeapHistogramStore(1, BOUNDS, 100);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 10000; i++) {
+                        store.record(LabelKey.of("op" + (i % 50)), 1, 1);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Map<List<String>, Histogram> histograms = collect(store);
+        assertEquals(50, histograms.size());
+        for (Histogram histogram : histograms.values()) {
+            assertEquals(threads.length * 10000 / 50, histogram.count);
+        }
+    }
+
+    @Test
+    public void testHeapDoesNotHoldSeries() {
+        OffHeapHistogramStore store = new OffHeapHistogramStore(3, BOUNDS, 1000);
+        long offHeapBytes = store.getOffHeapBytes();
+
+        for (int i = 0; i < 1000; i++) {
+            store.record(LabelKey.of("op" + i, "client", false), 1, 1);
+        }
+
+        assertEquals(offHeapBytes, store.getOffHeapBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBoundsNotIncreasing() {
+        new OffHeapHistogramStore(1, new long[] {10, 10}, 10);
+    }
+
+    private static Map<List<String>, Histogram> collect(OffHeapHistogramStore store) {
+        final Map<List<String>, Histogram> histograms = new HashMap<List<String>, Histogram>();
+        store.forEach(new OffHeapHistogramStore.Visitor() {
+            @Override
+            public void visit(String[] labelValues, long[] bucketCounts, long count, long sum) {
+                histograms.put(Arrays.asList(labelValues), new Histogram(bucketCounts, count, sum));
+            }
+        });
+        return histograms;
+    }
+
+    private static class Histogram {
+        private final long[] bucketCounts;
+        private final long count;
+        private final long sum;
+
+        Histogram(long[] bucketCounts, long count, long sum) {
+            this.bucketCounts = bucketCounts;
+            this.count = count;
+            this.sum = sum;
+        }
+    }
+}
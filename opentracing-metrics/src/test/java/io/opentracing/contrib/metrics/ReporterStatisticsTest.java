@@ -0,0 +1,68 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+public class ReporterStatisticsTest {
+
+    @Test
+    public void testCounts() {
+        ReporterStatistics statistics = new ReporterStatistics(null);
+        statistics.spanReported();
+        statistics.spanReported();
+        statistics.spanSuppressed("tenant");
+        statistics.seriesCreated();
+
+        assertEquals(2, statistics.getReportedCount());
+        assertEquals(1, statistics.getSuppressedCount("tenant"));
+        assertEquals(0, statistics.getSuppressedCount("span.kind"));
+        assertEquals(1, statistics.getSeriesCreatedCount());
+    }
+
+    @Test
+    public void testListenerNotifiedOncePerLabel() {
+        final Map<String, LongAdder> created = new HashMap<String, LongAdder>();
+        ReporterStatistics statistics = new ReporterStatistics(new ReporterStatistics.Listener() {
+            @Override
+            public void suppressedCounterCreated(String labelName, LongAdder counter) {
+                assertNull(created.put(labelName, counter));
+            }
+        });
+        statistics.spanSuppressed("tenant");
+        statistics.spanSuppressed("tenant");
+        statistics.spanSuppressed("span.kind");
+
+        assertEquals(2, created.size());
+        assertEquals(2, created.get("tenant").sum());
+
+        final Map<String, Long> visited = new HashMap<String, Long>();
+        statistics.forEachSuppressed(new ReporterStatistics.Visitor() {
+            @Override
+            public void visit(String labelName, long count) {
+                visited.put(labelName, count);
+            }
+        });
+        assertEquals(Long.valueOf(2), visited.get("tenant"));
+        assertEquals(Long.valueOf(1), visited.get("span.kind"));
+    }
+
+}
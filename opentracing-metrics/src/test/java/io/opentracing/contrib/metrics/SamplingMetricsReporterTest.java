@@ -0,0 +1,229 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.tag.Tags;
+
+public class SamplingMetricsReporterTest {
+
+    @Test
+    public void testAllReportedByDefault() {
+        WeightedMetricsReporter reporter = mock(WeightedMetricsReporter.class);
+        SamplingMetricsReporter samplingReporter = SamplingMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .build();
+
+        for (int i = 0; i < 10; i++) {
+            samplingReporter.reportSpan(createSpanData("trace" + i, 100));
+        }
+
+        assertEquals(1, samplingReporter.getWeight());
+        verify(reporter, times(10)).reportSpan(any(SpanData.class), eq(1L));
+    }
+
+    @Test
+    public void testSampleRateRoundedToWeight() {
+        assertEquals(3, newSamplingReporter().withSampleRate(0.3).build().getWeight());
+        assertEquals(10, newSamplingReporter().withSampleRate(0.1).build().getWeight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSampleRate() {
+        newSamplingReporter().withSampleRate(0).build();
+    }
+
+    @Test
+    public void testDecisionConsistentForTrace() {
+        SamplingMetricsReporter samplingReporter = newSamplingReporter()
+                .withSampleRate(0.5)
+                .build();
+
+        for (int i = 0; i < 100; i++) {
+            String traceId = "trace" + i;
+            boolean sampled = samplingReporter.isSampled(traceId);
+            for (int j = 0; j < 5; j++) {
+                assertEquals(sampled, samplingReporter.isSampled(traceId));
+            }
+        }
+    }
+
+    @Test
+    public void testWeightedCountUnbiased() {
+        CountingReporter reporter = new CountingReporter();
+        SamplingMetricsReporter samplingReporter = newSamplingReporter()
+                .withReporter(reporter)
+                .withSampleRate(0.1)
+                .build();
+
+        for (int i = 0; i < 100000; i++) {
+            samplingReporter.reportSpan(createSpanData(Long.toHexString(i * 31L + 7), 100));
+        }
+
+        // Only a tenth of the spans are reported, each representing ten spans
+        assertTrue("Invocations " + reporter.invocations, reporter.invocations > 8000 && reporter.invocations < 12000);
+        assertEquals(reporter.invocations * 10, reporter.count);
+        assertTrue("Count " + reporter.count, Math.abs(reporter.count - 100000) < 5000);
+    }
+
+    @Test
+    public void testErrorAlwaysReported() {
+        WeightedMetricsReporter reporter = mock(WeightedMetricsReporter.class);
+        when(reporter.isWeightSupported()).thenReturn(true);
+        SamplingMetricsReporter samplingReporter = newSamplingReporter()
+                .withReporter(reporter)
+                .withSampleRate(0.000001)
+                .build();
+
+        SpanData spanData = createSpanData("trace", 100);
+        when(spanData.getTags()).thenReturn(Collections.<String, Object>singletonMap(Tags.ERROR.getKey(), true));
+        samplingReporter.reportSpan(spanData);
+
+        verify(reporter).reportSpan(spanData, 1);
+    }
+
+    @Test
+    public void testSlowSpanAlwaysReported() {
+        WeightedMetricsReporter reporter = mock(WeightedMetricsReporter.class);
+        when(reporter.isWeightSupported()).thenReturn(true);
+        SamplingMetricsReporter samplingReporter = newSamplingReporter()
+                .withReporter(reporter)
+                .withSampleRate(0.000001)
+                .withLatencyThreshold(1, TimeUnit.SECONDS)
+                .build();
+
+        SpanData fast = createSpanData("trace", 999999);
+        SpanData slow = createSpanData("trace", 1000000);
+        samplingReporter.reportSpan(fast);
+        samplingReporter.reportSpan(slow);
+
+        verify(reporter, never()).reportSpan(fast, 1);
+        verify(reporter).reportSpan(slow, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnweightedReporterRejected() {
+        newSamplingReporter()
+                .withSampleRate(0.25)
+                .withReporter(mock(MetricsReporter.class))
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedWeightRejected() {
+        newSamplingReporter()
+                .withSampleRate(0.25)
+                .withReporter(mock(WeightedMetricsReporter.class))
+                .build();
+    }
+
+    @Test
+    public void testUnweightedReporterAcceptedWithoutSampling() {
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        SpanData spanData = createSpanData("trace", 100);
+        SamplingMetricsReporter.newMetricsReporter()
+                .withReporter(reporter)
+                .build()
+                .reportSpan(spanData);
+
+        verify(reporter).reportSpan(spanData);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTraceIdResolverRequiredWhenSampling() {
+        SamplingMetricsReporter.newMetricsReporter()
+                .withSampleRate(0.25)
+                .withReporter(new CountingReporter())
+                .build();
+    }
+
+    @Test
+    public void testStringTraceIdHashedInFull() {
+        SamplingMetricsReporter samplingReporter = newSamplingReporter()
+                .withSampleRate(0.5)
+                .build();
+
+        // "Aa" and "BB" have the same hash code, so the ids only differ beyond their hash codes
+        int differing = 0;
+        for (int i = 0; i < 100; i++) {
+            String traceId1 = "Aa" + Long.toHexString(i);
+            String traceId2 = "BB" + Long.toHexString(i);
+            assertEquals(traceId1.hashCode(), traceId2.hashCode());
+            if (samplingReporter.isSampled(traceId1) != samplingReporter.isSampled(traceId2)) {
+                differing++;
+            }
+        }
+        assertTrue("Differing " + differing, differing > 25 && differing < 75);
+    }
+
+    @Test
+    public void testUuidTraceIdHashedUsingBothHalves() {
+        UUID traceId = new UUID(1, 2);
+        assertEquals(SamplingMetricsReporter.hash(traceId), SamplingMetricsReporter.hash(new UUID(1, 2)));
+        assertNotEquals(SamplingMetricsReporter.hash(traceId), SamplingMetricsReporter.hash(new UUID(1, 3)));
+        assertNotEquals(SamplingMetricsReporter.hash(traceId), SamplingMetricsReporter.hash(new UUID(3, 2)));
+    }
+
+    private static SamplingMetricsReporter.Builder newSamplingReporter() {
+        return SamplingMetricsReporter.newMetricsReporter()
+                .withTraceIdResolver(SamplingMetricsReporter.CORRELATION_ID);
+    }
+
+    private static SpanData createSpanData(Object traceId, long duration) {
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getCorrelationId()).thenReturn(traceId);
+        when(spanData.getDuration()).thenReturn(duration);
+        when(spanData.getTags()).thenReturn(Collections.<String, Object>emptyMap());
+        return spanData;
+    }
+
+    private static class CountingReporter implements WeightedMetricsReporter {
+        private long invocations;
+        private long count;
+
+        @Override
+        public boolean isWeightSupported() {
+            return true;
+        }
+
+        @Override
+        public void reportSpan(SpanData spanData) {
+            reportSpan(spanData, 1);
+        }
+
+        @Override
+        public void reportSpan(SpanData spanData, long weight) {
+            invocations++;
+            count += weight;
+        }
+    }
+
+}
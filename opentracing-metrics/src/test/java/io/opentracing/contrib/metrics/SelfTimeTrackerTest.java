@@ -0,0 +1,170 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+import io.opentracing.Scope;
+import io.opentracing.ScopeManager;
+import io.opentracing.Span;
+import io.opentracing.contrib.api.SpanData;
+
+public class SelfTimeTrackerTest {
+
+    @Test
+    public void testChildDurationsSubtracted() {
+        ScopeManager scopeManager = mock(ScopeManager.class);
+        SelfTimeTracker tracker = new SelfTimeTracker(scopeManager, 10);
+        SpanData parent = activate(scopeManager, 1000);
+
+        LongAdder first = tracker.spanStarted();
+        LongAdder second = tracker.spanStarted();
+        assertNotNull(first);
+        assertSame(first, second);
+        assertEquals(1, tracker.getTrackedCount());
+
+        first.add(300);
+        second.add(200);
+        assertEquals(500, tracker.spanFinished(parent));
+        assertEquals(0, tracker.getTrackedCount());
+
+        // No longer tracked
+        assertEquals(1000, tracker.spanFinished(parent));
+    }
+
+    @Test
+    public void testSpanWithoutChildren() {
+        ScopeManager scopeManager = mock(ScopeManager.class);
+        SelfTimeTracker tracker = new SelfTimeTracker(scopeManager, 10);
+
+        assertNull(tracker.spanStarted());
+        assertEquals(1000, tracker.spanFinished(spanData(1000)));
+        assertEquals(0, tracker.getTrackedCount());
+    }
+
+    @Test
+    public void testOverlappingChildrenClamped() {
+        ScopeManager scopeManager = mock(ScopeManager.class);
+        SelfTimeTracker tracker = new SelfTimeTracker(scopeManager, 10);
+        SpanData parent = activate(scopeManager, 1000);
+
+        tracker.spanStarted().add(800);
+        tracker.spanStarted().add(800);
+        assertEquals(0, tracker.spanFinished(parent));
+    }
+
+    @Test
+    public void testActiveSpanNotObserved() {
+        ScopeManager scopeManager = mock(ScopeManager.class);
+        Scope scope = mock(Scope.class);
+        when(scope.span()).thenReturn(mock(Span.class));
+        when(scopeManager.active()).thenReturn(scope);
+        SelfTimeTracker tracker = new SelfTimeTracker(scopeManager, 10);
+
+        assertNull(tracker.spanStarted());
+        assertEquals(0, tracker.getTrackedCount());
+    }
+
+    @Test
+    public void testMaxParents() {
+        ScopeManager scopeManager = mock(ScopeManager.class);
+        SelfTimeTracker tracker = new SelfTimeTracker(scopeManager, 2);
+
+        SpanData first = activate(scopeManager, 1000);
+        tracker.spanStarted().add(100);
+        SpanData second = activate(scopeManager, 1000);
+        tracker.spanStarted().add(100);
+        SpanData third = activate(scopeManager, 1000);
+        assertNull(tracker.spanStarted());
+        assertEquals(2, tracker.getTrackedCount());
+        assertEquals(1, tracker.getUntrackedCount());
+        assertEquals(1000, tracker.spanFinished(third));
+
+        // Once a parent finishes, new parents can be tracked
+        assertEquals(900, tracker.spanFinished(first));
+        SpanData fourth = activate(scopeManager, 1000);
+        tracker.spanStarted().add(100);
+        assertEquals(900, tracker.spanFinished(fourth));
+        assertEquals(900, tracker.spanFinished(second));
+        assertEquals(0, tracker.getTrackedCount());
+    }
+
+    @Test
+    public void testParentsComparedByIdentity() {
+        ScopeManager scopeManager = mock(ScopeManager.class);
+        SelfTimeTracker tracker = new SelfTimeTracker(scopeManager, 10);
+        SpanData parent = activate(scopeManager, 1000);
+        tracker.spanStarted().add(100);
+
+        // Another span, even if equal, does not remove the parent's entry
+        assertEquals(1000, tracker.spanFinished(spanData(1000)));
+        assertEquals(1, tracker.getTrackedCount());
+        assertEquals(900, tracker.spanFinished(parent));
+    }
+
+    @Test
+    public void testAbandonedParentRemoved() throws InterruptedException {
+        ScopeManager scopeManager = mock(ScopeManager.class);
+        SelfTimeTracker tracker = new SelfTimeTracker(scopeManager, 1);
+        activate(scopeManager, 1000);
+        tracker.spanStarted().add(100);
+        assertEquals(1, tracker.getTrackedCount());
+
+        // The parent is discarded without finishing
+        when(scopeManager.active()).thenReturn(null);
+        reset(scopeManager);
+        for (int i = 0; i < 50 && tracker.getTrackedCount() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, tracker.getTrackedCount());
+        assertEquals(1, tracker.getAbandonedCount());
+
+        // A new parent can be tracked
+        SpanData parent = activate(scopeManager, 1000);
+        tracker.spanStarted().add(100);
+        assertEquals(900, tracker.spanFinished(parent));
+        assertEquals(0, tracker.getUntrackedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxParents() {
+        new SelfTimeTracker(mock(ScopeManager.class), 0);
+    }
+
+    private static SpanData activate(ScopeManager scopeManager, long duration) {
+        SpanData spanData = spanData(duration);
+        Scope scope = mock(Scope.class);
+        when(scope.span()).thenReturn((Span) spanData);
+        when(scopeManager.active()).thenReturn(scope);
+        return spanData;
+    }
+
+    private static SpanData spanData(long duration) {
+        SpanData spanData = mock(SpanData.class, withSettings().extraInterfaces(Span.class));
+        when(spanData.getDuration()).thenReturn(duration);
+        return spanData;
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.label.ConstMetricLabel;
+
+public class SpanBatchTest {
+
+    @Test
+    public void testAddUntilFull() {
+        SpanBatch batch = new SpanBatch(2);
+        SpanData spanData = createSpanData("op1", 100);
+
+        assertTrue(batch.add(spanData));
+        assertTrue(batch.add(createSpanData("op2", 200)));
+        assertFalse(batch.add(createSpanData("op3", 300)));
+
+        assertTrue(batch.isFull());
+        assertEquals(2, batch.size());
+        assertSame(spanData, batch.getSpanData(0));
+        assertEquals("op2", batch.getOperationName(1));
+        assertEquals(200, batch.getDuration(1));
+
+        batch.clear();
+        assertEquals(0, batch.size());
+        assertNull(batch.getSpanData(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new SpanBatch(0);
+    }
+
+    @Test
+    public void testReportToBatchReporter() {
+        BatchMetricsReporter reporter = mock(BatchMetricsReporter.class);
+        SpanBatch batch = new SpanBatch(2);
+        batch.add(createSpanData("op1", 100));
+
+        batch.report(reporter);
+
+        verify(reporter).reportSpans(batch);
+    }
+
+    @Test
+    public void testReportToReporter() {
+        MetricsReporter reporter = mock(MetricsReporter.class);
+        SpanBatch batch = new SpanBatch(2);
+        SpanData spanData1 = createSpanData("op1", 100);
+        SpanData spanData2 = createSpanData("op2", 200);
+        batch.add(spanData1);
+        batch.add(spanData2);
+
+        batch.report(reporter);
+
+        verify(reporter).reportSpan(spanData1);
+        verify(reporter).reportSpan(spanData2);
+    }
+
+    @Test
+    public void testReportSpansGroupedByLabelValues() {
+        AbstractMetricsReporter reporter = new AbstractMetricsReporter(
+                Collections.<MetricLabel>singletonList(new ConstMetricLabel("span.kind", "client"))) {
+            @Override
+            public void reportSpan(SpanData spanData) {
+            }
+        };
+        reporter.setSpanFilter(SpanFilter.newSpanFilter().excludeOperations("internal").build());
+
+        SpanBatch batch = new SpanBatch(8);
+        batch.add(createSpanData("op1", 1));
+        batch.add(createSpanData("op2", 2));
+        batch.add(createSpanData("internal", 3));
+        batch.add(createSpanData("op1", 4));
+        batch.add(createSpanData("op2", 5));
+        batch.add(createSpanData("op1", 6));
+
+        final List<String> resolved = new ArrayList<String>();
+        final List<String> recorded = new ArrayList<String>();
+        reporter.reportSpans(batch, new AbstractMetricsReporter.SeriesRecorder<String>() {
+            @Override
+            public String getSeries(LabelKey key) {
+                resolved.add(key.stringValue(0));
+                return key.stringValue(0);
+            }
+
+            @Override
+            public void record(String series, SpanBatch batch, int index) {
+                recorded.add(series + ":" + batch.getDuration(index));
+            }
+        });
+
+        assertEquals(2, resolved.size());
+        assertEquals("op1", resolved.get(0));
+        assertEquals("op2", resolved.get(1));
+        assertEquals(5, recorded.size());
+        assertEquals("op1:1", recorded.get(0));
+        assertEquals("op2:5", recorded.get(3));
+        assertEquals("op1:6", recorded.get(4));
+    }
+
+    private static SpanData createSpanData(String operation, long duration) {
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn(operation);
+        when(spanData.getDuration()).thenReturn(duration);
+        when(spanData.getTags()).thenReturn(Collections.<String, Object>emptyMap());
+        return spanData;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.tag.Tags;
+
+public class SpanFilterTest {
+
+    @Test
+    public void testOperationMatcher() {
+        OperationMatcher matcher = OperationMatcher.compile(Arrays.asList("GET /orders", "GET /api/*"),
+                Arrays.asList("GET /api/health", "internal*"));
+
+        assertEquals(OperationMatcher.INCLUDED, matcher.match("GET /orders"));
+        assertEquals(0, matcher.match("GET /orders/1"));
+        assertEquals(0, matcher.match("GET /order"));
+        assertEquals(OperationMatcher.INCLUDED, matcher.match("GET /api/"));
+        assertEquals(OperationMatcher.INCLUDED, matcher.match("GET /api/users"));
+        assertEquals(OperationMatcher.INCLUDED | OperationMatcher.EXCLUDED, matcher.match("GET /api/health"));
+        assertEquals(OperationMatcher.EXCLUDED, matcher.match("internal"));
+        assertEquals(OperationMatcher.EXCLUDED, matcher.match("internal.cache.get"));
+        assertEquals(0, matcher.match(""));
+    }
+
+    @Test
+    public void testOperationMatcherWildcardOnly() {
+        OperationMatcher matcher = OperationMatcher.compile(Collections.singletonList("*"),
+                Collections.<String>emptyList());
+
+        assertEquals(OperationMatcher.INCLUDED, matcher.match(""));
+        assertEquals(OperationMatcher.INCLUDED, matcher.match("anything"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOperationMatcherInvalidWildcard() {
+        OperationMatcher.compile(Collections.singletonList("GET /*/health"), Collections.<String>emptyList());
+    }
+
+    @Test
+    public void testAcceptAllByDefault() {
+        SpanFilter filter = SpanFilter.newSpanFilter().build();
+
+        assertTrue(filter.accept(createSpanData("op", null, null, 0), true));
+    }
+
+    @Test
+    public void testIncludeAndExcludeOperations() {
+        SpanFilter filter = SpanFilter.newSpanFilter()
+                .includeOperations("GET *", "POST *")
+                .excludeOperations("GET /health")
+                .build();
+
+        assertTrue(filter.accept(createSpanData("GET /orders", null, null, 0), true));
+        assertTrue(filter.accept(createSpanData("POST /orders", null, null, 0), true));
+        assertFalse(filter.accept(createSpanData("GET /health", null, null, 0), true));
+        assertFalse(filter.accept(createSpanData("cache.get", null, null, 0), true));
+        assertFalse(filter.accept(createSpanData(null, null, null, 0), true));
+    }
+
+    @Test
+    public void testExcludeOperationsOnly() {
+        SpanFilter filter = SpanFilter.newSpanFilter()
+                .excludeOperations("internal.*")
+                .build();
+
+        assertTrue(filter.accept(createSpanData("GET /orders", null, null, 0), true));
+        assertFalse(filter.accept(createSpanData("internal.cache", null, null, 0), true));
+    }
+
+    @Test
+    public void testSpanKinds() {
+        SpanFilter filter = SpanFilter.newSpanFilter()
+                .withSpanKinds(Tags.SPAN_KIND_SERVER, Tags.SPAN_KIND_CLIENT)
+                .build();
+
+        assertTrue(filter.accept(createSpanData("op", Tags.SPAN_KIND_SERVER, null, 0), true));
+        assertFalse(filter.accept(createSpanData("op", Tags.SPAN_KIND_PRODUCER, null, 0), true));
+        assertFalse(filter.accept(createSpanData("op", null, null, 0), true));
+    }
+
+    @Test
+    public void testComponents() {
+        SpanFilter filter = SpanFilter.newSpanFilter()
+                .withComponents("java-web-servlet")
+                .build();
+
+        assertTrue(filter.accept(createSpanData("op", null, "java-web-servlet", 0), true));
+        assertFalse(filter.accept(createSpanData("op", null, "java-jdbc", 0), true));
+        assertFalse(filter.accept(createSpanData("op", null, null, 0), true));
+    }
+
+    @Test
+    public void testMinDuration() {
+        SpanFilter filter = SpanFilter.newSpanFilter()
+                .withMinDuration(1, TimeUnit.MILLISECONDS)
+                .build();
+
+        assertTrue(filter.accept(createSpanData("op", null, null, 1000), true));
+        assertFalse(filter.accept(createSpanData("op", null, null, 999), true));
+        assertTrue(filter.accept(createSpanData("op", null, null, 0), false));
+    }
+
+    private static SpanData createSpanData(String operation, String kind, String component, long duration) {
+        Map<String, Object> tags = new HashMap<String, Object>();
+        if (kind != null) {
+            tags.put(Tags.SPAN_KIND.getKey(), kind);
+        }
+        if (component != null) {
+            tags.put(Tags.COMPONENT.getKey(), component);
+        }
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn(operation);
+        when(spanData.getTags()).thenReturn(tags);
+        when(spanData.getDuration()).thenReturn(duration);
+        return spanData;
+    }
+}
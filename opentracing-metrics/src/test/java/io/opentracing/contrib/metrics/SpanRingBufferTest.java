@@ -0,0 +1,170 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import io.opentracing.contrib.api.SpanData;
+
+public class SpanRingBufferTest {
+
+    private static final String[] NO_KEYS = new String[0];
+
+    @Test
+    public void testCapacityRoundedToPowerOfTwo() {
+        assertEquals(2, new SpanRingBuffer(1).capacity());
+        assertEquals(8, new SpanRingBuffer(5).capacity());
+        assertEquals(16, new SpanRingBuffer(16).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new SpanRingBuffer(0);
+    }
+
+    @Test
+    public void testOfferWhenFull() {
+        SpanRingBuffer ringBuffer = new SpanRingBuffer(2);
+        assertTrue(ringBuffer.offer(createSpanData("op1"), NO_KEYS, NO_KEYS));
+        assertTrue(ringBuffer.offer(createSpanData("op2"), NO_KEYS, NO_KEYS));
+        assertFalse(ringBuffer.offer(createSpanData("op3"), NO_KEYS, NO_KEYS));
+        assertEquals(2, ringBuffer.size());
+    }
+
+    @Test
+    public void testDrainInOrder() {
+        SpanRingBuffer ringBuffer = new SpanRingBuffer(4);
+        List<String> operations = new ArrayList<String>();
+
+        // Wrap around the buffer a number of times
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ringBuffer.offer(createSpanData("op" + i), NO_KEYS, NO_KEYS));
+            assertTrue(ringBuffer.offer(createSpanData("op" + i + "b"), NO_KEYS, NO_KEYS));
+            assertEquals(2, drain(ringBuffer, 10, operations));
+        }
+
+        assertEquals(20, operations.size());
+        assertEquals("op9", operations.get(18));
+        assertEquals("op9b", operations.get(19));
+        assertEquals(0, ringBuffer.size());
+        assertEquals(0, drain(ringBuffer, 10, operations));
+    }
+
+    @Test
+    public void testDrainLimit() {
+        SpanRingBuffer ringBuffer = new SpanRingBuffer(4);
+        List<String> operations = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            ringBuffer.offer(createSpanData("op" + i), NO_KEYS, NO_KEYS);
+        }
+
+        assertEquals(3, drain(ringBuffer, 3, operations));
+        assertEquals(1, ringBuffer.size());
+        assertTrue(ringBuffer.offer(createSpanData("op4"), NO_KEYS, NO_KEYS));
+        assertEquals(2, drain(ringBuffer, 3, operations));
+        assertEquals(5, operations.size());
+    }
+
+    @Test
+    public void testDrainBatchHoldsSlotsUntilReleased() {
+        SpanRingBuffer ringBuffer = new SpanRingBuffer(4);
+        SpanBatch batch = new SpanBatch(3);
+        long[] positions = new long[3];
+        for (int i = 0; i < 4; i++) {
+            ringBuffer.offer(createSpanData("op" + i), NO_KEYS, NO_KEYS);
+        }
+
+        assertEquals(3, ringBuffer.drain(batch, positions));
+        assertEquals(3, batch.size());
+        assertEquals("op0", batch.getOperationName(0));
+        assertEquals("op2", batch.getSpanData(2).getOperationName());
+        // Slots of the batch are not available until released
+        assertFalse(ringBuffer.offer(createSpanData("op4"), NO_KEYS, NO_KEYS));
+
+        batch.clear();
+        ringBuffer.release(positions, 3);
+        assertTrue(ringBuffer.offer(createSpanData("op4"), NO_KEYS, NO_KEYS));
+        assertEquals(2, ringBuffer.drain(batch, positions));
+        assertEquals("op3", batch.getOperationName(0));
+        assertEquals("op4", batch.getOperationName(1));
+    }
+
+    @Test
+    public void testRecordCopiesSpanDetails() {
+        final Map<String, Object> tags = new HashMap<String, Object>();
+        tags.put("tag", "value");
+        tags.put("uncopied", "value");
+        SpanData spanData = createSpanData("op");
+        when(spanData.getStartTime()).thenReturn(100L);
+        when(spanData.getDuration()).thenReturn(200L);
+        when(spanData.getTags()).thenReturn(tags);
+        when(spanData.getBaggageItem("bag")).thenReturn("bagValue");
+        when(spanData.getBaggageItem("other")).thenReturn("otherValue");
+
+        SpanRingBuffer ringBuffer = new SpanRingBuffer(2);
+        ringBuffer.offer(spanData, new String[] { "tag", "missing" }, new String[] { "bag" });
+        // Tags modified once the span has been handed over are not seen by the reporter
+        tags.put("tag", "modified");
+        SpanBatch batch = new SpanBatch(1);
+        assertEquals(1, ringBuffer.drain(batch, new long[1]));
+
+        SpanData record = batch.getSpanData(0);
+        assertEquals("op", record.getOperationName());
+        assertEquals(100L, record.getStartTime());
+        assertEquals(200L, record.getDuration());
+        // Only the requested tags are copied
+        assertEquals(Collections.<String, Object>singletonMap("tag", "value"), record.getTags());
+        assertEquals("value", record.getTags().get("tag"));
+        assertNull(record.getTags().get("uncopied"));
+        assertFalse(record.getTags().containsKey("missing"));
+        assertEquals("bagValue", record.getBaggageItem("bag"));
+        assertNull(record.getBaggageItem("other"));
+    }
+
+    /**
+     * This method drains the ring buffer as the reporter's workers do, adding the operations
+     * of the spans to the supplied list, and then releasing their slots.
+     */
+    private static int drain(SpanRingBuffer ringBuffer, int limit, List<String> operations) {
+        SpanBatch batch = new SpanBatch(limit);
+        long[] positions = new long[limit];
+        int count = ringBuffer.drain(batch, positions);
+        for (int i = 0; i < batch.size(); i++) {
+            operations.add(batch.getOperationName(i));
+        }
+        batch.clear();
+        ringBuffer.release(positions, count);
+        return count;
+    }
+
+    private static SpanData createSpanData(String operation) {
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn(operation);
+        return spanData;
+    }
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void testPlatformThreadIsNotVirtual() throws InterruptedException {
+        assertFalse(VirtualThreads.isVirtual());
+
+        final boolean[] virtual = new boolean[] { true };
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                virtual[0] = VirtualThreads.isVirtual();
+            }
+        });
+        thread.start();
+        thread.join();
+        assertFalse(virtual[0]);
+        assertFalse(VirtualThreads.isVirtual(thread));
+    }
+
+    @Test
+    public void testSupportedFromJava21() {
+        boolean supported;
+        try {
+            Thread.class.getMethod("isVirtual");
+            supported = true;
+        } catch (NoSuchMethodException e) {
+            supported = false;
+        }
+        assertEquals(supported, VirtualThreads.isSupported());
+    }
+
+}
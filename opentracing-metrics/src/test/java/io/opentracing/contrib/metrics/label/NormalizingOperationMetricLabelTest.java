@@ -0,0 +1,153 @@
+/**
+ * Copyright 2017-2018 The OpenTracing Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package io.opentracing.contrib.metrics.label;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import io.opentracing.contrib.api.SpanData;
+import io.opentracing.contrib.metrics.MetricLabel;
+
+public class NormalizingOperationMetricLabelTest {
+
+    @Test
+    public void testDefaultRules() {
+        NormalizingOperationMetricLabel label = new NormalizingOperationMetricLabel();
+        assertEquals("operation", label.name());
+        assertNull(label.defaultValue());
+        assertEquals("GET /orders/{id}", label.normalize("GET /orders/83721"));
+        assertEquals("GET /orders/{id}/items/{id}?all", label.normalize("GET /orders/1/items/22?all"));
+        assertEquals("GET /users/{uuid}/profile",
+                label.normalize("GET /users/123e4567-e89b-12d3-a456-426655440000/profile"));
+        assertEquals("GET /orders/v2", label.normalize("GET /orders/v2"));
+        assertEquals("GET /orders/12ab", label.normalize("GET /orders/12ab"));
+        assertEquals("getOrder", label.normalize("getOrder"));
+    }
+
+    @Test
+    public void testCustomRules() {
+        NormalizingOperationMetricLabel label = new NormalizingOperationMetricLabel(10,
+                new NormalizingOperationMetricLabel.Rule(Pattern.compile("session=[^&]*"), "session={session}"));
+        assertEquals("GET /login?session={session}&x=1", label.normalize("GET /login?session=abc&x=1"));
+        assertEquals("GET /orders/1", label.normalize("GET /orders/1"));
+    }
+
+    @Test
+    public void testValue() {
+        MetricLabel label = new NormalizingOperationMetricLabel();
+        SpanData spanData = mock(SpanData.class);
+        when(spanData.getOperationName()).thenReturn("GET /orders/5");
+        assertEquals("GET /orders/{id}", label.value(spanData));
+        assertNull(label.value(mock(SpanData.class)));
+    }
+
+    @Test
+    public void testCacheStatistics() {
+        NormalizingOperationMetricLabel label = new NormalizingOperationMetricLabel();
+        String first = label.normalize("GET /orders/1");
+        String second = label.normalize("GET /orders/2");
+        label.normalize("GET /orders/1");
+
+        assertSame(first, second);
+        assertEquals(1, label.getHitCount());
+        assertEquals(2, label.getMissCount());
+        assertEquals(0, label.getEvictionCount());
+        assertEquals(2, label.getCacheSize());
+    }
+
+    @Test
+    public void testCacheBounded() {
+        NormalizingOperationMetricLabel label = new NormalizingOperationMetricLabel(4,
+                NormalizingOperationMetricLabel.NUMERIC_SEGMENTS);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("GET /orders/{id}", label.normalize("GET /orders/" + i));
+        }
+
+        assertEquals(4, label.getCacheSize());
+        assertEquals(96, label.getEvictionCount());
+        assertEquals(100, label.getMissCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        NormalizingOperationMetricLabel label = new NormalizingOperationMetricLabel(2,
+                NormalizingOperationMetricLabel.NUMERIC_SEGMENTS);
+        label.normalize("GET /orders/1");
+        label.normalize("getOrder");
+        label.normalize("GET /orders/1");
+        label.normalize("getItem");
+
+        // "getOrder" was least recently used, so was evicted
+        label.normalize("GET /orders/1");
+        assertEquals(2, label.getHitCount());
+        label.normalize("getOrder");
+        assertEquals(4, label.getMissCount());
+        assertEquals(2, label.getEvictionCount());
+    }
+
+    @Test
+    public void testCanonicalNameRetainedWhileCached() {
+        NormalizingOperationMetricLabel label = new NormalizingOperationMetricLabel(3,
+                NormalizingOperationMetricLabel.NUMERIC_SEGMENTS);
+        String canonical = label.normalize("GET /orders/1");
+        for (int i = 0; i < 100; i++) {
+            // Keep a live operation name for the normalized name while others are evicted
+            assertSame(canonical, label.normalize("GET /orders/" + (i + 2)));
+            label.normalize("op" + i);
+        }
+    }
+
+    @Test
+    public void testConcurrentNormalize() throws InterruptedException {
+        final NormalizingOperationMetricLabel label = new NormalizingOperationMetricLabel(16,
+                NormalizingOperationMetricLabel.NUMERIC_SEGMENTS);
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        if (!"GET /orders/{id}".equals(label.normalize("GET /orders/" + (i % 40)))) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertTrue(label.getCacheSize() <= 16);
+        assertEquals(threads.length * 10000, label.getHitCount() + label.getMissCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCacheSize() {
+        new NormalizingOperationMetricLabel(0);
+    }
+
+}